@@ -0,0 +1,148 @@
+package org.dice.solrenhancements.morelikethis;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.IOUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the stages of the MoreLikeThis pipeline over a synthetic index (see {@link SyntheticIndex}):
+ *
+ * extractSeedTerms  - reading the term weights of the seed documents, from term vectors or re-analysis
+ * interestingTerms  - scoring and selecting the top terms of each field (createQueue, getMostInterestingTerms)
+ * likeSeedDocs      - both of the above, as for an mlt.q or /mlt?id= request
+ * likeContentStream - analyzing and selecting the terms of a content stream
+ * buildQuery        - turning the interesting terms into a lucene query (MLTQuery.getOrQuery)
+ * search            - executing that query for the top 10
+ *
+ * Run with: mvn -Pjmh package &amp;&amp; java -jar target/benchmarks.jar MoreLikeThisBenchmark -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MoreLikeThisBenchmark {
+
+    private static final int NUM_DOCS = 20000;
+    private static final int DOC_LENGTH = 200;
+
+    @Param({"true", "false"})
+    public boolean termVectors;
+
+    @Param({"false", "true"})
+    public boolean payloads;
+
+    @Param({"1", "4"})
+    public int numFields;
+
+    @Param({"1", "20"})
+    public int numSeeds;
+
+    private Path indexPath;
+    private Directory directory;
+    private DirectoryReader reader;
+    private IndexSearcher searcher;
+    private Analyzer analyzer;
+    private String[] fields;
+
+    private List<Integer> seedDocs;
+    private Map<String, TermWeights> seedTermWeights;
+    private MLTQuery mltQuery;
+    private Query query;
+    private String content;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        indexPath = Files.createTempDirectory("mlt-benchmark");
+        directory = SyntheticIndex.build(indexPath, NUM_DOCS, numFields, DOC_LENGTH, termVectors, payloads);
+        reader = DirectoryReader.open(directory);
+        searcher = new IndexSearcher(reader);
+        analyzer = SyntheticIndex.getAnalyzer();
+
+        fields = SyntheticIndex.getFieldNames(numFields);
+        if(payloads){
+            fields = Arrays.copyOf(fields, numFields + 1);
+            fields[numFields] = SyntheticIndex.PAYLOAD_FIELD;
+        }
+
+        Random random = new Random(numSeeds);
+        seedDocs = new ArrayList<Integer>(numSeeds);
+        for(int i = 0; i < numSeeds; i++){
+            seedDocs.add(random.nextInt(reader.maxDoc()));
+        }
+        content = SyntheticIndex.randomText(random, DOC_LENGTH * numFields);
+
+        MoreLikeThis mlt = newMoreLikeThis();
+        seedTermWeights = mlt.retrieveTermWeights(seedDocs);
+        mltQuery = mlt.like(seedTermWeights);
+        query = mltQuery.getOrQuery();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        IOUtils.close(reader, directory, analyzer);
+        IOUtils.rm(indexPath);
+    }
+
+    /**
+     * A new instance per invocation, as per request, so doc freqs are never cached between invocations
+     */
+    private MoreLikeThis newMoreLikeThis(){
+        MoreLikeThis mlt = new MoreLikeThis(reader);
+        mlt.setFieldNames(fields);
+        mlt.setStreamBodyfieldNames(fields);
+        if(payloads){
+            mlt.setPayloadFields(new String[]{SyntheticIndex.PAYLOAD_FIELD});
+        }
+        mlt.setAnalyzer(analyzer);
+        mlt.setMinDocFreq(2);
+        return mlt;
+    }
+
+    @Benchmark
+    public Map<String, TermWeights> extractSeedTerms() throws IOException {
+        return newMoreLikeThis().retrieveTermWeights(seedDocs);
+    }
+
+    @Benchmark
+    public MLTQuery interestingTerms() throws IOException {
+        return newMoreLikeThis().like(seedTermWeights);
+    }
+
+    @Benchmark
+    public MLTQuery likeSeedDocs() throws IOException {
+        return newMoreLikeThis().like(seedDocs);
+    }
+
+    @Benchmark
+    public MLTQuery likeContentStream() throws IOException {
+        return newMoreLikeThis().like(new StringReader(content));
+    }
+
+    @Benchmark
+    public Query buildQuery() {
+        return mltQuery.getOrQuery();
+    }
+
+    @Benchmark
+    public TopDocs search() throws IOException {
+        return searcher.search(query, 10);
+    }
+}
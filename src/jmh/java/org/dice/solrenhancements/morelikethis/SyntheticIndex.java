@@ -0,0 +1,124 @@
+package org.dice.solrenhancements.morelikethis;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
+import org.apache.lucene.analysis.payloads.DelimitedPayloadTokenFilter;
+import org.apache.lucene.analysis.payloads.FloatEncoder;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Builds a repeatable on-disk index of random text for the benchmarks. Words are drawn from a fixed vocabulary
+ * with a skewed (log uniform) distribution, so there is a realistic mix of common and rare terms.
+ *
+ * Each document has numFields text fields, body_0 ... body_n, and optionally a payload field of weighted skills,
+ * e.g. "skill12|2.5 skill7|1.0".
+ */
+final class SyntheticIndex {
+
+    static final String PAYLOAD_FIELD = "skills";
+
+    private static final int VOCABULARY_SIZE = 50000;
+    private static final int NUM_SKILLS = 2000;
+    private static final long SEED = 42L;
+
+    private SyntheticIndex(){
+    }
+
+    static String[] getFieldNames(int numFields){
+        String[] fields = new String[numFields];
+        for(int i = 0; i < numFields; i++){
+            fields[i] = "body_" + i;
+        }
+        return fields;
+    }
+
+    static Analyzer getAnalyzer(){
+        Map<String, Analyzer> fieldAnalyzers = new HashMap<String, Analyzer>();
+        fieldAnalyzers.put(PAYLOAD_FIELD, new Analyzer() {
+            @Override
+            protected TokenStreamComponents createComponents(String fieldName) {
+                Tokenizer source = new WhitespaceTokenizer();
+                return new TokenStreamComponents(source, new DelimitedPayloadTokenFilter(source, '|', new FloatEncoder()));
+            }
+        });
+        return new PerFieldAnalyzerWrapper(new StandardAnalyzer(), fieldAnalyzers);
+    }
+
+    static Directory build(Path path, int numDocs, int numFields, int docLength, boolean termVectors, boolean payloads) throws IOException {
+        FieldType textType = new FieldType(TextField.TYPE_STORED);
+        textType.setStoreTermVectors(termVectors);
+        textType.freeze();
+
+        FieldType payloadType = new FieldType(TextField.TYPE_STORED);
+        if(termVectors){
+            payloadType.setStoreTermVectors(true);
+            payloadType.setStoreTermVectorPositions(true);
+            payloadType.setStoreTermVectorPayloads(true);
+        }
+        payloadType.freeze();
+
+        String[] fields = getFieldNames(numFields);
+        Random random = new Random(SEED);
+        Directory directory = FSDirectory.open(path);
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(getAnalyzer()));
+        try {
+            for(int i = 0; i < numDocs; i++){
+                Document doc = new Document();
+                for(String field: fields){
+                    doc.add(new Field(field, randomText(random, docLength), textType));
+                }
+                if(payloads){
+                    doc.add(new Field(PAYLOAD_FIELD, randomSkills(random, 20), payloadType));
+                }
+                writer.addDocument(doc);
+            }
+            writer.forceMerge(1);
+        } finally {
+            writer.close();
+        }
+        return directory;
+    }
+
+    static String randomText(Random random, int numWords){
+        StringBuilder sb = new StringBuilder(numWords * 8);
+        for(int i = 0; i < numWords; i++){
+            if(i > 0){
+                sb.append(' ');
+            }
+            sb.append('w').append(Integer.toString(randomId(random, VOCABULARY_SIZE), Character.MAX_RADIX));
+        }
+        return sb.toString();
+    }
+
+    static String randomSkills(Random random, int numSkills){
+        StringBuilder sb = new StringBuilder(numSkills * 12);
+        for(int i = 0; i < numSkills; i++){
+            if(i > 0){
+                sb.append(' ');
+            }
+            sb.append("skill").append(randomId(random, NUM_SKILLS))
+              .append('|').append(1 + random.nextInt(50) / 10.0f);
+        }
+        return sb.toString();
+    }
+
+    private static int randomId(Random random, int size){
+        return (int) Math.pow(size, random.nextDouble()) - 1;
+    }
+}
@@ -0,0 +1,138 @@
+package org.dice.helper;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing (linear probing) hash map from long keys to int values, without boxing, for counting large
+ * numbers of packed pairs, e.g. two int ids in one long. Not thread safe.
+ *
+ * Iterate with:
+ * <pre>
+ *   for(int slot = 0; slot &lt; map.capacity(); slot++){
+ *       if(map.isUsed(slot)){ ... map.keyAt(slot), map.valueAt(slot) ... }
+ *   }
+ * </pre>
+ */
+public class LongIntHashMap {
+
+    // marks an empty slot, so can't be used as a key
+    public static final long EMPTY_KEY = Long.MIN_VALUE;
+
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int size = 0;
+    private int resizeAt;
+
+    public LongIntHashMap(){
+        this(16);
+    }
+
+    public LongIntHashMap(int expectedSize){
+        int capacity = Integer.highestOneBit(Math.max(4, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity){
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY_KEY);
+        values = new int[capacity];
+        mask = capacity - 1;
+        resizeAt = (int) (capacity * LOAD_FACTOR);
+    }
+
+    /**
+     * Adds the delta to the key's value, adding the key with a value of delta if not present
+     *
+     * @return the new value
+     */
+    public int addTo(long key, int delta){
+        if(key == EMPTY_KEY){
+            throw new IllegalArgumentException("The key " + EMPTY_KEY + " is reserved");
+        }
+        int slot = findSlot(keys, mask, key);
+        if(keys[slot] == key){
+            values[slot] += delta;
+            return values[slot];
+        }
+        keys[slot] = key;
+        values[slot] = delta;
+        if(++size > resizeAt){
+            resize();
+        }
+        return delta;
+    }
+
+    /**
+     * @return the key's value, or 0 if not present
+     */
+    public int get(long key){
+        int slot = findSlot(keys, mask, key);
+        return keys[slot] == key ? values[slot] : 0;
+    }
+
+    public boolean containsKey(long key){
+        return key != EMPTY_KEY && keys[findSlot(keys, mask, key)] == key;
+    }
+
+    public int size(){
+        return size;
+    }
+
+    /**
+     * @return the number of slots, for iteration
+     */
+    public int capacity(){
+        return keys.length;
+    }
+
+    public boolean isUsed(int slot){
+        return keys[slot] != EMPTY_KEY;
+    }
+
+    public long keyAt(int slot){
+        return keys[slot];
+    }
+
+    public int valueAt(int slot){
+        return values[slot];
+    }
+
+    /**
+     * @return the slot holding the key, or the empty slot where it would go
+     */
+    private static int findSlot(long[] keys, int mask, long key){
+        int slot = hash(key) & mask;
+        while(keys[slot] != EMPTY_KEY && keys[slot] != key){
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void resize(){
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(oldKeys.length << 1);
+        for(int i = 0; i < oldKeys.length; i++){
+            if(oldKeys[i] != EMPTY_KEY){
+                int slot = findSlot(keys, mask, oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    /**
+     * The murmur3 64 bit finalizer, so packed keys that differ only in their high bits spread over the table
+     */
+    private static int hash(long key){
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+}
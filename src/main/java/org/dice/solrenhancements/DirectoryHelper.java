@@ -0,0 +1,30 @@
+package org.dice.solrenhancements;
+
+import org.apache.lucene.store.Directory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Helpers for the files the components write next to the index
+ */
+public final class DirectoryHelper {
+
+    private DirectoryHelper(){
+    }
+
+    /**
+     * Publishes a fully written temporary file under its final name: syncs it, replaces any file already under that
+     * name (e.g. one rebuilt for the same index version), renames it and syncs the directory, so readers only ever
+     * see a complete file.
+     */
+    public static void publishFile(Directory dir, String tmpName, String fileName) throws IOException {
+        dir.sync(Collections.singleton(tmpName));
+        if(Arrays.asList(dir.listAll()).contains(fileName)){
+            dir.deleteFile(fileName);
+        }
+        dir.rename(tmpName, fileName);
+        dir.syncMetaData();
+    }
+}
@@ -0,0 +1,111 @@
+package org.dice.solrenhancements;
+
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.schema.StrField;
+import org.apache.solr.schema.TextField;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Reads the terms of a document's string (keyword) field from its doc values, rather than loading the stored
+ * document and re-running the analyzer. The document's ords are all read first, then resolved to terms in ord
+ * (term) order.
+ *
+ * Doc values hold each distinct value once per document, so every term has a frequency of 1.
+ */
+public class DocValuesTermSource {
+
+    private DocValuesTermSource(){
+    }
+
+    /**
+     * @return true if the field's terms can be read from its doc values: a string field with doc values, whose
+     * doc values hold exactly the indexed terms
+     */
+    public static boolean canUse(SchemaField field){
+        return field != null && field.hasDocValues() && field.getType() instanceof StrField;
+    }
+
+    /**
+     * Chooses the term source of each field from the schema
+     *
+     * @return the fields with no term vectors that can be read from doc values
+     */
+    public static Set<String> getDocValuesFields(IndexSchema schema, String[]... fieldLists){
+        Set<String> docValuesFields = new HashSet<String>();
+        for(String[] fields: fieldLists){
+            if(fields == null){
+                continue;
+            }
+            for(String fieldName: fields){
+                SchemaField field = schema.getFieldOrNull(fieldName);
+                if(canUse(field) && !field.storeTermVector()){
+                    docValuesFields.add(fieldName);
+                }
+            }
+        }
+        return docValuesFields;
+    }
+
+    /**
+     * @return true if the field's terms can be counted over a doc set from its sorted set doc values: a string field
+     * with doc values, or an indexed string or text field, which the searcher uninverts
+     */
+    public static boolean canCount(SchemaField field){
+        return canUse(field) || (field != null && field.indexed() && !field.hasDocValues()
+                && (field.getType() instanceof StrField || field.getType() instanceof TextField));
+    }
+
+    /**
+     * @return the fields whose terms can be counted over a doc set, see {@link #canCount(SchemaField)}
+     */
+    public static Set<String> getCountableFields(IndexSchema schema, String[] fields){
+        Set<String> countableFields = new HashSet<String>();
+        for(String fieldName: fields){
+            if(canCount(schema.getFieldOrNull(fieldName))){
+                countableFields.add(fieldName);
+            }
+        }
+        return countableFields;
+    }
+
+    /**
+     * @param reader    the top level reader
+     * @param docNum    the (top level) doc id
+     * @param fieldName a field that {@link #canUse(SchemaField)}
+     * @return the distinct terms of the document's field, in term order
+     */
+    public static List<BytesRef> getTerms(IndexReader reader, int docNum, String fieldName) throws IOException {
+        List<LeafReaderContext> leaves = reader.leaves();
+        LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(docNum, leaves));
+        SortedSetDocValues docValues = DocValues.getSortedSet(leaf.reader(), fieldName);
+        docValues.setDocument(docNum - leaf.docBase);
+
+        long[] ords = new long[8];
+        int numOrds = 0;
+        long ord;
+        while((ord = docValues.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS){
+            ords = ArrayUtil.grow(ords, numOrds + 1);
+            ords[numOrds++] = ord;
+        }
+
+        List<BytesRef> terms = new ArrayList<BytesRef>(numOrds);
+        for(int i = 0; i < numOrds; i++){
+            // lookupOrd re-uses its BytesRef
+            terms.add(BytesRef.deepCopyOf(docValues.lookupOrd(ords[i])));
+        }
+        return terms;
+    }
+}
@@ -65,6 +65,15 @@ public class JointCounts extends SimpleFacets {
             }
             Deque<String> queue = new LinkedList<String>(lPivotList);
             String fieldName = queue.removeFirst();
+            if(queue.size() == 1){
+                SchemaField outer = getSchemaField(fieldName);
+                SchemaField inner = getSchemaField(queue.getFirst());
+                if(JointPairCounts.canCount(outer, inner, minCount)){
+                    // count the pairs in one pass, rather than a subset query and facet count per outer value
+                    pivots.add(fieldName, new JointPairCounts(searcher.getSlowAtomicReader(), minCount, limit).count(this.docs, outer, inner));
+                    continue;
+                }
+            }
             NamedList<Integer> facetCounts = this.getTermCounts(fieldName, fieldName, minCount, limit, this.docs);
             pivots.add(fieldName, doPivots(facetCounts, fieldName, fieldName, queue, this.docs));
         }
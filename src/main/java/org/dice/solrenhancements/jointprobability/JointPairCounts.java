@@ -0,0 +1,186 @@
+package org.dice.solrenhancements.jointprobability;
+
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.DocIterator;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.dice.helper.LongIntHashMap;
+import org.dice.solrenhancements.DocValuesTermSource;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Counts a two level pivot (each value of an outer field, then the values of an inner field among the documents
+ * with that value) in one pass over the doc set, instead of a subset query and facet count per outer value. The
+ * (uninverted) doc values of both fields are read per document, through the top level view so the ords are global
+ * (as faceting does), counting the outer values in an array and the (outer, inner) pairs in a sparse map.
+ *
+ * Values are ordered and cut off as a facet count would: by count descending then by term, with at least minCount
+ * and at most limit values, at both levels.
+ */
+class JointPairCounts {
+
+    private final LeafReader reader;
+    private final int minCount;
+    private final int limit;
+
+    /**
+     * @param reader the top level (e.g. {@link SolrIndexSearcher#getSlowAtomicReader()}) view of the index
+     */
+    JointPairCounts(LeafReader reader, int minCount, int limit) {
+        this.reader = reader;
+        this.minCount = minCount;
+        this.limit = limit;
+    }
+
+    /**
+     * @return true if the pivot of the two fields can be counted in one pass, values with no documents are never
+     * counted, so the min count must be at least 1
+     */
+    static boolean canCount(SchemaField outer, SchemaField inner, int minCount){
+        return minCount >= 1 && DocValuesTermSource.canCount(outer) && DocValuesTermSource.canCount(inner);
+    }
+
+    /**
+     * @return the pivots, in the format of {@link JointCounts#process()}
+     */
+    List<NamedList<Object>> count(DocSet docs, SchemaField outer, SchemaField inner) throws IOException {
+        if(limit == 0){
+            return new ArrayList<NamedList<Object>>();
+        }
+        SortedSetDocValues outerValues = DocValues.getSortedSet(reader, outer.getName());
+        SortedSetDocValues innerValues = DocValues.getSortedSet(reader, inner.getName());
+        if(outerValues.getValueCount() > Integer.MAX_VALUE || innerValues.getValueCount() > Integer.MAX_VALUE){
+            throw new IOException("Too many values to count pairs of " + outer.getName() + " and " + inner.getName());
+        }
+
+        int[] outerCounts = new int[(int) outerValues.getValueCount()];
+        LongIntHashMap pairCounts = new LongIntHashMap();
+        long[] outerOrds = new long[8];
+        long[] innerOrds = new long[8];
+        DocIterator iterator = docs.iterator();
+        while(iterator.hasNext()){
+            int doc = iterator.nextDoc();
+            outerValues.setDocument(doc);
+            int numOuter = 0;
+            long ord;
+            while((ord = outerValues.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS){
+                outerOrds = ArrayUtil.grow(outerOrds, numOuter + 1);
+                outerOrds[numOuter++] = ord;
+            }
+            if(numOuter == 0){
+                continue;
+            }
+            innerValues.setDocument(doc);
+            int numInner = 0;
+            while((ord = innerValues.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS){
+                innerOrds = ArrayUtil.grow(innerOrds, numInner + 1);
+                innerOrds[numInner++] = ord;
+            }
+            for(int i = 0; i < numOuter; i++){
+                outerCounts[(int) outerOrds[i]]++;
+                long high = outerOrds[i] << 32;
+                for(int j = 0; j < numInner; j++){
+                    pairCounts.addTo(high | innerOrds[j], 1);
+                }
+            }
+        }
+
+        // the pivot of each outer value kept, by outer ord
+        int[] selectedOuter = select(outerCounts);
+        int[] outerSlots = new int[outerCounts.length];
+        Arrays.fill(outerSlots, -1);
+        for(int slot = 0; slot < selectedOuter.length; slot++){
+            outerSlots[selectedOuter[slot]] = slot;
+        }
+
+        // the inner counts of each kept outer value, packed as count then inner ord
+        long[][] innerCounts = new long[selectedOuter.length][];
+        int[] numInnerCounts = new int[selectedOuter.length];
+        for(int slot = 0; slot < pairCounts.capacity(); slot++){
+            if(!pairCounts.isUsed(slot) || pairCounts.valueAt(slot) < minCount){
+                continue;
+            }
+            long pair = pairCounts.keyAt(slot);
+            int outerSlot = outerSlots[(int) (pair >>> 32)];
+            if(outerSlot < 0){
+                continue;
+            }
+            if(innerCounts[outerSlot] == null){
+                innerCounts[outerSlot] = new long[8];
+            }
+            innerCounts[outerSlot] = ArrayUtil.grow(innerCounts[outerSlot], numInnerCounts[outerSlot] + 1);
+            innerCounts[outerSlot][numInnerCounts[outerSlot]++] = ((long) pairCounts.valueAt(slot) << 32) | (pair & 0xFFFFFFFFL);
+        }
+
+        List<NamedList<Object>> pivots = new ArrayList<NamedList<Object>>(selectedOuter.length);
+        for(int slot = 0; slot < selectedOuter.length; slot++){
+            int outerOrd = selectedOuter[slot];
+            SimpleOrderedMap<Object> pivot = new SimpleOrderedMap<Object>();
+            pivot.add(JointCounts.VALUE, toObject(outer, outerValues.lookupOrd(outerOrd)));
+            pivot.add(JointCounts.COUNT, outerCounts[outerOrd]);
+            if(numInnerCounts[slot] > 0){
+                pivot.add(inner.getName(), getInnerPivots(innerValues, inner, innerCounts[slot], numInnerCounts[slot]));
+            }
+            pivots.add(pivot);
+        }
+        return pivots;
+    }
+
+    /**
+     * @return the ords with at least minCount, by count descending then ord, at most limit of them
+     */
+    private int[] select(int[] counts){
+        long[] selected = new long[16];
+        int numSelected = 0;
+        for(int ord = 0; ord < counts.length; ord++){
+            if(counts[ord] >= minCount){
+                selected = ArrayUtil.grow(selected, numSelected + 1);
+                // sorts by count descending, then ord ascending
+                selected[numSelected++] = ((long) (Integer.MAX_VALUE - counts[ord]) << 32) | ord;
+            }
+        }
+        Arrays.sort(selected, 0, numSelected);
+        int size = limit < 0 ? numSelected : Math.min(limit, numSelected);
+        int[] ords = new int[size];
+        for(int i = 0; i < size; i++){
+            ords[i] = (int) selected[i];
+        }
+        return ords;
+    }
+
+    private List<NamedList<Object>> getInnerPivots(SortedSetDocValues innerValues, SchemaField inner, long[] counts, int numCounts) throws IOException {
+        // by count descending, then ord ascending
+        long[] sorted = new long[numCounts];
+        for(int i = 0; i < numCounts; i++){
+            int count = (int) (counts[i] >>> 32);
+            int ord = (int) counts[i];
+            sorted[i] = ((long) (Integer.MAX_VALUE - count) << 32) | ord;
+        }
+        Arrays.sort(sorted);
+        int size = limit < 0 ? numCounts : Math.min(limit, numCounts);
+        List<NamedList<Object>> pivots = new ArrayList<NamedList<Object>>(size);
+        for(int i = 0; i < size; i++){
+            int ord = (int) sorted[i];
+            SimpleOrderedMap<Object> pivot = new SimpleOrderedMap<Object>();
+            pivot.add(JointCounts.VALUE, toObject(inner, innerValues.lookupOrd(ord)));
+            pivot.add(JointCounts.COUNT, Integer.MAX_VALUE - (int) (sorted[i] >>> 32));
+            pivots.add(pivot);
+        }
+        return pivots;
+    }
+
+    private static Object toObject(SchemaField field, BytesRef term){
+        return field.getType().toObject(field, term);
+    }
+}
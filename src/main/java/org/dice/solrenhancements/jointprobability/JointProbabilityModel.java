@@ -2,17 +2,36 @@ package org.dice.solrenhancements.jointprobability;
 
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.common.util.SimpleOrderedMap;
+import org.dice.helper.LongFloatHashMap;
 
 import java.io.Serializable;
 import java.util.*;
 
 /**
  * Created by simon.hughes on 1/18/16.
+ *
+ * Each distinct field value is interned as an ordinal when the model is built, the priors are held in an array
+ * by ordinal and the joints in a primitive map keyed by the (ordered) pair of ordinals. Callers in a hot loop
+ * should resolve their values to ordinals once, with {@link #getFieldOrdinal} and {@link #getValueOrdinal}, and use
+ * the ordinal versions of the probability methods, which do no string building or boxing.
  */
 public class JointProbabilityModel implements Serializable {
 
-    private Map<String,Float> priors = new HashMap<String,Float>();
-    private Map<String,Float> jointCounts = new HashMap<String,Float>();
+    // the ordinal of a field or value not in the model
+    public static final int UNKNOWN = -1;
+
+    private final Map<String, Integer> fieldOrdinals = new HashMap<String, Integer>();
+    // per field ordinal, the value -> value ordinal map
+    private final List<Map<String, Integer>> valueOrdinals = new ArrayList<Map<String, Integer>>();
+    private final List<String> values = new ArrayList<String>();
+    private final List<Integer> valueFields = new ArrayList<Integer>();
+
+    private float[] priors = new float[16];
+    private boolean[] hasPrior = new boolean[16];
+    private final LongFloatHashMap jointCounts = new LongFloatHashMap();
+    private int numPriors = 0;
+    // per field ordinal, the ordinals of the field's values with a prior
+    private final int[][] fieldValues;
 
     private final float smoothValue;
     private final float totalJointCounts;
@@ -51,54 +70,131 @@ public class JointProbabilityModel implements Serializable {
                         innerFieldCounts = (ArrayList<SimpleOrderedMap<Object>>)value;
                     }
                 }
-                addPrior(field, token, priorCount);
+                int tokenOrdinal = intern(field, token);
+                addPrior(tokenOrdinal, priorCount);
 
                 if(innerFieldCounts != null){
                     for(SimpleOrderedMap<Object> innerFieldCount: innerFieldCounts) {
 
                         int jointCount = (Integer) innerFieldCount.get(JointCounts.COUNT);
                         String subToken = innerFieldCount.get(JointCounts.VALUE).toString();
-                        addJoint(field, token, subField, subToken, jointCount);
+                        addJoint(tokenOrdinal, intern(subField, subToken), jointCount);
                     }
                 }
             }
         }
 
         float total = 0f;
-        for(Float count: this.jointCounts.values()){
-            total += count;
+        for(int slot = 0; slot < this.jointCounts.capacity(); slot++){
+            if(this.jointCounts.isUsed(slot)){
+                total += this.jointCounts.valueAt(slot);
+            }
         }
         this.totalJointCounts = total;
 
         float pTotal = 0;
-        for(Float count: this.priors.values()){
-            pTotal += count;
+        int[] numFieldValues = new int[this.fieldOrdinals.size()];
+        for(int ordinal = 0; ordinal < this.values.size(); ordinal++){
+            if(this.hasPrior[ordinal]){
+                pTotal += this.priors[ordinal];
+                numFieldValues[this.valueFields.get(ordinal)]++;
+            }
         }
         this.totalPriorCounts = pTotal;
+
+        this.fieldValues = new int[numFieldValues.length][];
+        for(int field = 0; field < numFieldValues.length; field++){
+            this.fieldValues[field] = new int[numFieldValues[field]];
+            numFieldValues[field] = 0;
+        }
+        for(int ordinal = 0; ordinal < this.values.size(); ordinal++){
+            if(this.hasPrior[ordinal]){
+                int field = this.valueFields.get(ordinal);
+                this.fieldValues[field][numFieldValues[field]++] = ordinal;
+            }
+        }
     }
 
-    private static final String KEY_DELIM = "__";
-    private String getFieldKey(String field, String val){
-        return String.format("%s%s%s", field, KEY_DELIM, val.replace(KEY_DELIM,""));
+    private int intern(String field, String value){
+        Integer fieldOrdinal = this.fieldOrdinals.get(field);
+        if(fieldOrdinal == null){
+            fieldOrdinal = this.fieldOrdinals.size();
+            this.fieldOrdinals.put(field, fieldOrdinal);
+            this.valueOrdinals.add(new HashMap<String, Integer>());
+        }
+        Map<String, Integer> ordinals = this.valueOrdinals.get(fieldOrdinal);
+        Integer ordinal = ordinals.get(value);
+        if(ordinal == null){
+            ordinal = this.values.size();
+            ordinals.put(value, ordinal);
+            this.values.add(value);
+            this.valueFields.add(fieldOrdinal);
+            if(ordinal >= this.priors.length){
+                this.priors = Arrays.copyOf(this.priors, ordinal * 2);
+                this.hasPrior = Arrays.copyOf(this.hasPrior, ordinal * 2);
+            }
+        }
+        return ordinal;
     }
 
-    private String getKey(String fieldA, String a, String fieldB, String b){
-        String aKey = getFieldKey(fieldA, a);
-        String bKey = getFieldKey(fieldB, b);
-        if(aKey.compareTo(bKey) < 0) {
-            return aKey + "|" + bKey;
+    private static long getKey(int a, int b){
+        // the joint is symmetric
+        if(a < b) {
+            return ((long) a << 32) | b;
         }
         else{
-            return bKey + "|" + aKey;
+            return ((long) b << 32) | a;
+        }
+    }
+
+    private void addJoint(int a, int b, int count){
+        jointCounts.put(getKey(a, b), count + this.smoothValue);
+    }
+
+    private void addPrior(int a, int count){
+        if(!hasPrior[a]){
+            hasPrior[a] = true;
+            numPriors++;
+        }
+        priors[a] = count + this.smoothValue;
+    }
+
+    /**
+     * @return the ordinal of the field, or {@link #UNKNOWN} if it has no values in the model
+     */
+    public int getFieldOrdinal(String fieldName){
+        Integer ordinal = this.fieldOrdinals.get(fieldName);
+        return ordinal == null ? UNKNOWN : ordinal;
+    }
+
+    /**
+     * @param fieldOrdinal the ordinal of the value's field, see {@link #getFieldOrdinal}
+     * @return the ordinal of the value, or {@link #UNKNOWN} if not in the model
+     */
+    public int getValueOrdinal(int fieldOrdinal, String value){
+        if(fieldOrdinal == UNKNOWN){
+            return UNKNOWN;
         }
+        Integer ordinal = this.valueOrdinals.get(fieldOrdinal).get(value);
+        return ordinal == null ? UNKNOWN : ordinal;
     }
 
-    private void addJoint(String fieldA, String a, String fieldB, String b, int count){
-        jointCounts.put(getKey(fieldA, a, fieldB, b), count + this.smoothValue);
+    /**
+     * @return the value of a value ordinal
+     */
+    public String getValue(int valueOrdinal){
+        return this.values.get(valueOrdinal);
     }
 
-    private void addPrior(String fieldA, String a, int count){
-        priors.put(getFieldKey(fieldA, a), count + this.smoothValue);
+    /**
+     * @return the ordinals of the field's values that have a prior, e.g. the values of a class field to predict.
+     * Must not be modified
+     */
+    public int[] getValueOrdinals(int fieldOrdinal){
+        if(fieldOrdinal == UNKNOWN){
+            return new int[0];
+        }
+        return this.fieldValues[fieldOrdinal];
     }
 
     /***
@@ -111,12 +207,18 @@ public class JointProbabilityModel implements Serializable {
      * @return       conditional probability p(a/b)
      */
     public float getConditional(String fieldA, String a, String fieldB, String b){
-        final float prior = this.getPrior(fieldB, b);
+        return getConditional(getValueOrdinal(getFieldOrdinal(fieldA), a), getValueOrdinal(getFieldOrdinal(fieldB), b));
+    }
+
+    /***
+     * Computes the conditional probability - p(a/b), from value ordinals
+     */
+    public float getConditional(int a, int b){
         // don't return p == 1 for unobserved values
-        if(prior == this.smoothValue){
+        if(b == UNKNOWN || !this.hasPrior[b]){
             return 0.0f;
         }
-        return this.getJoint(fieldA, a, fieldB, b) / prior;
+        return this.getJoint(a, b) / this.getPrior(b);
     }
 
     /***
@@ -129,11 +231,16 @@ public class JointProbabilityModel implements Serializable {
      * @return       the joint probability of a AND b
      */
     public float getJoint(String fieldA, String a, String fieldB, String b){
-        String key = getKey(fieldA, a, fieldB, b);
+        return getJoint(getValueOrdinal(getFieldOrdinal(fieldA), a), getValueOrdinal(getFieldOrdinal(fieldB), b));
+    }
 
+    /***
+     * Computes the joint probability of a and b - p(A ^ B), from value ordinals
+     */
+    public float getJoint(int a, int b){
         float count = smoothValue;
-        if(jointCounts.containsKey(key)){
-            count = this.jointCounts.get(key);
+        if(a != UNKNOWN && b != UNKNOWN){
+            count = this.jointCounts.get(getKey(a, b), smoothValue);
         }
         return count / this.totalJointCounts;
     }
@@ -146,27 +253,30 @@ public class JointProbabilityModel implements Serializable {
      * @return          the prior probability of the value for the field - p(fieldName = value)
      */
     public float getPrior(String fieldName, String value){
-        String key = getFieldKey(fieldName, value);
+        return getPrior(getValueOrdinal(getFieldOrdinal(fieldName), value));
+    }
+
+    /***
+     * Computes the prior probability of a value - p(value), from its ordinal
+     */
+    public float getPrior(int valueOrdinal){
         float count = smoothValue;
-        if(this.priors.containsKey(key)){
-            count = this.priors.get(key);
+        if(valueOrdinal != UNKNOWN && this.hasPrior[valueOrdinal]){
+            count = this.priors[valueOrdinal];
         }
         return count / totalPriorCounts;
     }
 
     public Set<String> getFieldValues(String fieldName){
         Set<String> tokens = new HashSet<String>();
-        for(String key : this.priors.keySet()){
-            String[] arr = key.split(KEY_DELIM);
-            if(arr.length > 1 && arr[0].equals(fieldName)){
-                tokens.add(arr[arr.length-1].trim());
-            }
+        for(int ordinal: getValueOrdinals(getFieldOrdinal(fieldName))){
+            tokens.add(this.values.get(ordinal));
         }
         return tokens;
     }
 
     public int getNumPriors(){
-        return this.priors.size();
+        return this.numPriors;
     }
 
     public int getNumJointCounts(){
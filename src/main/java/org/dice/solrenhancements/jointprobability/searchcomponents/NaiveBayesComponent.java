@@ -13,7 +13,9 @@ import org.apache.solr.common.SolrException;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.schema.IndexSchema;
 import org.apache.solr.search.*;
+import org.dice.solrenhancements.DocValuesTermSource;
 import org.dice.solrenhancements.JarVersion;
 import org.dice.solrenhancements.jointprobability.JointCounts;
 import org.dice.solrenhancements.jointprobability.JointProbabilityModel;
@@ -22,7 +24,9 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.StringReader;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
@@ -56,7 +60,6 @@ public class NaiveBayesComponent extends JointProbabilityComponentBase {
     private boolean dflIncludeExisting = false;
 
     private JointProbabilityModel model = null;
-    private Set<String> classValues = null;
 
     @Override
     public void init( NamedList args) {
@@ -162,7 +165,8 @@ public class NaiveBayesComponent extends JointProbabilityComponentBase {
 
             final SolrIndexSearcher searcher = rb.req.getSearcher();
             IndexReader ir = searcher.getIndexReader();
-            Analyzer analyzer = searcher.getSchema().getIndexAnalyzer();
+            IndexSchema schema = searcher.getSchema();
+            Analyzer analyzer = schema.getIndexAnalyzer();
 
             DocListAndSet docs   = rb.getResults();
             DocIterator iterator = docs.docList.iterator();
@@ -172,10 +176,10 @@ public class NaiveBayesComponent extends JointProbabilityComponentBase {
             while(iterator.hasNext()) {
                 int docNum = iterator.nextDoc();
 
-                Map<String, Map<String,Integer>> tf = getFieldTermFrequencyCounts(fields, ir, analyzer, docNum);
+                Map<String, Map<String,Integer>> tf = getFieldTermFrequencyCounts(fields, ir, schema, analyzer, docNum);
                 NamedList<Double> predictions = predict(tf, topN, binary, logTfs, includeExisting);
 
-                String uniqueFieldValue = getUniqueKeyFieldValue(ir, analyzer, uniqueKeyField, docNum);
+                String uniqueFieldValue = getUniqueKeyFieldValue(ir, schema, analyzer, uniqueKeyField, docNum);
                 topPredictions.add(String.format("%s:%s", uniqueKeyField, uniqueFieldValue), predictions);
             }
 
@@ -191,15 +195,57 @@ public class NaiveBayesComponent extends JointProbabilityComponentBase {
     private NamedList<Double> predict(Map<String, Map<String,Integer>> xs, int topN,
                                      boolean binary, boolean logTfs, boolean includeExisting){
 
+        // the class values to predict come from the same model, so their ordinals match a concurrent rebuild
+        final JointProbabilityModel model = this.model;
+        final int[] classValues = model.getValueOrdinals(model.getFieldOrdinal(this.classField));
+
+        // resolve the document's tokens to model ordinals once, rather than once per class
+        int numTokens = 0;
+        for(Map<String,Integer> tokenCounts: xs.values()){
+            numTokens += tokenCounts.size();
+        }
+        final int[] tokens = new int[numTokens];
+        final double[] termFreqs = new double[numTokens];
+        numTokens = 0;
+        for(Map.Entry<String, Map<String,Integer>> fieldCounts: xs.entrySet()){
+            final int fieldOrdinal = model.getFieldOrdinal(fieldCounts.getKey());
+            for(Map.Entry<String, Integer> tokenCount: fieldCounts.getValue().entrySet()){
+                double termFreq = tokenCount.getValue();
+                if(binary){
+                    termFreq = 1d;
+                }
+                else if(logTfs){
+                    termFreq = Math.log(termFreq + 1);
+                }
+                if(termFreq == 0){
+                    continue;
+                }
+                tokens[numTokens] = model.getValueOrdinal(fieldOrdinal, tokenCount.getKey());
+                termFreqs[numTokens] = termFreq;
+                numTokens++;
+            }
+        }
+
         // don't predict tokens that are in the document already if NOT includeExisting
         // and one of the training fields is also the class field (using it as a true generative model)
-        boolean removeExisting = !includeExisting && xs.containsKey(this.classField);
+        int[] existing = new int[0];
+        if(!includeExisting && xs.containsKey(this.classField)){
+            final int classFieldOrdinal = model.getFieldOrdinal(this.classField);
+            final Map<String,Integer> classTokens = xs.get(this.classField);
+            existing = new int[classTokens.size()];
+            int numExisting = 0;
+            for(String classToken: classTokens.keySet()){
+                existing[numExisting++] = model.getValueOrdinal(classFieldOrdinal, classToken);
+            }
+            Arrays.sort(existing);
+        }
 
         final LargestFirstPriorityQueue queue = new LargestFirstPriorityQueue(topN);
-        //TODO if predicting a value that's also in the XS, we need to ignore values already present
-        for(String classToken: this.classValues){
-            // initialize to the prior
-            addScoreForClass(xs, binary, logTfs, removeExisting, queue, classToken);
+        for(int classValue: classValues){
+            if(Arrays.binarySearch(existing, classValue) >= 0){
+                continue;
+            }
+            addScoreForClass(model, tokens, termFreqs, numTokens, queue, classValue);
         }
 
         ClassScore next = null;
@@ -210,39 +256,18 @@ public class NaiveBayesComponent extends JointProbabilityComponentBase {
         return topScores;
     }
 
-    private void addScoreForClass(Map<String, Map<String, Integer>> xs,
-                                  boolean binary, boolean logTfs, boolean removeExisting,
-                                  LargestFirstPriorityQueue queue, String classToken) {
+    private void addScoreForClass(JointProbabilityModel model, int[] tokens, double[] termFreqs, int numTokens,
+                                  LargestFirstPriorityQueue queue, int classValue) {
         // use addition in the log domain to avoid numerical underflow
-        double score = Math.log(this.model.getPrior(this.classField, classToken));
-        for(Map.Entry<String, Map<String,Integer>> fieldCounts: xs.entrySet()){
-
-            final String fieldName = fieldCounts.getKey();
-            final Map<String, Integer> tokenCounts = fieldCounts.getValue();
-            if(removeExisting && fieldName.equals(classField) && tokenCounts.containsKey(classToken)){
-                return;
-            }
-
-            for(Map.Entry<String, Integer> tokenCount: tokenCounts.entrySet()){
-                String token = tokenCount.getKey();
-                double termFreq = tokenCount.getValue();
-                if(binary){
-                    termFreq = 1d;
-                }
-                else if(logTfs){
-                    termFreq = Math.log(termFreq + 1);
-                }
-                if(termFreq == 0){
-                    continue;
-                }
-                score += Math.log(termFreq * this.model.getConditional(fieldName, token, this.classField, classToken));
-            }
+        double score = Math.log(model.getPrior(classValue));
+        for(int i = 0; i < numTokens; i++){
+            score += Math.log(termFreqs[i] * model.getConditional(tokens[i], classValue));
         }
-        queue.insertWithOverflow(new ClassScore(classToken, score));
+        queue.insertWithOverflow(new ClassScore(model.getValue(classValue), score));
     }
 
-    private String getUniqueKeyFieldValue(IndexReader ir, Analyzer analyzer, String uniqueKeyField, int docNum) throws IOException {
-        Map<String, Map<String,Integer>> mapUniqueValue = getFieldTermFrequencyCounts(new String[]{uniqueKeyField}, ir, analyzer, docNum);
+    private String getUniqueKeyFieldValue(IndexReader ir, IndexSchema schema, Analyzer analyzer, String uniqueKeyField, int docNum) throws IOException {
+        Map<String, Map<String,Integer>> mapUniqueValue = getFieldTermFrequencyCounts(new String[]{uniqueKeyField}, ir, schema, analyzer, docNum);
         if(mapUniqueValue.size() == 0){
             return "-1";
         }
@@ -254,24 +279,46 @@ public class NaiveBayesComponent extends JointProbabilityComponentBase {
     }
 
     private Map<String, Map<String,Integer>> getFieldTermFrequencyCounts(
-            String[] fields, IndexReader ir, Analyzer analyzer, int docNum) throws IOException {
+            String[] fields, IndexReader ir, IndexSchema schema, Analyzer analyzer, int docNum) throws IOException {
 
         final Fields vectors = ir.getTermVectors(docNum);
-        final Document document = ir.document(docNum);
-
-
-        Map<String, Map<String,Integer>> fieldValues = new HashMap<String, Map<String,Integer>>();
 
+        // choose the term source of each field: the term vector, the doc values of a keyword field, or else
+        // the analyzed stored value
+        Map<String, Terms> fieldVectors = new HashMap<String, Terms>();
+        Set<String> docValuesFields = new HashSet<String>();
+        Set<String> storedFields = new HashSet<String>();
         for (String fieldName: fields) {
-
             Terms vector = null;
             if (vectors != null) {
                 vector = vectors.terms(fieldName);
             }
+            if (vector != null) {
+                fieldVectors.put(fieldName, vector);
+            } else if (DocValuesTermSource.canUse(schema.getFieldOrNull(fieldName))) {
+                docValuesFields.add(fieldName);
+            } else {
+                storedFields.add(fieldName);
+            }
+        }
+
+        // only load the stored fields that are needed
+        final Document document = storedFields.isEmpty() ? null : ir.document(docNum, storedFields);
 
+        Map<String, Map<String,Integer>> fieldValues = new HashMap<String, Map<String,Integer>>();
+
+        for (String fieldName: fields) {
+
+            Terms vector = fieldVectors.get(fieldName);
+            if (docValuesFields.contains(fieldName)) {
+                Map<String,Integer> tf = readTokensFromDocValues(ir, docNum, fieldName);
+                if(tf.size() > 0){
+                    fieldValues.put(fieldName, tf);
+                }
+            }
             // field does not store term vector info
             // even if term vectors enabled, need to extract payload from regular field reader
-            if (vector == null) {
+            else if (vector == null) {
                 IndexableField docFields[] = document.getFields(fieldName);
                 for (IndexableField field : docFields) {
                     final String stringValue = field.stringValue();
@@ -307,6 +354,15 @@ public class NaiveBayesComponent extends JointProbabilityComponentBase {
         return tokenCounts;
     }
 
+    private Map<String,Integer> readTokensFromDocValues(IndexReader ir, int docNum, String fieldName) throws IOException {
+        // doc values hold each distinct value once
+        Map<String,Integer> tokenCounts = new HashMap<String,Integer>();
+        for(BytesRef term: DocValuesTermSource.getTerms(ir, docNum, fieldName)){
+            tokenCounts.put(term.utf8ToString(), 1);
+        }
+        return tokenCounts;
+    }
+
     private Map<String,Integer> readTokensFromField(Analyzer analyzer, IndexableField ixFIeld, String fieldName) throws IOException {
         Map<String,Integer> tokenCounts = new HashMap<String,Integer>();
         final String stringValue = ixFIeld.stringValue();
@@ -361,9 +417,6 @@ public class NaiveBayesComponent extends JointProbabilityComponentBase {
             // read data structure, convert to probabilities
             JointProbabilityModel newModel = new JointProbabilityModel(counts, alpha);
 
-            // get unique list of class values to predict
-            this.classValues = newModel.getFieldValues(classField);
-
             this.model = newModel;
             // update cache variables
             this.lastRefresh = System.currentTimeMillis();
@@ -0,0 +1,186 @@
+package org.dice.solrenhancements.knn;
+
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.response.TextResponseWriter;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.uninverting.UninvertingReader;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Field type holding a fixed dimension dense float vector per document, in binary doc values, for k nearest
+ * neighbour search with the {!knn} query parser. Each segment gets an HNSW graph of its vectors in a sidecar file
+ * (see {@link KnnGraphs}). Values are comma or space separated floats, optionally in square brackets:
+ *
+ * <pre>
+ * &lt;fieldType name="vector" class="org.dice.solrenhancements.knn.DenseVectorField" dimension="128"
+ *            similarity="cosine" hnswM="16" hnswEfConstruction="100" docValues="true" indexed="false" stored="false"/&gt;
+ * </pre>
+ *
+ * With cosine similarity the vectors are normalized when indexed. hnswM is the number of neighbours linked per
+ * node (twice that on the bottom level), and hnswEfConstruction the size of the candidate list used to find them.
+ * Higher values give better recall at the cost of slower graph builds.
+ */
+public class DenseVectorField extends FieldType {
+
+    public static final String DIMENSION = "dimension";
+    public static final String SIMILARITY = "similarity";
+    public static final String HNSW_M = "hnswM";
+    public static final String HNSW_EF_CONSTRUCTION = "hnswEfConstruction";
+
+    public static final int DEFAULT_HNSW_M = 16;
+    public static final int DEFAULT_HNSW_EF_CONSTRUCTION = 100;
+
+    private static final Pattern splitVector = Pattern.compile("[,\\s]+");
+
+    private int dimension;
+    private VectorSimilarity similarity;
+    private int hnswM;
+    private int hnswEfConstruction;
+
+    @Override
+    protected void init(IndexSchema schema, Map<String, String> args) {
+        String sDimension = args.remove(DIMENSION);
+        if(sDimension == null){
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+                    String.format("A %s requires the %s attribute", getClass().getSimpleName(), DIMENSION));
+        }
+        this.dimension = getIntArg(DIMENSION, sDimension);
+        this.similarity = VectorSimilarity.get(args.remove(SIMILARITY));
+        String m = args.remove(HNSW_M);
+        this.hnswM = m == null ? DEFAULT_HNSW_M : getIntArg(HNSW_M, m);
+        String efConstruction = args.remove(HNSW_EF_CONSTRUCTION);
+        this.hnswEfConstruction = efConstruction == null ? DEFAULT_HNSW_EF_CONSTRUCTION : getIntArg(HNSW_EF_CONSTRUCTION, efConstruction);
+        if(dimension < 1 || hnswM < 2 || hnswEfConstruction < 1){
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+                    String.format("Invalid %s settings, %s must be at least 1 and %s at least 2", getClass().getSimpleName(), DIMENSION, HNSW_M));
+        }
+        super.init(schema, args);
+    }
+
+    private static int getIntArg(String name, String value){
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+                    String.format("The %s attribute of a DenseVectorField must be an integer, not '%s'", name, value), e);
+        }
+    }
+
+    @Override
+    public void checkSchemaField(SchemaField field) {
+        if(!field.hasDocValues() || field.multiValued()){
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+                    String.format("The dense vector field %s must be single valued, with docValues=\"true\"", field.getName()));
+        }
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    public VectorSimilarity getVectorSimilarity() {
+        return similarity;
+    }
+
+    public int getHnswM() {
+        return hnswM;
+    }
+
+    public int getHnswEfConstruction() {
+        return hnswEfConstruction;
+    }
+
+    /**
+     * Parses a vector, normalizing it for cosine similarity
+     */
+    public float[] parseVector(String value){
+        String trimmed = value.trim();
+        if(trimmed.startsWith("[") && trimmed.endsWith("]")){
+            trimmed = trimmed.substring(1, trimmed.length() - 1).trim();
+        }
+        String[] values = splitVector.split(trimmed);
+        if(values.length != dimension){
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                    String.format("Expected a vector of %d values, not %d", dimension, values.length));
+        }
+        float[] vector = new float[dimension];
+        try {
+            for(int i = 0; i < dimension; i++){
+                vector[i] = Float.parseFloat(values[i]);
+            }
+        } catch (NumberFormatException e) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Invalid vector value: " + e.getMessage(), e);
+        }
+        if(similarity == VectorSimilarity.COSINE){
+            VectorSimilarity.normalize(vector);
+        }
+        return vector;
+    }
+
+    /**
+     * Encodes the vector as the big endian bits of each float
+     */
+    static BytesRef encode(float[] vector){
+        byte[] bytes = new byte[vector.length * 4];
+        for(int i = 0, j = 0; i < vector.length; i++, j += 4){
+            int bits = Float.floatToIntBits(vector[i]);
+            bytes[j] = (byte) (bits >>> 24);
+            bytes[j + 1] = (byte) (bits >>> 16);
+            bytes[j + 2] = (byte) (bits >>> 8);
+            bytes[j + 3] = (byte) bits;
+        }
+        return new BytesRef(bytes);
+    }
+
+    static void decode(BytesRef bytes, float[] vector){
+        for(int i = 0, j = bytes.offset; i < vector.length; i++, j += 4){
+            int bits = ((bytes.bytes[j] & 0xFF) << 24) | ((bytes.bytes[j + 1] & 0xFF) << 16)
+                    | ((bytes.bytes[j + 2] & 0xFF) << 8) | (bytes.bytes[j + 3] & 0xFF);
+            vector[i] = Float.intBitsToFloat(bits);
+        }
+    }
+
+    @Override
+    public List<IndexableField> createFields(SchemaField field, Object value, float boost) {
+        String sValue = value.toString();
+        List<IndexableField> fields = new ArrayList<IndexableField>(2);
+        fields.add(new BinaryDocValuesField(field.getName(), encode(parseVector(sValue))));
+        if(field.stored()){
+            fields.add(new StoredField(field.getName(), sValue));
+        }
+        return fields;
+    }
+
+    @Override
+    public IndexableField createField(SchemaField field, Object value, float boost) {
+        // the doc values are added by createFields
+        return field.stored() ? new StoredField(field.getName(), value.toString()) : null;
+    }
+
+    @Override
+    public UninvertingReader.Type getUninversionType(SchemaField sf) {
+        return null;
+    }
+
+    @Override
+    public SortField getSortField(SchemaField field, boolean top) {
+        throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Can not sort on the dense vector field " + field.getName());
+    }
+
+    @Override
+    public void write(TextResponseWriter writer, String name, IndexableField f) throws IOException {
+        writer.writeStr(name, f.stringValue(), false);
+    }
+}
@@ -0,0 +1,163 @@
+package org.dice.solrenhancements.knn;
+
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.SparseFixedBitSet;
+
+import java.io.IOException;
+
+/**
+ * A hierarchical navigable small world graph over the vectors of a segment, as in Malkov and Yashunin, "Efficient
+ * and robust approximate nearest neighbor search using Hierarchical Navigable Small World graphs". Every node is
+ * on level 0, and on each level above with probability 1/M. A search descends greedily from the entry node on the
+ * top level, then runs a beam search of width ef on level 0.
+ *
+ * Nodes are numbered 0..numNodes-1 in increasing doc id order. This class holds the search, the storage is up to
+ * the subclasses: on heap while building ({@link HnswGraphBuilder}), memory mapped once built ({@link MappedHnswGraph}).
+ */
+abstract class HnswGraph {
+
+    protected final int dimension;
+    protected final VectorSimilarity similarity;
+
+    HnswGraph(int dimension, VectorSimilarity similarity){
+        this.dimension = dimension;
+        this.similarity = similarity;
+    }
+
+    abstract int numNodes();
+
+    /**
+     * @return the top level, or -1 if the graph is empty
+     */
+    abstract int maxLevel();
+
+    abstract int entryNode();
+
+    abstract int docId(int node) throws IOException;
+
+    abstract void readVector(int node, float[] vector) throws IOException;
+
+    /**
+     * Fills the buffer with the neighbours of the node on the level, the node must be on that level
+     *
+     * @param neighbours must hold the maximum connections of the level
+     * @return the number of neighbours
+     */
+    abstract int neighbours(int level, int node, int[] neighbours) throws IOException;
+
+    /**
+     * @return the maximum connections of a node on the level
+     */
+    abstract int maxConnections(int level);
+
+    int getDimension() {
+        return dimension;
+    }
+
+    VectorSimilarity getSimilarity() {
+        return similarity;
+    }
+
+    float score(int node, float[] target, float[] scratch) throws IOException {
+        readVector(node, scratch);
+        return similarity.score(VectorSimilarity.dotProduct(scratch, target));
+    }
+
+    /**
+     * Finds the approximate k nearest neighbours of the target vector
+     *
+     * @param target normalized if the similarity is cosine
+     * @param ef     the beam width on level 0, at least k. Higher values give better recall but are slower
+     * @param accept the docs that may be returned, by segment doc id, null for any. Rejected nodes are still
+     *               traversed
+     * @param docs   filled with the doc ids of the neighbours, best first. Must hold k values
+     * @param scores filled with their scores. Must hold k values
+     * @return the number of neighbours found
+     */
+    int search(float[] target, int k, int ef, Bits accept, int[] docs, float[] scores) throws IOException {
+        if(maxLevel() < 0){
+            return 0;
+        }
+        float[] scratch = new float[dimension];
+        int entry = entryNode();
+        for(int level = maxLevel(); level > 0; level--){
+            entry = greedySearch(target, entry, level, scratch);
+        }
+        NeighbourQueue results = new NeighbourQueue(Math.max(k, ef), false);
+        searchLevel(target, entry, Math.max(k, ef), 0, accept, results, scratch);
+        while(results.size() > k){
+            results.pop();
+        }
+        int found = results.drainBestFirst(docs, scores);
+        for(int i = 0; i < found; i++){
+            docs[i] = docId(docs[i]);
+        }
+        return found;
+    }
+
+    /**
+     * @return the node closest to the target reachable from entry on the level, moving to the best neighbour
+     * while it improves
+     */
+    int greedySearch(float[] target, int entry, int level, float[] scratch) throws IOException {
+        int[] neighbours = new int[maxConnections(level)];
+        int best = entry;
+        float bestScore = score(entry, target, scratch);
+        boolean improved = true;
+        while(improved){
+            improved = false;
+            int n = neighbours(level, best, neighbours);
+            for(int i = 0; i < n; i++){
+                float score = score(neighbours[i], target, scratch);
+                if(score > bestScore){
+                    bestScore = score;
+                    best = neighbours[i];
+                    improved = true;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Beam search of width ef on one level, adding the ef best accepted nodes to the (min heap) results
+     */
+    void searchLevel(float[] target, int entry, int ef, int level, Bits accept, NeighbourQueue results, float[] scratch) throws IOException {
+        NeighbourQueue candidates = new NeighbourQueue(ef, true);
+        SparseFixedBitSet visited = new SparseFixedBitSet(numNodes());
+        int[] neighbours = new int[maxConnections(level)];
+
+        float entryScore = score(entry, target, scratch);
+        visited.set(entry);
+        candidates.add(entry, entryScore);
+        if(accepted(entry, accept)){
+            results.add(entry, entryScore);
+        }
+        while(candidates.size() > 0){
+            if(results.size() >= ef && candidates.topScore() < results.topScore()){
+                // no remaining candidate can improve the results
+                break;
+            }
+            int node = candidates.pop();
+            int n = neighbours(level, node, neighbours);
+            for(int i = 0; i < n; i++){
+                int neighbour = neighbours[i];
+                if(visited.get(neighbour)){
+                    continue;
+                }
+                visited.set(neighbour);
+                float score = score(neighbour, target, scratch);
+                if(results.size() < ef || score > results.topScore()){
+                    candidates.add(neighbour, score);
+                    if(accepted(neighbour, accept)){
+                        results.insertWithOverflow(neighbour, score, ef);
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean accepted(int node, Bits accept) throws IOException {
+        return accept == null || accept.get(docId(node));
+    }
+}
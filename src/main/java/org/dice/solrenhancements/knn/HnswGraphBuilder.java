@@ -0,0 +1,337 @@
+package org.dice.solrenhancements.knn;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.RandomAccessInput;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+import org.dice.solrenhancements.DirectoryHelper;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Builds the HNSW graph of a segment's vectors and writes it as a {@link MappedHnswGraph} file.
+ *
+ * The vectors are first copied from the doc values to a temporary file, which is memory mapped while the graph
+ * is built, so only the links are held on heap. Every doc with a vector is in the graph, deleted or not, as the
+ * graph is shared by all readers of the segment; deletes are filtered at search time. Levels are drawn from a
+ * fixed seed, so a segment always gets the same graph.
+ */
+final class HnswGraphBuilder {
+
+    private static final long SEED = 42L;
+
+    private final int dimension;
+    private final VectorSimilarity similarity;
+    private final int m;
+    private final int efConstruction;
+
+    HnswGraphBuilder(DenseVectorField fieldType){
+        this.dimension = fieldType.getDimension();
+        this.similarity = fieldType.getVectorSimilarity();
+        this.m = fieldType.getHnswM();
+        this.efConstruction = fieldType.getHnswEfConstruction();
+    }
+
+    /**
+     * Builds the graph of the field's vectors in the segment, written to a temporary file then renamed to fileName
+     *
+     * @return the number of vectors in the graph
+     */
+    int build(LeafReader reader, String field, Directory dir, String fileName) throws IOException {
+        IndexOutput vectorsOut = null;
+        IndexInput vectorsIn = null;
+        IndexOutput out = null;
+        String tmpName = null;
+        boolean success = false;
+        try {
+            // copy the vectors out of the doc values, noting the docs that have one
+            vectorsOut = dir.createTempOutput(fileName, "vectors", IOContext.DEFAULT);
+            BinaryDocValues values = DocValues.getBinary(reader, field);
+            Bits docsWithField = DocValues.getDocsWithField(reader, field);
+            float[] vector = new float[dimension];
+            int[] docs = new int[16];
+            int numNodes = 0;
+            for(int doc = 0; doc < reader.maxDoc(); doc++){
+                if(!docsWithField.get(doc)){
+                    continue;
+                }
+                BytesRef bytes = values.get(doc);
+                if(bytes.length != 4 * dimension){
+                    throw new IOException(String.format("The vector of doc %d in field %s has %d bytes, expected %d",
+                            doc, field, bytes.length, 4 * dimension));
+                }
+                DenseVectorField.decode(bytes, vector);
+                for(float v: vector){
+                    vectorsOut.writeInt(Float.floatToIntBits(v));
+                }
+                docs = ArrayUtil.grow(docs, numNodes + 1);
+                docs[numNodes++] = doc;
+            }
+            vectorsOut.close();
+            vectorsIn = dir.openInput(vectorsOut.getName(), IOContext.DEFAULT);
+
+            OnHeapGraph graph = new OnHeapGraph(vectorsIn.randomAccessSlice(0, vectorsIn.length()), docs, numNodes);
+            for(int node = 0; node < numNodes; node++){
+                graph.insert(node);
+            }
+
+            out = dir.createTempOutput(fileName, "graph", IOContext.DEFAULT);
+            tmpName = out.getName();
+            write(out, graph, vectorsIn);
+            out.close();
+            out = null;
+
+            DirectoryHelper.publishFile(dir, tmpName, fileName);
+            success = true;
+            return numNodes;
+        } finally {
+            IOUtils.closeWhileHandlingException(vectorsIn, vectorsOut, out);
+            if(vectorsOut != null){
+                IOUtils.deleteFilesIgnoringExceptions(dir, vectorsOut.getName());
+            }
+            if(!success && tmpName != null){
+                IOUtils.deleteFilesIgnoringExceptions(dir, tmpName);
+            }
+        }
+    }
+
+    private void write(IndexOutput out, OnHeapGraph graph, IndexInput vectorsIn) throws IOException {
+        CodecUtil.writeHeader(out, MappedHnswGraph.CODEC, MappedHnswGraph.VERSION_CURRENT);
+
+        long vectorsPosition = out.getFilePointer();
+        vectorsIn.seek(0);
+        out.copyBytes(vectorsIn, 4L * dimension * graph.numNodes());
+
+        long docsPosition = out.getFilePointer();
+        for(int node = 0; node < graph.numNodes(); node++){
+            out.writeInt(graph.docs[node]);
+        }
+
+        long level0Position = out.getFilePointer();
+        for(int node = 0; node < graph.numNodes(); node++){
+            writeSlot(out, graph.links[node][0], graph.maxConnections(0));
+        }
+
+        int upperLevels = Math.max(0, graph.maxLevel());
+        int[] levelCounts = new int[upperLevels + 1];
+        long[] levelNodesPositions = new long[upperLevels + 1];
+        long[] levelSlotsPositions = new long[upperLevels + 1];
+        for(int level = 1; level <= upperLevels; level++){
+            levelNodesPositions[level] = out.getFilePointer();
+            for(int node = 0; node < graph.numNodes(); node++){
+                if(graph.links[node].length > level){
+                    out.writeInt(node);
+                    levelCounts[level]++;
+                }
+            }
+            levelSlotsPositions[level] = out.getFilePointer();
+            for(int node = 0; node < graph.numNodes(); node++){
+                if(graph.links[node].length > level){
+                    writeSlot(out, graph.links[node][level], graph.maxConnections(level));
+                }
+            }
+        }
+
+        long levelTablePosition = out.getFilePointer();
+        for(int level = 1; level <= upperLevels; level++){
+            out.writeInt(levelCounts[level]);
+            out.writeLong(levelNodesPositions[level]);
+            out.writeLong(levelSlotsPositions[level]);
+        }
+
+        out.writeInt(dimension);
+        out.writeInt(similarity.ordinal());
+        out.writeInt(graph.numNodes());
+        out.writeInt(m);
+        out.writeInt(graph.maxLevel());
+        out.writeInt(graph.entryNode());
+        out.writeLong(vectorsPosition);
+        out.writeLong(docsPosition);
+        out.writeLong(level0Position);
+        out.writeLong(levelTablePosition);
+        CodecUtil.writeFooter(out);
+    }
+
+    /**
+     * Writes the count and neighbours, padded to the fixed slot size
+     */
+    private static void writeSlot(IndexOutput out, int[] slot, int maxConnections) throws IOException {
+        out.writeInt(slot[0]);
+        for(int i = 1; i <= maxConnections; i++){
+            out.writeInt(i <= slot[0] ? slot[i] : -1);
+        }
+    }
+
+    /**
+     * The graph being built, with links[node][level] holding the neighbour count followed by the neighbours
+     */
+    private final class OnHeapGraph extends HnswGraph {
+
+        private final RandomAccessInput vectors;
+        private final int[] docs;
+        private final int numNodes;
+        private final int[][][] links;
+        private final double levelMultiplier = 1.0d / Math.log(m);
+        private final Random random = new Random(SEED);
+
+        private int maxLevel = -1;
+        private int entryNode = -1;
+
+        // scratch space, the build is single threaded
+        private final float[] nodeVector = new float[dimension];
+        private final float[] otherVector = new float[dimension];
+        private final int[] candidates = new int[Math.max(efConstruction, 2 * m) + 1];
+        private final float[] candidateScores = new float[candidates.length];
+        private final int[] selected = new int[2 * m];
+
+        OnHeapGraph(RandomAccessInput vectors, int[] docs, int numNodes){
+            super(HnswGraphBuilder.this.dimension, HnswGraphBuilder.this.similarity);
+            this.vectors = vectors;
+            this.docs = docs;
+            this.numNodes = numNodes;
+            this.links = new int[numNodes][][];
+        }
+
+        @Override
+        int numNodes() {
+            return numNodes;
+        }
+
+        @Override
+        int maxLevel() {
+            return maxLevel;
+        }
+
+        @Override
+        int entryNode() {
+            return entryNode;
+        }
+
+        @Override
+        int docId(int node) {
+            return docs[node];
+        }
+
+        @Override
+        void readVector(int node, float[] vector) throws IOException {
+            long position = 4L * dimension * node;
+            for(int i = 0; i < dimension; i++){
+                vector[i] = Float.intBitsToFloat(vectors.readInt(position + 4L * i));
+            }
+        }
+
+        @Override
+        int maxConnections(int level) {
+            return level == 0 ? 2 * m : m;
+        }
+
+        @Override
+        int neighbours(int level, int node, int[] neighbours) {
+            int[] slot = links[node][level];
+            System.arraycopy(slot, 1, neighbours, 0, slot[0]);
+            return slot[0];
+        }
+
+        void insert(int node) throws IOException {
+            int level = (int) Math.min(-Math.log(1.0d - random.nextDouble()) * levelMultiplier, 16.0d);
+            links[node] = new int[level + 1][];
+            for(int l = 0; l <= level; l++){
+                links[node][l] = new int[maxConnections(l) + 1];
+            }
+            if(entryNode < 0){
+                entryNode = node;
+                maxLevel = level;
+                return;
+            }
+
+            float[] target = new float[dimension];
+            readVector(node, target);
+            float[] scratch = new float[dimension];
+            int entry = entryNode;
+            for(int l = maxLevel; l > level; l--){
+                entry = greedySearch(target, entry, l, scratch);
+            }
+            for(int l = Math.min(level, maxLevel); l >= 0; l--){
+                NeighbourQueue results = new NeighbourQueue(efConstruction, false);
+                searchLevel(target, entry, efConstruction, l, null, results, scratch);
+                int found = results.drainBestFirst(candidates, candidateScores);
+                entry = candidates[0];
+
+                int count = diversify(candidates, candidateScores, found, maxConnections(l), selected);
+                int[] slot = links[node][l];
+                slot[0] = count;
+                System.arraycopy(selected, 0, slot, 1, count);
+                // from the slot, as linking back reuses the scratch arrays
+                for(int i = 1; i <= count; i++){
+                    addLink(slot[i], l, node);
+                }
+            }
+            if(level > maxLevel){
+                maxLevel = level;
+                entryNode = node;
+            }
+        }
+
+        /**
+         * Links the neighbour back to the new node, pruning its links if it already has the maximum
+         */
+        private void addLink(int neighbour, int level, int node) throws IOException {
+            int[] slot = links[neighbour][level];
+            int maxConnections = maxConnections(level);
+            if(slot[0] < maxConnections){
+                slot[++slot[0]] = node;
+                return;
+            }
+            float[] base = new float[dimension];
+            readVector(neighbour, base);
+            NeighbourQueue queue = new NeighbourQueue(maxConnections + 1, false);
+            for(int i = 1; i <= slot[0]; i++){
+                queue.add(slot[i], score(slot[i], base, otherVector));
+            }
+            queue.add(node, score(node, base, otherVector));
+            int found = queue.drainBestFirst(candidates, candidateScores);
+            int count = diversify(candidates, candidateScores, found, maxConnections, selected);
+            slot[0] = count;
+            System.arraycopy(selected, 0, slot, 1, count);
+        }
+
+        /**
+         * Selects up to maxConnections of the candidates (best first, scored against a base node), preferring
+         * candidates closer to the base than to any already selected, so links spread in all directions. The
+         * remaining slots are filled with the closest of the rejected candidates.
+         *
+         * @return the number selected
+         */
+        private int diversify(int[] nodes, float[] scores, int count, int maxConnections, int[] out) throws IOException {
+            boolean[] taken = new boolean[count];
+            int selectedCount = 0;
+            for(int i = 0; i < count && selectedCount < maxConnections; i++){
+                readVector(nodes[i], nodeVector);
+                boolean diverse = true;
+                for(int j = 0; j < selectedCount && diverse; j++){
+                    diverse = score(out[j], nodeVector, otherVector) <= scores[i];
+                }
+                if(diverse){
+                    out[selectedCount++] = nodes[i];
+                    taken[i] = true;
+                }
+            }
+            for(int i = 0; i < count && selectedCount < maxConnections; i++){
+                if(!taken[i]){
+                    out[selectedCount++] = nodes[i];
+                }
+            }
+            return selectedCount;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package org.dice.solrenhancements.knn;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.core.SolrEventListener;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * Builds the HNSW graphs of new segments while the searcher opened after a commit or merge is warming, so the
+ * first {!knn} query against it doesn't pay for them. Register it for both events:
+ *
+ * <pre>
+ * &lt;listener event="firstSearcher" class="org.dice.solrenhancements.knn.KnnGraphListener"/&gt;
+ * &lt;listener event="newSearcher" class="org.dice.solrenhancements.knn.KnnGraphListener"/&gt;
+ * </pre>
+ *
+ * Without it graphs are built by the first query to need them.
+ */
+public class KnnGraphListener implements SolrEventListener {
+
+    private static final Logger log = LoggerFactory.getLogger(KnnGraphListener.class);
+
+    private final SolrCore core;
+
+    public KnnGraphListener(SolrCore core) {
+        this.core = core;
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes") // the plugin interface takes a raw NamedList
+    public void init(NamedList args) {
+    }
+
+    @Override
+    public void newSearcher(SolrIndexSearcher newSearcher, SolrIndexSearcher currentSearcher) {
+        KnnGraphs graphs = KnnGraphs.get(core);
+        try {
+            if(currentSearcher == null){
+                // firstSearcher event
+                graphs.deleteStaleGraphs(newSearcher);
+            }
+            for(SchemaField field: newSearcher.getSchema().getFields().values()){
+                if(!(field.getType() instanceof DenseVectorField)){
+                    continue;
+                }
+                DenseVectorField fieldType = (DenseVectorField) field.getType();
+                for(LeafReaderContext leaf: newSearcher.getTopReaderContext().leaves()){
+                    graphs.getGraph(leaf, field.getName(), fieldType);
+                }
+            }
+        } catch (IOException | SolrException e) {
+            log.error("Unable to build the knn graphs for the new searcher", e);
+        }
+    }
+
+    @Override
+    public void postCommit() {
+    }
+
+    @Override
+    public void postSoftCommit() {
+    }
+}
@@ -0,0 +1,230 @@
+package org.dice.solrenhancements.knn;
+
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.StringHelper;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.core.CloseHook;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * The HNSW graphs of a core, one per segment and dense vector field, stored in the knn directory of the core's
+ * data directory as {segment name}_{segment id}_{field}.hnsw. A graph is built the first time it is needed,
+ * normally while warming the searcher that first sees the segment (see {@link KnnGraphListener}), then memory
+ * mapped until the segment is closed, when its file is deleted. Graph files survive restarts, as segments do.
+ */
+public final class KnnGraphs {
+
+    private static final Logger log = LoggerFactory.getLogger(KnnGraphs.class);
+
+    static final String DIR_NAME = "knn";
+
+    private static final Map<SolrCore, KnnGraphs> graphsByCore = new ConcurrentHashMap<SolrCore, KnnGraphs>();
+
+    private final Directory dir;
+    private final ConcurrentHashMap<String, FutureTask<MappedHnswGraph>> graphs = new ConcurrentHashMap<String, FutureTask<MappedHnswGraph>>();
+    private volatile boolean closed = false;
+
+    private KnnGraphs(SolrCore core) throws IOException {
+        this.dir = new MMapDirectory(Paths.get(core.getDataDir(), DIR_NAME));
+        for(String file: dir.listAll()){
+            if(!file.endsWith(MappedHnswGraph.FILE_SUFFIX)){
+                // left over from a failed build
+                IOUtils.deleteFilesIgnoringExceptions(dir, file);
+            }
+        }
+    }
+
+    /**
+     * @return the graphs of the core, created on first use
+     */
+    public static KnnGraphs get(SolrCore core){
+        KnnGraphs graphs = graphsByCore.get(core);
+        if(graphs != null){
+            return graphs;
+        }
+        synchronized (graphsByCore){
+            graphs = graphsByCore.get(core);
+            if(graphs == null){
+                try {
+                    graphs = new KnnGraphs(core);
+                } catch (IOException e) {
+                    throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Unable to open the knn graph directory", e);
+                }
+                graphsByCore.put(core, graphs);
+                final KnnGraphs closing = graphs;
+                core.addCloseHook(new CloseHook() {
+                    @Override
+                    public void preClose(SolrCore core) {
+                        // segments closed from here on are only unmapped, their graphs are kept for the restart
+                        closing.closed = true;
+                        graphsByCore.remove(core);
+                    }
+
+                    @Override
+                    public void postClose(SolrCore core) {
+                        closing.closeAll();
+                    }
+                });
+            }
+            return graphs;
+        }
+    }
+
+    /**
+     * @return the graph of the field's vectors in the segment, building it if needed
+     */
+    MappedHnswGraph getGraph(LeafReaderContext leaf, final String field, final DenseVectorField fieldType){
+        final SegmentReader segment = getSegmentReader(leaf.reader());
+        final String fileName = getFileName(segment, field);
+
+        FutureTask<MappedHnswGraph> task = graphs.get(fileName);
+        if(task == null){
+            FutureTask<MappedHnswGraph> newTask = new FutureTask<MappedHnswGraph>(new Callable<MappedHnswGraph>() {
+                @Override
+                public MappedHnswGraph call() throws Exception {
+                    return openOrBuild(segment, field, fieldType, fileName);
+                }
+            });
+            task = graphs.putIfAbsent(fileName, newTask);
+            if(task == null){
+                task = newTask;
+                segment.addCoreClosedListener(new LeafReader.CoreClosedListener() {
+                    @Override
+                    public void onClose(Object ownerCoreCacheKey) {
+                        release(fileName);
+                    }
+                });
+                task.run();
+            }
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Interrupted waiting for the knn graph " + fileName, e);
+        } catch (ExecutionException e) {
+            // retried by the next request
+            graphs.remove(fileName, task);
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Unable to build the knn graph " + fileName, e.getCause());
+        }
+    }
+
+    private MappedHnswGraph openOrBuild(SegmentReader segment, String field, DenseVectorField fieldType, String fileName) throws IOException {
+        if(fileExists(fileName)){
+            try {
+                return MappedHnswGraph.open(dir, fileName, fieldType.getDimension(), fieldType.getVectorSimilarity());
+            } catch (IOException e) {
+                log.warn("Rebuilding the knn graph " + fileName + ", it could not be opened", e);
+                dir.deleteFile(fileName);
+            }
+        }
+        long start = System.currentTimeMillis();
+        int numNodes = new HnswGraphBuilder(fieldType).build(segment, field, dir, fileName);
+        log.info("Built knn graph {} of {} vectors in {} ms", fileName, numNodes, System.currentTimeMillis() - start);
+        return MappedHnswGraph.open(dir, fileName, fieldType.getDimension(), fieldType.getVectorSimilarity());
+    }
+
+    private boolean fileExists(String fileName) throws IOException {
+        for(String file: dir.listAll()){
+            if(file.equals(fileName)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Closes the graph of a closed segment, deleting its file unless the core is closing
+     */
+    private void release(String fileName){
+        FutureTask<MappedHnswGraph> task = graphs.remove(fileName);
+        if(task == null){
+            return;
+        }
+        close(fileName, task);
+        if(!closed){
+            IOUtils.deleteFilesIgnoringExceptions(dir, fileName);
+        }
+    }
+
+    private void close(String fileName, FutureTask<MappedHnswGraph> task){
+        try {
+            IOUtils.close(task.get());
+        } catch (ExecutionException e) {
+            // never built
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            SolrException.log(log, "Unable to close the knn graph " + fileName, e);
+        }
+    }
+
+    /**
+     * Deletes the graphs of segments no longer in the index, e.g. merged away while the core was down
+     */
+    void deleteStaleGraphs(SolrIndexSearcher searcher) throws IOException {
+        Set<String> live = new HashSet<String>();
+        for(LeafReaderContext leaf: searcher.getTopReaderContext().leaves()){
+            live.add(getSegmentPrefix(getSegmentReader(leaf.reader())));
+        }
+        for(String file: dir.listAll()){
+            if(!file.endsWith(MappedHnswGraph.FILE_SUFFIX) || graphs.containsKey(file)){
+                continue;
+            }
+            int end = file.indexOf('_', file.indexOf('_', 1) + 1);
+            if(end < 0 || !live.contains(file.substring(0, end + 1))){
+                IOUtils.deleteFilesIgnoringExceptions(dir, file);
+            }
+        }
+    }
+
+    private void closeAll(){
+        for(String fileName: graphs.keySet()){
+            FutureTask<MappedHnswGraph> task = graphs.remove(fileName);
+            if(task != null){
+                close(fileName, task);
+            }
+        }
+        IOUtils.closeWhileHandlingException(dir);
+    }
+
+    private static SegmentReader getSegmentReader(LeafReader reader){
+        LeafReader unwrapped = FilterLeafReader.unwrap(reader);
+        if(!(unwrapped instanceof SegmentReader)){
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+                    "knn search requires segment readers, not " + unwrapped.getClass().getSimpleName());
+        }
+        return (SegmentReader) unwrapped;
+    }
+
+    /**
+     * @return {segment name}_{segment id}_, identifying the segment across restarts. Segment names start with an
+     * underscore, ids are base 36
+     */
+    private static String getSegmentPrefix(SegmentReader segment){
+        return segment.getSegmentName() + "_" + StringHelper.idToString(segment.getSegmentInfo().info.getId()) + "_";
+    }
+
+    private static String getFileName(SegmentReader segment, String field){
+        return getSegmentPrefix(segment) + field + MappedHnswGraph.FILE_SUFFIX;
+    }
+}
@@ -0,0 +1,313 @@
+package org.dice.solrenhancements.knn;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.InPlaceMergeSorter;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.search.DocIterator;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.SolrIndexSearcher;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Matches the approximate top K documents nearest the target vector, scored by the field's similarity. The top K
+ * are found across all segments when the weight is created, from each segment's HNSW graph, so as a filter or a
+ * rerank query it only ever matches those K documents.
+ *
+ * With a filter only documents matching it are returned. The graph is still searched through the filtered out
+ * documents, and when the filter matches few enough documents (less than {@link #EXACT_SEARCH_FACTOR} times ef)
+ * they are scored exhaustively instead, which is both faster and exact.
+ */
+public class KnnQuery extends Query {
+
+    static final int EXACT_SEARCH_FACTOR = 10;
+
+    private final KnnGraphs graphs;
+    private final String field;
+    private final DenseVectorField fieldType;
+    private final float[] target;
+    private final int k;
+    private final int ef;
+    private final Query filter;
+
+    /**
+     * @param target the query vector, normalized if the similarity is cosine
+     * @param filter the documents that may match, null for all
+     */
+    public KnnQuery(KnnGraphs graphs, String field, DenseVectorField fieldType, float[] target, int k, int ef, Query filter) {
+        this.graphs = graphs;
+        this.field = field;
+        this.fieldType = fieldType;
+        this.target = target;
+        this.k = k;
+        this.ef = Math.max(k, ef);
+        this.filter = filter;
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    public int getEf() {
+        return ef;
+    }
+
+    public Query getFilter() {
+        return filter;
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher, boolean needsScores) throws IOException {
+        DocSet filterDocs = null;
+        if(filter != null){
+            if(!(searcher instanceof SolrIndexSearcher)){
+                throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "A filtered knn query requires a SolrIndexSearcher");
+            }
+            filterDocs = ((SolrIndexSearcher) searcher).getDocSet(filter);
+        }
+
+        NeighbourQueue topK = new NeighbourQueue(k, false);
+        List<LeafReaderContext> leaves = searcher.getTopReaderContext().leaves();
+        if(filterDocs != null && filterDocs.size() <= EXACT_SEARCH_FACTOR * ef){
+            searchExact(leaves, filterDocs, topK);
+        }
+        else{
+            searchGraphs(leaves, filterDocs, topK);
+        }
+
+        final int[] docs = new int[topK.size()];
+        final float[] scores = new float[topK.size()];
+        topK.drainBestFirst(docs, scores);
+        // by doc id, for the scorers
+        new InPlaceMergeSorter() {
+            @Override
+            protected int compare(int i, int j) {
+                return Integer.compare(docs[i], docs[j]);
+            }
+
+            @Override
+            protected void swap(int i, int j) {
+                int tmpDoc = docs[i];
+                docs[i] = docs[j];
+                docs[j] = tmpDoc;
+                float tmpScore = scores[i];
+                scores[i] = scores[j];
+                scores[j] = tmpScore;
+            }
+        }.sort(0, docs.length);
+        return new KnnWeight(this, docs, scores);
+    }
+
+    private void searchGraphs(List<LeafReaderContext> leaves, final DocSet filterDocs, NeighbourQueue topK) throws IOException {
+        int[] docs = new int[k];
+        float[] scores = new float[k];
+        for(final LeafReaderContext leaf: leaves){
+            MappedHnswGraph graph = graphs.getGraph(leaf, field, fieldType);
+            final Bits liveDocs = leaf.reader().getLiveDocs();
+            Bits accept = liveDocs;
+            if(filterDocs != null){
+                accept = new Bits() {
+                    @Override
+                    public boolean get(int index) {
+                        return (liveDocs == null || liveDocs.get(index)) && filterDocs.exists(leaf.docBase + index);
+                    }
+
+                    @Override
+                    public int length() {
+                        return leaf.reader().maxDoc();
+                    }
+                };
+            }
+            int found = graph.search(target, k, ef, accept, docs, scores);
+            for(int i = 0; i < found; i++){
+                topK.insertWithOverflow(leaf.docBase + docs[i], scores[i], k);
+            }
+        }
+    }
+
+    private void searchExact(List<LeafReaderContext> leaves, DocSet filterDocs, NeighbourQueue topK) throws IOException {
+        float[] scratch = new float[target.length];
+        DocIterator iterator = filterDocs.iterator();
+        while(iterator.hasNext()){
+            int doc = iterator.nextDoc();
+            LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(doc, leaves));
+            int leafDoc = doc - leaf.docBase;
+            Bits liveDocs = leaf.reader().getLiveDocs();
+            if(liveDocs != null && !liveDocs.get(leafDoc)){
+                continue;
+            }
+            MappedHnswGraph graph = graphs.getGraph(leaf, field, fieldType);
+            int node = graph.findNode(leafDoc);
+            if(node >= 0){
+                topK.insertWithOverflow(doc, graph.score(node, target, scratch), k);
+            }
+        }
+    }
+
+    private static class KnnWeight extends Weight {
+
+        // the global top K, by doc id
+        private final int[] docs;
+        private final float[] scores;
+        private float boost = 1.0f;
+
+        KnnWeight(KnnQuery query, int[] docs, float[] scores){
+            super(query);
+            this.docs = docs;
+            this.scores = scores;
+        }
+
+        @Override
+        public void extractTerms(Set<Term> terms) {
+        }
+
+        @Override
+        public float getValueForNormalization() {
+            return boost * boost;
+        }
+
+        @Override
+        public void normalize(float norm, float boost) {
+            // the query norm is ignored so scores stay similarities
+            this.boost = boost;
+        }
+
+        @Override
+        public Explanation explain(LeafReaderContext context, int doc) throws IOException {
+            int index = Arrays.binarySearch(docs, context.docBase + doc);
+            if(index < 0){
+                return Explanation.noMatch("not in the top " + docs.length + " nearest neighbours");
+            }
+            return Explanation.match(boost * scores[index], "nearest neighbour similarity, boost " + boost);
+        }
+
+        @Override
+        public Scorer scorer(LeafReaderContext context) throws IOException {
+            int start = firstIndex(context.docBase);
+            int end = firstIndex(context.docBase + context.reader().maxDoc());
+            if(start == end){
+                return null;
+            }
+            return new KnnScorer(this, context.docBase, start, end);
+        }
+
+        private int firstIndex(int doc){
+            int index = Arrays.binarySearch(docs, doc);
+            return index < 0 ? -index - 1 : index;
+        }
+
+        private class KnnScorer extends Scorer {
+
+            private final int docBase;
+            private final int start;
+            private final int end;
+            private int index;
+
+            KnnScorer(Weight weight, int docBase, int start, int end){
+                super(weight);
+                this.docBase = docBase;
+                this.start = start;
+                this.end = end;
+                this.index = start - 1;
+            }
+
+            @Override
+            public int docID() {
+                if(index < start){
+                    return -1;
+                }
+                return index < end ? docs[index] - docBase : DocIdSetIterator.NO_MORE_DOCS;
+            }
+
+            @Override
+            public float score() throws IOException {
+                return boost * scores[index];
+            }
+
+            @Override
+            public int freq() throws IOException {
+                return 1;
+            }
+
+            @Override
+            public DocIdSetIterator iterator() {
+                return new DocIdSetIterator() {
+                    @Override
+                    public int docID() {
+                        return KnnScorer.this.docID();
+                    }
+
+                    @Override
+                    public int nextDoc() throws IOException {
+                        if(index < end){
+                            index++;
+                        }
+                        return docID();
+                    }
+
+                    @Override
+                    public int advance(int target) throws IOException {
+                        int doc;
+                        while((doc = nextDoc()) < target){
+                        }
+                        return doc;
+                    }
+
+                    @Override
+                    public long cost() {
+                        return end - start;
+                    }
+                };
+            }
+        }
+    }
+
+    @Override
+    public String toString(String defaultField) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("knn(").append(field).append(", k=").append(k).append(", ef=").append(ef);
+        if(filter != null){
+            sb.append(", filter=").append(filter.toString(defaultField));
+        }
+        return sb.append(")").toString();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if(!sameClassAs(other)){
+            return false;
+        }
+        KnnQuery that = (KnnQuery) other;
+        return field.equals(that.field)
+                && k == that.k
+                && ef == that.ef
+                && Arrays.equals(target, that.target)
+                && (filter == null ? that.filter == null : filter.equals(that.filter));
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = classHash();
+        hash = 31 * hash + field.hashCode();
+        hash = 31 * hash + k;
+        hash = 31 * hash + ef;
+        hash = 31 * hash + Arrays.hashCode(target);
+        return 31 * hash + (filter == null ? 0 : filter.hashCode());
+    }
+}
@@ -0,0 +1,206 @@
+package org.dice.solrenhancements.knn;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.RandomAccessInput;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Read only, memory mapped HNSW graph of a segment's vectors, written by {@link HnswGraphBuilder}.
+ *
+ * File layout (all positions are absolute file pointers):
+ * <pre>
+ *   header
+ *   vectors            - numNodes * dimension floats, by node
+ *   doc ids            - numNodes ints, ascending
+ *   level 0            - per node, a slot of 2M + 1 ints: the neighbour count then the neighbours
+ *   upper levels       - per level from 1, the (ascending) nodes on the level then a slot of M + 1 ints per node
+ *   level table        - per level from 1, the node count, the nodes position and the slots position
+ *   trailer            - dimension, similarity, numNodes, M, maxLevel, entry node, vectors, doc ids, level 0
+ *                        and level table positions
+ *   footer
+ * </pre>
+ *
+ * The graph belongs to a segment core and is closed with it, by which time no searches are using it.
+ */
+final class MappedHnswGraph extends HnswGraph implements Closeable {
+
+    static final String CODEC = "DiceKnnHnsw";
+    static final int VERSION_START = 0;
+    static final int VERSION_CURRENT = VERSION_START;
+    static final int TRAILER_SIZE = 4 * 6 + 8 * 4;
+
+    static final String FILE_SUFFIX = ".hnsw";
+
+    private final String fileName;
+    private final IndexInput input;
+    private final RandomAccessInput data;
+    private final int numNodes;
+    private final int m;
+    private final int maxLevel;
+    private final int entryNode;
+    private final long vectorsPosition;
+    private final long docsPosition;
+    private final long level0Position;
+    private final int[] levelCounts;
+    private final long[] levelNodesPositions;
+    private final long[] levelSlotsPositions;
+
+    private MappedHnswGraph(String fileName, IndexInput input, int dimension, VectorSimilarity similarity) throws IOException {
+        super(dimension, similarity);
+        this.fileName = fileName;
+        this.input = input;
+        CodecUtil.checkHeader(input, CODEC, VERSION_START, VERSION_CURRENT);
+        // only the footer, verifying the whole file would read every vector at each segment open
+        CodecUtil.retrieveChecksum(input);
+
+        input.seek(input.length() - CodecUtil.footerLength() - TRAILER_SIZE);
+        int fileDimension = input.readInt();
+        int similarityOrdinal = input.readInt();
+        if(fileDimension != dimension || similarityOrdinal != similarity.ordinal()){
+            throw new IOException(String.format("The graph %s was built for dimension %d and similarity %s, not %d and %s",
+                    fileName, fileDimension, VectorSimilarity.values()[similarityOrdinal], dimension, similarity));
+        }
+        this.numNodes = input.readInt();
+        this.m = input.readInt();
+        this.maxLevel = input.readInt();
+        this.entryNode = input.readInt();
+        this.vectorsPosition = input.readLong();
+        this.docsPosition = input.readLong();
+        this.level0Position = input.readLong();
+        long levelTablePosition = input.readLong();
+
+        int upperLevels = Math.max(0, maxLevel);
+        this.levelCounts = new int[upperLevels + 1];
+        this.levelNodesPositions = new long[upperLevels + 1];
+        this.levelSlotsPositions = new long[upperLevels + 1];
+        input.seek(levelTablePosition);
+        for(int level = 1; level <= upperLevels; level++){
+            levelCounts[level] = input.readInt();
+            levelNodesPositions[level] = input.readLong();
+            levelSlotsPositions[level] = input.readLong();
+        }
+        this.data = input.randomAccessSlice(0, input.length());
+    }
+
+    /**
+     * Opens (memory maps, for an MMapDirectory) the graph, checking it matches the field's settings
+     */
+    static MappedHnswGraph open(Directory dir, String fileName, int dimension, VectorSimilarity similarity) throws IOException {
+        IndexInput input = dir.openInput(fileName, IOContext.DEFAULT);
+        try {
+            return new MappedHnswGraph(fileName, input, dimension, similarity);
+        } catch (IOException | RuntimeException e) {
+            input.close();
+            throw e;
+        }
+    }
+
+    String getFileName() {
+        return fileName;
+    }
+
+    @Override
+    int numNodes() {
+        return numNodes;
+    }
+
+    @Override
+    int maxLevel() {
+        return maxLevel;
+    }
+
+    @Override
+    int entryNode() {
+        return entryNode;
+    }
+
+    @Override
+    int docId(int node) throws IOException {
+        return data.readInt(docsPosition + 4L * node);
+    }
+
+    /**
+     * @return the node of the doc, or -1 if the doc has no vector
+     */
+    int findNode(int docId) throws IOException {
+        int low = 0;
+        int high = numNodes - 1;
+        while(low <= high){
+            int mid = (low + high) >>> 1;
+            int midDoc = docId(mid);
+            if(midDoc < docId){
+                low = mid + 1;
+            }
+            else if(midDoc > docId){
+                high = mid - 1;
+            }
+            else{
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    void readVector(int node, float[] vector) throws IOException {
+        long position = vectorsPosition + 4L * dimension * node;
+        for(int i = 0; i < dimension; i++){
+            vector[i] = Float.intBitsToFloat(data.readInt(position + 4L * i));
+        }
+    }
+
+    @Override
+    int maxConnections(int level) {
+        return level == 0 ? 2 * m : m;
+    }
+
+    @Override
+    int neighbours(int level, int node, int[] neighbours) throws IOException {
+        long slot;
+        if(level == 0){
+            slot = level0Position + 4L * (2 * m + 1) * node;
+        }
+        else{
+            int index = findOnLevel(level, node);
+            if(index < 0){
+                return 0;
+            }
+            slot = levelSlotsPositions[level] + 4L * (m + 1) * index;
+        }
+        int count = data.readInt(slot);
+        for(int i = 0; i < count; i++){
+            neighbours[i] = data.readInt(slot + 4L * (i + 1));
+        }
+        return count;
+    }
+
+    private int findOnLevel(int level, int node) throws IOException {
+        long nodesPosition = levelNodesPositions[level];
+        int low = 0;
+        int high = levelCounts[level] - 1;
+        while(low <= high){
+            int mid = (low + high) >>> 1;
+            int midNode = data.readInt(nodesPosition + 4L * mid);
+            if(midNode < node){
+                low = mid + 1;
+            }
+            else if(midNode > node){
+                high = mid - 1;
+            }
+            else{
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+}
@@ -0,0 +1,127 @@
+package org.dice.solrenhancements.knn;
+
+import org.apache.lucene.util.ArrayUtil;
+
+/**
+ * Binary heap of graph nodes by score, without boxing. The top is the worst scoring node of a min heap (used for
+ * the current best results, to evict the worst) or the best scoring node of a max heap (the candidates to expand).
+ */
+final class NeighbourQueue {
+
+    private final boolean maxHeap;
+    private int[] nodes;
+    private float[] scores;
+    private int size = 0;
+
+    NeighbourQueue(int initialSize, boolean maxHeap){
+        this.maxHeap = maxHeap;
+        this.nodes = new int[Math.max(1, initialSize)];
+        this.scores = new float[nodes.length];
+    }
+
+    int size(){
+        return size;
+    }
+
+    void clear(){
+        size = 0;
+    }
+
+    int topNode(){
+        return nodes[0];
+    }
+
+    float topScore(){
+        return scores[0];
+    }
+
+    void add(int node, float score){
+        if(size == nodes.length){
+            nodes = ArrayUtil.grow(nodes, size + 1);
+            scores = ArrayUtil.grow(scores, size + 1);
+        }
+        int i = size++;
+        // sift up
+        while(i > 0){
+            int parent = (i - 1) >>> 1;
+            if(!before(score, scores[parent])){
+                break;
+            }
+            nodes[i] = nodes[parent];
+            scores[i] = scores[parent];
+            i = parent;
+        }
+        nodes[i] = node;
+        scores[i] = score;
+    }
+
+    /**
+     * Adds the node if the (min) heap holds less than maxSize nodes or it beats the worst, which is then evicted
+     *
+     * @return true if the node was added
+     */
+    boolean insertWithOverflow(int node, float score, int maxSize){
+        if(size < maxSize){
+            add(node, score);
+            return true;
+        }
+        if(size > 0 && before(scores[0], score)){
+            pop();
+            add(node, score);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes the top node
+     *
+     * @return the node removed
+     */
+    int pop(){
+        int top = nodes[0];
+        size--;
+        if(size > 0){
+            int node = nodes[size];
+            float score = scores[size];
+            int i = 0;
+            // sift down
+            while(true){
+                int child = 2 * i + 1;
+                if(child >= size){
+                    break;
+                }
+                if(child + 1 < size && before(scores[child + 1], scores[child])){
+                    child++;
+                }
+                if(!before(scores[child], score)){
+                    break;
+                }
+                nodes[i] = nodes[child];
+                scores[i] = scores[child];
+                i = child;
+            }
+            nodes[i] = node;
+            scores[i] = score;
+        }
+        return top;
+    }
+
+    /**
+     * Drains the (min) heap, filling the arrays best first
+     *
+     * @return the number of nodes drained
+     */
+    int drainBestFirst(int[] toNodes, float[] toScores){
+        int n = size;
+        for(int i = n - 1; i >= 0; i--){
+            toScores[i] = scores[0];
+            toNodes[i] = pop();
+        }
+        return n;
+    }
+
+    private boolean before(float a, float b){
+        return maxHeap ? a > b : a < b;
+    }
+}
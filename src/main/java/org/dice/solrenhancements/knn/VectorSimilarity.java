@@ -0,0 +1,69 @@
+package org.dice.solrenhancements.knn;
+
+import org.apache.solr.common.SolrException;
+
+import java.util.Locale;
+
+/**
+ * How dense vectors are compared. Scores are higher for more similar vectors.
+ *
+ * cosine      - vectors are normalized to unit length when indexed (and queried), so the cosine is the dot
+ *               product. The score is (1 + cosine) / 2, between 0 and 1
+ * dot_product - the raw dot product, for vectors whose length is meaningful. Scores may be negative
+ */
+public enum VectorSimilarity {
+    COSINE {
+        @Override
+        float score(float dotProduct) {
+            return (1.0f + dotProduct) / 2.0f;
+        }
+    },
+    DOT_PRODUCT {
+        @Override
+        float score(float dotProduct) {
+            return dotProduct;
+        }
+    };
+
+    /**
+     * @return the score for the dot product of an indexed and a query vector, both normalized if cosine
+     */
+    abstract float score(float dotProduct);
+
+    public static VectorSimilarity get(String name){
+        if(name == null){
+            return COSINE;
+        }
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+                    String.format("Unknown vector similarity '%s', expected cosine or dot_product", name));
+        }
+    }
+
+    static float dotProduct(float[] a, float[] b){
+        float dot = 0.0f;
+        for(int i = 0; i < a.length; i++){
+            dot += a[i] * b[i];
+        }
+        return dot;
+    }
+
+    /**
+     * Scales the vector to unit length, in place. A zero vector is left as is
+     */
+    static void normalize(float[] vector){
+        double sumSquares = 0.0d;
+        for(float v: vector){
+            sumSquares += v * v;
+        }
+        if(sumSquares == 0.0d){
+            return;
+        }
+        float scale = (float) (1.0d / Math.sqrt(sumSquares));
+        for(int i = 0; i < vector.length; i++){
+            vector[i] *= scale;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package org.dice.solrenhancements.lsh;
+
+import org.apache.solr.common.SolrException;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.StrField;
+
+import java.util.Map;
+
+/**
+ * String field type holding the MinHash LSH band tokens of a document, written by the
+ * {@link MinHashLSHUpdateProcessorFactory}. The field type carries the LSH settings, so that the update processor
+ * and the MLT candidate filter (mlt.candidates=lsh) use the same signature. The field must be multiValued, and
+ * stored so the band tokens of seed documents can be read back at query time:
+ *
+ * <pre>
+ * &lt;fieldType name="minhash_bands" class="org.dice.solrenhancements.lsh.MinHashBandField" bands="20" rows="5"
+ *            multiValued="true" stored="true" indexed="true" omitNorms="true"/&gt;
+ * </pre>
+ *
+ * More bands (or fewer rows) find more candidates at lower similarities, at the cost of larger candidate sets.
+ */
+public class MinHashBandField extends StrField {
+
+    public static final String BANDS = "bands";
+    public static final String ROWS = "rows";
+
+    public static final int DEFAULT_BANDS = 20;
+    public static final int DEFAULT_ROWS = 5;
+
+    private MinHashSignature signature;
+
+    @Override
+    protected void init(IndexSchema schema, Map<String, String> args) {
+        int bands = getIntArg(args, BANDS, DEFAULT_BANDS);
+        int rows = getIntArg(args, ROWS, DEFAULT_ROWS);
+        this.signature = new MinHashSignature(bands, rows);
+        super.init(schema, args);
+    }
+
+    private static int getIntArg(Map<String, String> args, String name, int defaultValue){
+        String value = args.remove(name);
+        if(value == null){
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+                    String.format("The %s attribute of a MinHashBandField must be an integer, not '%s'", name, value), e);
+        }
+    }
+
+    public MinHashSignature getSignature() {
+        return signature;
+    }
+}
@@ -0,0 +1,141 @@
+package org.dice.solrenhancements.lsh;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
+import org.apache.lucene.util.IOUtils;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.processor.AtomicUpdateDocumentMerger;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+import org.apache.solr.update.processor.UpdateRequestProcessorFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Computes the MinHash LSH band tokens of each added document, from the analyzed terms of the source fields (the
+ * same fields used for MLT), and writes them to the signature field. The signature field's type must be a
+ * {@link MinHashBandField}, which holds the number of bands and rows. Configure in solrconfig.xml as:
+ *
+ * <pre>
+ * &lt;updateRequestProcessorChain name="lsh"&gt;
+ *   &lt;processor class="org.dice.solrenhancements.lsh.MinHashLSHUpdateProcessorFactory"&gt;
+ *     &lt;str name="fields"&gt;title,skills,description&lt;/str&gt;
+ *     &lt;str name="signatureField"&gt;mlt_lsh&lt;/str&gt;
+ *   &lt;/processor&gt;
+ *   &lt;processor class="solr.LogUpdateProcessorFactory"/&gt;
+ *   &lt;processor class="solr.RunUpdateProcessorFactory"/&gt;
+ * &lt;/updateRequestProcessorChain&gt;
+ * </pre>
+ *
+ * An atomic (partial) update only holds the fields being changed, so its signature can't be computed, and the
+ * document is passed on unchanged, keeping the stored band tokens. To recompute the signature on atomic updates,
+ * register the processor after solr.DistributedUpdateProcessorFactory, which merges the update with the stored
+ * document (the source fields must then be stored).
+ */
+public class MinHashLSHUpdateProcessorFactory extends UpdateRequestProcessorFactory {
+
+    private static final Pattern splitList = Pattern.compile(",| ");
+
+    public static final String FIELDS = "fields";
+    public static final String SIGNATURE_FIELD = "signatureField";
+
+    private String[] fields;
+    private String signatureField;
+
+    @Override
+    @SuppressWarnings("rawtypes") // the plugin interface takes a raw NamedList
+    public void init(NamedList args) {
+        Object oFields = args.get(FIELDS);
+        Object oSignatureField = args.get(SIGNATURE_FIELD);
+        if(oFields == null || oSignatureField == null){
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+                    String.format("The %s and %s parameters are required", FIELDS, SIGNATURE_FIELD));
+        }
+        this.fields = splitList.split(oFields.toString().trim());
+        this.signatureField = oSignatureField.toString().trim();
+    }
+
+    @Override
+    public UpdateRequestProcessor getInstance(SolrQueryRequest req, SolrQueryResponse rsp, UpdateRequestProcessor next) {
+        return new MinHashLSHUpdateProcessor(next);
+    }
+
+    /**
+     * @return the LSH signature of the schema's signature field
+     */
+    private static MinHashSignature getSignature(IndexSchema schema, String signatureField){
+        SchemaField field = schema.getFieldOrNull(signatureField);
+        if(field == null || !(field.getType() instanceof MinHashBandField)){
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+                    String.format("The LSH signature field '%s' must be a %s field", signatureField, MinHashBandField.class.getSimpleName()));
+        }
+        return ((MinHashBandField) field.getType()).getSignature();
+    }
+
+    private class MinHashLSHUpdateProcessor extends UpdateRequestProcessor {
+
+        MinHashLSHUpdateProcessor(UpdateRequestProcessor next) {
+            super(next);
+        }
+
+        @Override
+        public void processAdd(AddUpdateCommand cmd) throws IOException {
+            if(AtomicUpdateDocumentMerger.isAtomicUpdate(cmd)){
+                // not merged with the stored document yet, so the source fields may be missing or partial
+                super.processAdd(cmd);
+                return;
+            }
+            SolrInputDocument doc = cmd.getSolrInputDocument();
+            IndexSchema schema = cmd.getReq().getSchema();
+            MinHashSignature signature = getSignature(schema, signatureField);
+
+            long[] sketch = signature.newSketch();
+            for(String fieldName: fields){
+                Collection<Object> values = doc.getFieldValues(fieldName);
+                FieldType fieldType = schema.getFieldTypeNoEx(fieldName);
+                if(values == null || fieldType == null){
+                    continue;
+                }
+                Analyzer analyzer = fieldType.getIndexAnalyzer();
+                for(Object value: values){
+                    if(value != null){
+                        addTerms(signature, sketch, analyzer, fieldName, value.toString());
+                    }
+                }
+            }
+
+            doc.removeField(signatureField);
+            List<String> tokens = signature.getBandTokens(sketch);
+            if(tokens.size() > 0) {
+                doc.addField(signatureField, new ArrayList<Object>(tokens));
+            }
+            super.processAdd(cmd);
+        }
+
+        private void addTerms(MinHashSignature signature, long[] sketch, Analyzer analyzer, String fieldName, String text) throws IOException {
+            TokenStream ts = analyzer.tokenStream(fieldName, text);
+            try {
+                TermToBytesRefAttribute termAtt = ts.addAttribute(TermToBytesRefAttribute.class);
+                ts.reset();
+                while (ts.incrementToken()) {
+                    signature.add(sketch, fieldName, termAtt.getBytesRef());
+                }
+                ts.end();
+            } finally {
+                IOUtils.closeWhileHandlingException(ts);
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package org.dice.solrenhancements.lsh;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * MinHash signature of a document's set of (field, term) pairs, split into bands for locality sensitive hashing.
+ *
+ * The signature holds the minimum of bands * rows independent hash functions over the terms. Each band of rows
+ * minima is hashed to a single band token, and two documents share a band token with probability
+ * 1 - (1 - J^rows)^bands for a Jaccard similarity J between their term sets. So documents sharing at least one
+ * band token with a seed are the likely near neighbours of the seed.
+ *
+ * The hash functions are fixed (seeded from a constant), so signatures computed at index and query time agree as
+ * long as the same bands and rows are used.
+ */
+public final class MinHashSignature {
+
+    private static final long SEED = 0x2545F4914F6CDD1DL;
+
+    private final int bands;
+    private final int rows;
+    private final long[] hashSeeds;
+
+    public MinHashSignature(int bands, int rows){
+        if(bands < 1 || rows < 1){
+            throw new IllegalArgumentException("bands and rows must both be at least 1");
+        }
+        this.bands = bands;
+        this.rows = rows;
+        this.hashSeeds = new long[bands * rows];
+        long state = SEED;
+        for(int i = 0; i < hashSeeds.length; i++){
+            state += 0x9E3779B97F4A7C15L;
+            hashSeeds[i] = mix64(state);
+        }
+    }
+
+    public int getBands() {
+        return bands;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * @return an empty sketch, to pass to {@link #add(long[], String, BytesRef)}
+     */
+    public long[] newSketch(){
+        long[] sketch = new long[hashSeeds.length];
+        Arrays.fill(sketch, Long.MAX_VALUE);
+        return sketch;
+    }
+
+    /**
+     * Adds a term to the sketch
+     */
+    public void add(long[] sketch, String field, BytesRef term){
+        final long termHash = hashTerm(field, term);
+        for(int i = 0; i < hashSeeds.length; i++){
+            long h = mix64(termHash ^ hashSeeds[i]);
+            if(h < sketch[i]){
+                sketch[i] = h;
+            }
+        }
+    }
+
+    /**
+     * @return the band tokens of the sketch, none if no terms were added
+     */
+    public List<String> getBandTokens(long[] sketch){
+        List<String> tokens = new ArrayList<String>(bands);
+        if(sketch[0] == Long.MAX_VALUE){
+            // empty
+            return tokens;
+        }
+        for(int band = 0; band < bands; band++){
+            long h = band;
+            for(int row = 0; row < rows; row++){
+                h = mix64(h * 31 + sketch[band * rows + row]);
+            }
+            tokens.add(Integer.toString(band, 36) + "_" + Long.toHexString(h));
+        }
+        return tokens;
+    }
+
+    private static long hashTerm(String field, BytesRef term){
+        int fieldHash = field.hashCode();
+        long high = StringHelper.murmurhash3_x86_32(term, fieldHash);
+        long low = StringHelper.murmurhash3_x86_32(term, ~fieldHash);
+        return (high << 32) | (low & 0xFFFFFFFFL);
+    }
+
+    // the murmur3 64 bit finalizer
+    private static long mix64(long k){
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -0,0 +1,266 @@
+package org.dice.solrenhancements.morelikethis;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.RandomAccessInput;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Read only, memory mapped table of the top associated terms of each frequent term of a field, written by
+ * {@link CooccurrenceTableBuilder}, used to expand feedback queries without running the seed query.
+ *
+ * File layout (all positions are absolute file pointers):
+ * <pre>
+ *   header             - followed by the field name and the association measure
+ *   term bytes         - the terms, in sorted order
+ *   rows               - per term: K associated term indexes (-1 padded) then K float weights, best first
+ *   term offsets       - numTerms + 1 longs, the start of each term
+ *   trailer            - index version, build time, K, numTerms, docs scanned, term offsets position, rows position
+ *   footer
+ * </pre>
+ *
+ * Tables are shared by concurrent requests and reference counted, the file is unmapped once the last reference
+ * is released.
+ */
+public final class CooccurrenceTable implements Closeable {
+
+    static final String CODEC = "DiceFeedbackCooccurrence";
+    static final int VERSION_START = 0;
+    static final int VERSION_CURRENT = VERSION_START;
+    static final int TRAILER_SIZE = 8 + 8 + 4 + 4 + 4 + 8 + 8;
+
+    static final String FILE_PREFIX = "cooccurrence_";
+    static final String FILE_SUFFIX = ".tbl";
+    // added to the table's file name while it is being written
+    static final String TMP_SUFFIX = ".tmp";
+    // the padded index version, and the separator before it
+    private static final int VERSION_LENGTH = 1 + 19;
+
+    private final String fileName;
+    private final IndexInput input;
+    private final RandomAccessInput data;
+    private final String field;
+    private final String measure;
+    private final long indexVersion;
+    private final long buildTime;
+    private final int k;
+    private final int numTerms;
+    private final int numDocs;
+    private final long termOffsetsPosition;
+    private final long rowsPosition;
+    private final AtomicInteger refCount = new AtomicInteger(1);
+
+    private CooccurrenceTable(String fileName, IndexInput input) throws IOException {
+        this.fileName = fileName;
+        this.input = input;
+        CodecUtil.checkHeader(input, CODEC, VERSION_START, VERSION_CURRENT);
+        this.field = input.readString();
+        this.measure = input.readString();
+        CodecUtil.checksumEntireFile(input);
+
+        input.seek(input.length() - CodecUtil.footerLength() - TRAILER_SIZE);
+        this.indexVersion = input.readLong();
+        this.buildTime = input.readLong();
+        this.k = input.readInt();
+        this.numTerms = input.readInt();
+        this.numDocs = input.readInt();
+        this.termOffsetsPosition = input.readLong();
+        this.rowsPosition = input.readLong();
+        this.data = input.randomAccessSlice(0, input.length());
+    }
+
+    /**
+     * Opens (memory maps, for an MMapDirectory) the table, verifying its checksum
+     */
+    static CooccurrenceTable open(Directory dir, String fileName) throws IOException {
+        IndexInput input = dir.openInput(fileName, IOContext.DEFAULT);
+        try {
+            return new CooccurrenceTable(fileName, input);
+        } catch (IOException | RuntimeException e) {
+            input.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the file name of the table of a field for an index version, names sort by version when padded
+     */
+    static String getFileName(String field, long indexVersion){
+        return FILE_PREFIX + field + "_" + String.format("%019d", indexVersion) + FILE_SUFFIX;
+    }
+
+    /**
+     * @return the field of a table file name, or null if it isn't one
+     */
+    static String getField(String fileName){
+        if(!fileName.startsWith(FILE_PREFIX) || !fileName.endsWith(FILE_SUFFIX)
+                || fileName.length() <= FILE_PREFIX.length() + VERSION_LENGTH + FILE_SUFFIX.length()){
+            return null;
+        }
+        return fileName.substring(FILE_PREFIX.length(), fileName.length() - VERSION_LENGTH - FILE_SUFFIX.length());
+    }
+
+    /**
+     * @return the index version of a table file name, or -1 if it isn't one
+     */
+    static long getIndexVersion(String fileName){
+        if(getField(fileName) == null){
+            return -1L;
+        }
+        int end = fileName.length() - FILE_SUFFIX.length();
+        try {
+            return Long.parseLong(fileName.substring(end - VERSION_LENGTH + 1, end));
+        } catch (NumberFormatException e) {
+            return -1L;
+        }
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    /**
+     * @return the association measure the weights were computed with
+     */
+    public String getMeasure() {
+        return measure;
+    }
+
+    /**
+     * @return the version of the index the table was built from
+     */
+    public long getIndexVersion() {
+        return indexVersion;
+    }
+
+    /**
+     * @return when the table was built, in milliseconds since the epoch
+     */
+    public long getBuildTime() {
+        return buildTime;
+    }
+
+    /**
+     * @return the (maximum) number of associated terms stored per term
+     */
+    public int getK() {
+        return k;
+    }
+
+    public int getNumTerms() {
+        return numTerms;
+    }
+
+    /**
+     * @return the number of documents with a value for the field the co-occurrences were counted over
+     */
+    public int getNumDocs() {
+        return numDocs;
+    }
+
+    /**
+     * @return the index of the term, or -1 if not in the table
+     */
+    public int findTerm(BytesRef target) throws IOException {
+        int low = 0;
+        int high = numTerms - 1;
+        while(low <= high){
+            int mid = (low + high) >>> 1;
+            int cmp = compareTerm(mid, target);
+            if(cmp < 0){
+                low = mid + 1;
+            }
+            else if(cmp > 0){
+                high = mid - 1;
+            }
+            else{
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private int compareTerm(int termIndex, BytesRef target) throws IOException {
+        long start = data.readLong(termOffsetsPosition + 8L * termIndex);
+        long end = data.readLong(termOffsetsPosition + 8L * (termIndex + 1));
+        int length = (int) (end - start);
+        int common = Math.min(length, target.length);
+        for(int i = 0; i < common; i++){
+            int cmp = (data.readByte(start + i) & 0xFF) - (target.bytes[target.offset + i] & 0xFF);
+            if(cmp != 0){
+                return cmp;
+            }
+        }
+        return length - target.length;
+    }
+
+    /**
+     * @return the term at the index
+     */
+    public BytesRef getTerm(int termIndex) throws IOException {
+        long start = data.readLong(termOffsetsPosition + 8L * termIndex);
+        long end = data.readLong(termOffsetsPosition + 8L * (termIndex + 1));
+        byte[] bytes = new byte[(int) (end - start)];
+        for(int i = 0; i < bytes.length; i++){
+            bytes[i] = data.readByte(start + i);
+        }
+        return new BytesRef(bytes);
+    }
+
+    /**
+     * Reads the associated terms of a term, best first
+     *
+     * @param termIndex  the index of the term
+     * @param associates filled with the associated terms' indexes, -1 after the last. Must hold K values
+     * @param weights    filled with the association weights. Must hold K values
+     */
+    public void getAssociates(int termIndex, int[] associates, float[] weights) throws IOException {
+        long row = rowsPosition + 8L * k * termIndex;
+        for(int i = 0; i < k; i++){
+            associates[i] = data.readInt(row + 4L * i);
+            weights[i] = Float.intBitsToFloat(data.readInt(row + 4L * (k + i)));
+        }
+    }
+
+    /**
+     * Takes a reference to the table, which must be released with {@link #decRef()}
+     *
+     * @return false if the table has already been closed
+     */
+    public boolean tryIncRef() {
+        int count;
+        while((count = refCount.get()) > 0){
+            if(refCount.compareAndSet(count, count + 1)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Releases a reference, closing the table once all are released
+     */
+    public void decRef() throws IOException {
+        if(refCount.decrementAndGet() == 0){
+            input.close();
+        }
+    }
+
+    /**
+     * Releases the owner's reference
+     */
+    @Override
+    public void close() throws IOException {
+        decRef();
+    }
+}
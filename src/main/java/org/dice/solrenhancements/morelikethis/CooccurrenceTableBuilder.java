@@ -0,0 +1,423 @@
+package org.dice.solrenhancements.morelikethis;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.IOUtils;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.dice.helper.LongIntHashMap;
+import org.dice.solrenhancements.DirectoryHelper;
+import org.dice.solrenhancements.DocValuesTermSource;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Builds the {@link CooccurrenceTable} of a field: the vocabulary is the field's most frequent terms within the
+ * doc freq bounds, the co-occurring pairs of vocabulary terms are counted over the live documents, one segment at
+ * a time from the (uninverted) doc values, and each pair is scored by its association (log-likelihood ratio or
+ * pointwise mutual information), keeping the top K associates of each term. Only positive associations (pairs
+ * seen together more often than chance) are kept.
+ *
+ * The table is written under a temporary name and renamed once complete, so a partially written table is never
+ * loaded. A build is stopped with {@link #cancel()} rather than by interrupting it, as an interrupt during a read
+ * closes the shared FileChannel of an NIOFSDirectory.
+ */
+class CooccurrenceTableBuilder {
+
+    static final String DIR_NAME = "feedback_cooccurrence";
+
+    enum Measure {
+        // Dunning's log-likelihood ratio (G^2), favours pairs that are both frequent and strongly associated
+        LLR,
+        // pointwise mutual information, favours strongly associated pairs, however rare
+        PMI;
+
+        static Measure get(String measure){
+            if(measure == null){
+                return LLR;
+            }
+            try {
+                return valueOf(measure.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                        String.format("Unknown %s '%s', expected llr or pmi", UnsupervisedFeedbackParams.COOCCURRENCE_MEASURE, measure));
+            }
+        }
+    }
+
+    private final String field;
+    private final Measure measure;
+    private final int k;
+    private final int maxTerms;
+    private final int minDocFreq;
+    private final int maxDocFreq;
+    private final int minCount;
+    private final int maxDocTerms;
+    private volatile boolean cancelled = false;
+
+    /**
+     * @param k           the number of associated terms to keep per term
+     * @param maxTerms    the maximum size of the vocabulary, the most frequent terms are kept
+     * @param minDocFreq  the minimum doc freq of a vocabulary term
+     * @param maxDocFreq  the maximum doc freq of a vocabulary term, to leave out stop words
+     * @param minCount    the minimum number of documents a pair must co-occur in to be scored
+     * @param maxDocTerms the maximum number of vocabulary terms counted per document, the rarest are kept
+     */
+    CooccurrenceTableBuilder(String field, Measure measure, int k, int maxTerms, int minDocFreq, int maxDocFreq, int minCount, int maxDocTerms) {
+        this.field = field;
+        this.measure = measure;
+        this.k = k;
+        this.maxTerms = maxTerms;
+        this.minDocFreq = minDocFreq;
+        this.maxDocFreq = maxDocFreq;
+        this.minCount = minCount;
+        this.maxDocTerms = maxDocTerms;
+    }
+
+    /**
+     * Stops a running build, which fails with an IOException once it notices
+     */
+    void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return the field the table can be built for, or a SolrException if it can't
+     */
+    static SchemaField checkField(SolrIndexSearcher searcher, String fieldName){
+        SchemaField schemaField = searcher.getSchema().getFieldOrNull(fieldName);
+        if(schemaField == null || !schemaField.indexed() || !DocValuesTermSource.canCount(schemaField)){
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                    String.format("Co-occurrence tables can only be built for indexed string or text fields, not '%s'", fieldName));
+        }
+        return schemaField;
+    }
+
+    /**
+     * Builds the table for the searcher's index
+     *
+     * @return the file name of the table
+     */
+    String build(SolrIndexSearcher searcher, Directory dir) throws IOException {
+        checkField(searcher, field);
+        return build(searcher.getIndexReader(), dir);
+    }
+
+    /**
+     * Builds the table for the reader, whose field must have (sorted set) doc values
+     *
+     * @return the file name of the table
+     */
+    String build(DirectoryReader reader, Directory dir) throws IOException {
+        final long indexVersion = reader.getVersion();
+
+        BytesRefHash vocabulary = new BytesRefHash();
+        int[] docFreqs = selectVocabulary(reader, vocabulary);
+        final int numTerms = vocabulary.size();
+
+        LongIntHashMap pairCounts = new LongIntHashMap(Math.max(16, numTerms * 4));
+        int[] counts = new int[numTerms];
+        int numDocs = countPairs(reader, vocabulary, docFreqs, counts, pairCounts);
+
+        int[] associates = new int[numTerms * k];
+        float[] weights = new float[numTerms * k];
+        int[] rowSizes = new int[numTerms];
+        Arrays.fill(associates, -1);
+        for(int slot = 0; slot < pairCounts.capacity(); slot++){
+            if(!pairCounts.isUsed(slot) || pairCounts.valueAt(slot) < minCount){
+                continue;
+            }
+            long pair = pairCounts.keyAt(slot);
+            int a = (int) (pair >>> 32);
+            int b = (int) pair;
+            float weight = (float) score(pairCounts.valueAt(slot), counts[a], counts[b], numDocs);
+            if(weight > 0.0f){
+                offer(associates, weights, rowSizes, a, b, weight);
+                offer(associates, weights, rowSizes, b, a, weight);
+            }
+        }
+
+        String fileName = CooccurrenceTable.getFileName(field, indexVersion);
+        String tmpName = fileName + CooccurrenceTable.TMP_SUFFIX;
+        IndexOutput out = null;
+        boolean success = false;
+        try {
+            out = dir.createOutput(tmpName, IOContext.DEFAULT);
+            CodecUtil.writeHeader(out, CooccurrenceTable.CODEC, CooccurrenceTable.VERSION_CURRENT);
+            out.writeString(field);
+            out.writeString(measure.name().toLowerCase(Locale.ROOT));
+
+            // ids were assigned in term order
+            BytesRef scratch = new BytesRef();
+            long[] termOffsets = new long[numTerms + 1];
+            for(int id = 0; id < numTerms; id++){
+                termOffsets[id] = out.getFilePointer();
+                vocabulary.get(id, scratch);
+                out.writeBytes(scratch.bytes, scratch.offset, scratch.length);
+            }
+            termOffsets[numTerms] = out.getFilePointer();
+
+            long rowsPosition = out.getFilePointer();
+            for(int id = 0; id < numTerms; id++){
+                sortRow(associates, weights, id * k, rowSizes[id]);
+                for(int i = 0; i < k; i++){
+                    out.writeInt(associates[id * k + i]);
+                }
+                for(int i = 0; i < k; i++){
+                    out.writeInt(Float.floatToIntBits(weights[id * k + i]));
+                }
+            }
+
+            long termOffsetsPosition = out.getFilePointer();
+            for(long offset: termOffsets){
+                out.writeLong(offset);
+            }
+
+            out.writeLong(indexVersion);
+            out.writeLong(System.currentTimeMillis());
+            out.writeInt(k);
+            out.writeInt(numTerms);
+            out.writeInt(numDocs);
+            out.writeLong(termOffsetsPosition);
+            out.writeLong(rowsPosition);
+            CodecUtil.writeFooter(out);
+            out.close();
+            out = null;
+
+            DirectoryHelper.publishFile(dir, tmpName, fileName);
+            success = true;
+            return fileName;
+        } finally {
+            IOUtils.closeWhileHandlingException(out);
+            if(!success){
+                IOUtils.deleteFilesIgnoringExceptions(dir, tmpName);
+            }
+        }
+    }
+
+    /**
+     * Adds the most frequent terms within the doc freq bounds to the vocabulary, in term order, so their ids are
+     * in term order too. Terms tied at the cut off are taken in term order.
+     *
+     * @return the doc freq of each vocabulary term
+     */
+    private int[] selectVocabulary(IndexReader reader, BytesRefHash vocabulary) throws IOException {
+        Terms terms = MultiFields.getTerms(reader, field);
+        if(terms == null){
+            return new int[0];
+        }
+
+        // first pass finds the doc freq cut off that leaves at most maxTerms terms
+        int[] candidateDocFreqs = new int[1024];
+        int numCandidates = 0;
+        TermsEnum termsEnum = terms.iterator();
+        while(termsEnum.next() != null){
+            int docFreq = termsEnum.docFreq();
+            if(docFreq >= minDocFreq && docFreq <= maxDocFreq){
+                candidateDocFreqs = ArrayUtil.grow(candidateDocFreqs, numCandidates + 1);
+                candidateDocFreqs[numCandidates++] = docFreq;
+            }
+        }
+        int cutOff = minDocFreq;
+        int atCutOff = Integer.MAX_VALUE;
+        if(numCandidates > maxTerms){
+            Arrays.sort(candidateDocFreqs, 0, numCandidates);
+            cutOff = candidateDocFreqs[numCandidates - maxTerms];
+            // how many terms at the cut off fit
+            atCutOff = 0;
+            for(int i = numCandidates - maxTerms; i < numCandidates && candidateDocFreqs[i] == cutOff; i++){
+                atCutOff++;
+            }
+        }
+
+        int[] docFreqs = new int[Math.min(numCandidates, maxTerms)];
+        termsEnum = terms.iterator();
+        BytesRef term;
+        while((term = termsEnum.next()) != null){
+            int docFreq = termsEnum.docFreq();
+            if(docFreq < cutOff || docFreq > maxDocFreq){
+                continue;
+            }
+            if(docFreq == cutOff){
+                if(atCutOff == 0){
+                    continue;
+                }
+                atCutOff--;
+            }
+            docFreqs[vocabulary.add(term)] = docFreq;
+        }
+        return docFreqs;
+    }
+
+    /**
+     * Counts the documents containing each vocabulary term, and each pair of vocabulary terms, keyed by the two
+     * term ids packed into a long, the lower id first
+     *
+     * @return the number of documents with at least one vocabulary term
+     */
+    private int countPairs(IndexReader reader, BytesRefHash vocabulary, int[] docFreqs, int[] counts, LongIntHashMap pairCounts) throws IOException {
+        int numDocs = 0;
+        long[] docTerms = new long[64];
+        int[] ids = new int[64];
+        for(LeafReaderContext leaf: reader.leaves()){
+            SortedSetDocValues docValues = DocValues.getSortedSet(leaf.reader(), field);
+            int[] ordToId = mapOrds(docValues, vocabulary);
+            Bits liveDocs = leaf.reader().getLiveDocs();
+            int maxDoc = leaf.reader().maxDoc();
+            for(int doc = 0; doc < maxDoc; doc++){
+                if(liveDocs != null && !liveDocs.get(doc)){
+                    continue;
+                }
+                if(cancelled){
+                    throw new IOException("Cancelled building the co-occurrence table");
+                }
+                docValues.setDocument(doc);
+                int numTerms = 0;
+                long ord;
+                while((ord = docValues.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS){
+                    int id = ordToId[(int) ord];
+                    if(id >= 0){
+                        docTerms = ArrayUtil.grow(docTerms, numTerms + 1);
+                        // rarest first, when capped
+                        docTerms[numTerms++] = ((long) docFreqs[id] << 32) | id;
+                    }
+                }
+                if(numTerms == 0){
+                    continue;
+                }
+                numDocs++;
+                if(numTerms > maxDocTerms){
+                    Arrays.sort(docTerms, 0, numTerms);
+                    numTerms = maxDocTerms;
+                }
+                ids = ArrayUtil.grow(ids, numTerms);
+                for(int i = 0; i < numTerms; i++){
+                    ids[i] = (int) docTerms[i];
+                }
+                Arrays.sort(ids, 0, numTerms);
+                for(int i = 0; i < numTerms; i++){
+                    counts[ids[i]]++;
+                    long high = (long) ids[i] << 32;
+                    for(int j = i + 1; j < numTerms; j++){
+                        pairCounts.addTo(high | ids[j], 1);
+                    }
+                }
+            }
+        }
+        return numDocs;
+    }
+
+    /**
+     * @return the vocabulary id of each of the segment's ords, -1 if not in the vocabulary
+     */
+    private static int[] mapOrds(SortedSetDocValues docValues, BytesRefHash vocabulary) throws IOException {
+        long valueCount = docValues.getValueCount();
+        if(valueCount > Integer.MAX_VALUE){
+            throw new IOException("Too many terms in a segment to build a co-occurrence table: " + valueCount);
+        }
+        int[] ordToId = new int[(int) valueCount];
+        TermsEnum termsEnum = docValues.termsEnum();
+        BytesRef term;
+        int ord = 0;
+        while((term = termsEnum.next()) != null){
+            ordToId[ord++] = vocabulary.find(term);
+        }
+        return ordToId;
+    }
+
+    /**
+     * @param count  the number of documents containing both terms
+     * @param countA the number of documents containing the first term
+     * @param countB the number of documents containing the second term
+     * @param n      the number of documents
+     * @return the association of the terms, 0 or less if they are not positively associated
+     */
+    double score(long count, long countA, long countB, long n){
+        if(count * n <= countA * countB){
+            return 0.0d;
+        }
+        if(measure == Measure.PMI){
+            return Math.log((double) count * n / ((double) countA * countB));
+        }
+        long k11 = count;
+        long k12 = countA - count;
+        long k21 = countB - count;
+        long k22 = n - countA - countB + count;
+        double rowEntropy = entropy(k11 + k12, k21 + k22);
+        double columnEntropy = entropy(k11 + k21, k12 + k22);
+        double matrixEntropy = entropy(k11, k12, k21, k22);
+        return Math.max(0.0d, 2.0d * (rowEntropy + columnEntropy - matrixEntropy));
+    }
+
+    private static double entropy(long... counts){
+        long sum = 0;
+        double sumXLogX = 0.0d;
+        for(long count: counts){
+            sum += count;
+            sumXLogX += xLogX(count);
+        }
+        return xLogX(sum) - sumXLogX;
+    }
+
+    private static double xLogX(long x){
+        return x == 0 ? 0.0d : x * Math.log(x);
+    }
+
+    /**
+     * Adds an associate to a term's row if it is among the best k seen so far
+     */
+    private void offer(int[] associates, float[] weights, int[] rowSizes, int term, int associate, float weight){
+        int row = term * k;
+        if(rowSizes[term] < k){
+            associates[row + rowSizes[term]] = associate;
+            weights[row + rowSizes[term]] = weight;
+            rowSizes[term]++;
+            return;
+        }
+        int min = row;
+        for(int i = row + 1; i < row + k; i++){
+            if(weights[i] < weights[min]){
+                min = i;
+            }
+        }
+        if(weight > weights[min]){
+            associates[min] = associate;
+            weights[min] = weight;
+        }
+    }
+
+    /**
+     * Sorts a row best first, rows are short so a simple insertion sort will do
+     */
+    private static void sortRow(int[] associates, float[] weights, int row, int size){
+        for(int i = row + 1; i < row + size; i++){
+            int associate = associates[i];
+            float weight = weights[i];
+            int j = i - 1;
+            while(j >= row && weights[j] < weight){
+                associates[j + 1] = associates[j];
+                weights[j + 1] = weights[j];
+                j--;
+            }
+            associates[j + 1] = associate;
+            weights[j + 1] = weight;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package org.dice.solrenhancements.morelikethis;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.IOUtils;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.ExecutorUtil;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.DefaultSolrThreadFactory;
+import org.apache.solr.util.RefCounted;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Holds the current {@link CooccurrenceTable} of each field of a core, stored in the feedback_cooccurrence
+ * directory of the core's data directory, and (re)builds them in the background. The newest table of each field is
+ * loaded when the handler starts.
+ */
+class CooccurrenceTables implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(CooccurrenceTables.class);
+
+    static final int DEFAULT_K = 20;
+    static final int DEFAULT_MAX_TERMS = 100000;
+    static final int DEFAULT_MIN_COUNT = 3;
+    static final int DEFAULT_MAX_DOC_TERMS = 100;
+
+    private final SolrCore core;
+    private final Directory dir;
+    private final ExecutorService buildExecutor;
+    private final Map<String, CooccurrenceTable> tables = new ConcurrentHashMap<String, CooccurrenceTable>();
+
+    private volatile CooccurrenceTableBuilder builder = null;
+    private volatile boolean closed = false;
+    private volatile boolean building = false;
+    private volatile String lastError = null;
+
+    CooccurrenceTables(SolrCore core) throws IOException {
+        this.core = core;
+        this.dir = new MMapDirectory(Paths.get(core.getDataDir(), CooccurrenceTableBuilder.DIR_NAME));
+        this.buildExecutor = ExecutorUtil.newMDCAwareSingleThreadExecutor(new DefaultSolrThreadFactory("feedbackCooccurrence"));
+        load();
+    }
+
+    private void load() throws IOException {
+        Map<String, String> newest = new HashMap<String, String>();
+        for(String file: dir.listAll()){
+            String field = CooccurrenceTable.getField(file);
+            if(field != null && (!newest.containsKey(field) || file.compareTo(newest.get(field)) > 0)){
+                newest.put(field, file);
+            }
+        }
+        // temporary files older than the field's newest table are left over from failed builds. Those of the same
+        // or newer versions may belong to a build still running, e.g. in the core being reloaded
+        for(String file: dir.listAll()){
+            if(!file.endsWith(CooccurrenceTable.TMP_SUFFIX)){
+                continue;
+            }
+            String tableName = file.substring(0, file.length() - CooccurrenceTable.TMP_SUFFIX.length());
+            String field = CooccurrenceTable.getField(tableName);
+            if(field != null && newest.containsKey(field)
+                    && CooccurrenceTable.getIndexVersion(tableName) < CooccurrenceTable.getIndexVersion(newest.get(field))){
+                IOUtils.deleteFilesIgnoringExceptions(dir, file);
+            }
+        }
+        for(Map.Entry<String, String> entry: newest.entrySet()){
+            try {
+                CooccurrenceTable table = CooccurrenceTable.open(dir, entry.getValue());
+                tables.put(entry.getKey(), table);
+                log.info("Loaded co-occurrence table {} with {} terms", entry.getValue(), table.getNumTerms());
+            } catch (IOException e) {
+                log.error("Unable to load co-occurrence table " + entry.getValue(), e);
+                lastError = e.toString();
+            }
+        }
+    }
+
+    /**
+     * Starts building the tables of the fields from the core's current searcher, one field after another, unless a
+     * build is already running
+     *
+     * @return false if a build is already running
+     */
+    synchronized boolean build(final String[] fields, SolrParams params) {
+        if(building){
+            return false;
+        }
+        final CooccurrenceTableBuilder.Measure measure = CooccurrenceTableBuilder.Measure.get(params.get(UnsupervisedFeedbackParams.COOCCURRENCE_MEASURE));
+        final int k = params.getInt(UnsupervisedFeedbackParams.COOCCURRENCE_K, DEFAULT_K);
+        final int maxTerms = params.getInt(UnsupervisedFeedbackParams.COOCCURRENCE_MAX_TERMS, DEFAULT_MAX_TERMS);
+        final int minDocFreq = params.getInt(UnsupervisedFeedbackParams.MIN_DOC_FREQ, MoreLikeThis.DEFAULT_MIN_DOC_FREQ);
+        final int maxDocFreq = params.getInt(UnsupervisedFeedbackParams.MAX_DOC_FREQ, MoreLikeThis.DEFAULT_MAX_DOC_FREQ);
+        final int minCount = params.getInt(UnsupervisedFeedbackParams.COOCCURRENCE_MIN_COUNT, DEFAULT_MIN_COUNT);
+        final int maxDocTerms = params.getInt(UnsupervisedFeedbackParams.COOCCURRENCE_MAX_DOC_TERMS, DEFAULT_MAX_DOC_TERMS);
+
+        building = true;
+        buildExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                RefCounted<SolrIndexSearcher> searcher = core.getSearcher();
+                try {
+                    List<String> errors = new ArrayList<String>();
+                    for(String field: fields){
+                        try {
+                            long start = System.currentTimeMillis();
+                            CooccurrenceTableBuilder builder = new CooccurrenceTableBuilder(field, measure, k, maxTerms,
+                                    minDocFreq, maxDocFreq, minCount, maxDocTerms);
+                            CooccurrenceTables.this.builder = builder;
+                            // closing, don't start the next field
+                            if(closed){
+                                break;
+                            }
+                            String fileName = builder.build(searcher.get(), dir);
+                            swap(field, CooccurrenceTable.open(dir, fileName));
+                            log.info("Built co-occurrence table {} in {} ms", fileName, System.currentTimeMillis() - start);
+                        } catch (Exception e) {
+                            log.error("Unable to build the co-occurrence table of " + field, e);
+                            errors.add(field + ": " + e);
+                        }
+                    }
+                    lastError = errors.isEmpty() ? null : errors.toString();
+                } finally {
+                    searcher.decref();
+                    CooccurrenceTables.this.builder = null;
+                    building = false;
+                }
+            }
+        });
+        return true;
+    }
+
+    private void swap(String field, CooccurrenceTable newTable) throws IOException {
+        CooccurrenceTable old;
+        synchronized (this) {
+            old = tables.put(field, newTable);
+        }
+        if(old != null){
+            // unmapped once any requests still reading it are done
+            old.close();
+            if(!old.getFileName().equals(newTable.getFileName())) {
+                IOUtils.deleteFilesIgnoringExceptions(dir, old.getFileName());
+            }
+        }
+    }
+
+    NamedList<Object> getStatus() {
+        NamedList<Object> status = new NamedList<Object>();
+        status.add("building", building);
+        for(String field: tables.keySet()){
+            CooccurrenceTable current = acquire(field);
+            if(current == null){
+                continue;
+            }
+            try {
+                NamedList<Object> tableStatus = new NamedList<Object>();
+                tableStatus.add("file", current.getFileName());
+                tableStatus.add("measure", current.getMeasure());
+                tableStatus.add("indexVersion", current.getIndexVersion());
+                tableStatus.add("buildTime", new Date(current.getBuildTime()));
+                tableStatus.add("k", current.getK());
+                tableStatus.add("numTerms", current.getNumTerms());
+                tableStatus.add("numDocs", current.getNumDocs());
+                status.add(field, tableStatus);
+            } finally {
+                release(current);
+            }
+        }
+        if(lastError != null){
+            status.add("lastError", lastError);
+        }
+        return status;
+    }
+
+    /**
+     * Takes a reference to the current table of a field, which must be released with {@link #release}
+     *
+     * @return the table, or null if the field has none
+     */
+    CooccurrenceTable acquire(String field) {
+        while(true){
+            CooccurrenceTable current = tables.get(field);
+            if(current == null || current.tryIncRef()){
+                return current;
+            }
+            // swapped and closed in between, retry with the new table
+        }
+    }
+
+    void release(CooccurrenceTable current) {
+        try {
+            current.decRef();
+        } catch (IOException e) {
+            log.warn("Unable to close co-occurrence table " + current.getFileName(), e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        // cancelled rather than interrupted, as an interrupted read breaks the core's NIOFSDirectory
+        closed = true;
+        CooccurrenceTableBuilder running = builder;
+        if(running != null){
+            running.cancel();
+        }
+        ExecutorUtil.shutdownAndAwaitTermination(buildExecutor);
+        List<Closeable> toClose = new ArrayList<Closeable>();
+        synchronized (this) {
+            toClose.addAll(tables.values());
+            tables.clear();
+        }
+        toClose.add(dir);
+        IOUtils.close(toClose);
+    }
+}
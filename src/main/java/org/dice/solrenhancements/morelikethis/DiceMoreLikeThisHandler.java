@@ -18,11 +18,15 @@
 package org.dice.solrenhancements.morelikethis;
 
 import com.google.common.base.Strings;
+import org.apache.lucene.document.Document;
 import org.apache.lucene.search.Query;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.params.*;
 import org.apache.solr.common.util.ContentStream;
+import org.apache.solr.common.util.ExecutorUtil;
 import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.CloseHook;
+import org.apache.solr.core.SolrCore;
 import org.apache.solr.handler.RequestHandlerBase;
 import org.apache.solr.handler.component.FacetComponent;
 import org.apache.solr.request.SimpleFacets;
@@ -30,7 +34,9 @@ import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.response.SolrQueryResponse;
 import org.apache.solr.schema.SchemaField;
 import org.apache.solr.search.*;
+import org.apache.solr.util.DefaultSolrThreadFactory;
 import org.apache.solr.util.SolrPluginUtils;
+import org.apache.solr.util.plugin.SolrCoreAware;
 import org.dice.solrenhancements.JarVersion;
 import org.dice.solrenhancements.filtersuggester.FilterSuggesterComponent;
 import org.slf4j.Logger;
@@ -42,6 +48,8 @@ import java.lang.invoke.MethodHandles;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Solr MoreLikeThis --
@@ -50,17 +58,106 @@ import java.util.*;
  *
  * @since solr 1.3
  */
-public class DiceMoreLikeThisHandler extends RequestHandlerBase
+public class DiceMoreLikeThisHandler extends RequestHandlerBase implements SolrCoreAware
 {
     private final static String EDISMAX = ExtendedDismaxQParserPlugin.NAME;
     private String version = null;
 
+    // name of the (optional) user cache holding the interesting terms computed for a seed document set
+    private final static String TERMS_CACHE_NAME = "termsCache";
+    private String termsCacheName = "mltTermsCache";
+
+    // batch requests run their seeds on a fixed size pool shared by all requests to the handler
+    private final static String BATCH_THREADS = "batchThreads";
+    private final static String MAX_BATCH_SIZE = "maxBatchSize";
+    private int batchThreads = Runtime.getRuntime().availableProcessors();
+    private int maxBatchSize = 1000;
+    private ExecutorService batchExecutor = null;
+
+    // mlt.parallel extracts the seed terms on a bounded pool shared by all requests to the handler
+    private final static String PARALLEL_THREADS = "parallelThreads";
+    private int parallelThreads = Runtime.getRuntime().availableProcessors();
+    private ForkJoinPool parallelPool = null;
+
+    // the precomputed neighbour table (mlt.table.command, mlt.precomputed), null if it could not be opened
+    private PrecomputedNeighbours precomputed = null;
+
+    // rolling histograms of the time spent in each phase of the (single core) MLT requests
+    private final MLTStatistics mltStatistics = new MLTStatistics();
+
     private static final Logger log = LoggerFactory.getLogger( DiceMoreLikeThisHandler.class );
 
 
     @Override
     public void init(NamedList args) {
         super.init(args);
+        Object oTermsCacheName = args.get(TERMS_CACHE_NAME);
+        if(oTermsCacheName != null){
+            this.termsCacheName = oTermsCacheName.toString();
+        }
+        Object oBatchThreads = args.get(BATCH_THREADS);
+        if(oBatchThreads != null){
+            this.batchThreads = Integer.parseInt(oBatchThreads.toString());
+        }
+        Object oParallelThreads = args.get(PARALLEL_THREADS);
+        if(oParallelThreads != null){
+            this.parallelThreads = Integer.parseInt(oParallelThreads.toString());
+        }
+        Object oMaxBatchSize = args.get(MAX_BATCH_SIZE);
+        if(oMaxBatchSize != null){
+            this.maxBatchSize = Integer.parseInt(oMaxBatchSize.toString());
+        }
+    }
+
+    @Override
+    public void inform(SolrCore core) {
+        try {
+            precomputed = new PrecomputedNeighbours(core);
+        } catch (IOException e) {
+            SolrException.log(log, "Unable to open the MLT neighbour table directory", e);
+        }
+        core.addCloseHook(new CloseHook() {
+            @Override
+            public void preClose(SolrCore core) {
+                synchronized (DiceMoreLikeThisHandler.this) {
+                    if (batchExecutor != null) {
+                        ExecutorUtil.shutdownAndAwaitTermination(batchExecutor);
+                        batchExecutor = null;
+                    }
+                    if (parallelPool != null) {
+                        ExecutorUtil.shutdownAndAwaitTermination(parallelPool);
+                        parallelPool = null;
+                    }
+                }
+                if (precomputed != null) {
+                    try {
+                        precomputed.close();
+                    } catch (IOException e) {
+                        SolrException.log(log, "Unable to close the MLT neighbour table", e);
+                    }
+                }
+            }
+
+            @Override
+            public void postClose(SolrCore core) {
+            }
+        });
+    }
+
+    private synchronized ExecutorService getBatchExecutor(){
+        // created on first use, so handlers that never see a batch request don't hold idle threads
+        if(batchExecutor == null){
+            batchExecutor = ExecutorUtil.newMDCAwareFixedThreadPool(batchThreads, new DefaultSolrThreadFactory("mltBatch"));
+        }
+        return batchExecutor;
+    }
+
+    private synchronized ForkJoinPool getParallelPool(){
+        // the extraction blocks on reads, so it gets its own pool rather than the JVM wide common pool
+        if(parallelPool == null){
+            parallelPool = new ForkJoinPool(parallelThreads);
+        }
+        return parallelPool;
     }
 
     @Override
@@ -106,11 +203,50 @@ public class DiceMoreLikeThisHandler extends RequestHandlerBase
             throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, e);
         }
 
+        String tableCommand = params.get(MoreLikeThisParams.TABLE_COMMAND);
+        if(tableCommand != null){
+            handleTableCommand(req, rsp, params, tableCommand, mltFqFilters);
+            return;
+        }
+
+        SolrCache<MLTTermsCacheKey, MLTQuery> termsCache = null;
+        if(params.getBool(MoreLikeThisParams.TERMS_CACHE, true)) {
+            termsCache = searcher.getCache(termsCacheName);
+        }
+
+        if(params.getBool(MoreLikeThisParams.BATCH, false)){
+            MoreLikeThisBatch batch = new MoreLikeThisBatch(req, rsp, params, uniqueKeyField, termsCache);
+            rsp.add("batch", batch.execute(getBatchExecutor(), maxBatchSize, flags, sortSpec.getSort(), targetFqFilters, mltFqFilters));
+            return;
+        }
+
         MoreLikeThisHelper mlt = new MoreLikeThisHelper( params, searcher, uniqueKeyField, parser );
+        if(params.getBool(MoreLikeThisParams.PARALLEL, false)){
+            mlt.getMoreLikeThis().setParallel(getParallelPool(),
+                    params.getInt(MoreLikeThisParams.PARALLEL_CHUNK_SIZE, MoreLikeThis.DEFAULT_PARALLEL_CHUNK_SIZE));
+        }
 
         // Hold on to the interesting terms if relevant
         MoreLikeThisParams.TermStyle termStyle = MoreLikeThisParams.TermStyle.get(params.get(MoreLikeThisParams.INTERESTING_TERMS));
 
+        String distribPhase = params.get(MoreLikeThisParams.DISTRIB_PHASE);
+        if(distribPhase != null){
+            DistributedMoreLikeThis.handleShardRequest(distribPhase, req, rsp, params, mlt, query,
+                    targetFqFilters, mltFqFilters, flags, sortSpec.getSort());
+            return;
+        }
+        if(params.getBool(MoreLikeThisParams.DISTRIB, false)){
+            DistributedMoreLikeThis distributed = new DistributedMoreLikeThis(req, params, uniqueKeyField);
+            rsp.add("response", distributed.process(mlt, params.getInt(CommonParams.START, 0),
+                    params.getInt(CommonParams.ROWS, 10), returnFields.wantsScore(), sortSpec.getSort()));
+            if(termStyle != MoreLikeThisParams.TermStyle.NONE){
+                addInterestingTerms(rsp, termStyle, new MLTResult(distributed.getMltTerms(), null, null));
+            }
+            return;
+        }
+
+        mlt.setTermsCache(termsCache);
+
         MLTResult mltResult = null;
         DocListAndSet mltDocs = null;
 
@@ -134,7 +270,7 @@ public class DiceMoreLikeThisHandler extends RequestHandlerBase
             } else if (q != null) {
                 // Matching options
                 mltResult = getMoreLikeTheseFromQuery(rsp, params, flags, q, query, sortSpec,
-                        targetFqFilters, mltFqFilters, searcher, mlt,  start, rows);
+                        targetFqFilters, mltFqFilters, searcher, uniqueKeyField, mlt,  start, rows);
             } else {
                 throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
                         "MoreLikeThis requires either a query (?q=) or text to find similar documents.");
@@ -142,6 +278,10 @@ public class DiceMoreLikeThisHandler extends RequestHandlerBase
             if(mltResult != null)
             {
                 mltDocs = mltResult.getResults();
+                if(mltResult.getQuery() instanceof WeightedTermsQuery){
+                    // the top k query only counts the documents that were competitive when found
+                    rsp.add("numFoundExact", false);
+                }
             }
 
         } finally {
@@ -149,6 +289,7 @@ public class DiceMoreLikeThisHandler extends RequestHandlerBase
                 reader.close();
             }
         }
+        mltStatistics.record(mlt.getTimings());
 
         if( mltDocs == null ) {
             mltDocs = new DocListAndSet(); // avoid NPE
@@ -164,7 +305,24 @@ public class DiceMoreLikeThisHandler extends RequestHandlerBase
             addFacet(req, rsp, params, mltDocs);
         }
 
-        addDebugInfo(req, rsp, q, mltFqFilters, mltResult);
+        if( mltResult != null && mltResult.getQuery() != null) {
+            addDebugInfo(req, rsp, q, mltFqFilters, mltResult, mlt.getTimings());
+        }
+    }
+
+    private void handleTableCommand(SolrQueryRequest req, SolrQueryResponse rsp, SolrParams params, String command, List<Query> mltFqFilters) throws SyntaxError {
+        if(precomputed == null){
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "The MLT neighbour table is not available, see the log for details");
+        }
+        if(command.equals("build")){
+            boolean started = precomputed.build(params, mltFqFilters, getFilters(req, MoreLikeThisParams.TABLE_FQ));
+            rsp.add("status", started ? "started" : "already building");
+        }
+        else if(!command.equals("status")){
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                    String.format("Unknown %s '%s', expected build or status", MoreLikeThisParams.TABLE_COMMAND, command));
+        }
+        rsp.add("table", precomputed.getStatus());
     }
 
     private void configureSolrParameters(SolrQueryRequest req, ModifiableSolrParams params, String uniqueKeyField){
@@ -196,12 +354,12 @@ public class DiceMoreLikeThisHandler extends RequestHandlerBase
         return reader;
     }
 
-    private MLTResult getMoreLikeTheseFromQuery(SolrQueryResponse rsp, SolrParams params, int flags, String q, Query query, SortSpec sortSpec, List<Query> targetFqFilters, List<Query> mltFqFilters, SolrIndexSearcher searcher, MoreLikeThisHelper mlt, int start, int rows) throws IOException, SyntaxError {
+    private MLTResult getMoreLikeTheseFromQuery(SolrQueryResponse rsp, SolrParams params, int flags, String q, Query query, SortSpec sortSpec, List<Query> targetFqFilters, List<Query> mltFqFilters, SolrIndexSearcher searcher, SchemaField uniqueKeyField, MoreLikeThisHelper mlt, int start, int rows) throws IOException, SyntaxError {
 
         boolean includeMatch = params.getBool(MoreLikeThisParams.MATCH_INCLUDE, true);
         int matchOffset = params.getInt(MoreLikeThisParams.MATCH_OFFSET, 0);
         // Find the base match
-        DocList match = searcher.getDocList(query, targetFqFilters, null, matchOffset, 10000, flags); // only get the first one...
+        DocList match = mlt.getSeedDocs(query, targetFqFilters, matchOffset, flags);
         if(match.matches() == 0){
             throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
                     String.format("MoreLikeThis was unable to find any documents matching the query: '%s'.", q));
@@ -211,6 +369,14 @@ public class DiceMoreLikeThisHandler extends RequestHandlerBase
             rsp.add("match", match);
         }
 
+        if (match.size() == 1 && params.getBool(MoreLikeThisParams.PRECOMPUTED, false)) {
+            MLTResult precomputedResult = getPrecomputedResult(rsp, params, match.iterator().nextDoc(), sortSpec,
+                    mltFqFilters, searcher, uniqueKeyField, start, rows);
+            if (precomputedResult != null) {
+                return precomputedResult;
+            }
+        }
+
         // This is an iterator, but we only handle the first match
         DocIterator iterator = match.iterator();
         if (iterator.hasNext()) {
@@ -220,6 +386,45 @@ public class DiceMoreLikeThisHandler extends RequestHandlerBase
         return null;
     }
 
+    /**
+     * Serves the neighbours of a single seed document from the precomputed table, when the table is loaded, fresh
+     * enough, built with the request's term selection parameters and mlt.fq filters, and holds the seed. Requests
+     * with a boost function are computed live, as the table's scores are unboosted. When the filters (or deletes
+     * since the build) leave fewer than start + rows of a full row of neighbours, the request is computed live, as
+     * more matches may lie past the K stored. The table only holds the neighbours by score, so sorted or faceted
+     * requests are always computed live.
+     *
+     * @return the neighbours, or null if they must be computed live
+     */
+    private MLTResult getPrecomputedResult(SolrQueryResponse rsp, SolrParams params, int seedDoc, SortSpec sortSpec, List<Query> mltFqFilters,
+                                           SolrIndexSearcher searcher, SchemaField uniqueKeyField, int start, int rows) throws IOException {
+        if (precomputed == null || sortSpec.getSort() != null || params.getBool(FacetParams.FACET, false)) {
+            return null;
+        }
+        String boostFn = params.get(MoreLikeThisParams.BOOST_FN);
+        if (boostFn != null && boostFn.trim().length() > 0) {
+            // the table's scores are unboosted
+            return null;
+        }
+        Document doc = searcher.doc(seedDoc, Collections.singleton(uniqueKeyField.getName()));
+        String seedKey = uniqueKeyField.getType().toExternal(doc.getField(uniqueKeyField.getName()));
+        DocSet filter = mltFqFilters.isEmpty() ? null : searcher.getDocSet(mltFqFilters);
+        long maxAge = params.getLong(MoreLikeThisParams.PRECOMPUTED_MAX_AGE, MoreLikeThisParams.DEFAULT_PRECOMPUTED_MAX_AGE);
+        String paramsSignature = NeighbourTableBuilder.getParamsSignature(params);
+
+        DocList neighbours = precomputed.getNeighbours(searcher, seedKey, paramsSignature, filter, start, rows,
+                maxAge < 0 ? -1L : maxAge * 1000L);
+        if (neighbours == null) {
+            return null;
+        }
+        rsp.add("mltSource", "table");
+        // numFound counts the table's neighbours matching the filters, not every document the MLT query matches
+        rsp.add("numFoundExact", false);
+        DocListAndSet results = new DocListAndSet();
+        results.docList = neighbours;
+        return new MLTResult(new ArrayList<MLTTerm>(), null, results);
+    }
+
     private List<InterestingTerm> extractInterestingTerms(List<MLTTerm> mltTerms){
         List<InterestingTerm> terms = new ArrayList<InterestingTerm>();
         for( MLTTerm term : mltTerms) {
@@ -270,11 +475,11 @@ public class DiceMoreLikeThisHandler extends RequestHandlerBase
         }
     }
 
-    private void addDebugInfo(SolrQueryRequest req, SolrQueryResponse rsp, String q, List<Query> mltFqFilters, MLTResult mltResult) {
+    private void addDebugInfo(SolrQueryRequest req, SolrQueryResponse rsp, String q, List<Query> mltFqFilters, MLTResult mltResult, MLTTimings timings) {
         DocListAndSet mltDocs = mltResult.getResults();
 
         boolean dbg = req.getParams().getBool(CommonParams.DEBUG_QUERY, false);
-        boolean dbgQuery = false, dbgResults = false;
+        boolean dbgQuery = false, dbgResults = false, dbgTiming = false;
         if (dbg == false){//if it's true, we are doing everything anyway.
             String[] dbgParams = req.getParams().getParams(CommonParams.DEBUG);
             if (dbgParams != null) {
@@ -283,6 +488,8 @@ public class DiceMoreLikeThisHandler extends RequestHandlerBase
                         dbgQuery = true;
                     } else if (dbgParams[i].equals(CommonParams.RESULTS)){
                         dbgResults = true;
+                    } else if (dbgParams[i].equals(CommonParams.TIMING)){
+                        dbgTiming = true;
                     }
                 }
             }
@@ -302,6 +509,7 @@ public class DiceMoreLikeThisHandler extends RequestHandlerBase
                     rsp.add("debug", dbgInfo);
                     dbgInfo.add( "mltTerms", it );
                     dbgInfo.addAll(stdDbg);
+                    dbgInfo.add("timing", timings.toNamedList());
 
                     if (null != mltFqFilters) {
                         dbgInfo.add("filter_queries",req.getParams().getParams(CommonParams.FQ));
@@ -316,6 +524,10 @@ public class DiceMoreLikeThisHandler extends RequestHandlerBase
                 SolrException.log(log, "Exception during debug", e);
                 rsp.add("exception_during_debug", SolrException.toStr(e));
             }
+        } else if (dbgTiming) {
+            NamedList<Object> dbgInfo = new NamedList<Object>();
+            dbgInfo.add("timing", timings.toNamedList());
+            rsp.add("debug", dbgInfo);
         }
     }
 
@@ -358,6 +570,13 @@ public class DiceMoreLikeThisHandler extends RequestHandlerBase
         return "Dice custom MoreLikeThis handler";
     }
 
+    @Override
+    public NamedList<Object> getStatistics() {
+        NamedList<Object> stats = super.getStatistics();
+        stats.add("mltPhases", mltStatistics.toNamedList());
+        return stats;
+    }
+
     @Override
     public String getSource() {
         return "$URL$";
@@ -21,7 +21,10 @@ import com.google.common.base.Strings;
 import org.apache.lucene.search.Query;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.params.*;
+import org.apache.solr.common.util.ExecutorUtil;
 import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.CloseHook;
+import org.apache.solr.core.SolrCore;
 import org.apache.solr.handler.RequestHandlerBase;
 import org.apache.solr.handler.component.FacetComponent;
 import org.apache.solr.request.SimpleFacets;
@@ -30,6 +33,7 @@ import org.apache.solr.response.SolrQueryResponse;
 import org.apache.solr.schema.SchemaField;
 import org.apache.solr.search.*;
 import org.apache.solr.util.SolrPluginUtils;
+import org.apache.solr.util.plugin.SolrCoreAware;
 import org.dice.solrenhancements.JarVersion;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -42,6 +46,8 @@ import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Solr MoreLikeThis --
@@ -50,13 +56,76 @@ import java.util.List;
  *
  * @since solr 1.3
  */
-public class DiceUnsupervisedFeedbackHandler extends RequestHandlerBase
+public class DiceUnsupervisedFeedbackHandler extends RequestHandlerBase implements SolrCoreAware
 {
     private final static String EDISMAX = ExtendedDismaxQParserPlugin.NAME;
 
+    // rolling histograms of the time spent in each phase of the requests
+    private final MLTStatistics feedbackStatistics = new MLTStatistics();
+
+    // name of the (optional) user cache holding the expansion terms and seed documents of a seed query, its hit rate is
+    // reported with the searcher's other caches
+    private final static String FEEDBACK_CACHE_NAME = "feedbackCache";
+    private String feedbackCacheName = "feedbackCache";
+
+    // the co-occurrence tables (moreLikeThis.cooccurrence[.command]), null if they could not be opened
+    private CooccurrenceTables cooccurrenceTables = null;
+
+    // moreLikeThis.parallel extracts the seed terms on a bounded pool shared by all requests to the handler
+    private final static String PARALLEL_THREADS = "parallelThreads";
+    private int parallelThreads = Runtime.getRuntime().availableProcessors();
+    private ForkJoinPool parallelPool = null;
+
     @Override
     public void init(NamedList args) {
         super.init(args);
+        Object oFeedbackCacheName = args.get(FEEDBACK_CACHE_NAME);
+        if(oFeedbackCacheName != null){
+            this.feedbackCacheName = oFeedbackCacheName.toString();
+        }
+        Object oParallelThreads = args.get(PARALLEL_THREADS);
+        if(oParallelThreads != null){
+            this.parallelThreads = Integer.parseInt(oParallelThreads.toString());
+        }
+    }
+
+    @Override
+    public void inform(SolrCore core) {
+        try {
+            cooccurrenceTables = new CooccurrenceTables(core);
+        } catch (IOException e) {
+            SolrException.log(log, "Unable to open the co-occurrence table directory", e);
+        }
+        core.addCloseHook(new CloseHook() {
+            @Override
+            public void preClose(SolrCore core) {
+                synchronized (DiceUnsupervisedFeedbackHandler.this) {
+                    if (parallelPool != null) {
+                        ExecutorUtil.shutdownAndAwaitTermination(parallelPool);
+                        parallelPool = null;
+                    }
+                }
+                if (cooccurrenceTables != null) {
+                    try {
+                        cooccurrenceTables.close();
+                    } catch (IOException e) {
+                        SolrException.log(log, "Unable to close the co-occurrence tables", e);
+                    }
+                }
+            }
+
+            @Override
+            public void postClose(SolrCore core) {
+            }
+        });
+    }
+
+    private synchronized ForkJoinPool getParallelPool(){
+        // the extraction blocks on reads, so it gets its own pool rather than the JVM wide common pool
+        if(parallelPool == null){
+            parallelPool = new ForkJoinPool(parallelThreads);
+        }
+        return parallelPool;
     }
 
     private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
@@ -71,6 +140,12 @@ public class DiceUnsupervisedFeedbackHandler extends RequestHandlerBase
         ModifiableSolrParams params = new ModifiableSolrParams(req.getParams());
         configureSolrParameters(req, params, uniqueKeyField.getName());
 
+        String cooccurrenceCommand = params.get(UnsupervisedFeedbackParams.COOCCURRENCE_COMMAND);
+        if(cooccurrenceCommand != null){
+            handleCooccurrenceCommand(rsp, params, searcher, cooccurrenceCommand);
+            return;
+        }
+
         // Set field flags
         ReturnFields returnFields = new SolrReturnFields( req );
         rsp.setReturnFields( returnFields );
@@ -102,6 +177,15 @@ public class DiceUnsupervisedFeedbackHandler extends RequestHandlerBase
         }
 
         UnsupervisedFeedbackHelper usfdbkHelper = new UnsupervisedFeedbackHelper( params, searcher, uniqueKeyField, parser );
+        if(params.getBool(UnsupervisedFeedbackParams.PARALLEL, false)){
+            usfdbkHelper.moreLikeThis.setParallel(getParallelPool(),
+                    params.getInt(UnsupervisedFeedbackParams.PARALLEL_CHUNK_SIZE, MoreLikeThis.DEFAULT_PARALLEL_CHUNK_SIZE));
+        }
+
+        SolrCache<FeedbackCacheKey, FeedbackCacheEntry> feedbackCache = null;
+        if(params.getBool(UnsupervisedFeedbackParams.CACHE, true)) {
+            feedbackCache = searcher.getCache(feedbackCacheName);
+        }
 
         // Hold on to the interesting terms if relevant
         UnsupervisedFeedbackParams.TermStyle termStyle = UnsupervisedFeedbackParams.TermStyle.get(params.get(UnsupervisedFeedbackParams.INTERESTING_TERMS));
@@ -127,7 +211,7 @@ public class DiceUnsupervisedFeedbackHandler extends RequestHandlerBase
             } else {
 
                 usfdbkResult = expandQueryAndReExecute(rsp, params, maxDocumentsToMatch, flags, q, query, sortSpec,
-                        targetFqFilters, mltFqFilters, searcher, usfdbkHelper, start, rows);
+                        targetFqFilters, mltFqFilters, searcher, usfdbkHelper, feedbackCache, getExtractionDeadline(req, params), start, rows);
             }
 
         } finally {
@@ -135,10 +219,15 @@ public class DiceUnsupervisedFeedbackHandler extends RequestHandlerBase
                 reader.close();
             }
         }
+        feedbackStatistics.record(usfdbkHelper.getTimings());
 
         DocListAndSet results = new DocListAndSet();
         if( usfdbkResult != null ) {
             results = usfdbkResult.getResults();
+            if(usfdbkResult.getQuery() instanceof WeightedTermsQuery){
+                // the top k query only counts the documents that were competitive when found
+                rsp.add("numFoundExact", false);
+            }
         }
         rsp.add( "response", results );
 
@@ -151,7 +240,26 @@ public class DiceUnsupervisedFeedbackHandler extends RequestHandlerBase
             addFacet(req, rsp, params, results);
         }
 
-        addDebugInfo(req, rsp, q, mltFqFilters, usfdbkResult);
+        addDebugInfo(req, rsp, q, mltFqFilters, usfdbkResult, usfdbkHelper.getTimings());
+    }
+
+    private void handleCooccurrenceCommand(SolrQueryResponse rsp, SolrParams params, SolrIndexSearcher searcher, String command) {
+        if(cooccurrenceTables == null){
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "The co-occurrence tables are not available, see the log for details");
+        }
+        if(command.equals("build")){
+            String[] fields = params.required().get(UnsupervisedFeedbackParams.SIMILARITY_FIELDS).split(",| ");
+            for(String field: fields){
+                CooccurrenceTableBuilder.checkField(searcher, field);
+            }
+            boolean started = cooccurrenceTables.build(fields, params);
+            rsp.add("status", started ? "started" : "already building");
+        }
+        else if(!command.equals("status")){
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                    String.format("Unknown %s '%s', expected build or status", UnsupervisedFeedbackParams.COOCCURRENCE_COMMAND, command));
+        }
+        rsp.add("tables", cooccurrenceTables.getStatus());
     }
 
     private void configureSolrParameters(SolrQueryRequest req, ModifiableSolrParams params, String uniqueKeyField){
@@ -208,12 +316,45 @@ public class DiceUnsupervisedFeedbackHandler extends RequestHandlerBase
         return terms;
     }
 
-    private MLTResult expandQueryAndReExecute(SolrQueryResponse rsp, SolrParams params, int maxDocumentsToMatch, int flags, String q, Query seedQuery, SortSpec sortSpec, List<Query> targetFqFilters, List<Query> mltFqFilters, SolrIndexSearcher searcher, UnsupervisedFeedbackHelper uff, int start, int rows) throws IOException, SyntaxError {
+    private MLTResult expandQueryAndReExecute(SolrQueryResponse rsp, SolrParams params, int maxDocumentsToMatch, int flags, String q, Query seedQuery, SortSpec sortSpec, List<Query> targetFqFilters, List<Query> mltFqFilters, SolrIndexSearcher searcher, UnsupervisedFeedbackHelper uff, SolrCache<FeedbackCacheKey, FeedbackCacheEntry> feedbackCache, long extractionDeadline, int start, int rows) throws IOException, SyntaxError {
 
         boolean includeMatch = params.getBool(UnsupervisedFeedbackParams.MATCH_INCLUDE, true);
         int matchOffset = params.getInt(UnsupervisedFeedbackParams.MATCH_OFFSET, 0);
+        // adaptive feedback samples the seeds from a larger pool of candidates, by score
+        boolean adaptive = params.getBool(UnsupervisedFeedbackParams.ADAPTIVE, false);
+        int numCandidates = adaptive ? FeedbackSeedSample.getPoolSize(params, maxDocumentsToMatch) : maxDocumentsToMatch;
+        int matchFlags = adaptive ? flags | SolrIndexSearcher.GET_SCORES : flags;
+
+        if(cooccurrenceTables != null && params.getBool(UnsupervisedFeedbackParams.COOCCURRENCE, false)){
+            // expand from the tables, so only the expanded query runs. Falls back to the seeds if none of the seed
+            // query's terms are in the tables
+            MLTQuery expansion = uff.getExpansion(seedQuery, cooccurrenceTables);
+            if(!expansion.getMltTerms().isEmpty()){
+                rsp.add("feedbackSource", "cooccurrence");
+                return uff.expandQueryAndReExecute(expansion, seedQuery, start, rows, mltFqFilters, flags, sortSpec.getSort());
+            }
+        }
+
+        FeedbackCacheKey cacheKey = null;
+        if(feedbackCache != null){
+            cacheKey = new FeedbackCacheKey(seedQuery, targetFqFilters, matchOffset, maxDocumentsToMatch, params);
+            FeedbackCacheEntry cached = feedbackCache.get(cacheKey);
+            if(cached != null){
+                // only the expanded query runs, the seeds are returned from the cache entry
+                if (includeMatch) {
+                    rsp.add("match", cached.getMatch());
+                }
+                // copy, as callers re-order the term list
+                return uff.expandQueryAndReExecute(cached.getExpansion().copy(), seedQuery, start, rows, mltFqFilters, flags, sortSpec.getSort());
+            }
+            // cached seeds may be returned to requests that want their scores
+            matchFlags |= SolrIndexSearcher.GET_SCORES;
+        }
+
         // Find the base match
-        DocList match = searcher.getDocList(seedQuery, targetFqFilters, null, matchOffset, maxDocumentsToMatch, flags); // only get the first one...
+        long seedStart = System.nanoTime();
+        DocList match = searcher.getDocList(seedQuery, targetFqFilters, null, matchOffset, numCandidates, matchFlags);
+        uff.getTimings().stop(MLTTimings.Phase.SEEDS, seedStart);
         if(match.matches() == 0){
             throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
                     String.format("Unsupervised feedback handler was unable to find any documents matching the seed query: '%s'.", q));
@@ -228,11 +369,42 @@ public class DiceUnsupervisedFeedbackHandler extends RequestHandlerBase
         MLTResult mltResult = null;
         if (iterator.hasNext()) {
             // do a MoreLikeThis query for each document in results
-            mltResult = uff.expandQueryAndReExecute(iterator, seedQuery, start, rows, mltFqFilters, flags, sortSpec.getSort());
+            MLTQuery expansion;
+            boolean complete = true;
+            if (adaptive) {
+                FeedbackSeedSample sample = FeedbackSeedSample.sample(match, maxDocumentsToMatch, seedQuery);
+                expansion = uff.getExpansion(sample, extractionDeadline);
+                complete = !sample.isBudgetExhausted();
+                rsp.add("feedbackSeeds", sample.toNamedList());
+            } else {
+                expansion = uff.getExpansion(iterator);
+            }
+            // an expansion cut short by the budget depends on timing, so isn't cached
+            if(cacheKey != null && complete){
+                feedbackCache.put(cacheKey, new FeedbackCacheEntry(expansion.copy(), match));
+            }
+            mltResult = uff.expandQueryAndReExecute(expansion, seedQuery, start, rows, mltFqFilters, flags, sortSpec.getSort());
         }
         return mltResult;
     }
 
+    /**
+     * @return the System.nanoTime() by which adaptive feedback must stop extracting terms: adaptive.budget ms from
+     * now, or the time left of timeAllowed if sooner
+     */
+    private long getExtractionDeadline(SolrQueryRequest req, SolrParams params) {
+        long budgetMs = params.getLong(UnsupervisedFeedbackParams.ADAPTIVE_BUDGET, -1L);
+        long timeAllowed = params.getLong(CommonParams.TIME_ALLOWED, -1L);
+        if (timeAllowed > 0) {
+            long remaining = Math.max(0L, timeAllowed - (System.currentTimeMillis() - req.getStartTime()));
+            budgetMs = budgetMs < 0 ? remaining : Math.min(budgetMs, remaining);
+        }
+        if (budgetMs < 0) {
+            return FeedbackSeedSample.NO_DEADLINE;
+        }
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMs);
+    }
+
     private void addFacet(SolrQueryRequest req, SolrQueryResponse rsp, SolrParams params, DocListAndSet mltDocs) {
         if( mltDocs.docSet == null ) {
             rsp.add( "facet_counts", null );
@@ -243,11 +415,11 @@ public class DiceUnsupervisedFeedbackHandler extends RequestHandlerBase
         }
     }
 
-    private void addDebugInfo(SolrQueryRequest req, SolrQueryResponse rsp, String q, List<Query> mltFqFilters, MLTResult mltResult) {
+    private void addDebugInfo(SolrQueryRequest req, SolrQueryResponse rsp, String q, List<Query> mltFqFilters, MLTResult mltResult, MLTTimings timings) {
         DocListAndSet mltDocs = mltResult.getResults();
 
         boolean dbg = req.getParams().getBool(CommonParams.DEBUG_QUERY, false);
-        boolean dbgQuery = false, dbgResults = false;
+        boolean dbgQuery = false, dbgResults = false, dbgTiming = false;
         if (dbg == false){//if it's true, we are doing everything anyway.
             String[] dbgParams = req.getParams().getParams(CommonParams.DEBUG);
             if (dbgParams != null) {
@@ -256,6 +428,8 @@ public class DiceUnsupervisedFeedbackHandler extends RequestHandlerBase
                         dbgQuery = true;
                     } else if (dbgParams[i].equals(CommonParams.RESULTS)){
                         dbgResults = true;
+                    } else if (dbgParams[i].equals(CommonParams.TIMING)){
+                        dbgTiming = true;
                     }
                 }
             }
@@ -274,6 +448,7 @@ public class DiceUnsupervisedFeedbackHandler extends RequestHandlerBase
                     rsp.add("debug", dbgInfo);
                     dbgInfo.add( "mltTerms", it );
                     dbgInfo.addAll(stdDbg);
+                    dbgInfo.add("timing", timings.toNamedList());
 
                     if (null != mltFqFilters) {
                         dbgInfo.add("filter_queries",req.getParams().getParams(CommonParams.FQ));
@@ -288,6 +463,10 @@ public class DiceUnsupervisedFeedbackHandler extends RequestHandlerBase
                 SolrException.log(log, "Exception during debug", e);
                 rsp.add("exception_during_debug", SolrException.toStr(e));
             }
+        } else if (dbgTiming) {
+            NamedList<Object> dbgInfo = new NamedList<Object>();
+            dbgInfo.add("timing", timings.toNamedList());
+            rsp.add("debug", dbgInfo);
         }
     }
 
@@ -330,6 +509,13 @@ public class DiceUnsupervisedFeedbackHandler extends RequestHandlerBase
         return "Solr MoreLikeThis";
     }
 
+    @Override
+    public NamedList<Object> getStatistics() {
+        NamedList<Object> stats = super.getStatistics();
+        stats.add("feedbackPhases", feedbackStatistics.toNamedList());
+        return stats;
+    }
+
     @Override
     public String getSource() {
         return "$URL$";
@@ -0,0 +1,511 @@
+package org.dice.solrenhancements.morelikethis;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.cloud.CloudDescriptor;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.cloud.*;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.FacetParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.ShardParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.Base64;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.StrUtils;
+import org.apache.solr.core.CoreDescriptor;
+import org.apache.solr.handler.component.ShardHandler;
+import org.apache.solr.handler.component.ShardRequest;
+import org.apache.solr.handler.component.ShardResponse;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.DocIterator;
+import org.apache.solr.search.DocList;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.search.SyntaxError;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Distributed (mlt.distrib=true) MoreLikeThis. A single coordinator chooses the seeds and the interesting terms
+ * from global statistics, so every shard runs the same weighted query:
+ *
+ * 1. seeds - each shard returns the keys and scores of its top mlt.match.offset + mlt.seeds matches, and the
+ *            coordinator skips the global top offset and keeps the next mlt.seeds of them
+ * 2. terms - the shards holding the chosen seeds return their term weights
+ * 3. df    - each shard returns its doc freqs for the merged terms, and its numDocs
+ * 4. query - the coordinator picks the interesting terms with the global stats, and each shard runs the weighted
+ *            query (excluding the seeds), returning its top start + rows documents to merge by score
+ *
+ * Terms are sent as their base64 encoded indexed bytes, so terms that aren't valid UTF-8 survive the round trip.
+ * The shards score documents by the sum of the global weights of the terms they contain alone (see
+ * {@link MLTQuery#setScoreByWeight}), not by their similarity, whose idf and norms come from the shard's own
+ * statistics, so scores are directly comparable between shards.
+ * The must match and must NOT match fields, sorting by anything but score, and mlt.seeds.mode=sample (a sample
+ * has no scores to merge by) are not supported.
+ */
+class DistributedMoreLikeThis {
+
+    static final String PHASE_SEEDS = "seeds";
+    static final String PHASE_TERMS = "terms";
+    static final String PHASE_DF = "df";
+    static final String PHASE_QUERY = "query";
+
+    private static final String SCORE = "score";
+
+    private final SolrQueryRequest req;
+    private final SolrParams params;
+    private final SchemaField uniqueKeyField;
+    private List<MLTTerm> mltTerms = Collections.emptyList();
+
+    DistributedMoreLikeThis(SolrQueryRequest req, SolrParams params, SchemaField uniqueKeyField) {
+        this.req = req;
+        this.params = params;
+        this.uniqueKeyField = uniqueKeyField;
+    }
+
+    /**
+     * @return the interesting terms chosen by the last call to {@link #process}
+     */
+    List<MLTTerm> getMltTerms() {
+        return mltTerms;
+    }
+
+    /**
+     * Runs the distributed request as the coordinator
+     *
+     * @param mlt configures the MoreLikeThis that chooses the interesting terms
+     */
+    SolrDocumentList process(MoreLikeThisHelper mlt, int start, int rows, boolean wantsScore, Sort sort) throws IOException {
+        if(params.get(CommonParams.Q) == null){
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                    "Distributed MoreLikeThis requires a query (?q=) to find the seed documents");
+        }
+        if(mlt.getMoreLikeThis().getMatchFieldNames().length > 0 || mlt.getMoreLikeThis().getDifferentFieldNames().length > 0){
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                    String.format("The %s and %s parameters are not supported by distributed MoreLikeThis",
+                            MoreLikeThisParams.FL_MUST_MATCH, MoreLikeThisParams.FL_MUST_NOT_MATCH));
+        }
+        if(!TopKSearch.isRelevanceSort(sort)){
+            // the shard results are merged by score
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                    String.format("Distributed MoreLikeThis only supports sorting by score, not %s=%s",
+                            CommonParams.SORT, params.get(CommonParams.SORT)));
+        }
+        if(SeedSelector.Mode.get(params.get(MoreLikeThisParams.SEEDS_MODE)) == SeedSelector.Mode.SAMPLE){
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                    String.format("%s=sample is not supported by distributed MoreLikeThis", MoreLikeThisParams.SEEDS_MODE));
+        }
+        int matchOffset = params.getInt(MoreLikeThisParams.MATCH_OFFSET, 0);
+        int maxSeeds = params.getInt(MoreLikeThisParams.SEEDS, MoreLikeThisHelper.MAX_SEED_DOCS);
+        if(maxSeeds < 1){
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, MoreLikeThisParams.SEEDS + " must be at least 1");
+        }
+        List<String> shards = getShards();
+
+        // 1. the global top seeds
+        ModifiableSolrParams seedParams = getShardParams(PHASE_SEEDS);
+        seedParams.set(MoreLikeThisParams.MATCH_OFFSET, 0);
+        seedParams.set(MoreLikeThisParams.SEEDS, matchOffset + maxSeeds);
+        List<ShardSeed> candidates = new ArrayList<ShardSeed>();
+        for(Map.Entry<String, NamedList<Object>> response: submit(shards, seedParams).entrySet()){
+            List<String> keys = getStrings(response.getValue().get("seedKeys"));
+            List<?> scores = (List<?>) response.getValue().get("seedScores");
+            for(int i = 0; i < keys.size(); i++){
+                candidates.add(new ShardSeed(response.getKey(), keys.get(i), ((Number) scores.get(i)).floatValue()));
+            }
+        }
+        Map<String, List<String>> shardSeedKeys = mergeSeeds(candidates, matchOffset, maxSeeds);
+        if(shardSeedKeys.isEmpty()){
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                    String.format("MoreLikeThis was unable to find any documents matching the query: '%s'.", params.get(CommonParams.Q)));
+        }
+
+        // 2. the term weights of the seeds, from the shards holding them
+        Map<String, ModifiableSolrParams> termsParams = new LinkedHashMap<String, ModifiableSolrParams>();
+        List<String> seedKeys = new ArrayList<String>();
+        for(Map.Entry<String, List<String>> entry: shardSeedKeys.entrySet()){
+            ModifiableSolrParams shardParams = getShardParams(PHASE_TERMS);
+            shardParams.set(MoreLikeThisParams.DISTRIB_SEEDS, entry.getValue().toArray(new String[entry.getValue().size()]));
+            termsParams.put(entry.getKey(), shardParams);
+            seedKeys.addAll(entry.getValue());
+        }
+        Map<String, TermWeights> fieldTermFreq = new HashMap<String, TermWeights>();
+        for(NamedList<Object> response: submit(termsParams).values()){
+            NamedList<?> fieldTerms = (NamedList<?>) response.get("terms");
+            for(int i = 0; i < fieldTerms.size(); i++){
+                TermWeights weights = fieldTermFreq.get(fieldTerms.getName(i));
+                if(weights == null){
+                    weights = new TermWeights();
+                    fieldTermFreq.put(fieldTerms.getName(i), weights);
+                }
+                NamedList<?> terms = (NamedList<?>) fieldTerms.getVal(i);
+                for(int j = 0; j < terms.size(); j++){
+                    weights.add(decodeBytes(terms.getName(j)), ((Number) terms.getVal(j)).floatValue());
+                }
+            }
+        }
+
+        // 3. the global stats of the terms
+        List<Term> terms = new ArrayList<Term>();
+        for(Map.Entry<String, TermWeights> entry: fieldTermFreq.entrySet()){
+            BytesRef spare = new BytesRef();
+            for(int id = 0; id < entry.getValue().size(); id++){
+                terms.add(new Term(entry.getKey(), BytesRef.deepCopyOf(entry.getValue().getTerm(id, spare))));
+            }
+        }
+        ModifiableSolrParams dfParams = getShardParams(PHASE_DF);
+        dfParams.set(MoreLikeThisParams.DISTRIB_TERMS, encodeTerms(terms));
+        int numDocs = 0;
+        int[] docFreqs = new int[terms.size()];
+        for(NamedList<Object> response: submit(shards, dfParams).values()){
+            numDocs += ((Number) response.get("numDocs")).intValue();
+            List<?> shardDocFreqs = (List<?>) response.get("df");
+            for(int i = 0; i < docFreqs.length; i++){
+                docFreqs[i] += ((Number) shardDocFreqs.get(i)).intValue();
+            }
+        }
+        Map<Term, Integer> globalDocFreqs = new HashMap<Term, Integer>();
+        for(int i = 0; i < docFreqs.length; i++){
+            globalDocFreqs.put(terms.get(i), docFreqs[i]);
+        }
+
+        // 4. the weighted query
+        MoreLikeThis moreLikeThis = mlt.getMoreLikeThis();
+        moreLikeThis.setTermStats(TermStatsResolver.fixed(globalDocFreqs), numDocs);
+        this.mltTerms = moreLikeThis.like(fieldTermFreq).getMltTerms();
+
+        List<Term> queryTerms = new ArrayList<Term>(mltTerms.size());
+        String[] weights = new String[mltTerms.size()];
+        for(int i = 0; i < weights.length; i++){
+            queryTerms.add(mltTerms.get(i).getTerm());
+            weights[i] = Float.toString(mltTerms.get(i).getFinalScore());
+        }
+        ModifiableSolrParams queryParams = getShardParams(PHASE_QUERY);
+        queryParams.set(MoreLikeThisParams.DISTRIB_TERMS, encodeTerms(queryTerms));
+        queryParams.set(MoreLikeThisParams.DISTRIB_WEIGHTS, weights);
+        queryParams.set(MoreLikeThisParams.DISTRIB_EXCLUDE, seedKeys.toArray(new String[seedKeys.size()]));
+        queryParams.set(CommonParams.START, 0);
+        queryParams.set(CommonParams.ROWS, start + rows);
+        queryParams.set(CommonParams.FL, params.get(CommonParams.FL, "*") + "," + uniqueKeyField.getName() + "," + SCORE);
+
+        return merge(new ArrayList<NamedList<Object>>(submit(shards, queryParams).values()), start, rows, wantsScore);
+    }
+
+    /**
+     * A seed candidate returned by a shard
+     */
+    static class ShardSeed {
+        final String shard;
+        final String key;
+        final float score;
+
+        ShardSeed(String shard, String key, float score) {
+            this.shard = shard;
+            this.key = key;
+            this.score = score;
+        }
+    }
+
+    /**
+     * Picks the global seeds from the shards' candidates: skips the top matchOffset by score and keeps the next
+     * maxSeeds. Ties keep the order the candidates were returned in.
+     *
+     * @return the unique keys of the chosen seeds, grouped by the shard holding them
+     */
+    static Map<String, List<String>> mergeSeeds(List<ShardSeed> candidates, int matchOffset, int maxSeeds){
+        List<ShardSeed> sorted = new ArrayList<ShardSeed>(candidates);
+        // a stable sort
+        Collections.sort(sorted, new Comparator<ShardSeed>() {
+            @Override
+            public int compare(ShardSeed s1, ShardSeed s2) {
+                return Float.compare(s2.score, s1.score);
+            }
+        });
+
+        Map<String, List<String>> shardSeedKeys = new LinkedHashMap<String, List<String>>();
+        for(int i = matchOffset; i < Math.min(sorted.size(), matchOffset + maxSeeds); i++){
+            ShardSeed seed = sorted.get(i);
+            List<String> keys = shardSeedKeys.get(seed.shard);
+            if(keys == null){
+                keys = new ArrayList<String>();
+                shardSeedKeys.put(seed.shard, keys);
+            }
+            keys.add(seed.key);
+        }
+        return shardSeedKeys;
+    }
+
+    /**
+     * Merges the shards' top documents by score, and pages through them
+     */
+    static SolrDocumentList merge(List<NamedList<Object>> responses, int start, int rows, boolean wantsScore){
+        List<SolrDocument> docs = new ArrayList<SolrDocument>();
+        long numFound = 0;
+        for(NamedList<Object> response: responses){
+            SolrDocumentList shardDocs = (SolrDocumentList) response.get("response");
+            numFound += shardDocs.getNumFound();
+            docs.addAll(shardDocs);
+        }
+        Collections.sort(docs, new Comparator<SolrDocument>() {
+            @Override
+            public int compare(SolrDocument d1, SolrDocument d2) {
+                return Float.compare(getScore(d2), getScore(d1));
+            }
+        });
+
+        SolrDocumentList merged = new SolrDocumentList();
+        merged.setNumFound(numFound);
+        merged.setStart(start);
+        if(docs.size() > 0){
+            merged.setMaxScore(getScore(docs.get(0)));
+        }
+        for(int i = start; i < Math.min(docs.size(), start + rows); i++){
+            SolrDocument doc = docs.get(i);
+            if(!wantsScore){
+                doc.removeFields(SCORE);
+            }
+            merged.add(doc);
+        }
+        return merged;
+    }
+
+    private static float getScore(SolrDocument doc){
+        Object score = doc.getFieldValue(SCORE);
+        return score == null ? 0.0f : ((Number) score).floatValue();
+    }
+
+    private ModifiableSolrParams getShardParams(String phase){
+        ModifiableSolrParams shardParams = new ModifiableSolrParams(params);
+        shardParams.remove(ShardParams.SHARDS);
+        shardParams.remove(MoreLikeThisParams.DISTRIB);
+        shardParams.set(CommonParams.DISTRIB, false);
+        shardParams.set(ShardParams.IS_SHARD, true);
+        shardParams.set(MoreLikeThisParams.DISTRIB_PHASE, phase);
+        shardParams.set(MoreLikeThisParams.MATCH_INCLUDE, false);
+        shardParams.remove(MoreLikeThisParams.INTERESTING_TERMS);
+        shardParams.remove(FacetParams.FACET);
+        shardParams.remove(CommonParams.DEBUG_QUERY);
+        shardParams.remove(CommonParams.DEBUG);
+
+        String qt = params.get(ShardParams.SHARDS_QT);
+        if(qt == null){
+            qt = (String) req.getContext().get("path");
+        }
+        shardParams.set(CommonParams.QT, qt);
+        return shardParams;
+    }
+
+    /**
+     * @return the shards from the shards parameter, or the active replicas of each shard of the collection
+     */
+    private List<String> getShards(){
+        String shards = params.get(ShardParams.SHARDS);
+        if(shards != null){
+            return StrUtils.splitSmart(shards, ",", true);
+        }
+
+        CoreDescriptor coreDescriptor = req.getCore().getCoreDescriptor();
+        CloudDescriptor cloudDescriptor = coreDescriptor.getCloudDescriptor();
+        if(cloudDescriptor == null){
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                    String.format("%s requires the %s parameter when not running in SolrCloud", MoreLikeThisParams.DISTRIB, ShardParams.SHARDS));
+        }
+        ClusterState clusterState = coreDescriptor.getCoreContainer().getZkController().getClusterState();
+        DocCollection collection = clusterState.getCollection(cloudDescriptor.getCollectionName());
+        List<String> shardUrls = new ArrayList<String>();
+        for(Slice slice: collection.getActiveSlices()){
+            // the shard handler load balances over the | separated replicas
+            StringBuilder replicas = new StringBuilder();
+            for(Replica replica: slice.getReplicas()){
+                if(replica.getState() == Replica.State.ACTIVE && clusterState.liveNodesContain(replica.getNodeName())){
+                    if(replicas.length() > 0){
+                        replicas.append('|');
+                    }
+                    replicas.append(ZkCoreNodeProps.getCoreUrl(replica));
+                }
+            }
+            if(replicas.length() == 0){
+                throw new SolrException(SolrException.ErrorCode.SERVICE_UNAVAILABLE,
+                        String.format("No active replicas for shard %s", slice.getName()));
+            }
+            shardUrls.add(replicas.toString());
+        }
+        return shardUrls;
+    }
+
+    private Map<String, NamedList<Object>> submit(List<String> shards, ModifiableSolrParams shardParams){
+        Map<String, ModifiableSolrParams> requests = new LinkedHashMap<String, ModifiableSolrParams>();
+        for(String shard: shards){
+            requests.put(shard, shardParams);
+        }
+        return submit(requests);
+    }
+
+    /**
+     * Sends each shard its own parameters
+     *
+     * @return the responses by shard, in the order of the requests
+     */
+    private Map<String, NamedList<Object>> submit(Map<String, ModifiableSolrParams> requests){
+        ShardHandler shardHandler = req.getCore().getCoreDescriptor().getCoreContainer().getShardHandlerFactory().getShardHandler();
+        ShardRequest sreq = new ShardRequest();
+        sreq.purpose = ShardRequest.PURPOSE_PRIVATE;
+        sreq.shards = requests.keySet().toArray(new String[requests.size()]);
+        sreq.actualShards = sreq.shards;
+        for(Map.Entry<String, ModifiableSolrParams> request: requests.entrySet()){
+            shardHandler.submit(sreq, request.getKey(), new ModifiableSolrParams(request.getValue()));
+        }
+
+        ShardResponse completed = shardHandler.takeCompletedOrError();
+        if(completed == null){
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "No responses from the MoreLikeThis shard requests");
+        }
+        if(completed.getException() != null){
+            shardHandler.cancelAll();
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+                    String.format("MoreLikeThis shard request to %s failed", completed.getShard()), completed.getException());
+        }
+
+        Map<String, NamedList<Object>> responses = new HashMap<String, NamedList<Object>>();
+        for(ShardResponse shardResponse: completed.getShardRequest().responses){
+            responses.put(shardResponse.getShard(), shardResponse.getSolrResponse().getResponse());
+        }
+        Map<String, NamedList<Object>> ordered = new LinkedHashMap<String, NamedList<Object>>();
+        for(String shard: requests.keySet()){
+            ordered.put(shard, responses.get(shard));
+        }
+        return ordered;
+    }
+
+    /**
+     * Encodes each term as field:base64(bytes), base64 has no ':' so the field is split off at the last ':'
+     */
+    static String[] encodeTerms(List<Term> terms){
+        String[] encoded = new String[terms.size()];
+        for(int i = 0; i < encoded.length; i++){
+            encoded[i] = terms.get(i).field() + ":" + encodeBytes(terms.get(i).bytes());
+        }
+        return encoded;
+    }
+
+    static List<Term> decodeTerms(String[] encoded){
+        List<Term> terms = new ArrayList<Term>();
+        if(encoded != null) {
+            for (String term : encoded) {
+                int split = term.lastIndexOf(':');
+                terms.add(new Term(term.substring(0, split), decodeBytes(term.substring(split + 1))));
+            }
+        }
+        return terms;
+    }
+
+    static String encodeBytes(BytesRef bytes){
+        return Base64.byteArrayToBase64(bytes.bytes, bytes.offset, bytes.length);
+    }
+
+    static BytesRef decodeBytes(String encoded){
+        return new BytesRef(Base64.base64ToByteArray(encoded));
+    }
+
+    private static List<String> getStrings(Object values){
+        List<String> strings = new ArrayList<String>();
+        if(values != null){
+            for(Object value: (Collection<?>) values){
+                strings.add(value.toString());
+            }
+        }
+        return strings;
+    }
+
+    /**
+     * Handles one phase of a distributed request on a shard
+     */
+    static void handleShardRequest(String phase, SolrQueryRequest req, SolrQueryResponse rsp, SolrParams params, MoreLikeThisHelper mlt,
+                                   Query query, List<Query> targetFqFilters, List<Query> mltFqFilters, int flags, Sort sort) throws IOException, SyntaxError {
+        SolrIndexSearcher searcher = req.getSearcher();
+        SchemaField uniqueKeyField = searcher.getSchema().getUniqueKeyField();
+
+        if(PHASE_SEEDS.equals(phase)){
+            List<String> keys = new ArrayList<String>();
+            List<Float> scores = new ArrayList<Float>();
+            Set<String> keyFieldOnly = Collections.singleton(uniqueKeyField.getName());
+            DocList seeds = mlt.getSeedDocs(query, targetFqFilters, 0, SolrIndexSearcher.GET_SCORES);
+            DocIterator iterator = seeds.iterator();
+            while(iterator.hasNext()){
+                int id = iterator.nextDoc();
+                scores.add(iterator.score());
+                Document doc = searcher.doc(id, keyFieldOnly);
+                keys.add(uniqueKeyField.getType().toExternal(doc.getField(uniqueKeyField.getName())));
+            }
+            rsp.add("seedKeys", keys);
+            rsp.add("seedScores", scores);
+        }
+        else if(PHASE_TERMS.equals(phase)){
+            List<Integer> ids = new ArrayList<Integer>();
+            String[] seedKeys = params.getParams(MoreLikeThisParams.DISTRIB_SEEDS);
+            if(seedKeys != null){
+                for(String key: seedKeys){
+                    int id = searcher.getFirstMatch(new Term(uniqueKeyField.getName(), uniqueKeyField.getType().readableToIndexed(key)));
+                    if(id >= 0){
+                        ids.add(id);
+                    }
+                }
+            }
+
+            NamedList<Object> fieldTerms = new NamedList<Object>();
+            if(ids.size() > 0){
+                BytesRef spare = new BytesRef();
+                for(Map.Entry<String, TermWeights> entry: mlt.getMoreLikeThis().retrieveTermWeights(ids).entrySet()){
+                    NamedList<Float> terms = new NamedList<Float>();
+                    for(int id = 0; id < entry.getValue().size(); id++){
+                        terms.add(encodeBytes(entry.getValue().getTerm(id, spare)), entry.getValue().getWeight(id));
+                    }
+                    fieldTerms.add(entry.getKey(), terms);
+                }
+            }
+            rsp.add("terms", fieldTerms);
+        }
+        else if(PHASE_DF.equals(phase)){
+            IndexReader reader = searcher.getIndexReader();
+            List<Integer> docFreqs = new ArrayList<Integer>();
+            for(Term term: decodeTerms(params.getParams(MoreLikeThisParams.DISTRIB_TERMS))){
+                docFreqs.add(reader.docFreq(term));
+            }
+            rsp.add("numDocs", reader.numDocs());
+            rsp.add("df", docFreqs);
+        }
+        else if(PHASE_QUERY.equals(phase)){
+            List<Term> terms = decodeTerms(params.getParams(MoreLikeThisParams.DISTRIB_TERMS));
+            String[] weights = params.getParams(MoreLikeThisParams.DISTRIB_WEIGHTS);
+            List<MLTTerm> mltTerms = new ArrayList<MLTTerm>(terms.size());
+            for(int i = 0; i < terms.size(); i++){
+                // the weight is the final score, so a tf of the weight with no idf, boost or normalization
+                MLTTerm mltTerm = new MLTTerm(terms.get(i).text(), terms.get(i).field(), Float.parseFloat(weights[i]), 1.0f, 0, false, 1.0f, true);
+                mltTerm.setTermBytes(terms.get(i).bytes());
+                mltTerms.add(mltTerm);
+            }
+            MLTQuery mltQuery = new MLTQuery(mltTerms, mlt.getMoreLikeThis().getMm());
+            // the local idf and norms would make the shards' scores incomparable
+            mltQuery.setScoreByWeight(true);
+
+            String[] exclude = params.getParams(MoreLikeThisParams.DISTRIB_EXCLUDE);
+            List<String> excludeKeys = exclude == null ? new ArrayList<String>() : Arrays.asList(exclude);
+            MLTResult result = mlt.getMoreLikeThisFromTerms(mltQuery, excludeKeys,
+                    params.getInt(CommonParams.START, 0), params.getInt(CommonParams.ROWS, 10), mltFqFilters, flags, sort);
+            rsp.add("response", result.getResults().docList);
+        }
+        else{
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                    String.format("Unknown %s '%s'", MoreLikeThisParams.DISTRIB_PHASE, phase));
+        }
+    }
+}
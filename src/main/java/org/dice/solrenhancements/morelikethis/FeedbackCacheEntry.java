@@ -0,0 +1,34 @@
+package org.dice.solrenhancements.morelikethis;
+
+import org.apache.solr.search.DocList;
+
+/**
+ * Value of the unsupervised feedback expansion cache: the expansion terms extracted from the seed documents, and
+ * the seed documents themselves, so a hit can return the match without running the seed query again. The seeds
+ * are internal doc ids, only valid for the searcher the cache belongs to, and are re-found when it is auto-warmed
+ * (see FeedbackCacheRegenerator).
+ */
+public class FeedbackCacheEntry {
+
+    private final MLTQuery expansion;
+    private final DocList match;
+
+    /**
+     * @param match the seed documents, with scores
+     */
+    public FeedbackCacheEntry(MLTQuery expansion, DocList match){
+        this.expansion = expansion;
+        this.match = match;
+    }
+
+    /**
+     * @return the expansion, which must be copied before its term list is re-ordered
+     */
+    public MLTQuery getExpansion() {
+        return expansion;
+    }
+
+    public DocList getMatch() {
+        return match;
+    }
+}
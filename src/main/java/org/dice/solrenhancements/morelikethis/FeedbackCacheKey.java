@@ -0,0 +1,130 @@
+package org.dice.solrenhancements.morelikethis;
+
+import org.apache.lucene.search.Query;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Key for the unsupervised feedback expansion cache. Identifies the seed documents by the parsed seed query (so
+ * queries that differ only in syntax share an entry), its filters (in any order), the offset and number of seed
+ * documents, and every feedback parameter that affects which expansion terms are selected.
+ *
+ * The query, filters and parameters are kept so the terms can be re-computed against a new searcher when the
+ * cache is auto-warmed (see FeedbackCacheRegenerator).
+ */
+public class FeedbackCacheKey {
+
+    // the parameters that change the expansion terms extracted from a set of seeds
+    static final String[] TERM_SELECTION_PARAMS = new String[]{
+            UnsupervisedFeedbackParams.SIMILARITY_FIELDS,
+            UnsupervisedFeedbackParams.QF,
+            UnsupervisedFeedbackParams.MIN_TERM_FREQ,
+            UnsupervisedFeedbackParams.MIN_DOC_FREQ,
+            UnsupervisedFeedbackParams.MAX_DOC_FREQ,
+            UnsupervisedFeedbackParams.MIN_WORD_LEN,
+            UnsupervisedFeedbackParams.MAX_WORD_LEN,
+            UnsupervisedFeedbackParams.MAX_QUERY_TERMS_PER_FIELD,
+            UnsupervisedFeedbackParams.MAX_NUM_TOKENS_PARSED_PER_FIELD,
+            UnsupervisedFeedbackParams.NORMALIZE_FIELD_BOOSTS,
+            UnsupervisedFeedbackParams.IS_LOG_TF,
+            UnsupervisedFeedbackParams.PAYLOAD_FIELDS,
+            UnsupervisedFeedbackParams.COUNT_TERMS,
+            UnsupervisedFeedbackParams.ADAPTIVE,
+            UnsupervisedFeedbackParams.ADAPTIVE_POOL
+    };
+
+    private final Query seedQuery;
+    private final List<Query> filters;
+    private final Set<Query> filterSet;
+    private final int matchOffset;
+    private final int maxDocuments;
+    private final SolrParams params;
+    private final String paramsSignature;
+    private final int hash;
+
+    /**
+     * @param filters the filters applied to the seed query, may be null
+     * @param params  the request parameters, only the term selection parameters are retained
+     */
+    public FeedbackCacheKey(Query seedQuery, List<Query> filters, int matchOffset, int maxDocuments, SolrParams params){
+        this.seedQuery = seedQuery;
+        this.filters = filters == null ? Collections.<Query>emptyList() : filters;
+        this.filterSet = new HashSet<Query>(this.filters);
+        this.matchOffset = matchOffset;
+        this.maxDocuments = maxDocuments;
+
+        ModifiableSolrParams termParams = new ModifiableSolrParams();
+        StringBuilder signature = new StringBuilder();
+        for(String paramName: TERM_SELECTION_PARAMS){
+            String[] values = params.getParams(paramName);
+            if(values != null){
+                termParams.set(paramName, values);
+                signature.append(paramName).append('=').append(Arrays.toString(values)).append('&');
+            }
+        }
+        this.params = termParams;
+        this.paramsSignature = signature.toString();
+
+        int h = seedQuery.hashCode();
+        h = 31 * h + filterSet.hashCode();
+        h = 31 * h + matchOffset;
+        h = 31 * h + maxDocuments;
+        this.hash = 31 * h + paramsSignature.hashCode();
+    }
+
+    public Query getSeedQuery() {
+        return seedQuery;
+    }
+
+    public List<Query> getFilters() {
+        return filters;
+    }
+
+    public int getMatchOffset() {
+        return matchOffset;
+    }
+
+    public int getMaxDocuments() {
+        return maxDocuments;
+    }
+
+    /**
+     * @return the term selection parameters the terms were computed with
+     */
+    public SolrParams getParams() {
+        return params;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        FeedbackCacheKey other = (FeedbackCacheKey) o;
+        return hash == other.hash
+                && matchOffset == other.matchOffset
+                && maxDocuments == other.maxDocuments
+                && seedQuery.equals(other.seedQuery)
+                && filterSet.equals(other.filterSet)
+                && paramsSignature.equals(other.paramsSignature);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return seedQuery + " " + filterSet + " " + matchOffset + "," + maxDocuments + " " + paramsSignature;
+    }
+}
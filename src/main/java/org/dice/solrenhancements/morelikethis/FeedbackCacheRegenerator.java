@@ -0,0 +1,52 @@
+package org.dice.solrenhancements.morelikethis;
+
+import org.apache.solr.search.CacheRegenerator;
+import org.apache.solr.search.DocList;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+
+import java.io.IOException;
+
+/**
+ * Auto-warms the unsupervised feedback expansion cache by re-running each old entry's seed query against the new
+ * searcher and re-extracting the expansion terms from its matches, which are cached with them. Entries whose seed
+ * query no longer matches anything are dropped. Configure in solrconfig.xml as:
+ *
+ * <pre>
+ * &lt;cache name="feedbackCache" class="solr.LRUCache" size="1024" initialSize="1024" autowarmCount="256"
+ *        regenerator="org.dice.solrenhancements.morelikethis.FeedbackCacheRegenerator"/&gt;
+ * </pre>
+ *
+ * Without a regenerator the cache is simply emptied on each new searcher.
+ */
+public class FeedbackCacheRegenerator implements CacheRegenerator {
+
+    @Override
+    @SuppressWarnings("rawtypes") // the regenerator interface takes raw caches
+    public boolean regenerateItem(SolrIndexSearcher newSearcher, SolrCache newCache, SolrCache oldCache,
+                                  Object oldKey, Object oldVal) throws IOException {
+        @SuppressWarnings("unchecked")
+        SolrCache<FeedbackCacheKey, FeedbackCacheEntry> cache = (SolrCache<FeedbackCacheKey, FeedbackCacheEntry>) newCache;
+
+        FeedbackCacheKey key = (FeedbackCacheKey) oldKey;
+        boolean adaptive = key.getParams().getBool(UnsupervisedFeedbackParams.ADAPTIVE, false);
+        int numDocs = adaptive ? FeedbackSeedSample.getPoolSize(key.getParams(), key.getMaxDocuments()) : key.getMaxDocuments();
+        DocList match = newSearcher.getDocList(key.getSeedQuery(), key.getFilters(), null,
+                key.getMatchOffset(), numDocs, SolrIndexSearcher.GET_SCORES);
+        if(match.size() > 0) {
+            // no boost function is needed to extract the terms, so no query parser is required
+            UnsupervisedFeedbackHelper helper = new UnsupervisedFeedbackHelper(key.getParams(), newSearcher,
+                    newSearcher.getSchema().getUniqueKeyField(), null);
+            if(adaptive) {
+                // only complete samples are cached, so warming has no time budget
+                FeedbackSeedSample sample = FeedbackSeedSample.sample(match, key.getMaxDocuments(), key.getSeedQuery());
+                cache.put(key, new FeedbackCacheEntry(helper.getExpansion(sample, FeedbackSeedSample.NO_DEADLINE), match));
+            }
+            else {
+                cache.put(key, new FeedbackCacheEntry(helper.getExpansion(match.iterator()), match));
+            }
+        }
+        // keep warming the remaining entries
+        return true;
+    }
+}
@@ -0,0 +1,147 @@
+package org.dice.solrenhancements.morelikethis;
+
+import org.apache.lucene.search.Query;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.search.DocIterator;
+import org.apache.solr.search.DocList;
+
+import java.util.Random;
+
+/**
+ * A score weighted sample of the documents matching a feedback seed query, for the adaptive feedback mode, and a
+ * record of how many of them the term extraction got through before its budget ran out.
+ *
+ * Seeds are sampled without replacement by weighted reservoir sampling (Efraimidis and Spirakis' A-Res): each
+ * candidate gets the key u^(1/w) for a uniform random u and its score w (relative to the top score), and the
+ * reservoir keeps the candidates with the largest keys. The sample is ordered by key, so if the budget runs out
+ * the seeds already used are themselves a weighted sample.
+ */
+final class FeedbackSeedSample {
+
+    // so a zero or negative score can still be sampled, just very rarely
+    private static final double MIN_WEIGHT = 1e-6d;
+
+    // by default the seeds are sampled from this many times as many candidates
+    static final int DEFAULT_POOL_FACTOR = 10;
+
+    // no time limit on term extraction
+    static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    private final int candidates;
+    private final int[] docs;
+    private int used = 0;
+    private boolean budgetExhausted = false;
+
+    private FeedbackSeedSample(int candidates, int[] docs){
+        this.candidates = candidates;
+        this.docs = docs;
+    }
+
+    /**
+     * @return the number of top documents matching the seed query to sample the seeds from
+     */
+    static int getPoolSize(SolrParams params, int numSeeds){
+        return Math.max(numSeeds, params.getInt(UnsupervisedFeedbackParams.ADAPTIVE_POOL, DEFAULT_POOL_FACTOR * numSeeds));
+    }
+
+    /**
+     * Samples the seeds with a random seeded from the seed query, so a repeated request samples the same seeds
+     */
+    static FeedbackSeedSample sample(DocList candidates, int size, Query seedQuery){
+        return sample(candidates, size, new Random(seedQuery.hashCode()));
+    }
+
+    /**
+     * @param candidates the documents matching the seed query, with scores
+     * @param size       the number of seeds to sample
+     */
+    static FeedbackSeedSample sample(DocList candidates, int size, Random random){
+        int capacity = Math.min(size, candidates.size());
+        int[] reservoir = new int[capacity];
+        double[] keys = new double[capacity];
+        int filled = 0;
+        int minIndex = 0;
+
+        float maxScore = candidates.hasScores() ? candidates.maxScore() : 0.0f;
+        DocIterator iterator = candidates.iterator();
+        while(iterator.hasNext()){
+            int doc = iterator.nextDoc();
+            double weight = 1.0d;
+            if(maxScore > 0.0f){
+                weight = Math.max(MIN_WEIGHT, iterator.score() / maxScore);
+            }
+            double key = Math.pow(random.nextDouble(), 1.0d / weight);
+            if(filled < capacity){
+                reservoir[filled] = doc;
+                keys[filled] = key;
+                filled++;
+                if(filled == capacity){
+                    minIndex = findMin(keys);
+                }
+            }
+            else if(capacity > 0 && key > keys[minIndex]){
+                reservoir[minIndex] = doc;
+                keys[minIndex] = key;
+                minIndex = findMin(keys);
+            }
+        }
+
+        // largest key first, the reservoir is small so a simple insertion sort will do
+        for(int i = 1; i < filled; i++){
+            int doc = reservoir[i];
+            double key = keys[i];
+            int j = i - 1;
+            while(j >= 0 && keys[j] < key){
+                reservoir[j + 1] = reservoir[j];
+                keys[j + 1] = keys[j];
+                j--;
+            }
+            reservoir[j + 1] = doc;
+            keys[j + 1] = key;
+        }
+        return new FeedbackSeedSample(candidates.size(), reservoir);
+    }
+
+    private static int findMin(double[] keys){
+        int min = 0;
+        for(int i = 1; i < keys.length; i++){
+            if(keys[i] < keys[min]){
+                min = i;
+            }
+        }
+        return min;
+    }
+
+    /**
+     * @return the sampled seeds, in the order they should be used
+     */
+    int[] getDocs() {
+        return docs;
+    }
+
+    void setUsed(int used, boolean budgetExhausted){
+        this.used = used;
+        this.budgetExhausted = budgetExhausted;
+    }
+
+    int getUsed() {
+        return used;
+    }
+
+    /**
+     * @return true if term extraction stopped before all the sampled seeds were used
+     */
+    boolean isBudgetExhausted() {
+        return budgetExhausted;
+    }
+
+    NamedList<Object> toNamedList(){
+        NamedList<Object> report = new NamedList<Object>();
+        report.add("candidates", candidates);
+        report.add("sampled", docs.length);
+        report.add("used", used);
+        report.add("budgetExhausted", budgetExhausted);
+        return report;
+    }
+}
@@ -1,21 +1,32 @@
 package org.dice.solrenhancements.morelikethis;
 
+import org.apache.lucene.index.Term;
 import org.apache.lucene.queries.payloads.AveragePayloadFunction;
 import org.apache.lucene.queries.payloads.PayloadScoreQuery;
 import org.apache.lucene.search.*;
+import org.apache.lucene.search.similarities.Similarity;
 import org.apache.lucene.search.spans.SpanTermQuery;
 import org.apache.solr.util.SolrPluginUtils;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
  * Created by simon.hughes on 11/25/14.
+ *
+ * The queries are built canonically, with the terms in field then term order and the boosts rounded to a fixed
+ * precision, so logically identical requests build equal queries and hit the query result cache, whatever order
+ * the terms were selected in and however their weights were summed.
  */
 public class MLTQuery {
 
+    // the mantissa bits of a float dropped (rounded) from the boosts, leaving 15 bits, about 4 to 5 significant digits
+    private static final int BOOST_ROUNDING_BITS = 8;
+
     private final List<MLTTerm> mltTerms;
     private final String mm;
+    private boolean scoreByWeight = false;
     private BooleanQuery mustMatchQuery = null;
     private BooleanQuery mustNOTMatchQuery = null;
 
@@ -23,6 +34,19 @@ public class MLTQuery {
         this.mltTerms = mltTerms == null? new ArrayList<MLTTerm>() : mltTerms;
         this.mm = mm;
     }
+
+    /**
+     * Shallow copy with its own term list, so a cached MLTQuery can be handed out without callers re-ordering
+     * (sorting) the cached list. The MLTTerms themselves are not modified once built.
+     */
+    public MLTQuery copy(){
+        MLTQuery copy = new MLTQuery(new ArrayList<MLTTerm>(this.mltTerms), this.mm);
+        copy.scoreByWeight = this.scoreByWeight;
+        copy.mustMatchQuery = this.mustMatchQuery;
+        copy.mustNOTMatchQuery = this.mustNOTMatchQuery;
+        return copy;
+    }
+
     public BooleanQuery getMustMatchQuery(){
         return this.mustMatchQuery;
     }
@@ -43,24 +67,135 @@ public class MLTQuery {
         return mltTerms;
     }
 
+    public boolean isScoreByWeight(){
+        return scoreByWeight;
+    }
+
+    /**
+     * @param scoreByWeight score each matching term by its final score (weight) alone, rather than by the
+     *                      similarity, so scores don't depend on the index statistics and norms, as on the shards
+     *                      of a distributed query. The sum is not scaled by the coord factor
+     */
+    public void setScoreByWeight(boolean scoreByWeight){
+        this.scoreByWeight = scoreByWeight;
+    }
+
     public Query getOrQuery(){
-        BooleanQuery.Builder qryBuilder = new BooleanQuery.Builder();
-        for(MLTTerm mltTerm: this.mltTerms){
+        BooleanQuery.Builder qryBuilder = newOrQueryBuilder();
+        for(MLTTerm mltTerm: canonicalOrder(this.mltTerms)){
             qryBuilder.add(toBoostedQuery(mltTerm), BooleanClause.Occur.SHOULD);
         }
         SolrPluginUtils.setMinShouldMatch(qryBuilder, mm);
         return qryBuilder.build();
     }
 
+    /**
+     * @return a disjunction of just the top scoring terms, without the mm, used to cheaply retrieve the candidates
+     * to re-rank with the full query
+     */
+    public Query getOrQuery(int maxTerms){
+        List<MLTTerm> topTerms = canonicalOrder(this.mltTerms);
+        // stable, so ties are broken by term
+        Collections.sort(topTerms, MLTTerm.FLD_BOOST_X_SCORE_ORDER);
+        BooleanQuery.Builder qryBuilder = newOrQueryBuilder();
+        for(MLTTerm mltTerm: canonicalOrder(topTerms.subList(0, Math.min(maxTerms, topTerms.size())))){
+            qryBuilder.add(toBoostedQuery(mltTerm), BooleanClause.Occur.SHOULD);
+        }
+        return qryBuilder.build();
+    }
+
+    private BooleanQuery.Builder newOrQueryBuilder(){
+        BooleanQuery.Builder qryBuilder = new BooleanQuery.Builder();
+        qryBuilder.setDisableCoord(scoreByWeight);
+        return qryBuilder;
+    }
+
+    /**
+     * @return true if the query can be run as a {@link WeightedTermsQuery}, i.e. it has no payload terms, the
+     * similarity of each term's field can be bounded so the query can prune, and the mm doesn't require more than
+     * one term to match
+     */
+    public boolean supportsTopK(Similarity similarity){
+        for(MLTTerm mltTerm: this.mltTerms){
+            if(mltTerm.hasPayload()
+                    || !(scoreByWeight || WeightedTermsQuery.supportsSimilarity(similarity, mltTerm.getFieldName()))){
+                return false;
+            }
+        }
+        if(this.mltTerms.isEmpty()){
+            return false;
+        }
+        // read the mm back from the disjunction, so it is calculated exactly as for the full query
+        return mm == null || ((BooleanQuery) getOrQuery()).getMinimumNumberShouldMatch() <= 1;
+    }
+
+    /**
+     * Builds the query as a disjunction that only finds the top k documents, scoring the documents exactly as the
+     * {@link #getOrQuery()}
+     *
+     * @param topK         the number of top documents to find
+     * @param filters      the filter queries the documents must match
+     * @param excludedDocs the sorted (internal) ids of documents that must not match, e.g. the seed documents
+     */
+    public WeightedTermsQuery getTopKQuery(int topK, List<Query> filters, int[] excludedDocs){
+        return getTopKQuery(null, topK, filters, excludedDocs);
+    }
+
+    /**
+     * Builds the query as a disjunction that only finds the top k documents, which must match the required query,
+     * scoring the documents exactly as a BooleanQuery with the required query as a MUST clause and the
+     * {@link #getOrQuery()} as a SHOULD clause
+     *
+     * @param required     the query the documents must match, e.g. the seed query of an unsupervised feedback query
+     * @param topK         the number of top documents to find
+     * @param filters      the filter queries the documents must match
+     * @param excludedDocs the sorted (internal) ids of documents that must not match
+     */
+    public WeightedTermsQuery getTopKQuery(Query required, int topK, List<Query> filters, int[] excludedDocs){
+        List<MLTTerm> sortedTerms = canonicalOrder(this.mltTerms);
+        Term[] terms = new Term[sortedTerms.size()];
+        float[] boosts = new float[terms.length];
+        for(int i = 0; i < terms.length; i++){
+            MLTTerm mltTerm = sortedTerms.get(i);
+            terms[i] = mltTerm.getTerm();
+            boosts[i] = roundBoost(mltTerm.getFinalScore());
+        }
+        return new WeightedTermsQuery(required, terms, boosts, scoreByWeight, topK, filters, excludedDocs);
+    }
+
     private Query toBoostedQuery(MLTTerm mltTerm){
         Query tq = toTermQuery(mltTerm);
-        return new BoostQuery(tq, mltTerm.getFinalScore());
+        return new BoostQuery(tq, roundBoost(mltTerm.getFinalScore()));
+    }
+
+    private static List<MLTTerm> canonicalOrder(List<MLTTerm> mltTerms){
+        List<MLTTerm> sorted = new ArrayList<MLTTerm>(mltTerms);
+        Collections.sort(sorted, MLTTerm.TERM_ORDER);
+        return sorted;
+    }
+
+    /**
+     * Rounds the boost to the nearest float with BOOST_ROUNDING_BITS fewer bits of precision
+     */
+    static float roundBoost(float boost){
+        if(Float.isNaN(boost) || Float.isInfinite(boost)){
+            return boost;
+        }
+        int bits = Float.floatToIntBits(boost);
+        int half = 1 << (BOOST_ROUNDING_BITS - 1);
+        int rounded = (bits + half) & ~((1 << BOOST_ROUNDING_BITS) - 1);
+        float result = Float.intBitsToFloat(rounded);
+        // rounding the largest finite floats up would overflow into infinity
+        return Float.isInfinite(result) ? boost : result;
     }
 
     private Query toTermQuery(MLTTerm mltTerm) {
         if(mltTerm.hasPayload()) {
             return new PayloadScoreQuery(new SpanTermQuery(mltTerm.getTerm()), new AveragePayloadFunction(), false);
         }
+        else if(scoreByWeight){
+            return new ConstantScoreQuery(new TermQuery(mltTerm.getTerm()));
+        }
         else{
             return new TermQuery(mltTerm.getTerm());
         }
@@ -0,0 +1,99 @@
+package org.dice.solrenhancements.morelikethis;
+
+import org.apache.solr.common.util.NamedList;
+
+import java.util.Arrays;
+
+/**
+ * Aggregates the {@link MLTTimings} of a handler's requests into rolling histograms, over a window of the most
+ * recent requests, for the handler statistics.
+ */
+final class MLTStatistics {
+
+    private static final int WINDOW_SIZE = 1024;
+
+    private final RollingWindow[] phases = new RollingWindow[MLTTimings.Phase.values().length];
+    private final RollingWindow[] counters = new RollingWindow[MLTTimings.Counter.values().length];
+
+    MLTStatistics(){
+        for(int i = 0; i < phases.length; i++){
+            phases[i] = new RollingWindow(WINDOW_SIZE);
+        }
+        for(int i = 0; i < counters.length; i++){
+            counters[i] = new RollingWindow(WINDOW_SIZE);
+        }
+    }
+
+    void record(MLTTimings timings){
+        for(MLTTimings.Phase phase: MLTTimings.Phase.values()){
+            phases[phase.ordinal()].add(timings.getNanos(phase));
+        }
+        for(MLTTimings.Counter counter: MLTTimings.Counter.values()){
+            counters[counter.ordinal()].add(timings.getCount(counter));
+        }
+    }
+
+    /**
+     * @return a histogram of each phase, in milliseconds, and of each counter
+     */
+    NamedList<Object> toNamedList(){
+        NamedList<Object> stats = new NamedList<Object>();
+        for(MLTTimings.Phase phase: MLTTimings.Phase.values()){
+            stats.add(MLTTimings.getName(phase) + "Ms", phases[phase.ordinal()].getHistogram(1000000.0d));
+        }
+        for(MLTTimings.Counter counter: MLTTimings.Counter.values()){
+            stats.add(MLTTimings.getName(counter), counters[counter.ordinal()].getHistogram(1.0d));
+        }
+        return stats;
+    }
+
+    /**
+     * Holds the last n values in a ring buffer
+     */
+    private static class RollingWindow {
+
+        private final long[] values;
+        private int size = 0;
+        private int next = 0;
+
+        RollingWindow(int n){
+            this.values = new long[n];
+        }
+
+        synchronized void add(long value){
+            values[next] = value;
+            next = (next + 1) % values.length;
+            size = Math.min(size + 1, values.length);
+        }
+
+        NamedList<Object> getHistogram(double scale){
+            long[] sorted;
+            synchronized (this){
+                sorted = Arrays.copyOf(values, size);
+            }
+            Arrays.sort(sorted);
+
+            NamedList<Object> histogram = new NamedList<Object>();
+            histogram.add("count", sorted.length);
+            if(sorted.length == 0){
+                return histogram;
+            }
+            double sum = 0.0d;
+            for(long value: sorted){
+                sum += value;
+            }
+            histogram.add("mean", sum / sorted.length / scale);
+            histogram.add("median", percentile(sorted, 0.50d) / scale);
+            histogram.add("75thPc", percentile(sorted, 0.75d) / scale);
+            histogram.add("95thPc", percentile(sorted, 0.95d) / scale);
+            histogram.add("99thPc", percentile(sorted, 0.99d) / scale);
+            histogram.add("max", sorted[sorted.length - 1] / scale);
+            return histogram;
+        }
+
+        private static double percentile(long[] sorted, double p){
+            int index = (int) Math.ceil(p * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+        }
+    }
+}
@@ -2,6 +2,7 @@ package org.dice.solrenhancements.morelikethis;
 
 import com.google.common.base.Strings;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.util.BytesRef;
 
 import java.text.DecimalFormat;
 import java.util.Comparator;
@@ -26,6 +27,8 @@ public class MLTTerm implements Comparable<MLTTerm> {
     private final boolean useBoost;
 
     private float vectorLength = 1.0f;
+    // the indexed term, when the word isn't a lossless rendering of it (e.g. not valid UTF-8)
+    private BytesRef termBytes;
 
     // non-payload
     public MLTTerm(String word, String fieldName, float tf, float idf, int docFreq, boolean logTf, float fieldBoost, boolean useBoost){
@@ -84,19 +87,26 @@ public class MLTTerm implements Comparable<MLTTerm> {
     }
 
     public float getTermWeight(){
-        if(this.hasPayload()){
+        return getTermWeight(this.tf, this.idf, this.payload, this.hasPayload, this.logTf, this.useBoost);
+    }
+
+    /**
+     * Computes the (un-normalized) term weight, so terms can be ranked without creating an MLTTerm
+     */
+    static float getTermWeight(float tf, float idf, float payload, boolean hasPayload, boolean logTf, boolean useBoost){
+        if(hasPayload){
             // for the payload, typically we want to include the TF but not the IDF. This is what is passed to the payload value
-            return this.getPayload();
+            return payload;
         }
         else {
-            if(false == this.useBoost){
+            if(false == useBoost){
                 return 1.0f;
             }
-            float tfVal = this.tf;
-            if (this.logTf) {
-                tfVal = getLogTf();
+            float tfVal = tf;
+            if (logTf) {
+                tfVal = getLogTf(tf);
             }
-            return tfVal * this.idf;
+            return tfVal * idf;
         }
     }
 
@@ -105,7 +115,11 @@ public class MLTTerm implements Comparable<MLTTerm> {
     }
 
     private float getLogTf() {
-        return (float) Math.log(this.tf + 1.0d);
+        return getLogTf(this.tf);
+    }
+
+    private static float getLogTf(float tf) {
+        return (float) Math.log(tf + 1.0d);
     }
 
     public float getFinalScore(){
@@ -146,12 +160,25 @@ public class MLTTerm implements Comparable<MLTTerm> {
         }
     };
 
+    /**
+     * Orders terms by field, then term bytes, the canonical order used to build MLT queries
+     */
+    public static Comparator<MLTTerm> TERM_ORDER = new Comparator<MLTTerm>() {
+        @Override
+        public int compare(MLTTerm t1, MLTTerm t2) {
+            return t1.getTerm().compareTo(t2.getTerm());
+        }
+    };
+
     public int compareTo(MLTTerm o) {
         return ((Float)o.getFinalScore()).compareTo(this.getFinalScore());
     }
 
     // used in debug info (mlt.interestingTerms = details)
     public Term getTerm() {
+        if(termBytes != null){
+            return new Term(this.getFieldName(), termBytes);
+        }
         return new Term(this.getFieldName(), this.getWord());
     }
 
@@ -162,4 +189,8 @@ public class MLTTerm implements Comparable<MLTTerm> {
     public void setVectorLength(float vectorLength) {
         this.vectorLength = vectorLength;
     }
+
+    public void setTermBytes(BytesRef termBytes) {
+        this.termBytes = termBytes;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,111 @@
+package org.dice.solrenhancements.morelikethis;
+
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Key for the MLT interesting terms cache. Identifies the seed documents by their unique keys, along with every
+ * MLT parameter that affects which terms are selected and how they are weighted.
+ *
+ * The parameters themselves are kept so that the terms can be re-computed against a new searcher when the cache
+ * is auto-warmed (see MLTTermsCacheRegenerator).
+ */
+public class MLTTermsCacheKey {
+
+    // the parameters that change the interesting terms extracted for a set of seeds
+    static final String[] TERM_SELECTION_PARAMS = new String[]{
+            MoreLikeThisParams.SIMILARITY_FIELDS,
+            MoreLikeThisParams.QF,
+            MoreLikeThisParams.MIN_TERM_FREQ,
+            MoreLikeThisParams.MIN_DOC_FREQ,
+            MoreLikeThisParams.MAX_DOC_FREQ,
+            MoreLikeThisParams.MIN_WORD_LEN,
+            MoreLikeThisParams.MAX_WORD_LEN,
+            MoreLikeThisParams.MAX_QUERY_TERMS_PER_FIELD,
+            MoreLikeThisParams.MAX_NUM_TOKENS_PARSED_PER_FIELD,
+            MoreLikeThisParams.BOOST,
+            MoreLikeThisParams.MM,
+            MoreLikeThisParams.IS_LOG_TF,
+            MoreLikeThisParams.NORMALIZE_FIELD_BOOSTS,
+            MoreLikeThisParams.FL_MUST_MATCH,
+            MoreLikeThisParams.FL_MUST_NOT_MATCH,
+            MoreLikeThisParams.PAYLOAD_FIELDS
+    };
+
+    private final List<String> seedKeys;
+    private final SolrParams params;
+    private final String paramsSignature;
+    private final int hash;
+
+    /**
+     * @param seedKeys the (readable) unique key values of the seed documents, in the order they were matched
+     * @param params   the request parameters, only the term selection parameters are retained
+     */
+    public MLTTermsCacheKey(List<String> seedKeys, SolrParams params){
+        this.seedKeys = seedKeys;
+
+        ModifiableSolrParams termParams = new ModifiableSolrParams();
+        for(String paramName: TERM_SELECTION_PARAMS){
+            String[] values = params.getParams(paramName);
+            if(values != null){
+                termParams.set(paramName, values);
+            }
+        }
+        this.params = termParams;
+        this.paramsSignature = getParamsSignature(params);
+        this.hash = 31 * seedKeys.hashCode() + paramsSignature.hashCode();
+    }
+
+    /**
+     * @return a string identifying the values of the term selection parameters, equal for requests that select
+     * the same terms
+     */
+    static String getParamsSignature(SolrParams params){
+        StringBuilder signature = new StringBuilder();
+        for(String paramName: TERM_SELECTION_PARAMS){
+            String[] values = params.getParams(paramName);
+            if(values != null){
+                signature.append(paramName).append('=').append(Arrays.toString(values)).append('&');
+            }
+        }
+        return signature.toString();
+    }
+
+    public List<String> getSeedKeys() {
+        return seedKeys;
+    }
+
+    /**
+     * @return the term selection parameters the terms were computed with
+     */
+    public SolrParams getParams() {
+        return params;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        MLTTermsCacheKey other = (MLTTermsCacheKey) o;
+        return hash == other.hash
+                && seedKeys.equals(other.seedKeys)
+                && paramsSignature.equals(other.paramsSignature);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return seedKeys + " " + paramsSignature;
+    }
+}
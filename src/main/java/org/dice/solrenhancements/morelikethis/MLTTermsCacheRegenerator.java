@@ -0,0 +1,51 @@
+package org.dice.solrenhancements.morelikethis;
+
+import org.apache.lucene.index.Term;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.CacheRegenerator;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Auto-warms the MLT interesting terms cache by re-extracting the terms of each old entry's seed documents against
+ * the new searcher, so the doc freqs (and so term choice) reflect the new index. Entries whose seed documents have
+ * all been deleted are dropped. Configure in solrconfig.xml as:
+ *
+ * <pre>
+ * &lt;cache name="mltTermsCache" class="solr.LRUCache" size="512" initialSize="512" autowarmCount="128"
+ *        regenerator="org.dice.solrenhancements.morelikethis.MLTTermsCacheRegenerator"/&gt;
+ * </pre>
+ */
+public class MLTTermsCacheRegenerator implements CacheRegenerator {
+
+    @Override
+    @SuppressWarnings("rawtypes") // the regenerator interface takes raw caches
+    public boolean regenerateItem(SolrIndexSearcher newSearcher, SolrCache newCache, SolrCache oldCache,
+                                  Object oldKey, Object oldVal) throws IOException {
+        @SuppressWarnings("unchecked")
+        SolrCache<MLTTermsCacheKey, MLTQuery> cache = (SolrCache<MLTTermsCacheKey, MLTQuery>) newCache;
+
+        MLTTermsCacheKey key = (MLTTermsCacheKey) oldKey;
+        SchemaField uniqueKeyField = newSearcher.getSchema().getUniqueKeyField();
+
+        List<Integer> ids = new ArrayList<Integer>(key.getSeedKeys().size());
+        for(String seedKey: key.getSeedKeys()){
+            String indexedKey = uniqueKeyField.getType().readableToIndexed(seedKey);
+            int docId = newSearcher.getFirstMatch(new Term(uniqueKeyField.getName(), indexedKey));
+            if(docId >= 0){
+                ids.add(docId);
+            }
+        }
+        if(ids.size() > 0) {
+            // no boost function is needed to extract the terms, so no query parser is required
+            MoreLikeThisHelper helper = new MoreLikeThisHelper(key.getParams(), newSearcher, uniqueKeyField, null);
+            cache.put(key, helper.getMoreLikeThis().like(ids));
+        }
+        // keep warming the remaining entries
+        return true;
+    }
+}
@@ -0,0 +1,84 @@
+package org.dice.solrenhancements.morelikethis;
+
+import org.apache.solr.common.util.NamedList;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The time spent in each phase of a single MLT (or unsupervised feedback) request, and counts of the work done.
+ * Seed terms may be extracted in parallel, so the phases are thread safe, and a parallel phase records the total
+ * time across all its threads rather than the elapsed time.
+ */
+final class MLTTimings {
+
+    enum Phase {
+        // finding the seed documents
+        SEEDS,
+        // reading the seed terms from term vectors, doc values and stored fields
+        TERM_READ,
+        // re-analyzing stored fields without term vectors, and content streams
+        ANALYSIS,
+        // looking up the doc freqs of candidate terms
+        DOC_FREQ,
+        // scoring and selecting the interesting terms, excluding the doc freq lookups
+        QUEUE,
+        // executing the final query
+        QUERY
+    }
+
+    enum Counter {
+        TERMS_CONSIDERED,
+        DOC_FREQ_LOOKUPS,
+        STORED_DOCS_LOADED,
+        CLAUSES_EMITTED
+    }
+
+    private final AtomicLongArray nanos = new AtomicLongArray(Phase.values().length);
+    private final AtomicLongArray counts = new AtomicLongArray(Counter.values().length);
+
+    /**
+     * Adds the time since startNanos (from System.nanoTime()) to the phase
+     *
+     * @return the time added, in nanoseconds
+     */
+    long stop(Phase phase, long startNanos){
+        long elapsed = System.nanoTime() - startNanos;
+        nanos.addAndGet(phase.ordinal(), elapsed);
+        return elapsed;
+    }
+
+    void add(Phase phase, long elapsedNanos){
+        nanos.addAndGet(phase.ordinal(), elapsedNanos);
+    }
+
+    void increment(Counter counter, long delta){
+        counts.addAndGet(counter.ordinal(), delta);
+    }
+
+    long getNanos(Phase phase){
+        return nanos.get(phase.ordinal());
+    }
+
+    long getCount(Counter counter){
+        return counts.get(counter.ordinal());
+    }
+
+    static String getName(Enum<?> phaseOrCounter){
+        return phaseOrCounter.name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @return the phase times in milliseconds, followed by the counters
+     */
+    NamedList<Object> toNamedList(){
+        NamedList<Object> timing = new NamedList<Object>();
+        for(Phase phase: Phase.values()){
+            timing.add(getName(phase), getNanos(phase) / 1000000.0d);
+        }
+        for(Counter counter: Counter.values()){
+            timing.add(getName(counter), getCount(counter));
+        }
+        return timing;
+    }
+}
@@ -22,23 +22,30 @@ package org.dice.solrenhancements.morelikethis;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.payloads.PayloadHelper;
-import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
 import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.*;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.similarities.ClassicSimilarity;
 import org.apache.lucene.search.similarities.TFIDFSimilarity;
 import org.apache.lucene.util.*;
-import org.apache.lucene.util.PriorityQueue;
+import org.apache.solr.search.DocIterator;
+import org.apache.solr.search.DocSet;
+import org.dice.solrenhancements.DocValuesTermSource;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
+import java.io.UncheckedIOException;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 
 /**
@@ -202,6 +209,13 @@ public final class MoreLikeThis {
      */
     public static final boolean DEFAULT_IS_LOG_TF = false;
 
+    /**
+     * Number of seed documents whose terms are extracted by each task, when extracting in parallel
+     *
+     * @see #setParallel
+     */
+    public static final int DEFAULT_PARALLEL_CHUNK_SIZE = 64;
+
     /**
      * Default field names. Null is used to specify that the field names should be looked
      * up at runtime from the provided reader.
@@ -238,6 +252,11 @@ public final class MoreLikeThis {
      */
     private Set<?> stopWords = DEFAULT_STOP_WORDS;
 
+    /**
+     * The stop words as utf8 bytes, so terms can be checked without decoding them. Null to allow stop words.
+     */
+    private Set<BytesRef> stopWordBytes = null;
+
     /**
      * Return a Query with no more than this many terms.
      *
@@ -301,6 +320,10 @@ public final class MoreLikeThis {
     private String[] streamHeadfieldNames = new String[0];
 
     private HashSet<String> payloadFields = new HashSet<String>();
+    private Set<String> docValuesFields = Collections.emptySet();
+    private Set<String> countedFields = Collections.emptySet();
+
+    private MLTTimings timings = new MLTTimings();
 
     private Map<String,Float> boostFields;
     private Map<String,Float> streamBoostFields;
@@ -336,6 +359,28 @@ public final class MoreLikeThis {
      */
     private final IndexReader ir;
 
+    /**
+     * Used to look up the document frequencies of the candidate terms
+     */
+    private TermStatsResolver termStatsResolver;
+    // when set, replaces the reader's numDocs, as for the global stats of a distributed request
+    private int numDocs = -1;
+
+    /**
+     * The index analyzer of each field, used to analyze fields sharing an analyzer together. Fields not in the map
+     * use the analyzer
+     */
+    private Map<String, Analyzer> fieldAnalyzers = Collections.emptyMap();
+
+    /**
+     * Pool used to extract the terms of large seed document sets in parallel, null to extract them serially
+     */
+    private ForkJoinPool forkJoinPool = null;
+
+    /**
+     * Number of seed documents each parallel task extracts the terms of
+     */
+    private int parallelChunkSize = DEFAULT_PARALLEL_CHUNK_SIZE;
 
 
     /**
@@ -393,10 +438,55 @@ public final class MoreLikeThis {
     public MoreLikeThis(IndexReader ir, TFIDFSimilarity sim) {
         this.ir = ir;
         this.similarity = sim;
+        this.termStatsResolver = new TermStatsResolver(ir);
 
     }
 
 
+    /**
+     * Sets the resolver used to look up the doc freqs of candidate terms, so that a resolver (and its cache)
+     * can be shared between several MoreLikeThis instances on the same reader, as for a batch request.
+     */
+    void setTermStatsResolver(TermStatsResolver termStatsResolver) {
+        this.termStatsResolver = termStatsResolver;
+    }
+
+    /**
+     * Sets the collection statistics used to select and weight the interesting terms, in place of the reader's
+     *
+     * @param termStatsResolver resolves the (global) doc freqs
+     * @param numDocs           the (global) number of documents
+     */
+    void setTermStats(TermStatsResolver termStatsResolver, int numDocs) {
+        this.termStatsResolver = termStatsResolver;
+        this.numDocs = numDocs;
+    }
+
+    /**
+     * Sets where the time spent in each phase, and the work done, is recorded
+     */
+    void setTimings(MLTTimings timings) {
+        this.timings = timings;
+    }
+
+    MLTTimings getTimings() {
+        return timings;
+    }
+
+    /**
+     * Extracts the terms of the seed documents in parallel on the pool, in chunks of parallelChunkSize documents.
+     * Seed document sets no larger than a single chunk are still processed on the calling thread. The tasks block
+     * on stored field and term vector reads, so the pool should be a bounded one owned by the caller, not the JVM
+     * wide common pool.
+     *
+     * @param forkJoinPool      the pool to use, or null to extract terms serially
+     * @param parallelChunkSize the number of seed documents processed by each task
+     */
+    public void setParallel(ForkJoinPool forkJoinPool, int parallelChunkSize) {
+        this.forkJoinPool = forkJoinPool;
+        this.parallelChunkSize = Math.max(1, parallelChunkSize);
+    }
+
     public TFIDFSimilarity getSimilarity() {
         return similarity;
     }
@@ -425,6 +515,16 @@ public final class MoreLikeThis {
         this.analyzer = analyzer;
     }
 
+    /**
+     * Sets the analyzer of each field, used when parsing text (stream.body and stream.head) for several fields.
+     * The text is analyzed once for each distinct analyzer, rather than once per field.
+     *
+     * @param fieldAnalyzers the index analyzer of each field, fields sharing an analyzer must map to the same instance
+     */
+    public void setFieldAnalyzers(Map<String, Analyzer> fieldAnalyzers) {
+        this.fieldAnalyzers = fieldAnalyzers == null ? Collections.<String, Analyzer>emptyMap() : fieldAnalyzers;
+    }
+
     /**
      * Returns the frequency below which terms will be ignored in the source doc. The default
      * frequency is the {@link #DEFAULT_MIN_TERM_FREQ}.
@@ -735,11 +835,23 @@ public final class MoreLikeThis {
      * Even if your Analyzer allows stopwords, you might want to tell the MoreLikeThis code to ignore them, as
      * for the purposes of document similarity it seems reasonable to assume that "a stop word is never interesting".
      *
+     * Stop words are matched exactly, as case sensitive strings.
+     *
      * @param stopWords set of stopwords, if null it means to allow stop words
      * @see #getStopWords
      */
     public void setStopWords(Set<?> stopWords) {
         this.stopWords = stopWords;
+        if (stopWords == null) {
+            this.stopWordBytes = null;
+            return;
+        }
+        Set<BytesRef> bytes = new HashSet<BytesRef>();
+        for (Object stopWord : stopWords) {
+            // a CharArraySet holds char[]s
+            bytes.add(new BytesRef(stopWord instanceof char[] ? new String((char[]) stopWord) : stopWord.toString()));
+        }
+        this.stopWordBytes = bytes;
     }
 
     /**
@@ -852,6 +964,124 @@ public final class MoreLikeThis {
         }
     }
 
+    /**
+     * Sets the string (keyword) fields whose terms are read from their doc values when they have no term vectors,
+     * instead of loading and re-analyzing the stored field. See {@link DocValuesTermSource}
+     */
+    public void setDocValuesFields(Set<String> docValuesFields) {
+        this.docValuesFields = docValuesFields == null ? Collections.<String>emptySet() : docValuesFields;
+    }
+
+    /**
+     * Sets the fields whose seed terms are counted over the whole seed doc set by {@link #like(DocSet)}, in one pass
+     * of their doc values (uninverted for indexed fields without doc values), the way faceting counts a doc set.
+     * See {@link DocValuesTermSource#canCount}
+     */
+    public void setCountedFields(Set<String> countedFields) {
+        this.countedFields = countedFields == null ? Collections.<String>emptySet() : countedFields;
+    }
+
+    /**
+     * Return a query built from a set of seed documents. The terms of the counted fields (see
+     * {@link #setCountedFields(Set)}) are counted over the doc set rather than read document by document, so the
+     * cost scales with the distinct terms of the seeds rather than their total length. Doc values hold each
+     * distinct term once per document, so a counted term's weight is the number of seeds containing it, not its
+     * summed term frequency. Payload fields are always read per document.
+     *
+     * @param seeds the (top level) doc ids of the seed documents
+     */
+    public MLTQuery like(DocSet seeds) throws IOException {
+        if(getMatchFieldNames().length > 0 || getDifferentFieldNames().length > 0){
+            // the must (not) match terms are only extracted per document
+            return like(toList(seeds));
+        }
+
+        List<String> perDocFields = new ArrayList<String>();
+        List<String> fieldsToCount = new ArrayList<String>();
+        for(String fieldName: getFieldNames()){
+            if(countedFields.contains(fieldName) && !isPayloadField(fieldName)){
+                fieldsToCount.add(fieldName);
+            }
+            else{
+                perDocFields.add(fieldName);
+            }
+        }
+
+        Map<String, TermWeights> fieldTermFreq = new HashMap<String, TermWeights>();
+        if(perDocFields.size() > 0){
+            String[] fields = perDocFields.toArray(new String[perDocFields.size()]);
+            DocIterator iterator = seeds.iterator();
+            while(iterator.hasNext()){
+                retrieveTerms(iterator.nextDoc(), fields, fieldTermFreq);
+            }
+        }
+        for(String fieldName: fieldsToCount){
+            long start = System.nanoTime();
+            TermWeights termWeights = new TermWeights();
+            countTerms(seeds, fieldName, termWeights);
+            fieldTermFreq.put(fieldName, termWeights);
+            timings.stop(MLTTimings.Phase.TERM_READ, start);
+        }
+        return buildQueryFromFieldTermFrequencies(fieldTermFreq, false);
+    }
+
+    private static List<Integer> toList(DocSet docs){
+        List<Integer> ids = new ArrayList<Integer>(docs.size());
+        DocIterator iterator = docs.iterator();
+        while(iterator.hasNext()){
+            ids.add(iterator.nextDoc());
+        }
+        return ids;
+    }
+
+    /**
+     * Counts the seeds containing each term of the field. The ords of each segment's seeds are gathered and sorted,
+     * then each distinct ord is looked up once, so the work is proportional to the terms the seeds touch rather than
+     * to the field's vocabulary
+     */
+    private void countTerms(DocSet seeds, String fieldName, TermWeights termWeights) throws IOException {
+        List<LeafReaderContext> leaves = ir.leaves();
+        LeafReaderContext leaf = null;
+        SortedSetDocValues docValues = null;
+        long[] ords = new long[64];
+        int numOrds = 0;
+
+        DocIterator iterator = seeds.iterator();
+        while(iterator.hasNext()){
+            int doc = iterator.nextDoc();
+            if(leaf == null || doc >= leaf.docBase + leaf.reader().maxDoc()){
+                addCounts(docValues, ords, numOrds, termWeights);
+                numOrds = 0;
+                leaf = leaves.get(ReaderUtil.subIndex(doc, leaves));
+                docValues = DocValues.getSortedSet(leaf.reader(), fieldName);
+            }
+            docValues.setDocument(doc - leaf.docBase);
+            long ord;
+            while((ord = docValues.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS){
+                ords = ArrayUtil.grow(ords, numOrds + 1);
+                ords[numOrds++] = ord;
+            }
+        }
+        addCounts(docValues, ords, numOrds, termWeights);
+    }
+
+    private void addCounts(SortedSetDocValues docValues, long[] ords, int numOrds, TermWeights termWeights) throws IOException {
+        if(numOrds == 0){
+            return;
+        }
+        Arrays.sort(ords, 0, numOrds);
+        int runStart = 0;
+        for(int i = 1; i <= numOrds; i++){
+            if(i == numOrds || ords[i] != ords[runStart]){
+                BytesRef term = docValues.lookupOrd(ords[runStart]);
+                if(!isNoiseWord(term)){
+                    termWeights.add(term, i - runStart);
+                }
+                runStart = i;
+            }
+        }
+    }
+
     /**
      * Return a query that will return docs queryFromDocuments the passed lucene document ID.
      *
@@ -860,26 +1090,116 @@ public final class MoreLikeThis {
      */
     public MLTQuery like(List<Integer> docNums) throws IOException {
 
-        Map<String,Map<String, Flt>> fieldTermFreq = new HashMap<String, Map<String, Flt>>();
-        Map<String,Map<String, Flt>> mustMatchTerms = new HashMap<String, Map<String, Flt>>();
-        Map<String,Map<String, Flt>> mustNOTMatchTerms = new HashMap<String, Map<String, Flt>>();
-        // don't go over duplicate documents
-        for(Integer docNum: docNums){
-            retrieveTerms(docNum, getFieldNames(), fieldTermFreq);
-            retrieveTerms(docNum, getMatchFieldNames(), mustMatchTerms);
-            retrieveTerms(docNum, getDifferentFieldNames(), mustNOTMatchTerms);
-        }
+        SeedTerms seedTerms = retrieveSeedTerms(docNums);
 
-        MLTQuery mltResult = buildQueryFromFieldTermFrequencies(fieldTermFreq, false);
-        if(mustMatchTerms.size() > 0){
-            mltResult.setMustMatchQuery(buildMustMatchQuery(mustMatchTerms, true));
+        MLTQuery mltResult = buildQueryFromFieldTermFrequencies(seedTerms.fieldTermFreq, false);
+        if(seedTerms.mustMatchTerms.size() > 0){
+            mltResult.setMustMatchQuery(buildMustMatchQuery(seedTerms.mustMatchTerms, true));
         }
-        if(mustNOTMatchTerms.size() > 0){
-            mltResult.setMustNOTMatchQuery(buildMustMatchQuery(mustNOTMatchTerms, false));
+        if(seedTerms.mustNOTMatchTerms.size() > 0){
+            mltResult.setMustNOTMatchQuery(buildMustMatchQuery(seedTerms.mustNOTMatchTerms, false));
         }
         return mltResult;
     }
 
+    /**
+     * Extracts the term weights of the similarity fields of the seed documents, without selecting the interesting
+     * terms, so they can be merged with those of other shards and passed to {@link #like(Map)}
+     */
+    public Map<String, TermWeights> retrieveTermWeights(List<Integer> docNums) throws IOException {
+        return retrieveSeedTerms(docNums).fieldTermFreq;
+    }
+
+    /**
+     * Return a query built from the term weights of a set of seed documents, as found by
+     * {@link #retrieveTermWeights(List)}
+     */
+    public MLTQuery like(Map<String, TermWeights> fieldTermFreq) throws IOException {
+        return buildQueryFromFieldTermFrequencies(fieldTermFreq, false);
+    }
+
+    private SeedTerms retrieveSeedTerms(List<Integer> docNums) throws IOException {
+        if(forkJoinPool != null && docNums.size() > parallelChunkSize){
+            try {
+                return forkJoinPool.invoke(new RetrieveSeedTermsTask(docNums, 0, docNums.size()));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+        return retrieveSeedTerms(docNums, 0, docNums.size());
+    }
+
+    /**
+     * The term weights extracted from a set of seed documents, for each of the similarity, must match and must
+     * NOT match field lists
+     */
+    private static class SeedTerms {
+        final Map<String, TermWeights> fieldTermFreq = new HashMap<String, TermWeights>();
+        final Map<String, TermWeights> mustMatchTerms = new HashMap<String, TermWeights>();
+        final Map<String, TermWeights> mustNOTMatchTerms = new HashMap<String, TermWeights>();
+
+        void addAll(SeedTerms other){
+            addAll(fieldTermFreq, other.fieldTermFreq);
+            addAll(mustMatchTerms, other.mustMatchTerms);
+            addAll(mustNOTMatchTerms, other.mustNOTMatchTerms);
+        }
+
+        private static void addAll(Map<String, TermWeights> into, Map<String, TermWeights> from){
+            for(Map.Entry<String, TermWeights> entry: from.entrySet()){
+                TermWeights existing = into.get(entry.getKey());
+                if(existing == null){
+                    into.put(entry.getKey(), entry.getValue());
+                }
+                else{
+                    existing.addAll(entry.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Extracts the seed terms of a range of the seed documents, splitting the range in two until it is no larger
+     * than the parallel chunk size
+     */
+    private class RetrieveSeedTermsTask extends RecursiveTask<SeedTerms> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Integer> docNums;
+        private final int from;
+        private final int to;
+
+        RetrieveSeedTermsTask(List<Integer> docNums, int from, int to) {
+            this.docNums = docNums;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected SeedTerms compute() {
+            try {
+                if (to - from <= parallelChunkSize) {
+                    return retrieveSeedTerms(docNums, from, to);
+                }
+                int mid = (from + to) >>> 1;
+                RetrieveSeedTermsTask right = new RetrieveSeedTermsTask(docNums, mid, to);
+                right.fork();
+                SeedTerms seedTerms = new RetrieveSeedTermsTask(docNums, from, mid).compute();
+                seedTerms.addAll(right.join());
+                return seedTerms;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private SeedTerms retrieveSeedTerms(List<Integer> docNums, int from, int to) throws IOException {
+        SeedTerms seedTerms = new SeedTerms();
+        for(int i = from; i < to; i++){
+            retrieveTerms(docNums.get(i), seedTerms);
+        }
+        return seedTerms;
+    }
+
     /**
      * Return a query that will return docs queryFromDocuments the passed Reader.
      * Used by MoreLikethisQuery.
@@ -913,13 +1233,9 @@ public final class MoreLikeThis {
                         MoreLikeThisParams.SIMILARITY_FIELDS, MoreLikeThisParams.STREAM_BODY_FL));
         }
 
-        Map<String,Map<String, Flt>> fieldTermFreq = new HashMap<String, Map<String, Flt>>();
-        String streamBody = org.apache.commons.io.IOUtils.toString(reader);
-        for(String fieldName: streamBodyfields){
-            Map<String, Flt> words = new HashMap<String, Flt>();
-            fieldTermFreq.put(fieldName, words);
-            addTermWeights(new StringReader(streamBody), words, fieldName);
-        }
+        long start = System.nanoTime();
+        Map<String, TermWeights> fieldTermFreq = new HashMap<String, TermWeights>();
+        addTermWeights(reader, streamBodyfields, fieldTermFreq);
         if(getStreamHead() != null){
             if(streamHeadfields == null){
                 throw new UnsupportedOperationException(
@@ -927,52 +1243,129 @@ public final class MoreLikeThis {
                                     +"a field list must be specified using either the %s parameter or the %s parameter",
                         MoreLikeThisParams.SIMILARITY_FIELDS, MoreLikeThisParams.STREAM_HEAD_FL));
             }
-            for(String fieldName: streamHeadfields){
-                Map<String, Flt> words = null;
-                if(fieldTermFreq.containsKey(fieldName)) {
-                    words = fieldTermFreq.get(fieldName);
+            addTermWeights(new StringReader(getStreamHead()), streamHeadfields, fieldTermFreq);
+        }
+        timings.stop(MLTTimings.Phase.ANALYSIS, start);
+        return buildQueryFromFieldTermFrequencies(fieldTermFreq, true);
+    }
+
+    /**
+     * Adds the term weights of the text to each of the fields. Fields that share an analyzer (see
+     * {@link #setFieldAnalyzers(Map)}) are analyzed once, with each token counted against all of them. The
+     * analyses run side by side over a single pass of the reader, buffering only the text between the slowest
+     * and fastest, and reading stops once every analysis has parsed maxNumTokensParsedPerField tokens.
+     */
+    private void addTermWeights(Reader reader, String[] fields, Map<String, TermWeights> fieldTermFreq) throws IOException {
+
+        List<Analyzer> groupAnalyzers = new ArrayList<Analyzer>();
+        List<List<String>> groupFields = new ArrayList<List<String>>();
+        boolean allFieldAnalyzersKnown = true;
+        for(String fieldName: fields){
+            if(!fieldTermFreq.containsKey(fieldName)){
+                fieldTermFreq.put(fieldName, new TermWeights());
+            }
+
+            Analyzer fieldAnalyzer = fieldAnalyzers.get(fieldName);
+            int group = fieldAnalyzer == null ? -1 : groupAnalyzers.indexOf(fieldAnalyzer);
+            if(group < 0){
+                allFieldAnalyzersKnown &= fieldAnalyzer != null;
+                groupAnalyzers.add(fieldAnalyzer != null ? fieldAnalyzer : analyzer);
+                groupFields.add(new ArrayList<String>());
+                group = groupAnalyzers.size() - 1;
+            }
+            groupFields.get(group).add(fieldName);
+        }
+
+        if(groupAnalyzers.size() == 1){
+            FieldAnalysis analysis = new FieldAnalysis(groupAnalyzers.get(0), groupFields.get(0), fieldTermFreq, reader);
+            try {
+                while (analysis.next()) {
                 }
-                else{
-                    words = new HashMap<String, Flt>();
-                    fieldTermFreq.put(fieldName, words);
+            } finally {
+                analysis.close();
+            }
+        }
+        else if(!allFieldAnalyzersKnown){
+            // the analyzer wrapper may re-use the same token stream for different fields, so the fields can't be
+            // analyzed side by side. Buffer the text, and analyze it for each field in turn
+            String text = org.apache.commons.io.IOUtils.toString(reader);
+            for(String fieldName: fields){
+                addTermWeights(new StringReader(text), fieldTermFreq.get(fieldName), fieldName);
+            }
+        }
+        else{
+            addTermWeights(new SharedStreamReader(reader), groupAnalyzers, groupFields, fieldTermFreq);
+        }
+    }
+
+    private void addTermWeights(SharedStreamReader sharedReader, List<Analyzer> groupAnalyzers, List<List<String>> groupFields,
+                                Map<String, TermWeights> fieldTermFreq) throws IOException {
+
+        final int numGroups = groupAnalyzers.size();
+        final FieldAnalysis[] analyses = new FieldAnalysis[numGroups];
+        final SharedStreamReader.Cursor[] cursors = new SharedStreamReader.Cursor[numGroups];
+        try {
+            for (int i = 0; i < numGroups; i++) {
+                cursors[i] = sharedReader.newCursor();
+                analyses[i] = new FieldAnalysis(groupAnalyzers.get(i), groupFields.get(i), fieldTermFreq, cursors[i]);
+            }
+
+            int active = numGroups;
+            while (active > 0) {
+                // advance the analysis furthest behind, to keep the buffered text to a minimum
+                int behind = -1;
+                for (int i = 0; i < numGroups; i++) {
+                    if (analyses[i] != null && (behind < 0 || cursors[i].getPosition() < cursors[behind].getPosition())) {
+                        behind = i;
+                    }
+                }
+                if (!analyses[behind].next()) {
+                    analyses[behind].close();
+                    analyses[behind] = null;
+                    cursors[behind].close();
+                    active--;
+                }
+            }
+        } finally {
+            for (FieldAnalysis analysis : analyses) {
+                if (analysis != null) {
+                    analysis.close();
                 }
-                addTermWeights(new StringReader(getStreamHead()), words, fieldName);
             }
         }
-        return buildQueryFromFieldTermFrequencies(fieldTermFreq, true);
     }
 
-    private MLTQuery buildQueryFromFieldTermFrequencies(Map<String, Map<String, Flt>> fieldTermFreq, boolean contentStreamQuery) throws IOException {
+    private MLTQuery buildQueryFromFieldTermFrequencies(Map<String, TermWeights> fieldTermFreq, boolean contentStreamQuery) throws IOException {
 
+        long start = System.nanoTime();
+        long docFreqNanos = timings.getNanos(MLTTimings.Phase.DOC_FREQ);
         List<MLTTerm> interestingTerms = new ArrayList<MLTTerm>();
         for(String fieldName: fieldTermFreq.keySet()){
-            Map<String,Flt> words = fieldTermFreq.get(fieldName);
-            PriorityQueue<MLTTerm> queue = createQueue(fieldName, words, contentStreamQuery);
-            interestingTerms.addAll(getMostInterestingTerms(queue));
+            TermWeights words = fieldTermFreq.get(fieldName);
+            interestingTerms.addAll(getMostInterestingTerms(fieldName, words, contentStreamQuery));
         }
+        // the doc freq lookups are timed separately
+        docFreqNanos = timings.getNanos(MLTTimings.Phase.DOC_FREQ) - docFreqNanos;
+        timings.add(MLTTimings.Phase.QUEUE, System.nanoTime() - start - docFreqNanos);
+        timings.increment(MLTTimings.Counter.CLAUSES_EMITTED, interestingTerms.size());
 
         MLTQuery mltResult = new MLTQuery(interestingTerms, getMm());
         return mltResult;
     }
 
     /**
-     * Compute the top most interesting terms from the priority queue of all MLT Terms
+     * Compute the top most interesting terms for a field, normalizing their weights if configured to
      */
-    private List<MLTTerm> getMostInterestingTerms(PriorityQueue<MLTTerm> q) {
+    private List<MLTTerm> getMostInterestingTerms(String fieldName, TermWeights words, boolean contentStreamQuery) throws IOException {
 
-        int maxTerms = (maxQueryTermsPerField <= 0) ? Integer.MAX_VALUE : maxQueryTermsPerField;
+        List<MLTTerm> interestingTerms = createQueue(fieldName, words, contentStreamQuery);
         double sumQuaredBoost = 0.0f;
-
-        List<MLTTerm> interestingTerms = new ArrayList<MLTTerm>();
-        MLTTerm currentTerm = null;
-        while ((currentTerm = q.pop()) != null
-                && interestingTerms.size() < maxTerms) {
+        for(MLTTerm currentTerm: interestingTerms) {
             // if not boost, then set score to 1.0 not tf.idf
             // now implemented inside MLTTerm
 
             // if not boost, boostValue == 1.0, so this just adds 1 as desired
             sumQuaredBoost += Math.pow(currentTerm.getTermWeight(),2);
-            interestingTerms.add(currentTerm);
         }
 
         float vectorLength = (float) Math.sqrt(sumQuaredBoost);
@@ -989,28 +1382,55 @@ public final class MoreLikeThis {
     }
 
     /**
-     * Create a PriorityQueue from a word->tf map.
+     * Select the top scoring terms of a field from a term->weight map, in descending order of score.
+     * Terms are only turned into MLTTerms once they have made it into the top maxQueryTermsPerField.
      *
-     * @param words a map of words keyed on the word(String) with Int objects as the values.
+     * @param words the terms of the field and their weights (tf, or payload for payload fields)
      */
-    private PriorityQueue<MLTTerm> createQueue(String fieldName, Map<String, Flt> words, boolean contentStreamQuery) throws IOException {
+    private List<MLTTerm> createQueue(String fieldName, TermWeights words, boolean contentStreamQuery) throws IOException {
         // have collected all words in doc and their freqs
-        int numDocs = ir.numDocs();
-        FreqQ res = new FreqQ(words.size()); // will order words by score
-
-        for (String word : words.keySet()) { // for every word
-            if(word.trim().length() == 0)
+        int numDocs = this.numDocs >= 0 ? this.numDocs : ir.numDocs();
+
+        // filter out the words we can reject without touching the index
+        final int[] candidateIds = new int[words.size()];
+        final BytesRef[] candidateTerms = new BytesRef[words.size()];
+        final BytesRef scratch = new BytesRef();
+        int numCandidates = 0;
+        for (int id = 0; id < words.size(); id++) { // for every word
+            final BytesRef word = words.getTerm(id, scratch);
+            if(isBlank(word))
             {
                 continue;
             }
 
-            float tf = words.get(word).x; // term freq in the source doc
+            float tf = words.getWeight(id); // term freq in the source doc
 
             if (minTermFreq > 0 && tf < minTermFreq) {
                 continue; // filter out words that don't occur enough times in the source
             }
+            if (isNoiseWord(word)) {
+                continue; // filter out words outside of the word length limits
+            }
+            candidateIds[numCandidates] = id;
+            candidateTerms[numCandidates] = words.getTerm(id, new BytesRef());
+            numCandidates++;
+        }
 
-            int docFreq = ir.docFreq(new Term(fieldName, word));
+        // resolve the doc freqs for the remaining words in a single ordered pass over each segment
+        sortByTerm(candidateIds, candidateTerms, numCandidates);
+        long start = System.nanoTime();
+        final int[] docFreqs = termStatsResolver.docFreqs(fieldName, candidateTerms, numCandidates);
+        timings.stop(MLTTimings.Phase.DOC_FREQ, start);
+        timings.increment(MLTTimings.Counter.TERMS_CONSIDERED, words.size());
+        timings.increment(MLTTimings.Counter.DOC_FREQ_LOOKUPS, numCandidates);
+
+        final boolean isPayloadField = isPayloadField(fieldName);
+        final int maxTerms = (maxQueryTermsPerField <= 0) ? numCandidates : Math.min(maxQueryTermsPerField, numCandidates);
+        final TopTermsQueue queue = new TopTermsQueue(maxTerms);
+        final float[] idfs = new float[numCandidates];
+        for (int i = 0; i < numCandidates; i++) {
+
+            int docFreq = docFreqs[i];
             if (minDocFreq > 0 && docFreq < minDocFreq) {
                 continue; // filter out words that don't occur in enough docs
             }
@@ -1020,16 +1440,26 @@ public final class MoreLikeThis {
                 continue; // filter out words that occur in too many docs
             }
 
-            float idf = similarity.idf(docFreq, numDocs);
-            final float fieldBoost = contentStreamQuery? this.getStreamFieldBoost(fieldName): this.getFieldBoost(fieldName);
-            final MLTTerm mltTerm;
-            if(isPayloadField(fieldName)){
-                mltTerm = new MLTTerm(
+            idfs[i] = similarity.idf(docFreq, numDocs);
+            // field boost and vector length are the same for every term in the field, so rank on the term weight
+            // payload terms are weighted by their payload score, which is the tf
+            final float tf = words.getWeight(candidateIds[i]);
+            queue.insert(i, MLTTerm.getTermWeight(tf, idfs[i], tf, isPayloadField, this.isLogTf, this.boost));
+        }
+
+        final float fieldBoost = contentStreamQuery? this.getStreamFieldBoost(fieldName): this.getFieldBoost(fieldName);
+        final MLTTerm[] topTerms = new MLTTerm[queue.size()];
+        for(int j = topTerms.length - 1; j >= 0; j--){
+            final int i = queue.pop();
+            final String word = candidateTerms[i].utf8ToString();
+            final float tf = words.getWeight(candidateIds[i]);
+            if(isPayloadField){
+                topTerms[j] = new MLTTerm(
                         word,        // the word
                         fieldName,   // the field name
                         tf,          // tf
-                        idf,         // idf
-                        docFreq,     // freq in all docs
+                        idfs[i],     // idf
+                        docFreqs[i], // freq in all docs
                         isLogTf(),
                         fieldBoost,
                         tf,  // this is the payload score if a payload field. Code could better reflect this admittedly
@@ -1038,35 +1468,66 @@ public final class MoreLikeThis {
                 );
             }
             else{
-                mltTerm = new MLTTerm(
+                topTerms[j] = new MLTTerm(
                         word,        // the word
                         fieldName,   // the field name
                         tf,          // tf
-                        idf,         // idf
-                        docFreq,     // freq in all docs
+                        idfs[i],     // idf
+                        docFreqs[i], // freq in all docs
                         this.isLogTf(),
                         fieldBoost,
                         this.boost
                 );
             }
-            res.insertWithOverflow(mltTerm);
+            topTerms[j].setTermBytes(BytesRef.deepCopyOf(candidateTerms[i]));
         }
-        return res;
+        return new ArrayList<MLTTerm>(Arrays.asList(topTerms));
     }
 
-    private BooleanQuery buildMustMatchQuery(Map<String,Map<String, Flt>> fieldValues, boolean mustMatch){
-        BooleanQuery.Builder qryBuilder = new BooleanQuery.Builder();
-        for(Map.Entry<String,Map<String,Flt>> entry: fieldValues.entrySet()){
+    /**
+     * Sorts the candidate term ids (and their parallel term array) into term order, as required by the TermStatsResolver
+     */
+    private static void sortByTerm(final int[] ids, final BytesRef[] terms, int numTerms) {
+        new InPlaceMergeSorter() {
+            @Override
+            protected int compare(int i, int j) {
+                return terms[i].compareTo(terms[j]);
+            }
+
+            @Override
+            protected void swap(int i, int j) {
+                final int id = ids[i];
+                ids[i] = ids[j];
+                ids[j] = id;
+
+                final BytesRef term = terms[i];
+                terms[i] = terms[j];
+                terms[j] = term;
+            }
+        }.sort(0, numTerms);
+    }
+
+    private BooleanQuery buildMustMatchQuery(Map<String, TermWeights> fieldValues, boolean mustMatch){
+        final BytesRef spare = new BytesRef();
+        List<Term> terms = new ArrayList<Term>();
+        for(Map.Entry<String, TermWeights> entry: fieldValues.entrySet()){
             String fieldName = entry.getKey();
-            for(Map.Entry<String,Flt> fieldValue: entry.getValue().entrySet()){
-                String value = fieldValue.getKey();
-                TermQuery tq = new TermQuery(new Term(fieldName, value));
-                if(mustMatch) {
-                    qryBuilder.add(tq, BooleanClause.Occur.MUST);
-                }
-                else{
-                    qryBuilder.add(tq, BooleanClause.Occur.MUST_NOT);
-                }
+            TermWeights values = entry.getValue();
+            for(int id = 0; id < values.size(); id++){
+                terms.add(new Term(fieldName, BytesRef.deepCopyOf(values.getTerm(id, spare))));
+            }
+        }
+        // in canonical order, so the same seed values give an equal filter, and a filter cache hit
+        Collections.sort(terms);
+
+        BooleanQuery.Builder qryBuilder = new BooleanQuery.Builder();
+        for(Term term: terms){
+            TermQuery tq = new TermQuery(term);
+            if(mustMatch) {
+                qryBuilder.add(tq, BooleanClause.Occur.MUST);
+            }
+            else{
+                qryBuilder.add(tq, BooleanClause.Occur.MUST_NOT);
             }
         }
         return qryBuilder.build();
@@ -1100,38 +1561,104 @@ public final class MoreLikeThis {
      * @param fields the list of field of the lucene document from which to extract terms
      * @param fieldToTermFreqMap data structure to populate with term frequencies
      */
-    public Map<String, Map<String, Flt>> retrieveTerms(int docNum, String[] fields, Map<String, Map<String, Flt>> fieldToTermFreqMap) throws IOException {
+    public Map<String, TermWeights> retrieveTerms(int docNum, String[] fields, Map<String, TermWeights> fieldToTermFreqMap) throws IOException {
 
         if(fieldToTermFreqMap == null) {
-            fieldToTermFreqMap = new HashMap<String, Map<String, Flt>>();
+            fieldToTermFreqMap = new HashMap<String, TermWeights>();
         }
 
         if(fields == null || fields.length == 0){
             return fieldToTermFreqMap;
         }
 
+        long start = System.nanoTime();
+        final Fields vectors = ir.getTermVectors(docNum);
+        final Document document = loadStoredFields(docNum, vectors, fields);
+        timings.stop(MLTTimings.Phase.TERM_READ, start);
+        addTerms(docNum, vectors, document, fields, fieldToTermFreqMap);
+        return fieldToTermFreqMap;
+    }
+
+    /**
+     * Finds the words of a seed document for the similarity, must match and must not match fields, reading the
+     * document's term vectors and stored fields once for all three field lists
+     */
+    private void retrieveTerms(int docNum, SeedTerms seedTerms) throws IOException {
+
+        long start = System.nanoTime();
         final Fields vectors = ir.getTermVectors(docNum);
-        final Document document = ir.document(docNum);
+        final Document document = loadStoredFields(docNum, vectors, getFieldNames(), getMatchFieldNames(), getDifferentFieldNames());
+        timings.stop(MLTTimings.Phase.TERM_READ, start);
+
+        addTerms(docNum, vectors, document, getFieldNames(), seedTerms.fieldTermFreq);
+        addTerms(docNum, vectors, document, getMatchFieldNames(), seedTerms.mustMatchTerms);
+        addTerms(docNum, vectors, document, getDifferentFieldNames(), seedTerms.mustNOTMatchTerms);
+    }
+
+    /**
+     * Loads just the stored fields that have to be re-analyzed, those without term vectors or doc values, or payload
+     * fields whose term vectors don't hold the payloads
+     *
+     * @return the document, or null if every field can be read from the term vectors or doc values
+     */
+    private Document loadStoredFields(int docNum, Fields vectors, String[]... fieldLists) throws IOException {
+        Set<String> storedFields = null;
+        for(String[] fields: fieldLists){
+            if(fields == null){
+                continue;
+            }
+            for(String fieldName: fields){
+                if(!canReadFromVector(vectors, fieldName) && !isDocValuesField(fieldName)){
+                    if(storedFields == null){
+                        storedFields = new HashSet<String>();
+                    }
+                    storedFields.add(fieldName);
+                }
+            }
+        }
+        if(storedFields == null){
+            return null;
+        }
+        timings.increment(MLTTimings.Counter.STORED_DOCS_LOADED, 1);
+        return ir.document(docNum, storedFields);
+    }
+
+    private void addTerms(int docNum, Fields vectors, Document document, String[] fields, Map<String, TermWeights> fieldToTermFreqMap) throws IOException {
+
+        if(fields == null){
+            return;
+        }
 
         for (String fieldName : fields) {
 
-            Map<String, Flt> termFreqMap = null;
+            TermWeights termFreqMap = null;
             if(fieldToTermFreqMap.containsKey(fieldName)){
                 termFreqMap = fieldToTermFreqMap.get(fieldName);
             }
             else{
-                termFreqMap = new HashMap<String, Flt>();
+                termFreqMap = new TermWeights();
                 fieldToTermFreqMap.put(fieldName, termFreqMap);
             }
 
-            Terms vector = null;
-            if (vectors != null) {
-                vector = vectors.terms(fieldName);
-            }
-
-            // field does not store term vector info
-            // even if term vectors enabled, need to extract payload from regular field reader
-            if (vector == null || isPayloadField(fieldName)) {
+            long start = System.nanoTime();
+            if (canReadFromVector(vectors, fieldName)) {
+                if (isPayloadField(fieldName)) {
+                    addPayloadTermWeights(termFreqMap, vectors.terms(fieldName));
+                } else {
+                    addTermWeights(termFreqMap, vectors.terms(fieldName));
+                }
+                timings.stop(MLTTimings.Phase.TERM_READ, start);
+            } else if (isDocValuesField(fieldName)) {
+                // keyword field, the terms are its doc values
+                for (BytesRef term : DocValuesTermSource.getTerms(ir, docNum, fieldName)) {
+                    if (!isNoiseWord(term)) {
+                        termFreqMap.add(term, 1.0f);
+                    }
+                }
+                timings.stop(MLTTimings.Phase.TERM_READ, start);
+            } else {
+                // field does not store term vector info, or a payload field whose vectors don't hold the payloads,
+                // so re-analyze the stored value
                 IndexableField docFields[] = document.getFields(fieldName);
                 for (IndexableField field : docFields) {
                     final String stringValue = field.stringValue();
@@ -1139,95 +1666,173 @@ public final class MoreLikeThis {
                         addTermWeights(new StringReader(stringValue), termFreqMap, fieldName);
                     }
                 }
-            } else {
-                addTermWeights(termFreqMap, vector);
+                timings.stop(MLTTimings.Phase.ANALYSIS, start);
             }
         }
+    }
 
-        return fieldToTermFreqMap;
+    /**
+     * @return true if the field's terms can be read from the document's term vectors, which for a payload field
+     * must store the positions and payloads
+     */
+    private boolean canReadFromVector(Fields vectors, String fieldName) throws IOException {
+        if(vectors == null){
+            return false;
+        }
+        Terms vector = vectors.terms(fieldName);
+        if(vector == null){
+            return false;
+        }
+        return !isPayloadField(fieldName) || vector.hasPayloads();
     }
 
     /**
-     * Adds terms and frequencies found in vector into the Map termWeightMap
+     * Adds terms and frequencies found in vector into the term weights
      *
-     * @param termWeightMap a Map of terms and their weights
+     * @param termWeightMap the terms and their weights
      * @param vector List of terms and their weights for a doc/field
      */
-    private void addTermWeights(Map<String, Flt> termWeightMap, Terms vector) throws IOException {
+    private void addTermWeights(TermWeights termWeightMap, Terms vector) throws IOException {
         final TermsEnum termsEnum = vector.iterator();
-        CharsRefBuilder spare = new CharsRefBuilder();
         BytesRef text;
         while((text = termsEnum.next()) != null) {
-            spare.copyUTF8Bytes(text);
-            final String term = spare.toString();
-            if (isNoiseWord(term)) {
+            if (isNoiseWord(text)) {
                 continue;
             }
             final int freq = (int) termsEnum.totalTermFreq();
 
-            //TODO try this
-            //termsEnum.docsAndPositions(.....).getPayload()
-
             // increment frequency
-            Flt cnt = termWeightMap.get(term);
-            if (cnt == null) {
-                termWeightMap.put(term, new Flt(freq));
-            } else {
-                cnt.x += freq;
+            termWeightMap.add(text, freq);
+        }
+    }
+
+    /**
+     * Adds the terms found in a vector with payloads into the term weights, weighting each occurrence by its
+     * payload as the analysis of a payload field does (1.0 for occurrences without a payload)
+     *
+     * @param termWeightMap the terms and their weights
+     * @param vector List of terms, positions and payloads for a doc/field
+     */
+    private void addPayloadTermWeights(TermWeights termWeightMap, Terms vector) throws IOException {
+        final TermsEnum termsEnum = vector.iterator();
+        PostingsEnum postings = null;
+        BytesRef text;
+        while((text = termsEnum.next()) != null) {
+            if (isBlank(text) || isNoiseWord(text)) {
+                continue;
             }
+            // a term vector is a single document
+            postings = termsEnum.postings(postings, PostingsEnum.PAYLOADS);
+            if (postings.nextDoc() == DocIdSetIterator.NO_MORE_DOCS) {
+                continue;
+            }
+            float weight = 0.0f;
+            final int freq = postings.freq();
+            for (int i = 0; i < freq; i++) {
+                postings.nextPosition();
+                BytesRef payload = postings.getPayload();
+                weight += payload == null ? 1.0f : PayloadHelper.decodeFloat(payload.bytes, payload.offset);
+            }
+            termWeightMap.add(text, weight);
         }
     }
 
     /**
-     * Adds term weights found by tokenizing text from reader into the Map words
+     * Adds term weights found by tokenizing text from reader into the term weights
      *
      * @param reader a source of text to be tokenized
-     * @param termWeightMap a Map of terms and their weights
+     * @param termWeightMap the terms and their weights
      * @param fieldName Used by analyzer for any special per-field analysis
      */
-    private void addTermWeights(Reader reader, Map<String, Flt> termWeightMap, String fieldName)
+    private void addTermWeights(Reader reader, TermWeights termWeightMap, String fieldName)
             throws IOException {
-        if (analyzer == null) {
-            throw new UnsupportedOperationException("To use MoreLikeThis without " +
-                    "term vectors, you must provide an Analyzer");
+        FieldAnalysis analysis = new FieldAnalysis(analyzer, fieldName, termWeightMap, reader);
+        try {
+            while (analysis.next()) {
+            }
+        } finally {
+            analysis.close();
         }
+    }
 
-        TokenStream ts = analyzer.tokenStream(fieldName, reader);
-        try {
-            int tokenCount = 0;
-            // for every token
-            CharTermAttribute termAtt = ts.addAttribute(CharTermAttribute.class);
-            PayloadAttribute payloadAttr = ts.addAttribute(PayloadAttribute.class);
-
-            ts.reset();
-            while (ts.incrementToken()) {
-                String word = termAtt.toString();
-                tokenCount++;
-                if (tokenCount > maxNumTokensParsedPerField) {
-                    break;
-                }
-                if(word.trim().length() == 0){
-                    continue;
-                }
-                if (isNoiseWord(word)) {
-                    continue;
-                }
+    /**
+     * Analysis of a piece of text for one or more fields sharing an analyzer. Each token's weight is added to
+     * the term weights of every field, up to maxNumTokensParsedPerField tokens.
+     */
+    private class FieldAnalysis implements Closeable {
+        private final TokenStream ts;
+        private final TermToBytesRefAttribute termAtt;
+        private final PayloadAttribute payloadAttr;
+        private final TermWeights[] termWeights;
+        private final boolean[] isPayloadField;
+        private int tokenCount = 0;
+        private boolean done = false;
+
+        FieldAnalysis(Analyzer fieldAnalyzer, String fieldName, TermWeights termWeightMap, Reader reader) throws IOException {
+            this(fieldAnalyzer, Collections.singletonList(fieldName), Collections.singletonMap(fieldName, termWeightMap), reader);
+        }
+
+        FieldAnalysis(Analyzer fieldAnalyzer, List<String> fieldNames, Map<String, TermWeights> fieldTermFreq, Reader reader) throws IOException {
+            if (fieldAnalyzer == null) {
+                throw new UnsupportedOperationException("To use MoreLikeThis without " +
+                        "term vectors, you must provide an Analyzer");
+            }
+
+            termWeights = new TermWeights[fieldNames.size()];
+            isPayloadField = new boolean[fieldNames.size()];
+            for (int i = 0; i < fieldNames.size(); i++) {
+                termWeights[i] = fieldTermFreq.get(fieldNames.get(i));
+                isPayloadField[i] = isPayloadField(fieldNames.get(i));
+            }
 
-                BytesRef payload = payloadAttr.getPayload();
+            ts = fieldAnalyzer.tokenStream(fieldNames.get(0), reader);
+            try {
+                termAtt = ts.addAttribute(TermToBytesRefAttribute.class);
+                payloadAttr = ts.addAttribute(PayloadAttribute.class);
+                ts.reset();
+            } catch (IOException e) {
+                IOUtils.closeWhileHandlingException(ts);
+                throw e;
+            } catch (RuntimeException e) {
+                IOUtils.closeWhileHandlingException(ts);
+                throw e;
+            }
+        }
+
+        /**
+         * Reads the next token
+         *
+         * @return false once the text is exhausted or maxNumTokensParsedPerField tokens have been read
+         */
+        boolean next() throws IOException {
+            if (done) {
+                return false;
+            }
+            if (!ts.incrementToken() || ++tokenCount > maxNumTokensParsedPerField) {
+                done = true;
+                ts.end();
+                return false;
+            }
+
+            BytesRef word = termAtt.getBytesRef();
+            if (isBlank(word) || isNoiseWord(word)) {
+                return true;
+            }
+
+            BytesRef payload = payloadAttr.getPayload();
+            for (int i = 0; i < termWeights.length; i++) {
                 float tokenWeight = 1.0f; // 1.0 or payload if set and a payload field
-                if(isPayloadField(fieldName) && payload != null){
+                if (isPayloadField[i] && payload != null) {
                     tokenWeight = PayloadHelper.decodeFloat(payload.bytes, payload.offset);
                 }
                 // increment frequency
-                Flt termWeight = termWeightMap.get(word);
-                if (termWeight == null) {
-                    termWeightMap.put(word, new Flt(tokenWeight));
-                } else {
-                    termWeight.x += tokenWeight;
-                }
+                termWeights[i].add(word, tokenWeight);
             }
-            ts.end();
-        } finally {
+            return true;
+        }
+
+        @Override
+        public void close() {
             IOUtils.closeWhileHandlingException(ts);
         }
     }
@@ -1235,18 +1840,38 @@ public final class MoreLikeThis {
     /**
      * determines if the passed term is likely to be of interest in "more queryFromDocuments" comparisons
      *
-     * @param term The word being considered
+     * @param term The word being considered, as UTF-8 bytes
      * @return true if should be ignored, false if should be used in further analysis
      */
-    private boolean isNoiseWord(String term) {
-        int len = term.length();
-        if (minWordLen > 0 && len < minWordLen) {
-            return true;
+    private boolean isNoiseWord(BytesRef term) {
+        if (minWordLen > 0 || maxWordLen > 0) {
+            int len = UnicodeUtil.codePointCount(term);
+            if (minWordLen > 0 && len < minWordLen) {
+                return true;
+            }
+            if (maxWordLen > 0 && len > maxWordLen) {
+                return true;
+            }
         }
-        if (maxWordLen > 0 && len > maxWordLen) {
-            return true;
+        return stopWordBytes != null && stopWordBytes.contains(term);
+    }
+
+    /**
+     * @return true if the term is empty or all whitespace, equivalent to String.trim().length() == 0
+     */
+    private static boolean isBlank(BytesRef term) {
+        final int end = term.offset + term.length;
+        for (int i = term.offset; i < end; i++) {
+            // multi-byte utf8 sequences are all >= 0x80, so never trimmed
+            if ((term.bytes[i] & 0xFF) > ' ') {
+                return false;
+            }
         }
-        return stopWords != null && stopWords.contains(term);
+        return true;
+    }
+
+    private boolean isDocValuesField(String fieldName){
+        return this.docValuesFields.contains(fieldName) && !isPayloadField(fieldName);
     }
 
     private boolean isPayloadField(String fieldName){
@@ -1254,28 +1879,81 @@ public final class MoreLikeThis {
     }
 
     /**
-     * PriorityQueue that orders words by score.
+     * Bounded min-heap of term indexes ordered by score, used to select the top terms for a field without
+     * allocating an object per candidate term.
      */
-    private static class FreqQ extends PriorityQueue<MLTTerm> {
-        FreqQ(int s) {
-            super(s);
+    private static class TopTermsQueue {
+        private final int[] heap;
+        private final float[] scores;
+        private int size = 0;
+
+        TopTermsQueue(int maxSize) {
+            this.heap = new int[maxSize];
+            this.scores = new float[maxSize];
         }
 
-        @Override
-        protected boolean lessThan(MLTTerm aa, MLTTerm bb) {
-            return aa.getFinalScore() > bb.getFinalScore();
+        int size() {
+            return size;
         }
-    }
 
-    /**
-     * Use for frequencies and to avoid renewing Integers.
-     */
+        void insert(int index, float score) {
+            if (size < heap.length) {
+                heap[size] = index;
+                scores[size] = score;
+                upHeap(size++);
+            } else if (size > 0 && score > scores[0]) {
+                heap[0] = index;
+                scores[0] = score;
+                downHeap(0);
+            }
+        }
+
+        /**
+         * @return the index of the lowest scoring term in the queue, removing it
+         */
+        int pop() {
+            final int index = heap[0];
+            size--;
+            heap[0] = heap[size];
+            scores[0] = scores[size];
+            downHeap(0);
+            return index;
+        }
+
+        private void upHeap(int i) {
+            while (i > 0) {
+                final int parent = (i - 1) >>> 1;
+                if (scores[parent] <= scores[i]) {
+                    break;
+                }
+                swap(i, parent);
+                i = parent;
+            }
+        }
 
-    private static class Flt {
-        float x;
+        private void downHeap(int i) {
+            while (true) {
+                final int left = 2 * i + 1;
+                if (left >= size) {
+                    break;
+                }
+                final int right = left + 1;
+                final int child = (right < size && scores[right] < scores[left]) ? right : left;
+                if (scores[i] <= scores[child]) {
+                    break;
+                }
+                swap(i, child);
+                i = child;
+            }
+        }
 
-        Flt(float x) {
-            this.x = x;
+        private void swap(int i, int j) {
+            final int index = heap[i];
+            heap[i] = heap[j];
+            heap[j] = index;
+            final float score = scores[i];
+            scores[i] = scores[j];
+            scores[j] = score;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,277 @@
+package org.dice.solrenhancements.morelikethis;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TermQuery;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.ContentStream;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrRequestInfo;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.*;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+/**
+ * Runs a batch of MLT requests in one call to the MLT handler, returning one result list per seed. The seeds are
+ * given either as queries (mlt.batch.q, repeated), unique keys (mlt.batch.ids) or as a content stream of newline
+ * delimited json, one seed per line. Each line is either a json string (the text to match), or an object with a
+ * "text" property and optionally "id" (to name the seed in the response) and "head" (as stream.head) properties.
+ *
+ * Seeds are run in parallel on the handler's executor, all against the request's searcher, and share a single
+ * cache of the doc freqs looked up when picking the interesting terms.
+ */
+class MoreLikeThisBatch {
+
+    private static final Pattern splitList = Pattern.compile(",| ");
+
+    static final String TEXT = "text";
+    static final String ID = "id";
+    static final String HEAD = "head";
+
+    private static class Seed {
+        final String name;
+        final Query query;
+        final String text;
+        final String head;
+
+        Seed(String name, Query query, String text, String head) {
+            this.name = name;
+            this.query = query;
+            this.text = text;
+            this.head = head;
+        }
+    }
+
+    private final SolrQueryRequest req;
+    private final SolrQueryResponse rsp;
+    private final SolrParams params;
+    private final SolrIndexSearcher searcher;
+    private final SchemaField uniqueKeyField;
+    private final SolrCache<MLTTermsCacheKey, MLTQuery> termsCache;
+    private final TermStatsResolver termStats;
+
+    MoreLikeThisBatch(SolrQueryRequest req, SolrQueryResponse rsp, SolrParams params, SchemaField uniqueKeyField,
+                      SolrCache<MLTTermsCacheKey, MLTQuery> termsCache) {
+        this.req = req;
+        this.rsp = rsp;
+        this.params = params;
+        this.searcher = req.getSearcher();
+        this.uniqueKeyField = uniqueKeyField;
+        this.termsCache = termsCache;
+        this.termStats = TermStatsResolver.withCache(searcher.getIndexReader());
+    }
+
+    /**
+     * Runs every seed in the batch
+     *
+     * @return the results for each seed, named after the seed, in the order the seeds were given
+     */
+    NamedList<Object> execute(ExecutorService executor, int maxBatchSize, final int flags, final Sort sort,
+                              final List<Query> targetFqFilters, final List<Query> mltFqFilters) throws IOException, SyntaxError {
+
+        List<Seed> seeds = getSeeds();
+        if(seeds.size() == 0){
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                    String.format("A batch MoreLikeThis request requires seed queries (%s), unique keys (%s) or a content stream",
+                            MoreLikeThisParams.BATCH_QUERIES, MoreLikeThisParams.BATCH_IDS));
+        }
+        if(seeds.size() > maxBatchSize){
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                    String.format("The batch contains %d seeds, the maximum is %d", seeds.size(), maxBatchSize));
+        }
+
+        final int start = params.getInt(CommonParams.START, 0);
+        final int rows  = params.getInt(CommonParams.ROWS, 10);
+
+        List<Future<MLTResult>> futures = new ArrayList<Future<MLTResult>>(seeds.size());
+        try {
+            for (final Seed seed : seeds) {
+                futures.add(executor.submit(new Callable<MLTResult>() {
+                    @Override
+                    public MLTResult call() throws Exception {
+                        // some query parsers and functions expect the request to be available to the thread
+                        SolrRequestInfo.setRequestInfo(new SolrRequestInfo(req, rsp));
+                        try {
+                            return run(seed, start, rows, flags, sort, targetFqFilters, mltFqFilters);
+                        } finally {
+                            SolrRequestInfo.clearRequestInfo();
+                        }
+                    }
+                }));
+            }
+
+            NamedList<Object> results = new NamedList<Object>();
+            for (int i = 0; i < seeds.size(); i++) {
+                results.add(seeds.get(i).name, getResult(futures.get(i)));
+            }
+            return results;
+        }
+        finally {
+            // don't leave work queued for a request that failed. Running seeds are not interrupted, as an
+            // interrupt during a read closes the index file channel
+            for(Future<MLTResult> future: futures){
+                future.cancel(false);
+            }
+        }
+    }
+
+    private NamedList<Object> getResult(Future<MLTResult> future) throws IOException {
+        NamedList<Object> result = new SimpleOrderedMap<Object>();
+        try {
+            MLTResult mltResult = future.get();
+            DocListAndSet docs = mltResult.getResults();
+            result.add("response", docs.docList);
+
+            MoreLikeThisParams.TermStyle termStyle = MoreLikeThisParams.TermStyle.get(params.get(MoreLikeThisParams.INTERESTING_TERMS));
+            if(termStyle != MoreLikeThisParams.TermStyle.NONE){
+                List<String> terms = new ArrayList<String>(mltResult.getMltTerms().size());
+                for(MLTTerm mltTerm: mltResult.getMltTerms()){
+                    terms.add(mltTerm.getFieldName() + ":" + mltTerm.getWord());
+                }
+                result.add("interestingTerms", terms);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Interrupted running MoreLikeThis batch", e);
+        } catch (ExecutionException e) {
+            // a bad seed fails only its own entry, not the whole batch
+            Throwable cause = e.getCause();
+            if(cause instanceof SolrException && ((SolrException) cause).code() == SolrException.ErrorCode.BAD_REQUEST.code){
+                result.add("error", cause.getMessage());
+            }
+            else if(cause instanceof IOException){
+                throw (IOException) cause;
+            }
+            else{
+                throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, cause);
+            }
+        }
+        return result;
+    }
+
+    private MLTResult run(Seed seed, int start, int rows, int flags, Sort sort,
+                          List<Query> targetFqFilters, List<Query> mltFqFilters) throws IOException, SyntaxError {
+
+        SolrParams seedParams = params;
+        if(seed.head != null){
+            ModifiableSolrParams withHead = new ModifiableSolrParams(params);
+            withHead.set(MoreLikeThisParams.STREAM_HEAD, seed.head);
+            seedParams = withHead;
+        }
+
+        // neither MoreLikeThis nor the query parsers are thread safe, so each seed gets its own helper and parser
+        // (for the boost function)
+        QParser parser = QParser.getParser(null, params.get(QueryParsing.DEFTYPE), req);
+        MoreLikeThisHelper mlt = new MoreLikeThisHelper(seedParams, searcher, uniqueKeyField, parser);
+        mlt.setTermsCache(termsCache);
+        mlt.getMoreLikeThis().setTermStatsResolver(termStats);
+
+        // the must match clauses of each seed are added to its filter list
+        List<Query> filters = new ArrayList<Query>(mltFqFilters);
+        if(seed.text != null){
+            return mlt.getMoreLikeThisFromContentSteam(new StringReader(seed.text), start, rows, filters, flags, sort);
+        }
+
+        int matchOffset = params.getInt(MoreLikeThisParams.MATCH_OFFSET, 0);
+        DocList match = mlt.getSeedDocs(seed.query, targetFqFilters, matchOffset, flags);
+        if(match.matches() == 0){
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                    String.format("MoreLikeThis was unable to find any documents matching the seed: '%s'.", seed.name));
+        }
+        return mlt.getMoreLikeTheseFromDocs(match.iterator(), start, rows, filters, flags, sort);
+    }
+
+    private List<Seed> getSeeds() throws IOException, SyntaxError {
+        List<Seed> seeds = new ArrayList<Seed>();
+
+        String[] queries = params.getParams(MoreLikeThisParams.BATCH_QUERIES);
+        if(queries != null){
+            for(String q: queries){
+                if(q != null && q.trim().length() > 0) {
+                    QParser seedParser = QParser.getParser(q, params.get(QueryParsing.DEFTYPE), req);
+                    seeds.add(new Seed(q, seedParser.getQuery(), null, null));
+                }
+            }
+        }
+
+        String[] ids = params.getParams(MoreLikeThisParams.BATCH_IDS);
+        if(ids != null){
+            for(String idList: ids){
+                for(String id: splitList.split(idList.trim())){
+                    if(id.length() > 0) {
+                        Term term = new Term(uniqueKeyField.getName(), uniqueKeyField.getType().readableToIndexed(id));
+                        seeds.add(new Seed(id, new TermQuery(term), null, null));
+                    }
+                }
+            }
+        }
+
+        Iterable<ContentStream> streams = req.getContentStreams();
+        if(streams != null){
+            for(ContentStream stream: streams){
+                addContentStreamSeeds(stream, seeds);
+            }
+        }
+        return seeds;
+    }
+
+    private void addContentStreamSeeds(ContentStream stream, List<Seed> seeds) throws IOException {
+        BufferedReader reader = new BufferedReader(stream.getReader());
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().length() == 0) {
+                    continue;
+                }
+                seeds.add(parseSeed(line, lineNumber));
+            }
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    private Seed parseSeed(String line, int lineNumber) {
+        String name = "line_" + lineNumber;
+        try {
+            Object value = new JSONTokener(line).nextValue();
+            if (value instanceof String) {
+                return new Seed(name, null, (String) value, null);
+            }
+            if (value instanceof JSONObject) {
+                JSONObject json = (JSONObject) value;
+                if (json.has(TEXT)) {
+                    return new Seed(json.optString(ID, name), null, json.getString(TEXT), json.optString(HEAD, null));
+                }
+            }
+        } catch (JSONException e) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                    String.format("Invalid json on line %d of the MoreLikeThis batch: %s", lineNumber, e.getMessage()), e);
+        }
+        throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                String.format("Line %d of the MoreLikeThis batch must be a json string or an object with a '%s' property",
+                        lineNumber, TEXT));
+    }
+}
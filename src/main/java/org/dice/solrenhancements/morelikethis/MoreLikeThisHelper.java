@@ -4,25 +4,38 @@ package org.dice.solrenhancements.morelikethis;
  * Created by simon.hughes on 9/2/14.
  */
 
-import org.apache.lucene.document.Document;
+import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.index.Term;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.queries.TermsQuery;
 import org.apache.lucene.queries.function.BoostedQuery;
 import org.apache.lucene.queries.function.FunctionQuery;
 import org.apache.lucene.queries.function.ValueSource;
 import org.apache.lucene.queries.function.valuesource.QueryValueSource;
 import org.apache.lucene.search.*;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.params.FacetParams;
 import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.IndexSchema;
 import org.apache.solr.schema.SchemaField;
 import org.apache.solr.search.*;
 import org.apache.solr.util.SolrPluginUtils;
+import org.dice.solrenhancements.DocValuesTermSource;
+import org.dice.solrenhancements.lsh.MinHashBandField;
 
 import java.io.IOException;
 import java.io.Reader;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.regex.Pattern;
 
 /**
@@ -33,13 +46,22 @@ public class MoreLikeThisHelper
     // Pattern is thread safe -- TODO? share this with general 'fl' param
     private static final Pattern splitList = Pattern.compile(",| ");
 
+    // the default most seed documents used for a "more like these" query
+    static final int MAX_SEED_DOCS = 100;
+
     final SolrIndexSearcher searcher;
     final QParser qParser;
     final MoreLikeThis mlt;
     final IndexReader reader;
     final SchemaField uniqueKeyField;
     final boolean needDocSet;
+    final SolrParams params;
+    final boolean topK;
+    final int reRankDocs;
+    final int reRankTerms;
+    final MLTTimings timings = new MLTTimings();
 
+    private SolrCache<MLTTermsCacheKey, MLTQuery> termsCache = null;
 
     public MoreLikeThisHelper( SolrParams params, SolrIndexSearcher searcher, SchemaField uniqueKeyField, QParser qParser )
     {
@@ -48,6 +70,10 @@ public class MoreLikeThisHelper
         this.reader = searcher.getIndexReader();
         this.uniqueKeyField = uniqueKeyField;
         this.needDocSet = params.getBool(FacetParams.FACET, false);
+        this.params = params;
+        this.topK = params.getBool(MoreLikeThisParams.TOP_K, false);
+        this.reRankDocs = params.getInt(MoreLikeThisParams.RERANK, 0);
+        this.reRankTerms = params.getInt(MoreLikeThisParams.RERANK_TERMS, 5);
 
         SolrParams required = params.required();
         String[] fields = splitList.split(required.get(MoreLikeThisParams.SIMILARITY_FIELDS));
@@ -57,6 +83,7 @@ public class MoreLikeThisHelper
         }
 
         this.mlt = new MoreLikeThis( reader );
+        mlt.setTimings(timings);
         mlt.setFieldNames(fields);
 
         final String flMustMatch = params.get(MoreLikeThisParams.FL_MUST_MATCH);
@@ -73,9 +100,11 @@ public class MoreLikeThisHelper
 
         String[] payloadFields = getFieldList(MoreLikeThisParams.PAYLOAD_FIELDS, params);
         if(payloadFields != null){
-            throw new RuntimeException("Payload fields are not currently supported");
-            //mlt.setPayloadFields(payloadFields);
+            mlt.setPayloadFields(payloadFields);
         }
+        // keyword fields without term vectors are read from their doc values
+        mlt.setDocValuesFields(DocValuesTermSource.getDocValuesFields(searcher.getSchema(),
+                mlt.getFieldNames(), mlt.getMatchFieldNames(), mlt.getDifferentFieldNames()));
         mlt.setAnalyzer( searcher.getSchema().getIndexAnalyzer() );
 
         // configurable params
@@ -115,6 +144,25 @@ public class MoreLikeThisHelper
         if(streamBodyFields != null){
             mlt.setStreamBodyfieldNames(streamBodyFields);
         }
+
+        // so stream fields sharing a field type are analyzed once
+        mlt.setFieldAnalyzers(getFieldAnalyzers(searcher.getSchema(), mlt.getStreamBodyfieldNames(), mlt.getStreamHeadfieldNames()));
+    }
+
+    private static Map<String, Analyzer> getFieldAnalyzers(IndexSchema schema, String[]... fieldLists){
+        Map<String, Analyzer> fieldAnalyzers = new HashMap<String, Analyzer>();
+        for(String[] fields: fieldLists){
+            if(fields == null){
+                continue;
+            }
+            for(String fieldName: fields){
+                FieldType fieldType = schema.getFieldTypeNoEx(fieldName);
+                if(fieldType != null){
+                    fieldAnalyzers.put(fieldName, fieldType.getIndexAnalyzer());
+                }
+            }
+        }
+        return fieldAnalyzers;
     }
 
     private String[] getFieldList(String key, SolrParams params) {
@@ -128,6 +176,15 @@ public class MoreLikeThisHelper
         return null;
     }
 
+    /**
+     * Sets the cache used to store the interesting terms computed for a set of seed documents
+     *
+     * @param termsCache the cache, or null to disable caching
+     */
+    public void setTermsCache(SolrCache<MLTTermsCacheKey, MLTQuery> termsCache) {
+        this.termsCache = termsCache;
+    }
+
     private Query getBoostedFunctionQuery(Query q) throws SyntaxError{
 
         if (mlt.getBoostFn() == null || mlt.getBoostFn().trim().length() == 0) {
@@ -144,22 +201,42 @@ public class MoreLikeThisHelper
         return new BoostedQuery(q, vs);
     }
 
+    /**
+     * Finds the seed documents for a "more like these" query, at most mlt.seeds of them, chosen by mlt.seeds.mode
+     */
+    public DocList getSeedDocs(Query query, List<Query> filters, int matchOffset, int flags) throws IOException
+    {
+        int maxSeeds = params.getInt(MoreLikeThisParams.SEEDS, MAX_SEED_DOCS);
+        if(maxSeeds < 1){
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, MoreLikeThisParams.SEEDS + " must be at least 1");
+        }
+        SeedSelector.Mode mode = SeedSelector.Mode.get(params.get(MoreLikeThisParams.SEEDS_MODE));
+        long timeAllowed = params.getLong(MoreLikeThisParams.SEEDS_TIME_ALLOWED, 1000L);
+        boolean needScores = (flags & SolrIndexSearcher.GET_SCORES) != 0;
+        long start = System.nanoTime();
+        DocList seeds = SeedSelector.getSeedDocs(searcher, query, filters, mode, matchOffset, maxSeeds, timeAllowed, needScores);
+        timings.stop(MLTTimings.Phase.SEEDS, start);
+        return seeds;
+    }
+
     public MLTResult getMoreLikeTheseFromDocs(DocIterator iterator, int start, int rows, List<Query> filters, int flags, Sort lsort) throws IOException, SyntaxError
     {
-        BooleanQuery.Builder qryBuilder = new BooleanQuery.Builder();
         List<Integer> ids = new ArrayList<Integer>();
+        List<String> seedKeys = new ArrayList<String>();
+        Set<String> keyFieldOnly = Collections.singleton(uniqueKeyField.getName());
 
         while(iterator.hasNext()) {
             int id = iterator.nextDoc();
-            Document doc = reader.document(id);
             ids.add(id);
 
-            // add exclusion filters to prevent matching seed documents
-            TermQuery tq = new TermQuery(new Term(uniqueKeyField.getName(), uniqueKeyField.getType().storedToIndexed(doc.getField(uniqueKeyField.getName()))));
-            qryBuilder.add(tq, BooleanClause.Occur.MUST_NOT);
+            // the terms cache is keyed on the unique keys, the only reason to read the seed's stored fields here
+            if(termsCache != null){
+                IndexableField keyField = reader.document(id, keyFieldOnly).getField(uniqueKeyField.getName());
+                seedKeys.add(uniqueKeyField.getType().toExternal(keyField));
+            }
         }
 
-        MLTQuery mltQuery = mlt.like(ids);
+        MLTQuery mltQuery = getMltQuery(ids, seedKeys);
 
         Query rawMLTQuery = mltQuery.getOrQuery();
 
@@ -170,10 +247,23 @@ public class MoreLikeThisHelper
             filters.add(mltQuery.getMustNOTMatchQuery());
         }
 
-        Query boostedMLTQuery = getBoostedFunctionQuery(rawMLTQuery);
-        qryBuilder.add(boostedMLTQuery, BooleanClause.Occur.MUST);
-        Query finalMLTQuery = qryBuilder.build();
+        Query candidatesQuery = getCandidatesQuery(ids);
+        if(candidatesQuery != null){
+            filters.add(candidatesQuery);
+        }
+
+        if(useTopK(mltQuery, lsort, flags)){
+            return getTopKResults(mltQuery, ids, start, rows, filters, flags, lsort);
+        }
 
+        // exclude the seed documents by doc id
+        if(ids.size() > 0){
+            filters.add(new SeedExclusionFilter(ids, searcher.maxDoc()));
+        }
+
+        Query finalMLTQuery = getReRankQuery(mltQuery, getBoostedFunctionQuery(rawMLTQuery), lsort);
+
+        long searchStart = System.nanoTime();
         DocListAndSet results = new DocListAndSet();
         if (this.needDocSet) {
             results = searcher.getDocListAndSet(finalMLTQuery, filters, lsort, start, rows, flags);
@@ -181,10 +271,110 @@ public class MoreLikeThisHelper
             results.docList = searcher.getDocList(finalMLTQuery, filters, lsort, start, rows, flags);
         }
 
+        timings.stop(MLTTimings.Phase.QUERY, searchStart);
         return new MLTResult(mltQuery.getMltTerms(), finalMLTQuery, results);
     }
 
 
+    /**
+     * For mlt.candidates=lsh, builds a filter matching the documents that share at least one MinHash LSH band
+     * with a seed document, so the MLT query only scores likely near neighbours. The filter is not cached, as it
+     * is specific to the seeds.
+     *
+     * @return the filter, or null if not enabled or the seeds have no band tokens
+     */
+    private Query getCandidatesQuery(List<Integer> ids) throws IOException {
+        String candidates = params.get(MoreLikeThisParams.CANDIDATES);
+        if(candidates == null){
+            return null;
+        }
+        if(!MoreLikeThisParams.CANDIDATES_LSH.equals(candidates)){
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                    String.format("Unknown %s value '%s'", MoreLikeThisParams.CANDIDATES, candidates));
+        }
+
+        String lshField = params.get(MoreLikeThisParams.LSH_FIELD);
+        SchemaField field = lshField == null ? null : searcher.getSchema().getFieldOrNull(lshField);
+        if(field == null || !(field.getType() instanceof MinHashBandField) || !field.stored()){
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                    String.format("%s=%s requires %s to name a stored %s field", MoreLikeThisParams.CANDIDATES,
+                            MoreLikeThisParams.CANDIDATES_LSH, MoreLikeThisParams.LSH_FIELD, MinHashBandField.class.getSimpleName()));
+        }
+
+        Set<String> fieldsToLoad = Collections.singleton(lshField);
+        Set<BytesRef> bandTokens = new HashSet<BytesRef>();
+        for(int id: ids){
+            for(String token: reader.document(id, fieldsToLoad).getValues(lshField)){
+                bandTokens.add(new BytesRef(token));
+            }
+        }
+        if(bandTokens.isEmpty()){
+            // seeds indexed before the signature field was added, fall back to the full MLT query
+            return null;
+        }
+
+        WrappedQuery candidatesQuery = new WrappedQuery(new TermsQuery(lshField, new ArrayList<BytesRef>(bandTokens)));
+        candidatesQuery.setCache(false);
+        return candidatesQuery;
+    }
+
+    /**
+     * For mlt.rerank, retrieves the candidates with just the top mlt.rerank.terms interesting terms, and scores only
+     * the top mlt.rerank candidates with the full query
+     *
+     * @return the re-rank query, or the full query if not enabled
+     */
+    private Query getReRankQuery(MLTQuery mltQuery, Query fullQuery, Sort lsort){
+        if(reRankDocs <= 0 || !TopKSearch.isRelevanceSort(lsort) || mltQuery.getMltTerms().size() <= reRankTerms){
+            return fullQuery;
+        }
+        return new ReRankMLTQuery(mltQuery.getOrQuery(reRankTerms), fullQuery, reRankDocs);
+    }
+
+    private boolean useTopK(MLTQuery mltQuery, Sort lsort, int flags){
+        return this.topK
+                && TopKSearch.canUse(mlt.getBoostFn(), lsort, this.needDocSet, flags)
+                && mltQuery.supportsTopK(searcher.getSimilarity(true));
+    }
+
+    /**
+     * Runs the MLT query as a WeightedTermsQuery that only finds the top documents. The filters and the seed
+     * document exclusion are applied by the query itself.
+     */
+    private MLTResult getTopKResults(MLTQuery mltQuery, List<Integer> seedIds, int start, int rows, List<Query> filters, int flags, Sort lsort) throws IOException
+    {
+        int[] sortedIds = new int[seedIds.size()];
+        for(int i = 0; i < sortedIds.length; i++){
+            sortedIds[i] = seedIds.get(i);
+        }
+        Arrays.sort(sortedIds);
+
+        Query topKQuery = mltQuery.getTopKQuery(TopKSearch.getTopK(searcher, start, rows), filters, sortedIds);
+        long searchStart = System.nanoTime();
+        DocListAndSet results = new DocListAndSet();
+        results.docList = searcher.getDocList(topKQuery, Collections.<Query>emptyList(), lsort, start, rows, flags);
+        timings.stop(MLTTimings.Phase.QUERY, searchStart);
+        return new MLTResult(mltQuery.getMltTerms(), topKQuery, results);
+    }
+
+    /**
+     * Extracts the interesting terms for the seed documents, from the terms cache if configured
+     */
+    private MLTQuery getMltQuery(List<Integer> ids, List<String> seedKeys) throws IOException {
+        if(termsCache == null){
+            return mlt.like(ids);
+        }
+
+        MLTTermsCacheKey key = new MLTTermsCacheKey(seedKeys, params);
+        MLTQuery cached = termsCache.get(key);
+        if(cached == null){
+            cached = mlt.like(ids);
+            termsCache.put(key, cached);
+        }
+        // copy, as callers re-order the term list
+        return cached.copy();
+    }
+
     public MLTResult getMoreLikeThisFromContentSteam(Reader reader, int start, int rows, List<Query> filters, int flags, Sort lsort) throws IOException, SyntaxError
     {
         MLTQuery mltQuery = mlt.like(reader);
@@ -196,13 +386,55 @@ public class MoreLikeThisHelper
                     MoreLikeThisParams.FL_MUST_MATCH, MoreLikeThisParams.FL_MUST_NOT_MATCH));
         }
 
-        Query boostedMLTQuery = getBoostedFunctionQuery( rawMLTQuery );
+        if(useTopK(mltQuery, lsort, flags)){
+            return getTopKResults(mltQuery, Collections.<Integer>emptyList(), start, rows, filters, flags, lsort);
+        }
+
+        Query boostedMLTQuery = getReRankQuery(mltQuery, getBoostedFunctionQuery( rawMLTQuery ), lsort);
+        long searchStart = System.nanoTime();
         DocListAndSet results = new DocListAndSet();
         if (this.needDocSet) {
             results =         searcher.getDocListAndSet(  boostedMLTQuery, filters, lsort, start, rows, flags);
         } else {
             results.docList = searcher.getDocList( boostedMLTQuery, filters, lsort, start, rows, flags);
         }
+        timings.stop(MLTTimings.Phase.QUERY, searchStart);
+        return new MLTResult(mltQuery.getMltTerms(), boostedMLTQuery, results);
+    }
+
+    /**
+     * Runs an MLT query whose terms and weights were chosen elsewhere, as on a shard of a distributed request
+     *
+     * @param excludeKeys the unique keys of the seed documents, which are excluded from the results
+     */
+    public MLTResult getMoreLikeThisFromTerms(MLTQuery mltQuery, List<String> excludeKeys, int start, int rows, List<Query> filters, int flags, Sort lsort) throws IOException, SyntaxError
+    {
+        if(excludeKeys.size() > 0){
+            List<BytesRef> indexedKeys = new ArrayList<BytesRef>(excludeKeys.size());
+            for(String key: excludeKeys){
+                BytesRefBuilder indexedKey = new BytesRefBuilder();
+                uniqueKeyField.getType().readableToIndexed(key, indexedKey);
+                indexedKeys.add(indexedKey.get());
+            }
+            filters.add(new BooleanQuery.Builder()
+                    .add(new MatchAllDocsQuery(), BooleanClause.Occur.MUST)
+                    .add(new TermsQuery(uniqueKeyField.getName(), indexedKeys), BooleanClause.Occur.MUST_NOT)
+                    .build());
+        }
+
+        if(useTopK(mltQuery, lsort, flags)){
+            return getTopKResults(mltQuery, Collections.<Integer>emptyList(), start, rows, filters, flags, lsort);
+        }
+
+        Query boostedMLTQuery = getReRankQuery(mltQuery, getBoostedFunctionQuery(mltQuery.getOrQuery()), lsort);
+        long searchStart = System.nanoTime();
+        DocListAndSet results = new DocListAndSet();
+        if (this.needDocSet) {
+            results = searcher.getDocListAndSet(boostedMLTQuery, filters, lsort, start, rows, flags);
+        } else {
+            results.docList = searcher.getDocList(boostedMLTQuery, filters, lsort, start, rows, flags);
+        }
+        timings.stop(MLTTimings.Phase.QUERY, searchStart);
         return new MLTResult(mltQuery.getMltTerms(), boostedMLTQuery, results);
     }
 
@@ -210,6 +442,11 @@ public class MoreLikeThisHelper
     {
         return mlt;
     }
+
+    MLTTimings getTimings()
+    {
+        return timings;
+    }
 }
 
 
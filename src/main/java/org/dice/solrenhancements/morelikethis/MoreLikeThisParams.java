@@ -41,6 +41,58 @@ public interface MoreLikeThisParams {
     java.lang.String STREAM_BODY_FL = "stream.body.fl";
 
     java.lang.String STREAM_QF = "stream.qf";
+
+    // use the interesting terms cache (if configured on the handler) for seed documents
+    java.lang.String TERMS_CACHE = "mlt.termsCache";
+
+    // extract the terms of the seed documents in parallel, in chunks of this many documents per task
+    java.lang.String PARALLEL = "mlt.parallel";
+    java.lang.String PARALLEL_CHUNK_SIZE = "mlt.parallel.chunk";
+
+    // find just the top rows with a pruning disjunction scored by the sum of the matching terms' weights
+    java.lang.String TOP_K = "mlt.topk";
+
+    // restrict the MLT query to candidate documents, "lsh" for documents sharing a MinHash band with a seed
+    java.lang.String CANDIDATES = "mlt.candidates";
+    java.lang.String CANDIDATES_LSH = "lsh";
+    // the MinHashBandField holding the band tokens
+    java.lang.String LSH_FIELD = "mlt.lsh.fl";
+
+    // re-rank the top mlt.rerank documents found by the top mlt.rerank.terms interesting terms with the full query
+    java.lang.String RERANK = "mlt.rerank";
+    java.lang.String RERANK_TERMS = "mlt.rerank.terms";
+
+    // batch mode, returns a result list for each seed query, unique key or line of an NDJSON content stream
+    java.lang.String BATCH = "mlt.batch";
+    java.lang.String BATCH_QUERIES = "mlt.batch.q";
+    java.lang.String BATCH_IDS = "mlt.batch.ids";
+
+    // the seed budget of a "more like these" query (default 100), and how the seeds are chosen: top (by score), sample (a
+    // reservoir sample of all the matches) or time (the top matches found within mlt.seeds.timeAllowed ms)
+    java.lang.String SEEDS = "mlt.seeds";
+    java.lang.String SEEDS_MODE = "mlt.seeds.mode";
+    java.lang.String SEEDS_TIME_ALLOWED = "mlt.seeds.timeAllowed";
+
+    // distributed mode, the coordinator chooses the terms from global stats and sends the weighted query to the shards
+    java.lang.String DISTRIB = "mlt.distrib";
+    // internal, set on the shard requests
+    java.lang.String DISTRIB_PHASE = "mlt.distrib.phase";
+    java.lang.String DISTRIB_TERMS = "mlt.distrib.terms";
+    java.lang.String DISTRIB_WEIGHTS = "mlt.distrib.weights";
+    java.lang.String DISTRIB_EXCLUDE = "mlt.distrib.exclude";
+    java.lang.String DISTRIB_SEEDS = "mlt.distrib.seeds";
+
+    // precomputed neighbour table, mlt.table.command=build|status builds it (in the background) or reports on it
+    java.lang.String TABLE_COMMAND = "mlt.table.command";
+    java.lang.String TABLE_K = "mlt.table.k";
+    // the documents to compute the neighbours of, defaults to all
+    java.lang.String TABLE_FQ = "mlt.table.fq";
+    java.lang.String TABLE_THREADS = "mlt.table.threads";
+    // serve from the table when it has the seed, was built with the same term selection parameters, and is no
+    // older than the max age in seconds (a day by default, less than 0 for any age)
+    java.lang.String PRECOMPUTED = "mlt.precomputed";
+    java.lang.String PRECOMPUTED_MAX_AGE = "mlt.precomputed.maxAge";
+    long DEFAULT_PRECOMPUTED_MAX_AGE = 24L * 60 * 60;
     // end new to this plugin
 
     // the /mlt request handler uses 'rows'
@@ -0,0 +1,252 @@
+package org.dice.solrenhancements.morelikethis;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.RandomAccessInput;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Read only, memory mapped table of the precomputed MLT neighbours of each document, written by
+ * {@link NeighbourTableBuilder}. Documents are identified by their unique key, so the table stays usable as the
+ * index changes; keys not in the table (documents added since the build) are looked up live.
+ *
+ * File layout (all positions are absolute file pointers):
+ * <pre>
+ *   header
+ *   key bytes          - the unique keys of every document, utf8, in sorted order
+ *   rows               - per document with neighbours: K neighbour key indexes (-1 padded) then K float scores
+ *   key offsets        - numKeys + 1 longs, the start of each key
+ *   row pointers       - numKeys longs, the start of each key's row, -1 if none
+ *   params signature   - string, the MLT term selection parameters and mlt.fq filters the table was built with
+ *   trailer            - index version, build time, K, numKeys, key offsets position, row pointers position,
+ *                        params signature position
+ *   footer
+ * </pre>
+ *
+ * Requests whose term selection parameters or mlt.fq filters differ from the signature (see
+ * {@link NeighbourTableBuilder#getParamsSignature}) are not served from the table, as their neighbours would differ.
+ *
+ * Tables are shared by concurrent requests and reference counted, the file is unmapped once the last reference
+ * is released.
+ */
+public final class NeighbourTable implements Closeable {
+
+    static final String CODEC = "DiceMLTNeighbours";
+    static final int VERSION_START = 0;
+    static final int VERSION_PARAMS_SIGNATURE = 1;
+    static final int VERSION_CURRENT = VERSION_PARAMS_SIGNATURE;
+    static final int TRAILER_SIZE = 8 + 8 + 4 + 4 + 8 + 8 + 8;
+
+    static final String FILE_PREFIX = "neighbours_";
+    static final String FILE_SUFFIX = ".tbl";
+
+    private final String fileName;
+    private final IndexInput input;
+    private final RandomAccessInput data;
+    private final long indexVersion;
+    private final long buildTime;
+    private final int k;
+    private final int numKeys;
+    private final long keyOffsetsPosition;
+    private final long rowPointersPosition;
+    private final String paramsSignature;
+    private final AtomicInteger refCount = new AtomicInteger(1);
+
+    private NeighbourTable(String fileName, IndexInput input) throws IOException {
+        this.fileName = fileName;
+        this.input = input;
+        // tables without a params signature can't be matched to requests, so are rebuilt
+        CodecUtil.checkHeader(input, CODEC, VERSION_PARAMS_SIGNATURE, VERSION_CURRENT);
+        CodecUtil.checksumEntireFile(input);
+
+        input.seek(input.length() - CodecUtil.footerLength() - TRAILER_SIZE);
+        this.indexVersion = input.readLong();
+        this.buildTime = input.readLong();
+        this.k = input.readInt();
+        this.numKeys = input.readInt();
+        this.keyOffsetsPosition = input.readLong();
+        this.rowPointersPosition = input.readLong();
+        long paramsSignaturePosition = input.readLong();
+        input.seek(paramsSignaturePosition);
+        this.paramsSignature = input.readString();
+        this.data = input.randomAccessSlice(0, input.length());
+    }
+
+    /**
+     * Opens (memory maps, for an MMapDirectory) the table, verifying its checksum
+     */
+    static NeighbourTable open(Directory dir, String fileName) throws IOException {
+        IndexInput input = dir.openInput(fileName, IOContext.DEFAULT);
+        try {
+            return new NeighbourTable(fileName, input);
+        } catch (IOException | RuntimeException e) {
+            input.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the file name of the table for an index version, names sort by version when padded
+     */
+    static String getFileName(long indexVersion){
+        return FILE_PREFIX + String.format("%019d", indexVersion) + FILE_SUFFIX;
+    }
+
+    /**
+     * @return the index version a table (or temporary build) file is for, or -1 if the name does not hold one
+     */
+    static long getIndexVersion(String fileName){
+        int end = FILE_PREFIX.length();
+        while(end < fileName.length() && Character.isDigit(fileName.charAt(end))){
+            end++;
+        }
+        if(!fileName.startsWith(FILE_PREFIX) || end == FILE_PREFIX.length()){
+            return -1L;
+        }
+        return Long.parseLong(fileName.substring(FILE_PREFIX.length(), end));
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * @return the version of the index the table was built from
+     */
+    public long getIndexVersion() {
+        return indexVersion;
+    }
+
+    /**
+     * @return when the table was built, in milliseconds since the epoch
+     */
+    public long getBuildTime() {
+        return buildTime;
+    }
+
+    /**
+     * @return the (maximum) number of neighbours stored per document
+     */
+    public int getK() {
+        return k;
+    }
+
+    public int getNumKeys() {
+        return numKeys;
+    }
+
+    /**
+     * @return the signature of the term selection parameters and filters the table was built with
+     */
+    public String getParamsSignature() {
+        return paramsSignature;
+    }
+
+    /**
+     * @return the index of the key, or -1 if not in the table
+     */
+    public int findKey(String key) throws IOException {
+        final BytesRef target = new BytesRef(key);
+        int low = 0;
+        int high = numKeys - 1;
+        while(low <= high){
+            int mid = (low + high) >>> 1;
+            int cmp = compareKey(mid, target);
+            if(cmp < 0){
+                low = mid + 1;
+            }
+            else if(cmp > 0){
+                high = mid - 1;
+            }
+            else{
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private int compareKey(int keyIndex, BytesRef target) throws IOException {
+        long start = data.readLong(keyOffsetsPosition + 8L * keyIndex);
+        long end = data.readLong(keyOffsetsPosition + 8L * (keyIndex + 1));
+        int length = (int) (end - start);
+        int common = Math.min(length, target.length);
+        for(int i = 0; i < common; i++){
+            int cmp = (data.readByte(start + i) & 0xFF) - (target.bytes[target.offset + i] & 0xFF);
+            if(cmp != 0){
+                return cmp;
+            }
+        }
+        return length - target.length;
+    }
+
+    /**
+     * @return the unique key at the index
+     */
+    public String getKey(int keyIndex) throws IOException {
+        long start = data.readLong(keyOffsetsPosition + 8L * keyIndex);
+        long end = data.readLong(keyOffsetsPosition + 8L * (keyIndex + 1));
+        byte[] bytes = new byte[(int) (end - start)];
+        for(int i = 0; i < bytes.length; i++){
+            bytes[i] = data.readByte(start + i);
+        }
+        return new BytesRef(bytes).utf8ToString();
+    }
+
+    /**
+     * Reads the neighbours of a document, best first
+     *
+     * @param keyIndex   the index of the document's key
+     * @param neighbours filled with the neighbours' key indexes, -1 after the last neighbour. Must hold K values
+     * @param scores     filled with the neighbours' scores. Must hold K values
+     * @return false if the document's neighbours were not computed (e.g. it was not in the build subset)
+     */
+    public boolean getNeighbours(int keyIndex, int[] neighbours, float[] scores) throws IOException {
+        long row = data.readLong(rowPointersPosition + 8L * keyIndex);
+        if(row < 0){
+            return false;
+        }
+        for(int i = 0; i < k; i++){
+            neighbours[i] = data.readInt(row + 4L * i);
+            scores[i] = Float.intBitsToFloat(data.readInt(row + 4L * (k + i)));
+        }
+        return true;
+    }
+
+    /**
+     * Takes a reference to the table, which must be released with {@link #decRef()}
+     *
+     * @return false if the table has already been closed
+     */
+    public boolean tryIncRef() {
+        int count;
+        while((count = refCount.get()) > 0){
+            if(refCount.compareAndSet(count, count + 1)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Releases a reference, closing the table once all are released
+     */
+    public void decRef() throws IOException {
+        if(refCount.decrementAndGet() == 0){
+            input.close();
+        }
+    }
+
+    /**
+     * Releases the owner's reference
+     */
+    @Override
+    public void close() throws IOException {
+        decRef();
+    }
+}
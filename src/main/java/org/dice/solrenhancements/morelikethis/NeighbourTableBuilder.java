@@ -0,0 +1,337 @@
+package org.dice.solrenhancements.morelikethis;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.InPlaceMergeSorter;
+import org.apache.solr.common.params.FacetParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.*;
+import org.apache.solr.util.DefaultSolrThreadFactory;
+import org.apache.solr.common.util.ExecutorUtil;
+import org.dice.solrenhancements.DirectoryHelper;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Builds a {@link NeighbourTable}, running MoreLikeThis for every document (or those matching a subset filter)
+ * and keeping the top K neighbours of each. The segments are processed in parallel, each writing its rows to a
+ * temporary file, which are then combined into the table. The table is written under a temporary name and
+ * renamed once complete, so a partially written table is never loaded.
+ *
+ * The MLT parameters are those of the build request, and their signature is stored in the table so that it only
+ * serves requests with the same term selection parameters and mlt.fq filters. A boost function is not applied, as
+ * it typically depends on the time of the request, so boosted requests are never served from the table, and the
+ * query result cache is not checked.
+ *
+ * A build is stopped with {@link #cancel()} rather than by interrupting its threads, as an interrupt during a read
+ * closes the shared FileChannel of an NIOFSDirectory, breaking the core's index reads.
+ */
+class NeighbourTableBuilder {
+
+    static final String DIR_NAME = "mlt_neighbours";
+
+    private final SolrParams params;
+    private final List<Query> mltFilters;
+    private final List<Query> subsetFilters;
+    private final int k;
+    private final int threads;
+    private volatile boolean cancelled = false;
+
+    /**
+     * @param params        the MLT parameters to compute the neighbours with
+     * @param mltFilters    the filters the neighbours must match (mlt.fq)
+     * @param subsetFilters the documents to compute the neighbours of, empty for all
+     * @param k             the number of neighbours to keep per document
+     * @param threads       the number of segments to process at once
+     */
+    NeighbourTableBuilder(SolrParams params, List<Query> mltFilters, List<Query> subsetFilters, int k, int threads) {
+        ModifiableSolrParams buildParams = new ModifiableSolrParams(params);
+        buildParams.remove(MoreLikeThisParams.BOOST_FN);
+        buildParams.remove(MoreLikeThisParams.PARALLEL);
+        buildParams.remove(FacetParams.FACET);
+        this.params = buildParams;
+        this.mltFilters = mltFilters;
+        this.subsetFilters = subsetFilters;
+        this.k = k;
+        this.threads = threads;
+    }
+
+    /**
+     * @return the signature of the parameters a table's neighbours depend on: the term selection parameters (see
+     * {@link MLTTermsCacheKey#getParamsSignature(SolrParams)}) and the mlt.fq filters, in any order
+     */
+    static String getParamsSignature(SolrParams params){
+        String[] filters = params.getParams(MoreLikeThisParams.FQ);
+        if(filters == null){
+            return MLTTermsCacheKey.getParamsSignature(params);
+        }
+        filters = filters.clone();
+        Arrays.sort(filters);
+        return MLTTermsCacheKey.getParamsSignature(params) + MoreLikeThisParams.FQ + "=" + Arrays.toString(filters) + "&";
+    }
+
+    /**
+     * Stops a running build, which fails with an IOException once its threads notice
+     */
+    void cancel() {
+        cancelled = true;
+    }
+
+    private void checkCancelled() throws IOException {
+        if(cancelled){
+            throw new IOException("Cancelled building the MLT neighbour table");
+        }
+    }
+
+    /**
+     * Builds the table for the searcher's index
+     *
+     * @return the file name of the table
+     */
+    String build(final SolrIndexSearcher searcher, final Directory dir) throws IOException, InterruptedException {
+        final long indexVersion = searcher.getIndexReader().getVersion();
+        final SchemaField uniqueKeyField = searcher.getSchema().getUniqueKeyField();
+
+        // the unique key of every live document, in sorted order
+        final BytesRef[] keys = new BytesRef[searcher.maxDoc()];
+        final Set<String> keyFieldOnly = Collections.singleton(uniqueKeyField.getName());
+        int numKeys = 0;
+        DocIterator liveDocs = searcher.getLiveDocs().iterator();
+        while(liveDocs.hasNext()){
+            checkCancelled();
+            int docId = liveDocs.nextDoc();
+            Document doc = searcher.doc(docId, keyFieldOnly);
+            keys[docId] = new BytesRef(uniqueKeyField.getType().toExternal(doc.getField(uniqueKeyField.getName())));
+            numKeys++;
+        }
+        final int[] sortedDocs = new int[numKeys];
+        for(int docId = 0, i = 0; docId < keys.length; docId++){
+            if(keys[docId] != null){
+                sortedDocs[i++] = docId;
+            }
+        }
+        new InPlaceMergeSorter() {
+            @Override
+            protected int compare(int i, int j) {
+                return keys[sortedDocs[i]].compareTo(keys[sortedDocs[j]]);
+            }
+
+            @Override
+            protected void swap(int i, int j) {
+                int tmp = sortedDocs[i];
+                sortedDocs[i] = sortedDocs[j];
+                sortedDocs[j] = tmp;
+            }
+        }.sort(0, numKeys);
+
+        final int[] docToKeyIndex = new int[searcher.maxDoc()];
+        Arrays.fill(docToKeyIndex, -1);
+        for(int i = 0; i < numKeys; i++){
+            docToKeyIndex[sortedDocs[i]] = i;
+        }
+
+        final DocSet subset = subsetFilters.isEmpty() ? searcher.getLiveDocs() : searcher.getDocSet(subsetFilters);
+        List<String> segmentFiles = new ArrayList<String>();
+        String tmpName = NeighbourTable.getFileName(indexVersion) + ".tmp";
+        IndexOutput out = null;
+        boolean success = false;
+        try {
+            segmentFiles = computeNeighbours(searcher, dir, subset, docToKeyIndex, indexVersion);
+
+            final BytesRef[] sortedKeys = new BytesRef[numKeys];
+            for(int i = 0; i < numKeys; i++){
+                sortedKeys[i] = keys[sortedDocs[i]];
+            }
+            checkCancelled();
+            out = dir.createOutput(tmpName, IOContext.DEFAULT);
+            writeTable(out, dir, sortedKeys, segmentFiles, k, indexVersion, getParamsSignature(params));
+            out.close();
+            out = null;
+
+            String fileName = NeighbourTable.getFileName(indexVersion);
+            DirectoryHelper.publishFile(dir, tmpName, fileName);
+            success = true;
+            return fileName;
+        } finally {
+            IOUtils.closeWhileHandlingException(out);
+            for(String segmentFile: segmentFiles){
+                IOUtils.deleteFilesIgnoringExceptions(dir, segmentFile);
+            }
+            if(!success){
+                IOUtils.deleteFilesIgnoringExceptions(dir, tmpName);
+            }
+        }
+    }
+
+    /**
+     * Writes the table (see {@link NeighbourTable} for the layout)
+     *
+     * @param sortedKeys   the unique keys, in sorted order
+     * @param segmentFiles the rows, each a key index followed by K neighbour key indexes and K scores
+     */
+    static void writeTable(IndexOutput out, Directory dir, BytesRef[] sortedKeys, List<String> segmentFiles, int k,
+                           long indexVersion, String paramsSignature) throws IOException {
+        final int numKeys = sortedKeys.length;
+        CodecUtil.writeHeader(out, NeighbourTable.CODEC, NeighbourTable.VERSION_CURRENT);
+
+        long[] keyOffsets = new long[numKeys + 1];
+        for(int i = 0; i < numKeys; i++){
+            keyOffsets[i] = out.getFilePointer();
+            out.writeBytes(sortedKeys[i].bytes, sortedKeys[i].offset, sortedKeys[i].length);
+        }
+        keyOffsets[numKeys] = out.getFilePointer();
+
+        long[] rowPointers = new long[numKeys];
+        Arrays.fill(rowPointers, -1L);
+        final long rowLength = 8L * k;
+        for(String segmentFile: segmentFiles){
+            IndexInput in = dir.openInput(segmentFile, IOContext.READONCE);
+            try {
+                while (in.getFilePointer() < in.length()) {
+                    int keyIndex = in.readInt();
+                    rowPointers[keyIndex] = out.getFilePointer();
+                    out.copyBytes(in, rowLength);
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        long keyOffsetsPosition = out.getFilePointer();
+        for(long offset: keyOffsets){
+            out.writeLong(offset);
+        }
+        long rowPointersPosition = out.getFilePointer();
+        for(long pointer: rowPointers){
+            out.writeLong(pointer);
+        }
+        long paramsSignaturePosition = out.getFilePointer();
+        out.writeString(paramsSignature);
+
+        out.writeLong(indexVersion);
+        out.writeLong(System.currentTimeMillis());
+        out.writeInt(k);
+        out.writeInt(numKeys);
+        out.writeLong(keyOffsetsPosition);
+        out.writeLong(rowPointersPosition);
+        out.writeLong(paramsSignaturePosition);
+        CodecUtil.writeFooter(out);
+    }
+
+    /**
+     * Runs MLT for the documents of each segment in parallel, writing each document's key index, neighbour key
+     * indexes and scores to a temporary file per segment
+     *
+     * @return the temporary files
+     */
+    private List<String> computeNeighbours(final SolrIndexSearcher searcher, final Directory dir, final DocSet subset,
+                                           final int[] docToKeyIndex, final long indexVersion) throws IOException, InterruptedException {
+
+        ExecutorService executor = ExecutorUtil.newMDCAwareFixedThreadPool(threads, new DefaultSolrThreadFactory("mltTableBuild"));
+        List<Future<String>> futures = new ArrayList<Future<String>>();
+        List<String> files = new ArrayList<String>();
+        boolean success = false;
+        try {
+            for (final LeafReaderContext leaf : searcher.getTopReaderContext().leaves()) {
+                futures.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return computeNeighbours(searcher, dir, leaf, subset, docToKeyIndex, indexVersion);
+                    }
+                }));
+            }
+            for (Future<String> future : futures) {
+                files.add(future.get());
+            }
+            success = true;
+            return files;
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof IOException){
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            if(!success){
+                cancel();
+            }
+            // wait for the tasks to notice, so none is still writing its file
+            ExecutorUtil.shutdownAndAwaitTermination(executor);
+            if(!success){
+                // remove the files of the segments that did complete
+                for (Future<String> future : futures) {
+                    if(future.isDone() && !future.isCancelled()){
+                        try {
+                            IOUtils.deleteFilesIgnoringExceptions(dir, future.get());
+                        } catch (ExecutionException | InterruptedException ignored) {
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private String computeNeighbours(SolrIndexSearcher searcher, Directory dir, LeafReaderContext leaf, DocSet subset,
+                                     int[] docToKeyIndex, long indexVersion) throws IOException, SyntaxError {
+
+        final SchemaField uniqueKeyField = searcher.getSchema().getUniqueKeyField();
+        // no boost function, so no query parser is required
+        final MoreLikeThisHelper helper = new MoreLikeThisHelper(params, searcher, uniqueKeyField, null);
+        // NO_SET_QCACHE is not public, so the results are still written to the (LRU) query result cache
+        final int flags = SolrIndexSearcher.GET_SCORES | SolrIndexSearcher.NO_CHECK_QCACHE;
+
+        IndexOutput out = dir.createTempOutput(NeighbourTable.FILE_PREFIX + indexVersion, "seg" + leaf.ord, IOContext.DEFAULT);
+        boolean success = false;
+        try {
+            final int maxDoc = leaf.reader().maxDoc();
+            for (int doc = 0; doc < maxDoc; doc++) {
+                checkCancelled();
+                final int docId = leaf.docBase + doc;
+                if (docToKeyIndex[docId] < 0 || !subset.exists(docId)) {
+                    continue;
+                }
+
+                DocIterator seed = new DocSlice(0, 1, new int[]{docId}, null, 1, 0.0f).iterator();
+                MLTResult result = helper.getMoreLikeTheseFromDocs(seed, 0, k, new ArrayList<Query>(mltFilters), flags, null);
+                DocIterator neighbours = result.getResults().docList.iterator();
+
+                out.writeInt(docToKeyIndex[docId]);
+                int[] neighbourIndexes = new int[k];
+                float[] scores = new float[k];
+                Arrays.fill(neighbourIndexes, -1);
+                for (int i = 0; i < k && neighbours.hasNext(); i++) {
+                    neighbourIndexes[i] = docToKeyIndex[neighbours.nextDoc()];
+                    scores[i] = neighbours.score();
+                }
+                for (int neighbour : neighbourIndexes) {
+                    out.writeInt(neighbour);
+                }
+                for (float score : scores) {
+                    out.writeInt(Float.floatToIntBits(score));
+                }
+            }
+            out.close();
+            success = true;
+            return out.getName();
+        } finally {
+            if (!success) {
+                IOUtils.closeWhileHandlingException(out);
+                IOUtils.deleteFilesIgnoringExceptions(dir, out.getName());
+            }
+        }
+    }
+}
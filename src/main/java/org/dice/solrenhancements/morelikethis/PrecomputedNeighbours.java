@@ -0,0 +1,252 @@
+package org.dice.solrenhancements.morelikethis;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.IOUtils;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.ExecutorUtil;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.DocList;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.DocSlice;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.DefaultSolrThreadFactory;
+import org.apache.solr.util.RefCounted;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Holds the current {@link NeighbourTable} of a core, stored in the mlt_neighbours directory of the core's data
+ * directory, and (re)builds it in the background. The newest table is loaded when the handler starts.
+ */
+class PrecomputedNeighbours implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(PrecomputedNeighbours.class);
+
+    private final SolrCore core;
+    private final Directory dir;
+    private final ExecutorService buildExecutor;
+
+    private volatile NeighbourTable table = null;
+    private volatile NeighbourTableBuilder builder = null;
+    private volatile boolean building = false;
+    private volatile String lastError = null;
+
+    PrecomputedNeighbours(SolrCore core) throws IOException {
+        this.core = core;
+        this.dir = new MMapDirectory(Paths.get(core.getDataDir(), NeighbourTableBuilder.DIR_NAME));
+        this.buildExecutor = ExecutorUtil.newMDCAwareSingleThreadExecutor(new DefaultSolrThreadFactory("mltTable"));
+        load();
+    }
+
+    private void load() throws IOException {
+        String newest = null;
+        for(String file: dir.listAll()){
+            if(file.startsWith(NeighbourTable.FILE_PREFIX) && file.endsWith(NeighbourTable.FILE_SUFFIX)
+                    && (newest == null || file.compareTo(newest) > 0)){
+                newest = file;
+            }
+        }
+        // the temporary files of builds for older index versions are left over from failed builds. Those of the
+        // same or newer versions may belong to a build still running, e.g. in the core being reloaded
+        long newestVersion = newest == null ? -1L : NeighbourTable.getIndexVersion(newest);
+        for(String file: dir.listAll()){
+            if(file.startsWith(NeighbourTable.FILE_PREFIX) && !file.endsWith(NeighbourTable.FILE_SUFFIX)
+                    && NeighbourTable.getIndexVersion(file) < newestVersion){
+                IOUtils.deleteFilesIgnoringExceptions(dir, file);
+            }
+        }
+        if(newest != null){
+            try {
+                table = NeighbourTable.open(dir, newest);
+                log.info("Loaded MLT neighbour table {} with {} keys", newest, table.getNumKeys());
+            } catch (IOException e) {
+                log.error("Unable to load MLT neighbour table " + newest, e);
+                lastError = e.toString();
+            }
+        }
+    }
+
+    /**
+     * Starts building a table from the core's current searcher, unless a build is already running
+     *
+     * @return false if a build is already running
+     */
+    synchronized boolean build(SolrParams params, List<Query> mltFilters, List<Query> subsetFilters) {
+        if(building){
+            return false;
+        }
+        int k = params.getInt(MoreLikeThisParams.TABLE_K, 50);
+        int threads = params.getInt(MoreLikeThisParams.TABLE_THREADS, Runtime.getRuntime().availableProcessors());
+        final NeighbourTableBuilder builder = new NeighbourTableBuilder(params, mltFilters, subsetFilters, k, threads);
+
+        this.builder = builder;
+        building = true;
+        buildExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                RefCounted<SolrIndexSearcher> searcher = core.getSearcher();
+                try {
+                    long start = System.currentTimeMillis();
+                    String fileName = builder.build(searcher.get(), dir);
+                    swap(NeighbourTable.open(dir, fileName));
+                    lastError = null;
+                    log.info("Built MLT neighbour table {} in {} ms", fileName, System.currentTimeMillis() - start);
+                } catch (Exception e) {
+                    log.error("Unable to build the MLT neighbour table", e);
+                    lastError = e.toString();
+                } finally {
+                    searcher.decref();
+                    PrecomputedNeighbours.this.builder = null;
+                    building = false;
+                }
+            }
+        });
+        return true;
+    }
+
+    private void swap(NeighbourTable newTable) throws IOException {
+        NeighbourTable old;
+        synchronized (this) {
+            old = table;
+            table = newTable;
+        }
+        if(old != null){
+            // unmapped once any requests still reading it are done
+            old.close();
+            if(!old.getFileName().equals(newTable.getFileName())) {
+                IOUtils.deleteFilesIgnoringExceptions(dir, old.getFileName());
+            }
+        }
+    }
+
+    NamedList<Object> getStatus() {
+        NamedList<Object> status = new NamedList<Object>();
+        status.add("building", building);
+        NeighbourTable current = acquire();
+        if(current != null) {
+            try {
+                status.add("file", current.getFileName());
+                status.add("indexVersion", current.getIndexVersion());
+                status.add("buildTime", new Date(current.getBuildTime()));
+                status.add("k", current.getK());
+                status.add("numKeys", current.getNumKeys());
+            } finally {
+                release(current);
+            }
+        }
+        if(lastError != null){
+            status.add("lastError", lastError);
+        }
+        return status;
+    }
+
+    /**
+     * Looks up the precomputed neighbours of a seed document
+     *
+     * @param seedKey         the unique key of the seed
+     * @param paramsSignature the signature of the request's term selection parameters and filters, see
+     *                        {@link NeighbourTableBuilder#getParamsSignature(SolrParams)}
+     * @param filter          the documents the neighbours must match, null for any
+     * @param maxAge          the maximum age of the table in milliseconds, or less than 0 for any age
+     * @return the neighbours, or null if they can't be served from the table, so must be computed live. Their
+     * number of matches only counts the table's neighbours, so is a lower bound when the row was full
+     */
+    DocList getNeighbours(SolrIndexSearcher searcher, String seedKey, String paramsSignature, DocSet filter, int start, int rows, long maxAge) throws IOException {
+        NeighbourTable current = acquire();
+        if(current == null){
+            return null;
+        }
+        try {
+            if(maxAge >= 0 && System.currentTimeMillis() - current.getBuildTime() > maxAge){
+                return null;
+            }
+            if(!current.getParamsSignature().equals(paramsSignature)){
+                // built with other fields, term selection parameters or filters, so the neighbours would differ
+                return null;
+            }
+            if(start + rows > current.getK()){
+                // deeper than the table goes
+                return null;
+            }
+            int keyIndex = current.findKey(seedKey);
+            int[] neighbours = new int[current.getK()];
+            float[] scores = new float[current.getK()];
+            if(keyIndex < 0 || !current.getNeighbours(keyIndex, neighbours, scores)){
+                // indexed since the table was built, or not in the build subset
+                return null;
+            }
+
+            SchemaField uniqueKeyField = searcher.getSchema().getUniqueKeyField();
+            BytesRefBuilder indexedKey = new BytesRefBuilder();
+            int[] docs = new int[neighbours.length];
+            float[] docScores = new float[neighbours.length];
+            int matches = 0;
+            for(int i = 0; i < neighbours.length && neighbours[i] >= 0; i++){
+                uniqueKeyField.getType().readableToIndexed(current.getKey(neighbours[i]), indexedKey);
+                int docId = searcher.getFirstMatch(new Term(uniqueKeyField.getName(), indexedKey.get()));
+                // skip neighbours deleted since the build
+                if(docId >= 0 && (filter == null || filter.exists(docId))){
+                    docs[matches] = docId;
+                    docScores[matches] = scores[i];
+                    matches++;
+                }
+            }
+            if(matches < start + rows && neighbours[neighbours.length - 1] >= 0){
+                // the row was full, so live MLT may find more matches past the K stored
+                return null;
+            }
+            float maxScore = matches > 0 ? docScores[0] : 0.0f;
+            int offset = Math.min(start, matches);
+            return new DocSlice(offset, Math.min(rows, matches - offset), docs, docScores, matches, maxScore);
+        } finally {
+            release(current);
+        }
+    }
+
+    private NeighbourTable acquire() {
+        while(true){
+            NeighbourTable current = table;
+            if(current == null || current.tryIncRef()){
+                return current;
+            }
+            // swapped and closed in between, retry with the new table
+        }
+    }
+
+    private void release(NeighbourTable current) {
+        try {
+            current.decRef();
+        } catch (IOException e) {
+            log.warn("Unable to close MLT neighbour table " + current.getFileName(), e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        // cancelled rather than interrupted, as an interrupted read breaks the core's NIOFSDirectory
+        NeighbourTableBuilder running = builder;
+        if(running != null){
+            running.cancel();
+        }
+        ExecutorUtil.shutdownAndAwaitTermination(buildExecutor);
+        NeighbourTable current;
+        synchronized (this) {
+            current = table;
+            table = null;
+        }
+        IOUtils.close(current, dir);
+    }
+}
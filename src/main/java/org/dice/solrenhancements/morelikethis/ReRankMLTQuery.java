@@ -0,0 +1,149 @@
+package org.dice.solrenhancements.morelikethis;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.*;
+import org.apache.solr.handler.component.MergeStrategy;
+import org.apache.solr.search.QueryCommand;
+import org.apache.solr.search.RankQuery;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Two phase MLT query: documents are retrieved with a cheap query (the top few interesting terms, or the seed
+ * query for feedback), and only the top reRankDocs of them are scored with the full (boosted) query, via Solr's
+ * RankQuery extension point. The re-ranked documents take the full query's score, any further documents follow
+ * in the order of the cheap query.
+ */
+class ReRankMLTQuery extends RankQuery {
+
+    private final Query mainQuery;
+    private final Query reRankQuery;
+    private final int reRankDocs;
+
+    ReRankMLTQuery(Query mainQuery, Query reRankQuery, int reRankDocs) {
+        this.mainQuery = mainQuery;
+        this.reRankQuery = reRankQuery;
+        this.reRankDocs = reRankDocs;
+    }
+
+    @Override
+    public RankQuery wrap(Query mainQuery) {
+        return new ReRankMLTQuery(mainQuery, reRankQuery, reRankDocs);
+    }
+
+    @Override
+    public MergeStrategy getMergeStrategy() {
+        return null;
+    }
+
+    @Override
+    public TopDocsCollector<ScoreDoc> getTopDocsCollector(int len, QueryCommand cmd, IndexSearcher searcher) throws IOException {
+        return new ReRankCollector(len, searcher);
+    }
+
+    @Override
+    public Query rewrite(IndexReader reader) throws IOException {
+        Query rewritten = mainQuery.rewrite(reader);
+        if(rewritten != mainQuery){
+            return wrap(rewritten);
+        }
+        return super.rewrite(reader);
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher, boolean needsScores) throws IOException {
+        // the first phase, the second runs in the collector
+        return mainQuery.createWeight(searcher, needsScores);
+    }
+
+    @Override
+    public String toString(String field) {
+        return "{!mltrerank reRankDocs=" + reRankDocs + "}(" + mainQuery.toString(field) + ")(" + reRankQuery.toString(field) + ")";
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return sameClassAs(other) && equalsTo((ReRankMLTQuery) other);
+    }
+
+    private boolean equalsTo(ReRankMLTQuery other) {
+        return reRankDocs == other.reRankDocs
+                && mainQuery.equals(other.mainQuery)
+                && reRankQuery.equals(other.reRankQuery);
+    }
+
+    @Override
+    public int hashCode() {
+        int h = classHash();
+        h = 31 * h + mainQuery.hashCode();
+        h = 31 * h + reRankQuery.hashCode();
+        return 31 * h + reRankDocs;
+    }
+
+    private class ReRankCollector extends TopDocsCollector<ScoreDoc> {
+
+        private final TopDocsCollector<? extends ScoreDoc> mainCollector;
+        private final IndexSearcher searcher;
+        private final int length;
+
+        ReRankCollector(int length, IndexSearcher searcher) {
+            super(null);
+            this.length = length;
+            this.searcher = searcher;
+            this.mainCollector = TopScoreDocCollector.create(Math.max(1, Math.max(reRankDocs, length)));
+        }
+
+        @Override
+        public LeafCollector getLeafCollector(LeafReaderContext context) throws IOException {
+            return mainCollector.getLeafCollector(context);
+        }
+
+        @Override
+        public boolean needsScores() {
+            return true;
+        }
+
+        @Override
+        public int getTotalHits() {
+            return mainCollector.getTotalHits();
+        }
+
+        @Override
+        public TopDocs topDocs() {
+            return topDocs(0, length);
+        }
+
+        @Override
+        public TopDocs topDocs(int start, int howMany) {
+            TopDocs mainDocs = mainCollector.topDocs(0, Math.max(reRankDocs, length));
+            ScoreDoc[] all = mainDocs.scoreDocs;
+            if(all.length == 0){
+                return mainDocs;
+            }
+
+            int windowSize = Math.min(reRankDocs, all.length);
+            TopDocs window = new TopDocs(mainDocs.totalHits, Arrays.copyOf(all, windowSize), mainDocs.getMaxScore());
+            TopDocs rescored;
+            try {
+                rescored = new QueryRescorer(reRankQuery) {
+                    @Override
+                    protected float combine(float firstPassScore, boolean secondPassMatches, float secondPassScore) {
+                        return secondPassMatches ? secondPassScore : 0.0f;
+                    }
+                }.rescore(searcher, window, windowSize);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+
+            ScoreDoc[] merged = new ScoreDoc[all.length];
+            System.arraycopy(rescored.scoreDocs, 0, merged, 0, rescored.scoreDocs.length);
+            System.arraycopy(all, windowSize, merged, windowSize, all.length - windowSize);
+
+            int from = Math.min(start, merged.length);
+            int to = Math.min(merged.length, from + howMany);
+            return new TopDocs(mainDocs.totalHits, Arrays.copyOfRange(merged, from, to), rescored.getMaxScore());
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package org.dice.solrenhancements.morelikethis;
+
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.solr.search.DelegatingCollector;
+import org.apache.solr.search.ExtendedQueryBase;
+import org.apache.solr.search.PostFilter;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Post filter excluding the seed documents from MLT results. The seeds are held as a bit set of their (top level)
+ * doc ids, so excluding them requires neither the seeds' unique keys nor a MUST_NOT clause per seed. The filter
+ * is never cached, as it is specific to the seeds and the searcher.
+ */
+class SeedExclusionFilter extends ExtendedQueryBase implements PostFilter {
+
+    private final FixedBitSet seeds;
+    private final int numSeeds;
+
+    SeedExclusionFilter(List<Integer> seedIds, int maxDoc) {
+        this.seeds = new FixedBitSet(maxDoc);
+        for(int id: seedIds){
+            seeds.set(id);
+        }
+        this.numSeeds = seeds.cardinality();
+        setCache(false);
+        setCost(Math.max(getCost(), 100));
+    }
+
+    @Override
+    public DelegatingCollector getFilterCollector(IndexSearcher searcher) {
+        return new DelegatingCollector() {
+            @Override
+            public void collect(int doc) throws IOException {
+                if(!seeds.get(docBase + doc)){
+                    super.collect(doc);
+                }
+            }
+        };
+    }
+
+    @Override
+    public String toString(String field) {
+        return "SeedExclusionFilter(" + numSeeds + " seeds)";
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return sameClassAs(other) && seeds.equals(((SeedExclusionFilter) other).seeds);
+    }
+
+    @Override
+    public int hashCode() {
+        return classHash() * 31 + seeds.hashCode();
+    }
+}
@@ -0,0 +1,163 @@
+package org.dice.solrenhancements.morelikethis;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.InPlaceMergeSorter;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.search.DocList;
+import org.apache.solr.search.DocSlice;
+import org.apache.solr.search.SolrIndexSearcher;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Selects the seed documents of a "more like these" query, collecting at most the seed budget of documents
+ * rather than a DocList of every match:
+ *
+ * top    - the top documents by score, from a top docs collector of just offset + the seed budget documents
+ * sample - a uniform reservoir sample of all the matches. The sample is repeatable for the same query
+ * time   - the top documents by score among those collected within the time allowed
+ */
+final class SeedSelector {
+
+    enum Mode {
+        TOP, SAMPLE, TIME;
+
+        static Mode get(String mode){
+            if(mode == null){
+                return TOP;
+            }
+            try {
+                return Mode.valueOf(mode.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                        String.format("Unknown %s '%s', expected top, sample or time", MoreLikeThisParams.SEEDS_MODE, mode));
+            }
+        }
+    }
+
+    private SeedSelector(){
+    }
+
+    /**
+     * @param offset      the number of top seeds to skip (top and time modes)
+     * @param maxSeeds    the seed budget
+     * @param timeAllowed the time allowed in milliseconds, for the time mode
+     */
+    static DocList getSeedDocs(SolrIndexSearcher searcher, Query query, List<Query> filters, Mode mode,
+                               int offset, int maxSeeds, long timeAllowed, boolean needScores) throws IOException {
+        Query seedQuery = query;
+        if(filters != null && !filters.isEmpty()){
+            // the filters come from the filter cache
+            seedQuery = new BooleanQuery.Builder()
+                    .add(query, BooleanClause.Occur.MUST)
+                    .add(searcher.getDocSet(filters).getTopFilter(), BooleanClause.Occur.FILTER)
+                    .build();
+        }
+
+        if(mode == Mode.SAMPLE){
+            ReservoirCollector collector = new ReservoirCollector(maxSeeds, new Random(query.hashCode() * 31L + maxSeeds), needScores);
+            searcher.search(seedQuery, collector);
+            return collector.getDocList();
+        }
+
+        TopScoreDocCollector topCollector = TopScoreDocCollector.create(Math.max(1, offset + maxSeeds));
+        if(mode == Mode.TOP){
+            searcher.search(seedQuery, topCollector);
+        } else {
+            try {
+                searcher.search(seedQuery, new TimeLimitingCollector(topCollector, TimeLimitingCollector.getGlobalCounter(), timeAllowed));
+            } catch (TimeLimitingCollector.TimeExceededException e) {
+                // use the seeds collected so far
+            }
+        }
+
+        TopDocs topDocs = topCollector.topDocs(offset, maxSeeds);
+        int[] docs = new int[topDocs.scoreDocs.length];
+        float[] scores = needScores ? new float[docs.length] : null;
+        for(int i = 0; i < docs.length; i++){
+            docs[i] = topDocs.scoreDocs[i].doc;
+            if(needScores){
+                scores[i] = topDocs.scoreDocs[i].score;
+            }
+        }
+        return new DocSlice(0, docs.length, docs, scores, topDocs.totalHits, needScores ? topDocs.getMaxScore() : 0.0f);
+    }
+
+    /**
+     * Keeps a uniform random sample of up to n of the collected documents (algorithm R)
+     */
+    private static class ReservoirCollector extends SimpleCollector {
+
+        private final int[] docs;
+        private final float[] scores;
+        private final Random random;
+        private final boolean needScores;
+        private int seen = 0;
+        private int docBase;
+        private Scorer scorer;
+
+        ReservoirCollector(int n, Random random, boolean needScores){
+            this.docs = new int[n];
+            this.scores = new float[n];
+            this.random = random;
+            this.needScores = needScores;
+        }
+
+        @Override
+        protected void doSetNextReader(LeafReaderContext context) throws IOException {
+            this.docBase = context.docBase;
+        }
+
+        @Override
+        public void setScorer(Scorer scorer) throws IOException {
+            this.scorer = scorer;
+        }
+
+        @Override
+        public void collect(int doc) throws IOException {
+            int slot = seen < docs.length ? seen : random.nextInt(seen + 1);
+            seen++;
+            if(slot < docs.length){
+                docs[slot] = docBase + doc;
+                if(needScores){
+                    scores[slot] = scorer.score();
+                }
+            }
+        }
+
+        @Override
+        public boolean needsScores() {
+            return needScores;
+        }
+
+        DocList getDocList(){
+            final int size = Math.min(seen, docs.length);
+            float maxScore = 0.0f;
+            if(needScores) {
+                // best first, as for the other modes
+                new InPlaceMergeSorter() {
+                    @Override
+                    protected int compare(int i, int j) {
+                        return Float.compare(scores[j], scores[i]);
+                    }
+
+                    @Override
+                    protected void swap(int i, int j) {
+                        int doc = docs[i];
+                        docs[i] = docs[j];
+                        docs[j] = doc;
+                        float score = scores[i];
+                        scores[i] = scores[j];
+                        scores[j] = score;
+                    }
+                }.sort(0, size);
+                maxScore = size > 0 ? scores[0] : 0.0f;
+            }
+            return new DocSlice(0, size, docs, needScores ? scores : null, seen, maxScore);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package org.dice.solrenhancements.morelikethis;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Lets several consumers read the same character stream in a single pass over the source. Each consumer reads
+ * through its own {@link Cursor}, and characters are only buffered between the position of the slowest open
+ * cursor and that of the fastest. Memory is bounded by how far apart the consumers get, not by the length of the
+ * stream, so the caller should keep the cursors close together (e.g. by always advancing the one furthest behind).
+ *
+ * Not thread safe, the cursors are expected to be read from a single thread.
+ */
+final class SharedStreamReader {
+
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    private final Reader source;
+    private final List<Cursor> cursors = new ArrayList<Cursor>();
+
+    private char[] buffer = new char[INITIAL_BUFFER_SIZE];
+    // stream offset of buffer[0]
+    private long bufferStart = 0;
+    private int bufferLength = 0;
+    private boolean eof = false;
+
+    SharedStreamReader(Reader source) {
+        this.source = source;
+    }
+
+    /**
+     * @return a new reader over the stream, which MUST be created before any characters are read by another cursor
+     */
+    Cursor newCursor() {
+        if(bufferStart > 0){
+            throw new IllegalStateException("Cursors must be created before the stream is read");
+        }
+        Cursor cursor = new Cursor();
+        cursors.add(cursor);
+        return cursor;
+    }
+
+    /**
+     * Reads more of the source into the buffer, first dropping any characters every open cursor has read
+     *
+     * @return false if the source is exhausted
+     */
+    private boolean fill() throws IOException {
+        if(eof){
+            return false;
+        }
+        compact();
+        if(bufferLength == buffer.length){
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        int read;
+        do {
+            read = source.read(buffer, bufferLength, buffer.length - bufferLength);
+        } while (read == 0);
+
+        if(read < 0){
+            eof = true;
+            return false;
+        }
+        bufferLength += read;
+        return true;
+    }
+
+    private void compact() {
+        long minPosition = bufferStart + bufferLength;
+        for(Cursor cursor: cursors){
+            if(!cursor.closed){
+                minPosition = Math.min(minPosition, cursor.position);
+            }
+        }
+        int discard = (int) (minPosition - bufferStart);
+        if(discard > 0){
+            System.arraycopy(buffer, discard, buffer, 0, bufferLength - discard);
+            bufferLength -= discard;
+            bufferStart = minPosition;
+        }
+    }
+
+    /**
+     * A reader over the shared stream, with its own position
+     */
+    final class Cursor extends Reader {
+        private long position = 0;
+        private boolean closed = false;
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            if(closed){
+                throw new IOException("Stream closed");
+            }
+            if(len == 0){
+                return 0;
+            }
+            while(position >= bufferStart + bufferLength){
+                if(!fill()){
+                    return -1;
+                }
+            }
+            int available = (int) (bufferStart + bufferLength - position);
+            int read = Math.min(len, available);
+            System.arraycopy(buffer, (int) (position - bufferStart), cbuf, off, read);
+            position += read;
+            return read;
+        }
+
+        /**
+         * @return the number of characters read through this cursor
+         */
+        long getPosition() {
+            return position;
+        }
+
+        /**
+         * Closing a cursor releases the characters it was holding in the buffer, the source is not closed
+         */
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package org.dice.solrenhancements.morelikethis;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Resolves the document frequencies of a batch of candidate terms for a single field.
+ *
+ * IndexReader.docFreq(Term) does a full terms dictionary seek in every segment for each word. Here the
+ * words are resolved in sorted order instead, walking a single TermsEnum per segment forwards with seekExact,
+ * so the terms index frames shared between neighbouring words are re-used rather than re-loaded.
+ *
+ * A resolver created with {@link #withCache(IndexReader)} also remembers every doc freq it looks up. It is
+ * thread safe, and is shared between the seeds of a batch MLT request so common terms are only resolved once.
+ */
+class TermStatsResolver {
+
+    private final IndexReader ir;
+    private final ConcurrentMap<Term, Integer> docFreqCache;
+
+    TermStatsResolver(IndexReader ir) {
+        this(ir, null);
+    }
+
+    private TermStatsResolver(IndexReader ir, ConcurrentMap<Term, Integer> docFreqCache) {
+        this.ir = ir;
+        this.docFreqCache = docFreqCache;
+    }
+
+    /**
+     * @return a resolver that caches the doc freqs it resolves for the lifetime of the resolver
+     */
+    static TermStatsResolver withCache(IndexReader ir){
+        return new TermStatsResolver(ir, new ConcurrentHashMap<Term, Integer>());
+    }
+
+    /**
+     * @return a resolver over doc freqs that have already been computed, such as global doc freqs gathered from
+     * the shards of a distributed request. Terms not in the map have a doc freq of 0
+     */
+    static TermStatsResolver fixed(Map<Term, Integer> docFreqs){
+        return new TermStatsResolver(null, new ConcurrentHashMap<Term, Integer>(docFreqs));
+    }
+
+    /**
+     * Looks up the document frequency of each term in the field.
+     *
+     * @param fieldName   the field the terms belong to
+     * @param sortedTerms the terms to resolve, which MUST be sorted in BytesRef (unicode) order
+     * @param numTerms    the number of terms in sortedTerms to resolve
+     * @return the document frequencies, in the same order as sortedTerms
+     */
+    int[] docFreqs(String fieldName, BytesRef[] sortedTerms, int numTerms) throws IOException {
+        if(docFreqCache == null){
+            return resolve(fieldName, sortedTerms, numTerms);
+        }
+
+        final int[] docFreqs = new int[numTerms];
+        final int[] missing = new int[numTerms];
+        final BytesRef[] missingTerms = new BytesRef[numTerms];
+        int numMissing = 0;
+        for(int i = 0; i < numTerms; i++){
+            Integer docFreq = docFreqCache.get(new Term(fieldName, sortedTerms[i]));
+            if(docFreq != null){
+                docFreqs[i] = docFreq;
+            }
+            else{
+                // still in sorted order
+                missing[numMissing] = i;
+                missingTerms[numMissing] = sortedTerms[i];
+                numMissing++;
+            }
+        }
+
+        final int[] resolved = resolve(fieldName, missingTerms, numMissing);
+        for(int j = 0; j < numMissing; j++){
+            docFreqs[missing[j]] = resolved[j];
+            docFreqCache.put(new Term(fieldName, BytesRef.deepCopyOf(missingTerms[j])), resolved[j]);
+        }
+        return docFreqs;
+    }
+
+    private int[] resolve(String fieldName, BytesRef[] sortedTerms, int numTerms) throws IOException {
+        final int[] docFreqs = new int[numTerms];
+        if(numTerms == 0 || ir == null){
+            return docFreqs;
+        }
+
+        for(LeafReaderContext context: ir.leaves()){
+            final Terms terms = context.reader().terms(fieldName);
+            if(terms == null){
+                continue;
+            }
+            final TermsEnum termsEnum = terms.iterator();
+            for(int i = 0; i < numTerms; i++){
+                if(termsEnum.seekExact(sortedTerms[i])){
+                    docFreqs[i] += termsEnum.docFreq();
+                }
+            }
+        }
+        return docFreqs;
+    }
+}
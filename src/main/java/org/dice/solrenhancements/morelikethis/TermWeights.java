@@ -0,0 +1,75 @@
+package org.dice.solrenhancements.morelikethis;
+
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+
+/**
+ * Accumulates a weight (term frequency, or summed payload for payload fields) for each distinct term of a field.
+ *
+ * Terms are keyed on their UTF-8 bytes in a BytesRefHash, with the weights held in a parallel float array, so
+ * terms read from term vectors or the analyzer never need decoding to a String and no object is allocated per
+ * distinct term. Only the terms that make it into the final MLT query are turned into Strings.
+ */
+public final class TermWeights {
+
+    private final BytesRefHash terms = new BytesRefHash();
+    private float[] weights = new float[16];
+
+    /**
+     * Adds the weight to the term's running total, adding the term if not already present
+     *
+     * @param term   the term bytes, copied if the term is new
+     * @param weight the weight to add
+     */
+    public void add(BytesRef term, float weight){
+        int id = terms.add(term);
+        if(id < 0){
+            // already present
+            id = -id - 1;
+        }
+        else if(id >= weights.length){
+            weights = ArrayUtil.grow(weights, id + 1);
+        }
+        weights[id] += weight;
+    }
+
+    /**
+     * Adds all of the term weights from another accumulator to this one
+     *
+     * @param other the term weights to merge in
+     */
+    public void addAll(TermWeights other){
+        final BytesRef spare = new BytesRef();
+        for(int id = 0; id < other.size(); id++){
+            add(other.terms.get(id, spare), other.weights[id]);
+        }
+    }
+
+    /**
+     * @return the number of distinct terms, term ids run from 0 to size() - 1
+     */
+    public int size(){
+        return terms.size();
+    }
+
+    /**
+     * Fills the spare BytesRef with the bytes of the term. The bytes are shared with the hash, so should be
+     * copied if they need to outlive this object
+     *
+     * @param id    the term id
+     * @param spare the BytesRef to point at the term bytes
+     * @return spare
+     */
+    public BytesRef getTerm(int id, BytesRef spare){
+        return terms.get(id, spare);
+    }
+
+    /**
+     * @param id the term id
+     * @return the accumulated weight of the term
+     */
+    public float getWeight(int id){
+        return weights[id];
+    }
+}
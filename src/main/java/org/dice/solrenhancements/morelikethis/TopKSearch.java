@@ -0,0 +1,46 @@
+package org.dice.solrenhancements.morelikethis;
+
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * Shared logic for running MLT queries as a {@link WeightedTermsQuery}, that only finds the top k documents.
+ */
+final class TopKSearch {
+
+    private TopKSearch() {
+    }
+
+    /**
+     * The top k search can only be used when ranking on the query score alone, and when the full set of matching
+     * documents is not needed (e.g. for faceting)
+     */
+    static boolean canUse(String boostFn, Sort sort, boolean needDocSet, int flags){
+        return (boostFn == null || boostFn.trim().length() == 0)
+                && isRelevanceSort(sort)
+                && !needDocSet
+                && (flags & SolrIndexSearcher.GET_DOCSET) == 0;
+    }
+
+    static boolean isRelevanceSort(Sort sort){
+        if(sort == null){
+            return true;
+        }
+        SortField[] fields = sort.getSort();
+        return fields.length == 1 && fields[0].getType() == SortField.Type.SCORE && !fields[0].getReverse();
+    }
+
+    /**
+     * @return the number of top documents to find. Solr collects a window of queryResultWindowSize documents to
+     * cache, so start + rows is rounded up to the window size
+     */
+    static int getTopK(SolrIndexSearcher searcher, int start, int rows){
+        int topK = Math.max(1, start + rows);
+        int windowSize = searcher.getCore().getSolrConfig().queryResultWindowSize;
+        if(windowSize > 0){
+            topK = ((topK - 1) / windowSize + 1) * windowSize;
+        }
+        return topK;
+    }
+}
@@ -5,21 +5,32 @@ package org.dice.solrenhancements.morelikethis;
  */
 
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
 import org.apache.lucene.queries.function.BoostedQuery;
 import org.apache.lucene.queries.function.FunctionQuery;
 import org.apache.lucene.queries.function.ValueSource;
 import org.apache.lucene.queries.function.valuesource.QueryValueSource;
 import org.apache.lucene.search.*;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.InPlaceMergeSorter;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.params.FacetParams;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.schema.SchemaField;
 import org.apache.solr.search.*;
 import org.apache.solr.util.SolrPluginUtils;
+import org.dice.helper.LongFloatHashMap;
+import org.dice.solrenhancements.DocValuesTermSource;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.regex.Pattern;
 
 /**
@@ -36,6 +47,10 @@ public class UnsupervisedFeedbackHelper
     final IndexReader reader;
     final SchemaField uniqueKeyField;
     final boolean needDocSet;
+    final boolean topK;
+    final int reRankDocs;
+    final boolean countTerms;
+    final MLTTimings timings = new MLTTimings();
 
     public UnsupervisedFeedbackHelper(SolrParams params, SolrIndexSearcher searcher, SchemaField uniqueKeyField, QParser qParser)
     {
@@ -44,6 +59,9 @@ public class UnsupervisedFeedbackHelper
         this.reader = searcher.getIndexReader();
         this.uniqueKeyField = uniqueKeyField;
         this.needDocSet = params.getBool(FacetParams.FACET,false);
+        this.topK = params.getBool(UnsupervisedFeedbackParams.TOP_K, false);
+        this.reRankDocs = params.getInt(UnsupervisedFeedbackParams.RERANK, 0);
+        this.countTerms = params.getBool(UnsupervisedFeedbackParams.COUNT_TERMS, false);
 
         SolrParams required = params.required();
         String[] fields = splitList.split( required.get(UnsupervisedFeedbackParams.SIMILARITY_FIELDS) );
@@ -54,6 +72,7 @@ public class UnsupervisedFeedbackHelper
 
         //this.moreLikeThis = new MoreLikeThis()
         this.moreLikeThis = new MoreLikeThis( reader ); // TODO -- after LUCENE-896, we can use , searcher.getSimilarity() );
+        moreLikeThis.setTimings(timings);
         moreLikeThis.setFieldNames(fields);
 
         final String sPayloadFieldList = params.get(UnsupervisedFeedbackParams.PAYLOAD_FIELDS);
@@ -61,6 +80,11 @@ public class UnsupervisedFeedbackHelper
             String[] payloadFields = splitList.split(sPayloadFieldList);
             moreLikeThis.setPayloadFields(payloadFields);
         }
+        // keyword fields without term vectors are read from their doc values
+        moreLikeThis.setDocValuesFields(DocValuesTermSource.getDocValuesFields(searcher.getSchema(), fields));
+        if(countTerms){
+            moreLikeThis.setCountedFields(DocValuesTermSource.getCountableFields(searcher.getSchema(), fields));
+        }
         moreLikeThis.setAnalyzer(searcher.getSchema().getIndexAnalyzer());
 
         // configurable params
@@ -99,12 +123,170 @@ public class UnsupervisedFeedbackHelper
     }
 
     public MLTResult expandQueryAndReExecute(DocIterator iterator, Query seedQuery, int start, int rows, List<Query> filters, int flags, Sort lsort) throws IOException, SyntaxError
+    {
+        return expandQueryAndReExecute(getExpansion(iterator), seedQuery, start, rows, filters, flags, lsort);
+    }
+
+    /**
+     * Extracts the expansion terms from the documents matched by the seed query
+     */
+    public MLTQuery getExpansion(DocIterator iterator) throws IOException
     {
         List<Integer> ids = new ArrayList<Integer>();
         while(iterator.hasNext()) {
             ids.add(iterator.nextDoc());
         }
+        if(countTerms) {
+            // count the terms of the whole seed set in one pass per field
+            int[] docs = new int[ids.size()];
+            for(int i = 0; i < docs.length; i++) {
+                docs[i] = ids.get(i);
+            }
+            Arrays.sort(docs);
+            return moreLikeThis.like(new SortedIntDocSet(docs));
+        }
+        return moreLikeThis.like(ids);
+    }
+
+    /**
+     * Extracts the expansion terms from sampled seeds, in sample order, until the deadline (from System.nanoTime())
+     * passes, recording in the sample how many were used. At least one seed is always used. Counted terms (see
+     * {@link UnsupervisedFeedbackParams#COUNT_TERMS}) come from every sampled seed in one pass, ignoring the deadline
+     */
+    MLTQuery getExpansion(FeedbackSeedSample sample, long deadlineNanos) throws IOException
+    {
+        int[] docs = sample.getDocs();
+        if(countTerms) {
+            int[] sorted = Arrays.copyOf(docs, docs.length);
+            Arrays.sort(sorted);
+            sample.setUsed(docs.length, false);
+            return moreLikeThis.like(new SortedIntDocSet(sorted));
+        }
+
+        Map<String, TermWeights> fieldTermFreq = new HashMap<String, TermWeights>();
+        String[] fields = moreLikeThis.getFieldNames();
+        int used = 0;
+        while(used < docs.length) {
+            if(used > 0 && deadlineNanos != FeedbackSeedSample.NO_DEADLINE && System.nanoTime() - deadlineNanos >= 0) {
+                break;
+            }
+            moreLikeThis.retrieveTerms(docs[used], fields, fieldTermFreq);
+            used++;
+        }
+        sample.setUsed(used, used < docs.length);
+        return moreLikeThis.like(fieldTermFreq);
+    }
+
+    /**
+     * Expands the seed query from the co-occurrence tables of the similarity fields, without running it: the
+     * associated terms of the seed query's terms are summed by weight, and the top terms of each field kept. A seed
+     * term is looked up in the table of every similarity field, whichever field the seed query searched it in.
+     *
+     * @return the expansion, with no terms if none of the seed terms are in the tables
+     */
+    MLTQuery getExpansion(Query seedQuery, CooccurrenceTables tables) throws IOException
+    {
+        long start = System.nanoTime();
+        Set<Term> queryTerms = new HashSet<Term>();
+        searcher.createNormalizedWeight(seedQuery, false).extractTerms(queryTerms);
+        Set<BytesRef> seedTerms = new HashSet<BytesRef>();
+        for(Term term: queryTerms) {
+            seedTerms.add(term.bytes());
+        }
+
+        List<MLTTerm> mltTerms = new ArrayList<MLTTerm>();
+        for(String fieldName: moreLikeThis.getFieldNames()) {
+            CooccurrenceTable table = tables.acquire(fieldName);
+            if(table == null) {
+                continue;
+            }
+            try {
+                mltTerms.addAll(getAssociatedTerms(table, fieldName, seedTerms));
+            } finally {
+                tables.release(table);
+            }
+        }
+        timings.stop(MLTTimings.Phase.TERM_READ, start);
+        return new MLTQuery(mltTerms, moreLikeThis.getMm());
+    }
 
+    private List<MLTTerm> getAssociatedTerms(CooccurrenceTable table, String fieldName, Set<BytesRef> seedTerms) throws IOException
+    {
+        int[] associates = new int[table.getK()];
+        float[] weights = new float[table.getK()];
+        LongFloatHashMap summed = new LongFloatHashMap(Math.max(16, seedTerms.size() * table.getK()));
+        for(BytesRef seedTerm: seedTerms) {
+            int termIndex = table.findTerm(seedTerm);
+            if(termIndex < 0) {
+                continue;
+            }
+            table.getAssociates(termIndex, associates, weights);
+            for(int i = 0; i < associates.length && associates[i] >= 0; i++) {
+                summed.addTo(associates[i], weights[i]);
+            }
+        }
+
+        // best first, ties broken by term index
+        final int[] best = new int[summed.size()];
+        final float[] bestWeights = new float[summed.size()];
+        int numBest = 0;
+        for(int slot = 0; slot < summed.capacity(); slot++) {
+            if(summed.isUsed(slot)) {
+                best[numBest] = (int) summed.keyAt(slot);
+                bestWeights[numBest] = summed.valueAt(slot);
+                numBest++;
+            }
+        }
+        new InPlaceMergeSorter() {
+            @Override
+            protected int compare(int i, int j) {
+                int cmp = Float.compare(bestWeights[j], bestWeights[i]);
+                return cmp != 0 ? cmp : Integer.compare(best[i], best[j]);
+            }
+
+            @Override
+            protected void swap(int i, int j) {
+                int termIndex = best[i];
+                best[i] = best[j];
+                best[j] = termIndex;
+                float weight = bestWeights[i];
+                bestWeights[i] = bestWeights[j];
+                bestWeights[j] = weight;
+            }
+        }.sort(0, numBest);
+
+        Float boost = moreLikeThis.getBoostFields().get(fieldName);
+        float fieldBoost = boost == null ? 1.0f : boost;
+        // no limit when 0 or less, as for the terms extracted from documents
+        int maxTerms = moreLikeThis.getMaxQueryTermsPerField() <= 0 ? numBest : moreLikeThis.getMaxQueryTermsPerField();
+        List<MLTTerm> mltTerms = new ArrayList<MLTTerm>();
+        double sumSquaredWeight = 0.0d;
+        for(int i = 0; i < numBest && mltTerms.size() < maxTerms; i++) {
+            int termIndex = best[i];
+            BytesRef term = table.getTerm(termIndex);
+            if(seedTerms.contains(term)) {
+                continue;
+            }
+            float weight = bestWeights[i];
+            int docFreq = reader.docFreq(new Term(fieldName, term));
+            // the association weight is the term weight, tf x idf with an idf of 1
+            mltTerms.add(new MLTTerm(term.utf8ToString(), fieldName, weight, 1.0f, docFreq, false, fieldBoost, true));
+            sumSquaredWeight += weight * weight;
+        }
+        if(moreLikeThis.isNormalizeFieldBoosts() && sumSquaredWeight > 0.0d) {
+            float vectorLength = (float) Math.sqrt(sumSquaredWeight);
+            for(MLTTerm mltTerm: mltTerms) {
+                mltTerm.setVectorLength(vectorLength);
+            }
+        }
+        return mltTerms;
+    }
+
+    /**
+     * Runs the seed query expanded with previously extracted (e.g. cached) expansion terms
+     */
+    public MLTResult expandQueryAndReExecute(MLTQuery mltQuery, Query seedQuery, int start, int rows, List<Query> filters, int flags, Sort lsort) throws IOException, SyntaxError
+    {
         // start to build final query
         // add a must clause on the original query, meaning we need it to be matched (likely one a single term or more)
         BooleanQuery.Builder rawUFQuery = new BooleanQuery.Builder();
@@ -112,14 +294,29 @@ public class UnsupervisedFeedbackHelper
 
         // expand original query from matched documents, and add as a should query for re-ranking purposes
 
-        MLTQuery mltQuery = moreLikeThis.like(ids);
+        if(this.topK && this.reRankDocs <= 0 && TopKSearch.canUse(moreLikeThis.getBoostFn(), lsort, this.needDocSet, flags)
+                && mltQuery.supportsTopK(searcher.getSimilarity(true))){
+            // scored as the expanded query below, the filters are applied by the query itself
+            Query topKQuery = mltQuery.getTopKQuery(seedQuery, TopKSearch.getTopK(searcher, start, rows), filters, null);
+            long searchStart = System.nanoTime();
+            DocListAndSet results = new DocListAndSet();
+            results.docList = searcher.getDocList(topKQuery, Collections.<Query>emptyList(), lsort, start, rows, flags);
+            timings.stop(MLTTimings.Phase.QUERY, searchStart);
+            return new MLTResult(mltQuery.getMltTerms(), topKQuery, results);
+        }
+
         Query expansionQuery  = mltQuery.getOrQuery();
 
         rawUFQuery.add(expansionQuery, BooleanClause.Occur.SHOULD);
 
         // only boost final query, not seed query (don't want to filter expansion query)
         Query finalUfQuery = getBoostedFunctionQuery(rawUFQuery.build());
+        if(reRankDocs > 0 && TopKSearch.isRelevanceSort(lsort)){
+            // retrieve with the seed query alone, and only score the top documents with the expanded query
+            finalUfQuery = new ReRankMLTQuery(seedQuery, finalUfQuery, reRankDocs);
+        }
 
+        long searchStart = System.nanoTime();
         DocListAndSet results = new DocListAndSet();
         if (this.needDocSet) {
             results = searcher.getDocListAndSet(finalUfQuery, filters, lsort, start, rows, flags);
@@ -127,8 +324,14 @@ public class UnsupervisedFeedbackHelper
             results.docList = searcher.getDocList(finalUfQuery, filters, lsort, start, rows, flags);
         }
 
+        timings.stop(MLTTimings.Phase.QUERY, searchStart);
         return new MLTResult(mltQuery.getMltTerms(), finalUfQuery, results);
     }
+
+    MLTTimings getTimings()
+    {
+        return timings;
+    }
 }
 
 
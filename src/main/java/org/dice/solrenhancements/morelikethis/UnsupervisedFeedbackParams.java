@@ -33,6 +33,44 @@ public interface UnsupervisedFeedbackParams {
     // normalize field boosts
     String NORMALIZE_FIELD_BOOSTS = PREFIX + "normflboosts";
     String IS_LOG_TF = PREFIX + "logtf";
+
+    // extract the terms of the matched documents in parallel, in chunks of this many documents per task
+    String PARALLEL = PREFIX + "parallel";
+    String PARALLEL_CHUNK_SIZE = PREFIX + "parallel.chunk";
+
+    // re-rank the top documents matching the seed query with the full expanded query
+    String RERANK = PREFIX + "rerank";
+
+    // find just the top rows, pruning the disjunction of the expansion terms while scoring the seed query's matches
+    String TOP_K = PREFIX + "topk";
+
+    // count the expansion terms over the seed doc set from (uninverted) doc values, instead of reading each seed
+    String COUNT_TERMS = PREFIX + "countterms";
+
+    // sample the seeds from the top adaptive.pool matches by score, and stop extracting terms once adaptive.budget
+    // milliseconds (or the remainder of timeAllowed) are spent
+    String ADAPTIVE = PREFIX + "adaptive";
+    String ADAPTIVE_POOL = PREFIX + "adaptive.pool";
+    String ADAPTIVE_BUDGET = PREFIX + "adaptive.budget";
+
+    // use the expansion cache (if configured on the handler) for repeated seed queries
+    String CACHE = PREFIX + "cache";
+
+    // expand the seed query with the associated terms of its terms from the precomputed co-occurrence tables of the
+    // similarity fields, without first running it to find seeds
+    String COOCCURRENCE = PREFIX + "cooccurrence";
+    // build (or report the status of) the co-occurrence tables of the similarity fields: build or status
+    String COOCCURRENCE_COMMAND = PREFIX + "cooccurrence.command";
+    // association measure, llr (default) or pmi
+    String COOCCURRENCE_MEASURE = PREFIX + "cooccurrence.measure";
+    // associated terms kept per term
+    String COOCCURRENCE_K = PREFIX + "cooccurrence.k";
+    // vocabulary size, the most frequent terms within mindf and maxdf are kept
+    String COOCCURRENCE_MAX_TERMS = PREFIX + "cooccurrence.maxterms";
+    // min number of documents a pair must co-occur in
+    String COOCCURRENCE_MIN_COUNT = PREFIX + "cooccurrence.mincount";
+    // max vocabulary terms counted per document, the rarest are kept
+    String COOCCURRENCE_MAX_DOC_TERMS = PREFIX + "cooccurrence.maxdocterms";
     // end new to this plugin
 
     // Do you want to include the original document in the results or not
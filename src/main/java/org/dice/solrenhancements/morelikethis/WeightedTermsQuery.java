@@ -0,0 +1,888 @@
+package org.dice.solrenhancements.morelikethis;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.search.similarities.ClassicSimilarity;
+import org.apache.lucene.search.similarities.PerFieldSimilarityWrapper;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.InPlaceMergeSorter;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.search.SortedIntDocSet;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A disjunction of boosted terms that only finds the top k documents, as used for the MLT query. Documents are
+ * scored exactly as by the equivalent BooleanQuery of boosted TermQuerys ({@link MLTQuery#getOrQuery()}): each
+ * term is scored by the similarity, and the sum is multiplied by the coord factor.
+ *
+ * The query can also have a required query, as for the unsupervised feedback query, where the seed query must
+ * match and the disjunction of the expansion terms is optional. Documents are then scored as by a BooleanQuery
+ * with the required query as a MUST clause and the disjunction as a SHOULD clause, and the required query leads
+ * the search, with all of the terms only used to finish scoring its matches.
+ *
+ * Terms can also be scored by their boost alone, as ConstantScoreQuerys in a BooleanQuery without coord, so
+ * scores don't depend on the index statistics (see {@link MLTQuery#setScoreByWeight}). Their bounds are then the
+ * boosts, whatever the similarity.
+ *
+ * The top k are found with MaxScore pruning. For each segment, the most a term can add to a score is bounded using
+ * the similarity, from the term's largest possible frequency in the segment and the largest norm of its field. The
+ * terms are ordered by that bound, and once the k best scores so far are known, the lowest bounded terms whose
+ * bounds sum to less than the k-th best score can't make a document competitive on their own. Their postings are
+ * only used to finish scoring documents found through the other terms, and only while the document could still
+ * make the top k, so most of the postings of the common (low scoring) terms are never read. The bounds are only
+ * computed for the {@link ClassicSimilarity} and the {@link BM25Similarity}, whose scores grow with the frequency
+ * and the norm, with other similarities nothing is pruned.
+ *
+ * Only documents that were competitive when found are passed to the collector, so the number of hits is a lower
+ * bound of the number of matching documents. Documents that tie the k-th best score are still collected, so the
+ * collector breaks ties (by doc id) exactly as for the exhaustive disjunction.
+ *
+ * Pruning happens in the bulk scorer. The filter (filter queries, seed exclusion) is therefore applied by the
+ * query itself, as wrapping it in a BooleanQuery with the filters would score it document at a time. The query
+ * only holds the filter queries, and resolves them to a DocSet (through the filter cache) when it is searched,
+ * so entries in the query result cache don't pin the filter's bitset.
+ */
+public class WeightedTermsQuery extends Query {
+
+    // allows for the float rounding of the scores, which may differ from that of the bounds
+    private static final float MAX_SCORE_SLACK = 1.0001f;
+
+    // the doc with the largest norm of each field, per segment core. Norms don't change once a segment is written
+    private static final Map<Object, Map<String, Integer>> MAX_NORM_DOCS =
+            Collections.synchronizedMap(new WeakHashMap<Object, Map<String, Integer>>());
+
+    private final Query required;
+    private final Term[] terms;
+    private final float[] boosts;
+    private final boolean scoreByBoost;
+    private final int topK;
+    private final List<Query> filters;
+    private final int[] excludedDocs;
+
+    /**
+     * @param terms        the terms
+     * @param boosts       the boost of each term
+     * @param topK         the number of top documents to find, which must be at least start + rows of the search
+     * @param filters      the filter queries the documents must match, which need a SolrIndexSearcher
+     * @param excludedDocs the sorted (internal) ids of documents that must not match
+     */
+    public WeightedTermsQuery(Term[] terms, float[] boosts, int topK, List<Query> filters, int[] excludedDocs){
+        this(null, terms, boosts, false, topK, filters, excludedDocs);
+    }
+
+    /**
+     * @param required     a query the documents must match, whose score is added to that of the terms, or null
+     * @param terms        the terms
+     * @param boosts       the boost of each term
+     * @param scoreByBoost score each term by its boost alone, rather than by the similarity
+     * @param topK         the number of top documents to find, which must be at least start + rows of the search
+     * @param filters      the filter queries the documents must match, which need a SolrIndexSearcher
+     * @param excludedDocs the sorted (internal) ids of documents that must not match
+     */
+    public WeightedTermsQuery(Query required, Term[] terms, float[] boosts, boolean scoreByBoost, int topK,
+                              List<Query> filters, int[] excludedDocs){
+        if(terms.length != boosts.length){
+            throw new IllegalArgumentException("There must be a boost for each term");
+        }
+        if(topK < 1){
+            throw new IllegalArgumentException("topK must be at least 1, not " + topK);
+        }
+        this.required = required;
+        this.terms = terms;
+        this.boosts = boosts;
+        this.scoreByBoost = scoreByBoost;
+        this.topK = topK;
+        this.filters = filters == null ? Collections.<Query>emptyList() : new ArrayList<Query>(filters);
+        this.excludedDocs = excludedDocs == null ? new int[0] : excludedDocs;
+    }
+
+    /**
+     * @return true if the scores of terms of the field can be bounded, so the query can prune
+     */
+    static boolean supportsSimilarity(Similarity similarity, String field){
+        if(similarity instanceof PerFieldSimilarityWrapper){
+            similarity = ((PerFieldSimilarityWrapper) similarity).get(field);
+        }
+        // exact classes, as subclasses may not score monotonically in the frequency and the norm
+        return similarity.getClass() == ClassicSimilarity.class || similarity.getClass() == BM25Similarity.class;
+    }
+
+    public int getTopK() {
+        return topK;
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher, boolean needsScores) throws IOException {
+        return new WeightedTermsWeight(searcher, getFilter(searcher));
+    }
+
+    /**
+     * @return the documents matching the filter queries, or null if there are none
+     */
+    private DocSet getFilter(IndexSearcher searcher) throws IOException {
+        if(filters.isEmpty()){
+            return null;
+        }
+        if(!(searcher instanceof SolrIndexSearcher)){
+            throw new IllegalArgumentException("The filters of a " + getClass().getSimpleName() + " need a SolrIndexSearcher");
+        }
+        return ((SolrIndexSearcher) searcher).getDocSet(filters);
+    }
+
+    @Override
+    public String toString(String field) {
+        StringBuilder sb = new StringBuilder("weightedTerms(");
+        if(required != null){
+            sb.append('+').append(required.toString(field)).append(' ');
+        }
+        for(int i = 0; i < terms.length; i++){
+            if(i > 0){
+                sb.append(' ');
+            }
+            if(!terms[i].field().equals(field)){
+                sb.append(terms[i].field()).append(':');
+            }
+            sb.append(terms[i].text()).append('^').append(boosts[i]);
+        }
+        sb.append(')');
+        if(scoreByBoost){
+            sb.append("~boosts");
+        }
+        return sb.append("~top").append(topK).toString();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if(!sameClassAs(other)){
+            return false;
+        }
+        WeightedTermsQuery that = (WeightedTermsQuery) other;
+        return topK == that.topK
+                && scoreByBoost == that.scoreByBoost
+                && (required == null ? that.required == null : required.equals(that.required))
+                && Arrays.equals(terms, that.terms)
+                && Arrays.equals(boosts, that.boosts)
+                && filters.equals(that.filters)
+                && Arrays.equals(excludedDocs, that.excludedDocs);
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = classHash();
+        hash = 31 * hash + topK;
+        hash = 31 * hash + (scoreByBoost ? 1 : 0);
+        hash = 31 * hash + (required == null ? 0 : required.hashCode());
+        hash = 31 * hash + Arrays.hashCode(terms);
+        hash = 31 * hash + Arrays.hashCode(boosts);
+        hash = 31 * hash + filters.hashCode();
+        hash = 31 * hash + Arrays.hashCode(excludedDocs);
+        return hash;
+    }
+
+    /**
+     * The k best scores found so far, over all of the segments of a search
+     */
+    private static final class CompetitiveScores {
+        // min heap
+        private final float[] heap;
+        private int size = 0;
+
+        CompetitiveScores(int k) {
+            this.heap = new float[k];
+        }
+
+        /**
+         * @return the score a document must beat to be in the top k
+         */
+        synchronized float threshold() {
+            return size < heap.length ? Float.NEGATIVE_INFINITY : heap[0];
+        }
+
+        /**
+         * @return true if the threshold changed
+         */
+        synchronized boolean insert(float score) {
+            if(size < heap.length){
+                int i = size++;
+                heap[i] = score;
+                while(i > 0 && heap[(i - 1) >>> 1] > heap[i]){
+                    int parent = (i - 1) >>> 1;
+                    float tmp = heap[parent];
+                    heap[parent] = heap[i];
+                    heap[i] = tmp;
+                    i = parent;
+                }
+                return size == heap.length;
+            }
+            if(score <= heap[0]){
+                return false;
+            }
+            heap[0] = score;
+            int i = 0;
+            while(true){
+                int smallest = i;
+                int left = 2 * i + 1;
+                int right = left + 1;
+                if(left < size && heap[left] < heap[smallest]){
+                    smallest = left;
+                }
+                if(right < size && heap[right] < heap[smallest]){
+                    smallest = right;
+                }
+                if(smallest == i){
+                    return true;
+                }
+                float tmp = heap[smallest];
+                heap[smallest] = heap[i];
+                heap[i] = tmp;
+                i = smallest;
+            }
+        }
+    }
+
+    private class WeightedTermsWeight extends Weight {
+
+        private final Similarity similarity;
+        private final Weight requiredWeight;
+        private final TermContext[] termContexts;
+        // the weights of the boosted TermQuerys, as built for the clauses of the equivalent BooleanQuery
+        private final Weight[] termWeights;
+        // used to bound the term scores, null where the similarity can't be bounded
+        private final Similarity.SimWeight[] simWeights;
+        // the scores of the terms, when scored by boost
+        private final float[] boostScores;
+        private final Coord coord;
+        private final CompetitiveScores competitiveScores = new CompetitiveScores(topK);
+        private final DocSet filter;
+        private final DocSet excluded;
+
+        WeightedTermsWeight(IndexSearcher searcher, DocSet filter) throws IOException {
+            super(WeightedTermsQuery.this);
+            this.similarity = searcher.getSimilarity(true);
+            this.requiredWeight = required == null ? null : searcher.createWeight(searcher.rewrite(required), true);
+            this.filter = filter;
+            this.excluded = excludedDocs.length == 0 ? null : new SortedIntDocSet(excludedDocs);
+            termContexts = new TermContext[terms.length];
+            termWeights = new Weight[terms.length];
+            simWeights = new Similarity.SimWeight[terms.length];
+            boostScores = new float[terms.length];
+            for(int i = 0; i < terms.length; i++){
+                termContexts[i] = TermContext.build(searcher.getTopReaderContext(), terms[i]);
+                Query termQuery = new TermQuery(terms[i], termContexts[i]);
+                if(scoreByBoost){
+                    termQuery = new ConstantScoreQuery(termQuery);
+                }
+                termWeights[i] = searcher.createWeight(searcher.rewrite(new BoostQuery(termQuery, boosts[i])), true);
+                if(!scoreByBoost && supportsSimilarity(similarity, terms[i].field())){
+                    // the statistics the TermQuery's weight is built from
+                    simWeights[i] = similarity.computeWeight(searcher.collectionStatistics(terms[i].field()),
+                            searcher.termStatistics(terms[i], termContexts[i]));
+                }
+            }
+            coord = new Coord(similarity, terms.length, required != null, scoreByBoost);
+        }
+
+        @Override
+        public void extractTerms(Set<Term> termSet) {
+            termSet.addAll(Arrays.asList(terms));
+        }
+
+        @Override
+        public float getValueForNormalization() throws IOException {
+            float sum = 0.0f;
+            for(Weight termWeight: termWeights){
+                sum += termWeight.getValueForNormalization();
+            }
+            return requiredWeight == null ? sum : requiredWeight.getValueForNormalization() + sum;
+        }
+
+        @Override
+        public void normalize(float norm, float boost) {
+            if(requiredWeight != null){
+                requiredWeight.normalize(norm, boost);
+            }
+            for(int i = 0; i < terms.length; i++){
+                termWeights[i].normalize(norm, boost);
+                // as for a ConstantScoreQuery
+                boostScores[i] = norm * (boosts[i] * boost);
+                if(simWeights[i] != null){
+                    simWeights[i].normalize(norm, boosts[i] * boost);
+                }
+            }
+        }
+
+        /**
+         * Gets the scorers of the terms present in the segment, ordered by the most they can add to a score, and of
+         * the required query
+         *
+         * @return null if no document of the segment can match
+         */
+        private LeafTerms getLeafTerms(LeafReaderContext context) throws IOException {
+            Scorer requiredScorer = null;
+            if(requiredWeight != null){
+                requiredScorer = requiredWeight.scorer(context);
+                if(requiredScorer == null){
+                    return null;
+                }
+            }
+            List<Scorer> scorers = new ArrayList<Scorer>();
+            List<Float> maxScores = new ArrayList<Float>();
+            for(int i = 0; i < terms.length; i++){
+                TermState state = termContexts[i].get(context.ord);
+                if(state == null){
+                    continue;
+                }
+                Scorer scorer = termWeights[i].scorer(context);
+                if(scorer == null){
+                    continue;
+                }
+                scorers.add(scorer);
+                maxScores.add(getMaxScore(i, context, state));
+            }
+
+            if(requiredScorer == null && scorers.isEmpty()){
+                return null;
+            }
+
+            final LeafTerms leaf = new LeafTerms(requiredScorer, scorers.size());
+            for(int i = 0; i < leaf.scorers.length; i++){
+                leaf.scorers[i] = scorers.get(i);
+                leaf.iterators[i] = leaf.scorers[i].iterator();
+                leaf.maxScores[i] = maxScores.get(i);
+            }
+            new InPlaceMergeSorter() {
+                @Override
+                protected int compare(int i, int j) {
+                    return Float.compare(leaf.maxScores[i], leaf.maxScores[j]);
+                }
+
+                @Override
+                protected void swap(int i, int j) {
+                    Scorer s = leaf.scorers[i];
+                    leaf.scorers[i] = leaf.scorers[j];
+                    leaf.scorers[j] = s;
+                    DocIdSetIterator it = leaf.iterators[i];
+                    leaf.iterators[i] = leaf.iterators[j];
+                    leaf.iterators[j] = it;
+                    float m = leaf.maxScores[i];
+                    leaf.maxScores[i] = leaf.maxScores[j];
+                    leaf.maxScores[j] = m;
+                }
+            }.sort(0, leaf.scorers.length);
+            return leaf;
+        }
+
+        /**
+         * @return the most the term can add to the score of a document of the segment. The score grows with the
+         * frequency and the norm, so is bounded by the score of the largest frequency the term can have in the
+         * segment in the document with the largest norm
+         */
+        private float getMaxScore(int termIndex, LeafReaderContext context, TermState state) throws IOException {
+            if(scoreByBoost){
+                return boostScores[termIndex] * MAX_SCORE_SLACK;
+            }
+            if(simWeights[termIndex] == null){
+                return Float.POSITIVE_INFINITY;
+            }
+            Term term = terms[termIndex];
+            TermsEnum termsEnum = context.reader().terms(term.field()).iterator();
+            termsEnum.seekExact(term.bytes(), state);
+            long totalTermFreq = termsEnum.totalTermFreq();
+            // -1 when frequencies are not indexed, which are then 1
+            float maxFreq = totalTermFreq < 0 ? 1.0f : totalTermFreq - termsEnum.docFreq() + 1;
+            int maxNormDoc = getMaxNormDoc(context.reader(), term.field());
+            return similarity.simScorer(simWeights[termIndex], context).score(maxNormDoc, maxFreq) * MAX_SCORE_SLACK;
+        }
+
+        @Override
+        public Scorer scorer(LeafReaderContext context) throws IOException {
+            LeafTerms leaf = getLeafTerms(context);
+            if(leaf == null){
+                return null;
+            }
+            return new DisjunctionScorer(this, leaf, coord, new FilterBits(filter, excluded, context.docBase));
+        }
+
+        @Override
+        public BulkScorer bulkScorer(LeafReaderContext context) throws IOException {
+            LeafTerms leaf = getLeafTerms(context);
+            if(leaf == null){
+                return null;
+            }
+            return new MaxScoreBulkScorer(this, leaf, coord, new FilterBits(filter, excluded, context.docBase), competitiveScores);
+        }
+
+        @Override
+        public Explanation explain(LeafReaderContext context, int doc) throws IOException {
+            if(!new FilterBits(filter, excluded, context.docBase).get(doc)){
+                return Explanation.noMatch("document is filtered out");
+            }
+            Explanation requiredExplanation = null;
+            if(requiredWeight != null){
+                requiredExplanation = requiredWeight.explain(context, doc);
+                if(!requiredExplanation.isMatch()){
+                    return Explanation.noMatch("no match on required clause", requiredExplanation);
+                }
+            }
+            List<Explanation> matches = new ArrayList<Explanation>();
+            double sum = 0.0;
+            for(Weight termWeight: termWeights){
+                Explanation explanation = termWeight.explain(context, doc);
+                if(explanation.isMatch()){
+                    sum += explanation.getValue();
+                    matches.add(explanation);
+                }
+            }
+            Explanation termsExplanation = null;
+            if(!matches.isEmpty()){
+                termsExplanation = explainCoord(Explanation.match((float) sum, "sum of:", matches),
+                        coord.terms(matches.size()), matches.size(), terms.length);
+            }
+            if(requiredExplanation == null){
+                return termsExplanation == null ? Explanation.noMatch("no matching term") : termsExplanation;
+            }
+            if(termsExplanation == null){
+                return explainCoord(Explanation.match(requiredExplanation.getValue(), "sum of:", requiredExplanation),
+                        coord.required(false), 1, 2);
+            }
+            return explainCoord(Explanation.match(requiredExplanation.getValue() + termsExplanation.getValue(), "sum of:",
+                    requiredExplanation, termsExplanation), coord.required(true), 2, 2);
+        }
+
+        private Explanation explainCoord(Explanation sum, float coord, int overlap, int maxOverlap) {
+            if(coord == 1.0f){
+                return sum;
+            }
+            return Explanation.match(sum.getValue() * coord, "product of:", sum,
+                    Explanation.match(coord, "coord(" + overlap + "/" + maxOverlap + ")"));
+        }
+    }
+
+    /**
+     * @return the doc of the segment with the largest norm for the field, the first doc if the field has no norms
+     */
+    private static int getMaxNormDoc(LeafReader reader, String field) throws IOException {
+        Map<String, Integer> maxNormDocs;
+        synchronized (MAX_NORM_DOCS) {
+            maxNormDocs = MAX_NORM_DOCS.get(reader.getCoreCacheKey());
+            if(maxNormDocs == null){
+                maxNormDocs = new ConcurrentHashMap<String, Integer>();
+                MAX_NORM_DOCS.put(reader.getCoreCacheKey(), maxNormDocs);
+            }
+        }
+        Integer maxNormDoc = maxNormDocs.get(field);
+        if(maxNormDoc == null){
+            maxNormDoc = 0;
+            NumericDocValues norms = reader.getNormValues(field);
+            if(norms != null){
+                // both similarities decode the norm from its low byte, unsigned, and score higher the larger it is
+                int maxNorm = -1;
+                for(int doc = 0; doc < reader.maxDoc(); doc++){
+                    int norm = (int) (norms.get(doc) & 0xFF);
+                    if(norm > maxNorm){
+                        maxNorm = norm;
+                        maxNormDoc = doc;
+                    }
+                }
+            }
+            maxNormDocs.put(field, maxNormDoc);
+        }
+        return maxNormDoc;
+    }
+
+    private static final class LeafTerms {
+        final Scorer requiredScorer;
+        final Scorer[] scorers;
+        final DocIdSetIterator[] iterators;
+        final float[] maxScores;
+
+        LeafTerms(Scorer requiredScorer, int size) {
+            this.requiredScorer = requiredScorer;
+            scorers = new Scorer[size];
+            iterators = new DocIdSetIterator[size];
+            maxScores = new float[size];
+        }
+    }
+
+    /**
+     * Combines the scores of the terms, and of the required query, as a BooleanQuery does
+     */
+    private static final class Coord {
+        private final float[] termFactors;
+        private final float requiredOnly;
+        private final float requiredAndTerms;
+
+        /**
+         * @param disableCoord as for a BooleanQuery of the terms with the coord disabled
+         */
+        Coord(Similarity similarity, int numTerms, boolean hasRequired, boolean disableCoord) {
+            termFactors = new float[numTerms + 1];
+            for(int i = 1; i < termFactors.length; i++){
+                termFactors[i] = numTerms == 1 || disableCoord ? 1.0f : similarity.coord(i, numTerms);
+            }
+            requiredOnly = hasRequired ? similarity.coord(1, 2) : 1.0f;
+            requiredAndTerms = hasRequired ? similarity.coord(2, 2) : 1.0f;
+        }
+
+        float terms(int matches) {
+            return termFactors[matches];
+        }
+
+        float required(boolean termsMatch) {
+            return termsMatch ? requiredAndTerms : requiredOnly;
+        }
+
+        /**
+         * @param sum     the sum of the scores of the matching terms, added as doubles
+         * @param matches the number of matching terms
+         */
+        float score(double sum, int matches) {
+            return (float) sum * termFactors[matches];
+        }
+
+        float score(float requiredScore, double sum, int matches) {
+            if(matches == 0){
+                return requiredScore * requiredOnly;
+            }
+            return (requiredScore + score(sum, matches)) * requiredAndTerms;
+        }
+    }
+
+    /**
+     * Applies the query's filter and exclusions to the documents of a segment
+     */
+    private static final class FilterBits {
+        private final DocSet filter;
+        private final DocSet excluded;
+        private final int docBase;
+
+        FilterBits(DocSet filter, DocSet excluded, int docBase) {
+            this.filter = filter;
+            this.excluded = excluded;
+            this.docBase = docBase;
+        }
+
+        boolean get(int doc) {
+            return (filter == null || filter.exists(docBase + doc))
+                    && (excluded == null || !excluded.exists(docBase + doc));
+        }
+    }
+
+    /**
+     * Holds the current document and score, passed to the collector by the bulk scorer
+     */
+    private static final class ScoreHolder extends Scorer {
+        int doc = -1;
+        float score;
+        int freq;
+
+        ScoreHolder(Weight weight) {
+            super(weight);
+        }
+
+        @Override
+        public int docID() {
+            return doc;
+        }
+
+        @Override
+        public float score() {
+            return score;
+        }
+
+        @Override
+        public int freq() {
+            return freq;
+        }
+
+        @Override
+        public DocIdSetIterator iterator() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Scores the documents of a segment, passing only those that could be in the top k to the collector
+     */
+    private static final class MaxScoreBulkScorer extends BulkScorer {
+        private final Scorer requiredScorer;
+        private final Scorer[] scorers;
+        private final DocIdSetIterator[] iterators;
+        // upper bound of the sum of the scores of terms 0..i
+        private final double[] maxScores;
+        private final Coord coord;
+        private final int[] docs;
+        private final FilterBits filterBits;
+        private final CompetitiveScores competitiveScores;
+        private final ScoreHolder scoreHolder;
+        private final long cost;
+        // terms before this are non-essential, they can't make a document competitive on their own. With a required
+        // query, which leads the search, all of the terms are
+        private int firstEssential;
+
+        MaxScoreBulkScorer(Weight weight, LeafTerms leaf, Coord coord, FilterBits filterBits, CompetitiveScores competitiveScores) {
+            this.requiredScorer = leaf.requiredScorer;
+            this.scorers = leaf.scorers;
+            this.iterators = leaf.iterators;
+            this.coord = coord;
+            this.filterBits = filterBits;
+            this.competitiveScores = competitiveScores;
+            this.scoreHolder = new ScoreHolder(weight);
+            this.firstEssential = requiredScorer == null ? 0 : scorers.length;
+
+            this.maxScores = new double[scorers.length];
+            this.docs = new int[scorers.length];
+            double sum = 0.0;
+            long totalCost = 0;
+            for(int i = 0; i < scorers.length; i++){
+                sum += leaf.maxScores[i];
+                maxScores[i] = sum;
+                docs[i] = -1;
+                totalCost += iterators[i].cost();
+            }
+            this.cost = requiredScorer == null ? totalCost : requiredScorer.iterator().cost();
+        }
+
+        private void updateEssential() {
+            final float threshold = competitiveScores.threshold();
+            // a document matching only the non-essential terms could still tie the threshold, so keep those terms
+            while(firstEssential < scorers.length && maxScores[firstEssential] < threshold){
+                firstEssential++;
+            }
+        }
+
+        @Override
+        public int score(LeafCollector collector, Bits acceptDocs, int min, int max) throws IOException {
+            collector.setScorer(scoreHolder);
+            if(requiredScorer != null){
+                return scoreRequired(collector, acceptDocs, min, max);
+            }
+            // another segment may have raised the threshold
+            updateEssential();
+
+            while(firstEssential < scorers.length){
+                int doc = DocIdSetIterator.NO_MORE_DOCS;
+                for(int i = firstEssential; i < scorers.length; i++){
+                    if(docs[i] < min){
+                        docs[i] = iterators[i].advance(min);
+                    }
+                    doc = Math.min(doc, docs[i]);
+                }
+                if(doc >= max){
+                    return doc;
+                }
+
+                if((acceptDocs != null && !acceptDocs.get(doc)) || !filterBits.get(doc)){
+                    for(int i = firstEssential; i < scorers.length; i++){
+                        if(docs[i] == doc){
+                            docs[i] = iterators[i].nextDoc();
+                        }
+                    }
+                    continue;
+                }
+
+                // summed as a double, as by the BooleanQuery
+                double score = 0.0;
+                int matches = 0;
+                for(int i = firstEssential; i < scorers.length; i++){
+                    if(docs[i] == doc){
+                        score += scorers[i].score();
+                        matches++;
+                        docs[i] = iterators[i].nextDoc();
+                    }
+                }
+
+                // only look at the non-essential terms while they could still make the document competitive. The
+                // coord factor is at most 1 for the similarities that are bounded
+                final float threshold = competitiveScores.threshold();
+                int i = firstEssential - 1;
+                for(; i >= 0 && score + maxScores[i] >= threshold; i--){
+                    if(docs[i] < doc){
+                        docs[i] = iterators[i].advance(doc);
+                    }
+                    if(docs[i] == doc){
+                        score += scorers[i].score();
+                        matches++;
+                    }
+                }
+
+                // the partial score of a document that can't be competitive is not collected
+                if(i < 0){
+                    collect(collector, doc, coord.score(score, matches), matches);
+                }
+            }
+            return DocIdSetIterator.NO_MORE_DOCS;
+        }
+
+        /**
+         * Scores the matches of the required query, only looking at the terms while they could still make the
+         * document competitive
+         */
+        private int scoreRequired(LeafCollector collector, Bits acceptDocs, int min, int max) throws IOException {
+            DocIdSetIterator requiredIterator = requiredScorer.iterator();
+            int doc = requiredIterator.docID();
+            if(doc < min){
+                doc = requiredIterator.advance(min);
+            }
+            for(; doc < max; doc = requiredIterator.nextDoc()){
+                if((acceptDocs != null && !acceptDocs.get(doc)) || !filterBits.get(doc)){
+                    continue;
+                }
+                final float requiredScore = requiredScorer.score();
+                final float threshold = competitiveScores.threshold();
+                double score = 0.0;
+                int matches = 0;
+                int i = scorers.length - 1;
+                for(; i >= 0 && requiredScore + score + maxScores[i] >= threshold; i--){
+                    if(docs[i] < doc){
+                        docs[i] = iterators[i].advance(doc);
+                    }
+                    if(docs[i] == doc){
+                        score += scorers[i].score();
+                        matches++;
+                    }
+                }
+                if(i < 0){
+                    collect(collector, doc, coord.score(requiredScore, score, matches), matches);
+                }
+            }
+            return doc;
+        }
+
+        private void collect(LeafCollector collector, int doc, float score, int matches) throws IOException {
+            if(score >= competitiveScores.threshold()){
+                scoreHolder.doc = doc;
+                scoreHolder.score = score;
+                scoreHolder.freq = matches;
+                collector.collect(doc);
+                if(competitiveScores.insert(score)){
+                    updateEssential();
+                }
+            }
+        }
+
+        @Override
+        public long cost() {
+            return cost;
+        }
+    }
+
+    /**
+     * Exhaustive scorer, for when the query is not run through the bulk scorer (e.g. when nested in another query)
+     */
+    private static final class DisjunctionScorer extends Scorer {
+        private final Scorer requiredScorer;
+        private final Scorer[] scorers;
+        private final DocIdSetIterator[] iterators;
+        private final Coord coord;
+        private final int[] docs;
+        private final FilterBits filterBits;
+        private int doc = -1;
+        private float score = 0.0f;
+        private int freq = 0;
+
+        DisjunctionScorer(Weight weight, LeafTerms leaf, Coord coord, FilterBits filterBits) {
+            super(weight);
+            this.requiredScorer = leaf.requiredScorer;
+            this.scorers = leaf.scorers;
+            this.iterators = leaf.iterators;
+            this.coord = coord;
+            this.filterBits = filterBits;
+            this.docs = new int[scorers.length];
+            Arrays.fill(docs, -1);
+        }
+
+        @Override
+        public int docID() {
+            return doc;
+        }
+
+        @Override
+        public float score() {
+            return score;
+        }
+
+        @Override
+        public int freq() {
+            return freq;
+        }
+
+        @Override
+        public DocIdSetIterator iterator() {
+            return new DocIdSetIterator() {
+                @Override
+                public int docID() {
+                    return doc;
+                }
+
+                @Override
+                public int nextDoc() throws IOException {
+                    return advance(doc + 1);
+                }
+
+                @Override
+                public int advance(int target) throws IOException {
+                    while(true) {
+                        if (requiredScorer != null) {
+                            doc = requiredScorer.iterator().advance(target);
+                            for (int i = 0; i < iterators.length; i++) {
+                                if (docs[i] < doc) {
+                                    docs[i] = iterators[i].advance(doc);
+                                }
+                            }
+                        } else {
+                            doc = NO_MORE_DOCS;
+                            for (int i = 0; i < iterators.length; i++) {
+                                if (docs[i] < target) {
+                                    docs[i] = iterators[i].advance(target);
+                                }
+                                doc = Math.min(doc, docs[i]);
+                            }
+                        }
+                        if (doc == NO_MORE_DOCS) {
+                            return doc;
+                        }
+                        if (filterBits.get(doc)) {
+                            break;
+                        }
+                        target = doc + 1;
+                    }
+                    double sum = 0.0;
+                    freq = 0;
+                    for (int i = 0; i < scorers.length; i++) {
+                        if (docs[i] == doc) {
+                            sum += scorers[i].score();
+                            freq++;
+                        }
+                    }
+                    score = requiredScorer == null ? coord.score(sum, freq) : coord.score(requiredScorer.score(), sum, freq);
+                    return doc;
+                }
+
+                @Override
+                public long cost() {
+                    if (requiredScorer != null) {
+                        return requiredScorer.iterator().cost();
+                    }
+                    long cost = 0;
+                    for (DocIdSetIterator it : iterators) {
+                        cost += it.cost();
+                    }
+                    return cost;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.dice.solrenhancements.queryparsers;
+
+import org.apache.lucene.search.Query;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.QParser;
+import org.apache.solr.search.SyntaxError;
+import org.dice.solrenhancements.knn.DenseVectorField;
+import org.dice.solrenhancements.knn.KnnGraphs;
+import org.dice.solrenhancements.knn.KnnQuery;
+
+/**
+ * Parses {!knn f=vector topK=10 ef=100 filter=$knnFilter}0.12,-0.4,... into a {@link KnnQuery} for the top K
+ * documents nearest the vector, in a {@link DenseVectorField}. Usable as q, as an fq, or as the reRankQuery of
+ * the rerank parser.
+ *
+ * f      - the dense vector field, required
+ * topK   - the number of neighbours, defaults to 10
+ * ef     - the width of the graph search, at least topK, defaults to max(topK, 100). Raise it for better recall
+ * filter - a query the neighbours must match, applied during the graph search so topK are still returned
+ */
+public class KnnQParser extends QParser {
+
+    public static final String FIELD = "f";
+    public static final String TOP_K = "topK";
+    public static final String EF = "ef";
+    public static final String FILTER = "filter";
+
+    public static final int DEFAULT_TOP_K = 10;
+    public static final int DEFAULT_EF = 100;
+
+    public KnnQParser(String qstr, SolrParams localParams, SolrParams params, SolrQueryRequest req) {
+        super(qstr, localParams, params, req);
+    }
+
+    @Override
+    public Query parse() throws SyntaxError {
+        String fieldName = localParams.get(FIELD);
+        if(fieldName == null){
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "The knn query parser requires the 'f' local param");
+        }
+        SchemaField field = req.getSchema().getField(fieldName);
+        if(!(field.getType() instanceof DenseVectorField)){
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                    String.format("The knn query parser requires a DenseVectorField, %s is a %s", fieldName, field.getType().getTypeName()));
+        }
+        DenseVectorField fieldType = (DenseVectorField) field.getType();
+
+        int topK = localParams.getInt(TOP_K, DEFAULT_TOP_K);
+        int ef = localParams.getInt(EF, Math.max(topK, DEFAULT_EF));
+        if(topK < 1){
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "topK must be at least 1");
+        }
+        if(qstr == null || qstr.trim().isEmpty()){
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "The knn query parser requires a query vector");
+        }
+        float[] target = fieldType.parseVector(qstr);
+
+        Query filter = null;
+        String filterStr = localParams.get(FILTER);
+        if(filterStr != null){
+            filter = subQuery(filterStr, null).getQuery();
+        }
+        return new KnnQuery(KnnGraphs.get(req.getCore()), fieldName, fieldType, target, topK, ef, filter);
+    }
+}
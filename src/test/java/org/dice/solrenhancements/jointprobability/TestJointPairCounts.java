@@ -0,0 +1,197 @@
+package org.dice.solrenhancements.jointprobability;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.SortedSetDocValuesField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.SlowCompositeReaderWrapper;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.schema.StrField;
+import org.apache.solr.search.BitDocSet;
+import org.apache.solr.search.DocSet;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Checks the one pass pivot counts against counting each outer value's subset of the documents, as the subset
+ * path of {@link JointCounts} does
+ */
+public class TestJointPairCounts {
+
+    private static final int NUM_DOCS = 500;
+
+    private static final SchemaField OUTER = new SchemaField("category", new StrField());
+    private static final SchemaField INNER = new SchemaField("skill", new StrField());
+
+    private static Directory dir;
+    private static DirectoryReader reader;
+    private static LeafReader topReader;
+    private static List<Set<String>> outerValues = new ArrayList<Set<String>>();
+    private static List<Set<String>> innerValues = new ArrayList<Set<String>>();
+    private static DocSet docs;
+    private static FixedBitSet docBits;
+
+    @BeforeClass
+    public static void createIndex() throws IOException {
+        dir = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new WhitespaceAnalyzer()));
+        Random random = new Random(42);
+        docBits = new FixedBitSet(NUM_DOCS);
+        for(int i = 0; i < NUM_DOCS; i++){
+            // skewed, so counts differ and some tie
+            Set<String> outer = randomValues(random, "cat", 8, 2);
+            Set<String> inner = randomValues(random, "skill", 20, 4);
+            Document doc = new Document();
+            for(String value: outer){
+                doc.add(new SortedSetDocValuesField(OUTER.getName(), new BytesRef(value)));
+            }
+            for(String value: inner){
+                doc.add(new SortedSetDocValuesField(INNER.getName(), new BytesRef(value)));
+            }
+            writer.addDocument(doc);
+            outerValues.add(outer);
+            innerValues.add(inner);
+            if(random.nextInt(3) > 0){
+                docBits.set(i);
+            }
+            // several segments, so the ords must be global
+            if(i % 200 == 199){
+                writer.commit();
+            }
+        }
+        writer.close();
+        reader = DirectoryReader.open(dir);
+        Assert.assertTrue(reader.leaves().size() > 1);
+        topReader = SlowCompositeReaderWrapper.wrap(reader);
+        docs = new BitDocSet(docBits);
+    }
+
+    @AfterClass
+    public static void closeIndex() throws IOException {
+        reader.close();
+        dir.close();
+    }
+
+    @Test
+    public void matchesTheSubsetCounts() throws IOException {
+        for(int minCount: new int[]{1, 5, 20}){
+            for(int limit: new int[]{-1, 0, 1, 3, 10}){
+                Assert.assertEquals("mincount " + minCount + " limit " + limit, getSubsetPivots(minCount, limit),
+                        new JointPairCounts(topReader, minCount, limit).count(docs, OUTER, INNER));
+            }
+        }
+    }
+
+    @Test
+    public void countsAFieldAgainstItself() throws IOException {
+        List<NamedList<Object>> pivots = new JointPairCounts(topReader, 1, -1).count(docs, OUTER, OUTER);
+        for(NamedList<Object> pivot: pivots){
+            // each value co-occurs with itself in every one of its documents
+            @SuppressWarnings("unchecked")
+            List<NamedList<Object>> inner = (List<NamedList<Object>>) pivot.get(OUTER.getName());
+            boolean found = false;
+            for(NamedList<Object> innerPivot: inner){
+                if(innerPivot.get(JointCounts.VALUE).equals(pivot.get(JointCounts.VALUE))){
+                    Assert.assertEquals(pivot.get(JointCounts.COUNT), innerPivot.get(JointCounts.COUNT));
+                    found = true;
+                }
+            }
+            Assert.assertTrue(found);
+        }
+    }
+
+    /**
+     * Counts the outer values over the doc set, then the inner values over each outer value's subset
+     */
+    private static List<NamedList<Object>> getSubsetPivots(int minCount, int limit){
+        List<NamedList<Object>> pivots = new ArrayList<NamedList<Object>>();
+        Map<String, Integer> outerCounts = countValues(outerValues, null, null);
+        for(Map.Entry<String, Integer> outer: select(outerCounts, minCount, limit)){
+            SimpleOrderedMap<Object> pivot = new SimpleOrderedMap<Object>();
+            pivot.add(JointCounts.VALUE, outer.getKey());
+            pivot.add(JointCounts.COUNT, outer.getValue());
+            List<NamedList<Object>> innerPivots = new ArrayList<NamedList<Object>>();
+            for(Map.Entry<String, Integer> inner: select(countValues(innerValues, outerValues, outer.getKey()), minCount, limit)){
+                SimpleOrderedMap<Object> innerPivot = new SimpleOrderedMap<Object>();
+                innerPivot.add(JointCounts.VALUE, inner.getKey());
+                innerPivot.add(JointCounts.COUNT, inner.getValue());
+                innerPivots.add(innerPivot);
+            }
+            if(innerPivots.size() > 0){
+                pivot.add(INNER.getName(), innerPivots);
+            }
+            pivots.add(pivot);
+        }
+        return pivots;
+    }
+
+    /**
+     * @return the count of each value over the doc set, or the subset of it with the filter value
+     */
+    private static Map<String, Integer> countValues(List<Set<String>> values, List<Set<String>> filterValues, String filterValue){
+        Map<String, Integer> counts = new TreeMap<String, Integer>();
+        for(int doc = 0; doc < NUM_DOCS; doc++){
+            if(!docBits.get(doc) || (filterValue != null && !filterValues.get(doc).contains(filterValue))){
+                continue;
+            }
+            for(String value: values.get(doc)){
+                Integer count = counts.get(value);
+                counts.put(value, count == null ? 1 : count + 1);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * @return the values with at least minCount, by count descending then by value, at most limit of them
+     */
+    private static List<Map.Entry<String, Integer>> select(Map<String, Integer> counts, int minCount, int limit){
+        List<Map.Entry<String, Integer>> selected = new ArrayList<Map.Entry<String, Integer>>();
+        for(Map.Entry<String, Integer> entry: counts.entrySet()){
+            if(entry.getValue() >= minCount){
+                selected.add(entry);
+            }
+        }
+        // stable, so ties stay in value order
+        Collections.sort(selected, new Comparator<Map.Entry<String, Integer>>() {
+            @Override
+            public int compare(Map.Entry<String, Integer> e1, Map.Entry<String, Integer> e2) {
+                return e2.getValue().compareTo(e1.getValue());
+            }
+        });
+        return limit < 0 ? selected : selected.subList(0, Math.min(limit, selected.size()));
+    }
+
+    private static Set<String> randomValues(Random random, String prefix, int numValues, int maxPerDoc){
+        Set<String> values = new TreeSet<String>();
+        int count = random.nextInt(maxPerDoc + 1);
+        for(int i = 0; i < count; i++){
+            // squared, so low values are more frequent
+            double r = random.nextDouble();
+            values.add(prefix + (int) (r * r * numValues));
+        }
+        return values;
+    }
+}
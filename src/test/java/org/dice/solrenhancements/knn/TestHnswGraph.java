@@ -0,0 +1,200 @@
+package org.dice.solrenhancements.knn;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Bits;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Builds the HNSW graph of a segment and checks its search against an exact (brute force) search
+ */
+public class TestHnswGraph {
+
+    private static final String FIELD = "vector";
+    private static final int DIMENSION = 16;
+    private static final int NUM_DOCS = 2000;
+    private static final int K = 10;
+
+    private static Directory dir;
+    private static DirectoryReader reader;
+    private static MappedHnswGraph graph;
+    // by doc id, null for the docs without a vector
+    private static float[][] vectors = new float[NUM_DOCS][];
+
+    @BeforeClass
+    public static void buildGraph() throws IOException {
+        Map<String, String> args = new HashMap<String, String>();
+        args.put(DenseVectorField.DIMENSION, Integer.toString(DIMENSION));
+        args.put(DenseVectorField.HNSW_M, "8");
+        args.put(DenseVectorField.HNSW_EF_CONSTRUCTION, "64");
+        DenseVectorField fieldType = new DenseVectorField();
+        fieldType.init(null, args);
+
+        dir = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new WhitespaceAnalyzer()));
+        Random random = new Random(42);
+        for(int doc = 0; doc < NUM_DOCS; doc++){
+            Document document = new Document();
+            // some docs have no vector, so nodes and doc ids differ
+            if(doc % 7 != 3){
+                vectors[doc] = randomVector(random);
+                document.add(new BinaryDocValuesField(FIELD, DenseVectorField.encode(vectors[doc])));
+            }
+            writer.addDocument(document);
+        }
+        writer.forceMerge(1);
+        writer.close();
+
+        reader = DirectoryReader.open(dir);
+        LeafReader leaf = reader.leaves().get(0).reader();
+        String fileName = "_0" + MappedHnswGraph.FILE_SUFFIX;
+        int numNodes = new HnswGraphBuilder(fieldType).build(leaf, FIELD, dir, fileName);
+        graph = MappedHnswGraph.open(dir, fileName, DIMENSION, VectorSimilarity.COSINE);
+        Assert.assertEquals(numNodes, graph.numNodes());
+    }
+
+    @AfterClass
+    public static void close() throws IOException {
+        graph.close();
+        reader.close();
+        dir.close();
+    }
+
+    @Test
+    public void storesTheVectorsAndDocIds() throws IOException {
+        float[] vector = new float[DIMENSION];
+        int node = 0;
+        for(int doc = 0; doc < NUM_DOCS; doc++){
+            if(vectors[doc] == null){
+                Assert.assertEquals(-1, graph.findNode(doc));
+                continue;
+            }
+            Assert.assertEquals(node, graph.findNode(doc));
+            Assert.assertEquals(doc, graph.docId(node));
+            graph.readVector(node, vector);
+            Assert.assertArrayEquals(vectors[doc], vector, 0.0f);
+            node++;
+        }
+        Assert.assertEquals(node, graph.numNodes());
+    }
+
+    @Test
+    public void findsTheExactNeighboursOfIndexedVectors() throws IOException {
+        int[] docs = new int[K];
+        float[] scores = new float[K];
+        for(int doc = 0; doc < NUM_DOCS; doc += 97){
+            if(vectors[doc] == null){
+                continue;
+            }
+            Assert.assertTrue(graph.search(vectors[doc], K, 64, null, docs, scores) > 0);
+            Assert.assertEquals(doc, docs[0]);
+            Assert.assertEquals(1.0f, scores[0], 1e-5f);
+        }
+    }
+
+    @Test
+    public void hasAHighRecall() throws IOException {
+        Random random = new Random(7);
+        int[] docs = new int[K];
+        float[] scores = new float[K];
+        int hits = 0;
+        int numQueries = 50;
+        for(int q = 0; q < numQueries; q++){
+            float[] target = randomVector(random);
+            int found = graph.search(target, K, 100, null, docs, scores);
+            Assert.assertEquals(K, found);
+            for(int i = 1; i < found; i++){
+                Assert.assertTrue("best first", scores[i - 1] >= scores[i]);
+            }
+            hits += countHits(exactTopK(target, null), docs, found);
+        }
+        float recall = hits / (float) (numQueries * K);
+        Assert.assertTrue("recall " + recall, recall >= 0.9f);
+    }
+
+    @Test
+    public void onlyReturnsAcceptedDocs() throws IOException {
+        Bits evenDocs = new Bits() {
+            @Override
+            public boolean get(int index) {
+                return index % 2 == 0;
+            }
+
+            @Override
+            public int length() {
+                return NUM_DOCS;
+            }
+        };
+        Random random = new Random(11);
+        int[] docs = new int[K];
+        float[] scores = new float[K];
+        int hits = 0;
+        int numQueries = 20;
+        for(int q = 0; q < numQueries; q++){
+            float[] target = randomVector(random);
+            int found = graph.search(target, K, 100, evenDocs, docs, scores);
+            Assert.assertEquals(K, found);
+            for(int i = 0; i < found; i++){
+                Assert.assertEquals(0, docs[i] % 2);
+            }
+            hits += countHits(exactTopK(target, evenDocs), docs, found);
+        }
+        float recall = hits / (float) (numQueries * K);
+        Assert.assertTrue("recall " + recall, recall >= 0.9f);
+    }
+
+    private static int countHits(Set<Integer> expected, int[] docs, int found){
+        int hits = 0;
+        for(int i = 0; i < found; i++){
+            if(expected.contains(docs[i])){
+                hits++;
+            }
+        }
+        return hits;
+    }
+
+    private static Set<Integer> exactTopK(float[] target, Bits accept){
+        final float[] scores = new float[NUM_DOCS];
+        Integer[] docs = new Integer[NUM_DOCS];
+        for(int doc = 0; doc < NUM_DOCS; doc++){
+            docs[doc] = doc;
+            boolean accepted = vectors[doc] != null && (accept == null || accept.get(doc));
+            scores[doc] = accepted ? VectorSimilarity.COSINE.score(VectorSimilarity.dotProduct(vectors[doc], target)) : -1.0f;
+        }
+        Arrays.sort(docs, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer d1, Integer d2) {
+                return Float.compare(scores[d2], scores[d1]);
+            }
+        });
+        return new HashSet<Integer>(Arrays.asList(docs).subList(0, K));
+    }
+
+    private static float[] randomVector(Random random){
+        float[] vector = new float[DIMENSION];
+        for(int i = 0; i < DIMENSION; i++){
+            vector[i] = (float) random.nextGaussian();
+        }
+        VectorSimilarity.normalize(vector);
+        return vector;
+    }
+}
@@ -0,0 +1,232 @@
+package org.dice.solrenhancements.morelikethis;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.SortedSetDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Builds co-occurrence tables from a small index, and checks them against co-occurrences counted directly from
+ * the documents
+ */
+public class TestCooccurrenceTable {
+
+    private static final String FIELD = "skills";
+    private static final int NUM_DOCS = 400;
+    private static final int K = 4;
+
+    private static Directory indexDir;
+    private static DirectoryReader reader;
+    private static List<Set<String>> docs = new ArrayList<Set<String>>();
+
+    @BeforeClass
+    public static void createIndex() throws IOException {
+        indexDir = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(indexDir, new IndexWriterConfig(new WhitespaceAnalyzer()));
+        Random random = new Random(42);
+        String[][] topics = {{"java", "spring", "hibernate", "maven"}, {"python", "django", "flask", "pandas"},
+                {"aws", "docker", "kubernetes", "terraform"}};
+        for(int i = 0; i < NUM_DOCS; i++){
+            Set<String> terms = new TreeSet<String>();
+            // mostly from one topic, with some noise
+            for(String term: topics[random.nextInt(topics.length)]){
+                if(random.nextInt(3) > 0){
+                    terms.add(term);
+                }
+            }
+            if(random.nextInt(4) == 0){
+                terms.add("sql" + random.nextInt(3));
+            }
+            Document doc = new Document();
+            doc.add(new StringField("id", Integer.toString(i), Field.Store.NO));
+            for(String term: terms){
+                doc.add(new StringField(FIELD, term, Field.Store.NO));
+                doc.add(new SortedSetDocValuesField(FIELD, new BytesRef(term)));
+            }
+            writer.addDocument(doc);
+            docs.add(terms);
+            if(i % 150 == 149){
+                writer.commit();
+            }
+        }
+        // deleted docs must not be counted
+        for(int i = 0; i < NUM_DOCS; i += 10){
+            writer.deleteDocuments(new Term("id", Integer.toString(i)));
+        }
+        writer.close();
+        for(int i = (NUM_DOCS - 1) / 10 * 10; i >= 0; i -= 10){
+            docs.remove(i);
+        }
+        reader = DirectoryReader.open(indexDir);
+    }
+
+    @AfterClass
+    public static void closeIndex() throws IOException {
+        reader.close();
+        indexDir.close();
+    }
+
+    @Test
+    public void matchesTheCountedLlr() throws IOException {
+        checkTable(CooccurrenceTableBuilder.Measure.LLR);
+    }
+
+    @Test
+    public void matchesTheCountedPmi() throws IOException {
+        checkTable(CooccurrenceTableBuilder.Measure.PMI);
+    }
+
+    @Test
+    public void keepsTheMostFrequentTerms() throws IOException {
+        Directory dir = new RAMDirectory();
+        try {
+            CooccurrenceTableBuilder builder = new CooccurrenceTableBuilder(FIELD, CooccurrenceTableBuilder.Measure.LLR,
+                    K, 5, 1, Integer.MAX_VALUE, 1, Integer.MAX_VALUE);
+            CooccurrenceTable table = CooccurrenceTable.open(dir, builder.build(reader, dir));
+            try {
+                Assert.assertEquals(5, table.getNumTerms());
+                int minKept = Integer.MAX_VALUE;
+                Set<String> kept = new HashSet<String>();
+                for(int i = 0; i < table.getNumTerms(); i++){
+                    String term = table.getTerm(i).utf8ToString();
+                    kept.add(term);
+                    minKept = Math.min(minKept, docFreq(term));
+                }
+                for(String term: getVocabulary()){
+                    if(!kept.contains(term)){
+                        Assert.assertTrue(term, docFreq(term) <= minKept);
+                    }
+                }
+            } finally {
+                table.decRef();
+            }
+        } finally {
+            dir.close();
+        }
+    }
+
+    @Test
+    public void parsesTheFileName() {
+        String fileName = CooccurrenceTable.getFileName("skills_text", 123L);
+        Assert.assertEquals("skills_text", CooccurrenceTable.getField(fileName));
+        Assert.assertEquals(123L, CooccurrenceTable.getIndexVersion(fileName));
+        Assert.assertNull(CooccurrenceTable.getField(fileName + CooccurrenceTable.TMP_SUFFIX));
+        Assert.assertEquals(-1L, CooccurrenceTable.getIndexVersion("neighbours_123.tbl"));
+    }
+
+    private void checkTable(CooccurrenceTableBuilder.Measure measure) throws IOException {
+        Directory dir = new RAMDirectory();
+        try {
+            CooccurrenceTableBuilder builder = new CooccurrenceTableBuilder(FIELD, measure, K,
+                    Integer.MAX_VALUE, 1, Integer.MAX_VALUE, 1, Integer.MAX_VALUE);
+            String fileName = builder.build(reader, dir);
+            Assert.assertEquals(CooccurrenceTable.getFileName(FIELD, reader.getVersion()), fileName);
+
+            CooccurrenceTable table = CooccurrenceTable.open(dir, fileName);
+            try {
+                Assert.assertEquals(FIELD, table.getField());
+                Assert.assertEquals(measure.name().toLowerCase(), table.getMeasure());
+                Assert.assertEquals(reader.getVersion(), table.getIndexVersion());
+                Assert.assertEquals(K, table.getK());
+                Assert.assertEquals(numDocsWithTerms(), table.getNumDocs());
+
+                List<String> vocabulary = getVocabulary();
+                Assert.assertEquals(vocabulary.size(), table.getNumTerms());
+                for(int i = 0; i < vocabulary.size(); i++){
+                    Assert.assertEquals(vocabulary.get(i), table.getTerm(i).utf8ToString());
+                    Assert.assertEquals(i, table.findTerm(new BytesRef(vocabulary.get(i))));
+                }
+                Assert.assertEquals(-1, table.findTerm(new BytesRef("cobol")));
+
+                int[] associates = new int[K];
+                float[] weights = new float[K];
+                for(int a = 0; a < vocabulary.size(); a++){
+                    List<Float> expected = new ArrayList<Float>();
+                    for(int b = 0; b < vocabulary.size(); b++){
+                        float weight = expectedWeight(builder, vocabulary.get(a), vocabulary.get(b));
+                        if(a != b && weight > 0.0f){
+                            expected.add(weight);
+                        }
+                    }
+                    Collections.sort(expected, Collections.<Float>reverseOrder());
+
+                    table.getAssociates(a, associates, weights);
+                    for(int i = 0; i < K; i++){
+                        if(i >= expected.size()){
+                            Assert.assertEquals(-1, associates[i]);
+                            continue;
+                        }
+                        Assert.assertEquals(expected.get(i), weights[i], 0.0f);
+                        Assert.assertEquals(expected.get(i), expectedWeight(builder, vocabulary.get(a), vocabulary.get(associates[i])), 0.0f);
+                    }
+                }
+            } finally {
+                table.decRef();
+            }
+        } finally {
+            dir.close();
+        }
+    }
+
+    private static float expectedWeight(CooccurrenceTableBuilder builder, String a, String b){
+        int count = 0;
+        for(Set<String> doc: docs){
+            if(doc.contains(a) && doc.contains(b)){
+                count++;
+            }
+        }
+        return (float) builder.score(count, docFreq(a), docFreq(b), numDocsWithTerms());
+    }
+
+    private static int numDocsWithTerms(){
+        int numDocs = 0;
+        for(Set<String> doc: docs){
+            if(!doc.isEmpty()){
+                numDocs++;
+            }
+        }
+        return numDocs;
+    }
+
+    private static int docFreq(String term){
+        int docFreq = 0;
+        for(Set<String> doc: docs){
+            if(doc.contains(term)){
+                docFreq++;
+            }
+        }
+        return docFreq;
+    }
+
+    /**
+     * @return the terms of the live docs, in sorted order
+     */
+    private static List<String> getVocabulary(){
+        Set<String> vocabulary = new TreeSet<String>();
+        for(Set<String> doc: docs){
+            vocabulary.addAll(doc);
+        }
+        return new ArrayList<String>(vocabulary);
+    }
+}
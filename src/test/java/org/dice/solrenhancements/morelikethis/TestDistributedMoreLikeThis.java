@@ -0,0 +1,110 @@
+package org.dice.solrenhancements.morelikethis;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks how the coordinator of a distributed MLT request merges the shards' responses
+ */
+public class TestDistributedMoreLikeThis {
+
+    @Test
+    public void picksTheGlobalTopSeeds() {
+        List<DistributedMoreLikeThis.ShardSeed> candidates = Arrays.asList(
+                seed("shard1", "a1", 9.0f), seed("shard1", "a2", 5.0f), seed("shard1", "a3", 1.0f),
+                seed("shard2", "b1", 8.0f), seed("shard2", "b2", 7.0f), seed("shard2", "b3", 6.0f),
+                seed("shard3", "c1", 0.5f));
+
+        // skip the top 2 (a1, b1) and keep the next 3
+        Map<String, List<String>> seeds = DistributedMoreLikeThis.mergeSeeds(candidates, 2, 3);
+        Assert.assertEquals(Arrays.asList("shard2", "shard1"), new ArrayList<String>(seeds.keySet()));
+        Assert.assertEquals(Arrays.asList("b2", "b3"), seeds.get("shard2"));
+        Assert.assertEquals(Collections.singletonList("a2"), seeds.get("shard1"));
+
+        // the shards holding no chosen seed are left out
+        Assert.assertFalse(seeds.containsKey("shard3"));
+        Assert.assertTrue(DistributedMoreLikeThis.mergeSeeds(candidates, 7, 3).isEmpty());
+    }
+
+    @Test
+    public void breaksSeedTiesByShardOrder() {
+        List<DistributedMoreLikeThis.ShardSeed> candidates = Arrays.asList(
+                seed("shard1", "a1", 1.0f), seed("shard2", "b1", 1.0f), seed("shard3", "c1", 1.0f));
+        Map<String, List<String>> seeds = DistributedMoreLikeThis.mergeSeeds(candidates, 1, 1);
+        Assert.assertEquals(Collections.singletonList("b1"), seeds.get("shard2"));
+        Assert.assertEquals(1, seeds.size());
+    }
+
+    @Test
+    public void mergesTheShardResultsByScore() {
+        List<NamedList<Object>> responses = Arrays.asList(
+                response(10, doc("a1", 4.0f), doc("a2", 2.0f), doc("a3", 0.5f)),
+                response(5, doc("b1", 3.0f), doc("b2", 1.0f)));
+
+        SolrDocumentList merged = DistributedMoreLikeThis.merge(responses, 1, 3, true);
+        Assert.assertEquals(15, merged.getNumFound());
+        Assert.assertEquals(1, merged.getStart());
+        Assert.assertEquals(4.0f, merged.getMaxScore(), 0.0f);
+        Assert.assertEquals(Arrays.asList("b1", "a2", "b2"), getIds(merged));
+        Assert.assertEquals(3.0f, merged.get(0).getFieldValue("score"));
+
+        SolrDocumentList withoutScores = DistributedMoreLikeThis.merge(responses, 3, 10, false);
+        Assert.assertEquals(Arrays.asList("b2", "a3"), getIds(withoutScores));
+        Assert.assertNull(withoutScores.get(0).getFieldValue("score"));
+    }
+
+    @Test
+    public void sendsTheTermBytes() {
+        // not valid UTF-8, as in the indexed form of a numeric field
+        BytesRef binary = new BytesRef(new byte[]{0x60, (byte) 0x80, (byte) 0xff, 0x00, 0x3a});
+        List<Term> terms = Arrays.asList(
+                new Term("skills", "java"),
+                new Term("skills", "c++ d\u00e9veloppeur"),
+                new Term("a:field", binary),
+                new Term("skills", new BytesRef()));
+
+        List<Term> decoded = DistributedMoreLikeThis.decodeTerms(DistributedMoreLikeThis.encodeTerms(terms));
+        Assert.assertEquals(terms, decoded);
+        Assert.assertEquals(binary, decoded.get(2).bytes());
+        Assert.assertEquals("a:field", decoded.get(2).field());
+    }
+
+    private static DistributedMoreLikeThis.ShardSeed seed(String shard, String key, float score){
+        return new DistributedMoreLikeThis.ShardSeed(shard, key, score);
+    }
+
+    private static NamedList<Object> response(long numFound, SolrDocument... docs){
+        SolrDocumentList docList = new SolrDocumentList();
+        docList.setNumFound(numFound);
+        docList.addAll(Arrays.asList(docs));
+        NamedList<Object> response = new NamedList<Object>();
+        response.add("response", docList);
+        return response;
+    }
+
+    private static SolrDocument doc(String id, float score){
+        SolrDocument doc = new SolrDocument();
+        doc.setField("id", id);
+        doc.setField("score", score);
+        return doc;
+    }
+
+    private static List<String> getIds(SolrDocumentList docs){
+        List<String> ids = new ArrayList<String>();
+        for(SolrDocument doc: docs){
+            ids.add((String) doc.getFieldValue("id"));
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,157 @@
+package org.dice.solrenhancements.morelikethis;
+
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Writes a neighbour table and reads it back
+ */
+public class TestNeighbourTable {
+
+    private static final int K = 3;
+    private static final long INDEX_VERSION = 42L;
+    private static final String SIGNATURE = "mlt.fl=title,skills&mlt.mintf=1";
+
+    // sorted, with a key that is not ASCII
+    private static final String[] KEYS = {"doc1", "doc10", "doc2", "doc3", "d\u00f6c4"};
+
+    private Directory dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = new RAMDirectory();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        dir.close();
+    }
+
+    @Test
+    public void roundTrips() throws IOException {
+        String fileName = writeTable();
+        NeighbourTable table = NeighbourTable.open(dir, fileName);
+        try {
+            Assert.assertEquals(INDEX_VERSION, table.getIndexVersion());
+            Assert.assertEquals(INDEX_VERSION, NeighbourTable.getIndexVersion(table.getFileName()));
+            Assert.assertEquals(K, table.getK());
+            Assert.assertEquals(KEYS.length, table.getNumKeys());
+            Assert.assertEquals(SIGNATURE, table.getParamsSignature());
+
+            for(int i = 0; i < KEYS.length; i++){
+                Assert.assertEquals(i, table.findKey(KEYS[i]));
+                Assert.assertEquals(KEYS[i], table.getKey(i));
+            }
+            Assert.assertEquals(-1, table.findKey("doc0"));
+            Assert.assertEquals(-1, table.findKey("doc11"));
+            Assert.assertEquals(-1, table.findKey("zzz"));
+
+            int[] neighbours = new int[K];
+            float[] scores = new float[K];
+            Assert.assertTrue(table.getNeighbours(0, neighbours, scores));
+            Assert.assertArrayEquals(new int[]{2, 4, 1}, neighbours);
+            Assert.assertArrayEquals(new float[]{3.5f, 2.25f, 1.0f}, scores, 0.0f);
+
+            // fewer than K neighbours
+            Assert.assertTrue(table.getNeighbours(3, neighbours, scores));
+            Assert.assertArrayEquals(new int[]{0, -1, -1}, neighbours);
+
+            // not in the build subset
+            Assert.assertFalse(table.getNeighbours(1, neighbours, scores));
+        } finally {
+            table.decRef();
+        }
+    }
+
+    @Test
+    public void releasesTheFileWithTheLastReference() throws IOException {
+        NeighbourTable table = NeighbourTable.open(dir, writeTable());
+        Assert.assertTrue(table.tryIncRef());
+        table.decRef();
+        Assert.assertTrue(table.tryIncRef());
+        table.decRef();
+        table.decRef();
+        Assert.assertFalse(table.tryIncRef());
+    }
+
+    @Test(expected = CorruptIndexException.class)
+    public void rejectsACorruptTable() throws IOException {
+        String fileName = writeTable();
+        byte[] bytes = readAll(fileName);
+        bytes[bytes.length / 2] ^= 0x1;
+        dir.deleteFile(fileName);
+        IndexOutput out = dir.createOutput(fileName, IOContext.DEFAULT);
+        out.writeBytes(bytes, bytes.length);
+        out.close();
+
+        NeighbourTable.open(dir, fileName);
+    }
+
+    private String writeTable() throws IOException {
+        BytesRef[] keys = new BytesRef[KEYS.length];
+        for(int i = 0; i < keys.length; i++){
+            keys[i] = new BytesRef(KEYS[i]);
+        }
+        // the keys must be in byte order, as the builder sorts them
+        BytesRef[] sorted = keys.clone();
+        Arrays.sort(sorted);
+        Assert.assertArrayEquals(sorted, keys);
+
+        // rows in two segment files, not in key order
+        String segment0 = writeRows(new int[][]{{3, 0, -1, -1}}, new float[][]{{0.5f, 0.0f, 0.0f}});
+        String segment1 = writeRows(new int[][]{{0, 2, 4, 1}, {2, 0, 3, -1}, {4, 1, 0, 2}},
+                new float[][]{{3.5f, 2.25f, 1.0f}, {3.5f, 0.75f, 0.0f}, {1.5f, 1.25f, 1.0f}});
+
+        String fileName = NeighbourTable.getFileName(INDEX_VERSION);
+        IndexOutput out = dir.createOutput(fileName, IOContext.DEFAULT);
+        try {
+            NeighbourTableBuilder.writeTable(out, dir, keys, Arrays.asList(segment0, segment1), K, INDEX_VERSION, SIGNATURE);
+        } finally {
+            out.close();
+        }
+        return fileName;
+    }
+
+    /**
+     * @param rows each row's key index followed by its K neighbour key indexes
+     */
+    private String writeRows(int[][] rows, float[][] scores) throws IOException {
+        IndexOutput out = dir.createTempOutput(NeighbourTable.FILE_PREFIX + INDEX_VERSION, "seg", IOContext.DEFAULT);
+        try {
+            for(int i = 0; i < rows.length; i++){
+                for(int value: rows[i]){
+                    out.writeInt(value);
+                }
+                for(float score: scores[i]){
+                    out.writeInt(Float.floatToIntBits(score));
+                }
+            }
+        } finally {
+            out.close();
+        }
+        return out.getName();
+    }
+
+    private byte[] readAll(String fileName) throws IOException {
+        IndexInput in = dir.openInput(fileName, IOContext.READONCE);
+        try {
+            byte[] bytes = new byte[(int) in.length()];
+            in.readBytes(bytes, 0, bytes.length);
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package org.dice.solrenhancements.morelikethis;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.*;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.search.similarities.ClassicSimilarity;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Checks the top k search of the MLT query's WeightedTermsQuery against the exhaustive search of its BooleanQuery,
+ * and of the unsupervised feedback query's
+ */
+public class TestWeightedTermsQuery {
+
+    private static final String FIELD = "skills";
+    private static final int NUM_TERMS = 12;
+
+    private static Directory directory;
+    private static DirectoryReader reader;
+    private static IndexSearcher searcher;
+
+    @BeforeClass
+    public static void createIndex() throws IOException {
+        directory = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new WhitespaceAnalyzer()));
+        Random random = new Random(42);
+        for(int i = 0; i < 2000; i++){
+            // varying term frequencies and lengths, so the frequencies and norms change the scores
+            StringBuilder text = new StringBuilder();
+            for(int t = 0; t < NUM_TERMS; t++){
+                if(random.nextInt(4) == 0){
+                    for(int freq = 1 + random.nextInt(3); freq > 0; freq--){
+                        text.append("t").append(t).append(' ');
+                    }
+                }
+            }
+            for(int filler = random.nextInt(8); filler > 0; filler--){
+                text.append("filler ");
+            }
+            Document doc = new Document();
+            doc.add(new TextField(FIELD, text.toString(), Field.Store.NO));
+            writer.addDocument(doc);
+            // several segments, to share the competitive scores between them
+            if(i % 500 == 499){
+                writer.commit();
+            }
+        }
+        writer.close();
+        reader = DirectoryReader.open(directory);
+        searcher = new IndexSearcher(reader);
+    }
+
+    @AfterClass
+    public static void closeIndex() throws IOException {
+        reader.close();
+        directory.close();
+    }
+
+    @Test
+    public void matchesTheExhaustiveSearch() throws IOException {
+        for(Similarity similarity: new Similarity[]{new ClassicSimilarity(), new BM25Similarity()}){
+            searcher.setSimilarity(similarity);
+            Random random = new Random(7);
+            for(int iter = 0; iter < 20; iter++){
+                float[] weights = new float[1 + random.nextInt(NUM_TERMS)];
+                for(int i = 0; i < weights.length; i++){
+                    weights[i] = 0.1f + random.nextFloat();
+                }
+                int topK = 1 + random.nextInt(50);
+                assertSameTopDocs(mltQuery(weights), topK, new int[0]);
+            }
+        }
+    }
+
+    @Test
+    public void keepsTheLowestDocIdsOnTies() throws IOException {
+        searcher.setSimilarity(new ClassicSimilarity());
+        // equal weights, so many documents tie on score
+        float[] weights = new float[NUM_TERMS];
+        Arrays.fill(weights, 1.0f);
+        for(int topK: new int[]{1, 10, 100, 1000}){
+            assertSameTopDocs(mltQuery(weights), topK, new int[0]);
+        }
+    }
+
+    @Test
+    public void skipsTheExcludedDocs() throws IOException {
+        searcher.setSimilarity(new BM25Similarity());
+        MLTQuery mltQuery = mltQuery(new float[]{3.0f, 2.0f, 1.0f});
+        TopDocs all = searcher.search(mltQuery.getOrQuery(), 20);
+        int[] excluded = new int[]{all.scoreDocs[0].doc, all.scoreDocs[3].doc, all.scoreDocs[7].doc};
+        Arrays.sort(excluded);
+        assertSameTopDocs(mltQuery, 10, excluded);
+    }
+
+    @Test
+    public void matchesTheExpandedSeedQuery() throws IOException {
+        // the unsupervised feedback query, the seed query must match and the expansion terms are optional
+        Query seedQuery = new BooleanQuery.Builder()
+                .add(new TermQuery(new Term(FIELD, "t3")), BooleanClause.Occur.SHOULD)
+                .add(new TermQuery(new Term(FIELD, "t5")), BooleanClause.Occur.SHOULD)
+                .build();
+        for(Similarity similarity: new Similarity[]{new ClassicSimilarity(), new BM25Similarity()}){
+            searcher.setSimilarity(similarity);
+            Random random = new Random(11);
+            for(int iter = 0; iter < 10; iter++){
+                float[] weights = new float[1 + random.nextInt(NUM_TERMS)];
+                for(int i = 0; i < weights.length; i++){
+                    weights[i] = 0.1f + random.nextFloat();
+                }
+                MLTQuery mltQuery = mltQuery(weights);
+                Query expandedQuery = new BooleanQuery.Builder()
+                        .add(seedQuery, BooleanClause.Occur.MUST)
+                        .add(mltQuery.getOrQuery(), BooleanClause.Occur.SHOULD)
+                        .build();
+                int topK = 1 + random.nextInt(50);
+                assertSameTopDocs(expandedQuery, mltQuery.getTopKQuery(seedQuery, topK, null, null), topK, new int[0]);
+            }
+        }
+    }
+
+    @Test
+    public void scoresByWeightAlone() throws IOException {
+        // as on the shards of a distributed query, the scores don't depend on the index statistics
+        for(Similarity similarity: new Similarity[]{new ClassicSimilarity(), new BM25Similarity()}){
+            searcher.setSimilarity(similarity);
+            Random random = new Random(13);
+            for(int iter = 0; iter < 10; iter++){
+                float[] weights = new float[1 + random.nextInt(NUM_TERMS)];
+                for(int i = 0; i < weights.length; i++){
+                    weights[i] = 0.1f + random.nextFloat();
+                }
+                MLTQuery mltQuery = mltQuery(weights);
+                mltQuery.setScoreByWeight(true);
+                assertSameTopDocs(mltQuery, 1 + random.nextInt(50), new int[0]);
+            }
+        }
+
+        searcher.setSimilarity(new BM25Similarity());
+        MLTQuery mltQuery = mltQuery(new float[]{3.0f, 2.0f});
+        mltQuery.setScoreByWeight(true);
+        // the BM25 query norm is 1, so a document with both terms scores the sum of their weights
+        Assert.assertEquals(5.0f, searcher.search(mltQuery.getTopKQuery(1, null, null), 1).scoreDocs[0].score, 1e-6f);
+    }
+
+    private static MLTQuery mltQuery(float[] weights){
+        List<MLTTerm> mltTerms = new ArrayList<MLTTerm>();
+        for(int i = 0; i < weights.length; i++){
+            mltTerms.add(new MLTTerm("t" + i, FIELD, weights[i], 1.0f, 0, false, 1.0f, true));
+        }
+        return new MLTQuery(mltTerms, "1");
+    }
+
+    private static void assertSameTopDocs(MLTQuery mltQuery, int topK, int[] excluded) throws IOException {
+        assertSameTopDocs(mltQuery.getOrQuery(), mltQuery.getTopKQuery(topK, null, excluded), topK, excluded);
+    }
+
+    private static void assertSameTopDocs(Query oracle, Query topKQuery, int topK, int[] excluded) throws IOException {
+        // the oracle scores of every document, to check documents that swap places on (rounding) ties
+        Map<Integer, Float> oracleScores = new HashMap<Integer, Float>();
+        List<ScoreDoc> expected = new ArrayList<ScoreDoc>();
+        for(ScoreDoc scoreDoc: searcher.search(oracle, reader.maxDoc()).scoreDocs){
+            oracleScores.put(scoreDoc.doc, scoreDoc.score);
+            if(Arrays.binarySearch(excluded, scoreDoc.doc) < 0 && expected.size() < topK){
+                expected.add(scoreDoc);
+            }
+        }
+
+        ScoreDoc[] actual = searcher.search(topKQuery, topK).scoreDocs;
+        Assert.assertEquals(expected.size(), actual.length);
+        for(int i = 0; i < actual.length; i++){
+            float expectedScore = expected.get(i).score;
+            Assert.assertEquals("score at rank " + i, expectedScore, actual[i].score, 1e-5f * expectedScore);
+            if(expected.get(i).doc != actual[i].doc){
+                Assert.assertTrue("doc at rank " + i, oracleScores.containsKey(actual[i].doc));
+                Assert.assertEquals("tied doc at rank " + i, expectedScore, oracleScores.get(actual[i].doc), 1e-5f * expectedScore);
+            }
+        }
+    }
+}